@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.core.UndefinedTickException;
+import fourthline.mmlTools.parser.MMLParseException;
+
+/**
+ * ベンチマーク用のスコアを用意します.
+ * <ul>
+ * <li>small:  test/fourthline/mmlTools/*.mmi のテスト用スコア</li>
+ * <li>medium: 4トラック, 各パート 500音の生成スコア</li>
+ * <li>large:  12トラック, 各パート 4000音の生成スコア</li>
+ * </ul>
+ * テスト用スコアのディレクトリは システムプロパティ bench.fixtures で変更できます.
+ */
+public final class BenchScores {
+	public static final String SMALL = "small";
+	public static final String MEDIUM = "medium";
+	public static final String LARGE = "large";
+
+	private static final String FIXTURE_DIR = System.getProperty("bench.fixtures", "test/fourthline/mmlTools");
+	private static final String FIXTURES[] = { "format0.mmi", "format1.mmi", "format_r0.mmi", "format_r1.mmi" };
+	private static final long SEED = 20160401L;
+
+	private static final String NOTE_NAMES[] = { "c", "c+", "d", "d+", "e", "f", "f+", "g", "g+", "a", "a+", "b" };
+	private static final String NOTE_LENGTHS[] = { "", "1", "2", "4", "8", "16", "32", "2.", "4.", "8.", "16." };
+
+	private BenchScores() {}
+
+	/**
+	 * 指定されたサイズのスコアを作成します.
+	 * @param size small, medium, large のいずれか.
+	 * @return スコアのリスト
+	 */
+	public static List<MMLScore> load(String size) throws IOException, MMLParseException {
+		List<MMLScore> list = new ArrayList<>();
+		if (SMALL.equals(size)) {
+			for (String name : FIXTURES) {
+				try (InputStream istream = new FileInputStream(new File(FIXTURE_DIR, name))) {
+					list.add(new MMLScore().parse(istream));
+				}
+			}
+		} else if (MEDIUM.equals(size)) {
+			list.add(generateScore(4, 500, SEED));
+		} else if (LARGE.equals(size)) {
+			list.add(generateScore(12, 4000, SEED));
+		} else {
+			throw new IllegalArgumentException(size);
+		}
+		return list;
+	}
+
+	/**
+	 * 乱数からスコアを生成します. 同じseedであれば同じスコアになります.
+	 * @param trackCount トラック数
+	 * @param noteCount 各パートの音数
+	 * @param seed 乱数のseed
+	 * @return 生成したスコア
+	 */
+	public static MMLScore generateScore(int trackCount, int noteCount, long seed) {
+		Random random = new Random(seed);
+		MMLScore score = new MMLScore();
+		for (int i = 0; i < trackCount; i++) {
+			String melody = generateMML(random, noteCount);
+			if (i == 0) {
+				// テンポ指定は先頭トラックの先頭のみ.
+				melody = "t" + (60 + random.nextInt(180)) + melody;
+			}
+			String chord1 = generateMML(random, noteCount);
+			String chord2 = generateMML(random, noteCount);
+			MMLTrack track = new MMLTrack().setMML(melody, chord1, chord2, "");
+			track.setTrackName("track"+(i+1));
+			score.addTrack(track);
+		}
+		return score;
+	}
+
+	/**
+	 * 1パート分のMMLを生成します.
+	 * @param random 乱数
+	 * @param noteCount 音数
+	 * @return MML文字列
+	 */
+	public static String generateMML(Random random, int noteCount) {
+		StringBuilder sb = new StringBuilder();
+		int octave = 4;
+		for (int i = 0; i < noteCount; i++) {
+			int r = random.nextInt(100);
+			if (r < 4) {
+				sb.append('v').append(random.nextInt(16));
+			} else if ((r < 14) && (octave > 2)) {
+				sb.append('<');
+				octave--;
+			} else if ((r < 24) && (octave < 6)) {
+				sb.append('>');
+				octave++;
+			} else if (r < 28) {
+				sb.append('l').append(NOTE_LENGTHS[1+random.nextInt(6)]);
+			}
+
+			String length = NOTE_LENGTHS[random.nextInt(NOTE_LENGTHS.length)];
+			if (random.nextInt(8) == 0) {
+				sb.append('r').append(length);
+			} else {
+				sb.append(NOTE_NAMES[random.nextInt(NOTE_NAMES.length)]).append(length);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * スコアに含まれる全パートのMML文字列を取得します.
+	 * @param scoreList スコアのリスト
+	 * @return MML文字列のリスト
+	 */
+	public static List<String> partMMLList(List<MMLScore> scoreList) throws UndefinedTickException {
+		List<String> list = new ArrayList<>();
+		for (MMLScore score : scoreList) {
+			score.generateAll();
+			for (MMLTrack track : score.getTrackList()) {
+				for (String mml : track.getMabiMMLArray()) {
+					list.add(mml);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * スコアに含まれる全パートについて, 最適化前のMML文字列を取得します.
+	 * @param scoreList スコアのリスト
+	 * @return 最適化前のMML文字列のリスト
+	 */
+	public static List<String> rawMMLList(List<MMLScore> scoreList) throws UndefinedTickException {
+		List<String> list = new ArrayList<>();
+		for (MMLScore score : scoreList) {
+			for (MMLTrack track : score.getTrackList()) {
+				for (MMLEventList eventList : track.getMMLEventList()) {
+					list.add(eventList.toMMLString(true, true));
+				}
+			}
+		}
+		return list;
+	}
+}
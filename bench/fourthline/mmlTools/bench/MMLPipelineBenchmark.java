@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.core.UndefinedTickException;
+import fourthline.mmlTools.optimizer.MMLStringOptimizer;
+import fourthline.mmlTools.parser.MMLEventParser;
+
+/**
+ * MML parse → generate → optimize の各段階のベンチマーク.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MMLPipelineBenchmark {
+
+	@Param({ BenchScores.SMALL, BenchScores.MEDIUM, BenchScores.LARGE })
+	public String scoreSize;
+
+	private List<MMLScore> scoreList;
+	private List<MMLTrack> trackList;
+	private List<String> partMMLList;
+	private List<String> rawMMLList;
+
+	@Setup
+	public void setup() throws Exception {
+		scoreList = BenchScores.load(scoreSize);
+		partMMLList = BenchScores.partMMLList(scoreList);
+		rawMMLList = BenchScores.rawMMLList(scoreList);
+		trackList = new ArrayList<>();
+		for (MMLScore score : scoreList) {
+			trackList.addAll(score.getTrackList());
+		}
+	}
+
+	@Benchmark
+	public void eventParser(Blackhole bh) {
+		for (String mml : partMMLList) {
+			MMLEventParser parser = new MMLEventParser(mml);
+			while (parser.hasNext()) {
+				bh.consume(parser.next());
+			}
+		}
+	}
+
+	@Benchmark
+	public void eventListConstruct(Blackhole bh) {
+		for (String mml : partMMLList) {
+			bh.consume(new MMLEventList(mml));
+		}
+	}
+
+	/**
+	 * パートの内容を変更します. markDirty だけでは内容が同じと判定されて再generateしないため,
+	 * 先頭ノートの音量を交互に変えます.
+	 */
+	private static void touch(MMLEventList eventList) {
+		List<MMLNoteEvent> noteList = eventList.getMMLNoteEventList();
+		if (!noteList.isEmpty()) {
+			MMLNoteEvent noteEvent = noteList.get(0);
+			noteEvent.setVelocity(noteEvent.getVelocity() ^ 1);
+		}
+		eventList.markDirty();
+	}
+
+	/**
+	 * 全パートを変更扱いにし, 最適化のキャッシュも消して, 前回のgenerate結果を使わせないようにします.
+	 */
+	private void markAllDirty() {
+		MMLStringOptimizer.clearCache();
+		for (MMLTrack track : trackList) {
+			for (MMLEventList eventList : track.getMMLEventList()) {
+				touch(eventList);
+			}
+		}
+	}
+
+	@Benchmark
+	public void trackGenerate(Blackhole bh) throws UndefinedTickException {
+		markAllDirty();
+		for (MMLTrack track : trackList) {
+			bh.consume(track.generate());
+		}
+	}
+
+	/**
+	 * 和音1パートだけを変更した場合の再generate.
+	 */
+	@Benchmark
+	public void trackGenerateOnePart(Blackhole bh) throws UndefinedTickException {
+		for (MMLTrack track : trackList) {
+			touch(track.getMMLEventAtIndex(1));
+			bh.consume(track.generate());
+		}
+	}
+
+	@Benchmark
+	public void stringOptimizer(Blackhole bh) {
+		MMLStringOptimizer.clearCache();
+		for (String mml : rawMMLList) {
+			bh.consume(new MMLStringOptimizer(mml).toString());
+		}
+	}
+
+	/**
+	 * 同じMMLを再度最適化する場合（undo/redo など）.
+	 */
+	@Benchmark
+	public void stringOptimizerCached(Blackhole bh) {
+		for (String mml : rawMMLList) {
+			bh.consume(new MMLStringOptimizer(mml).toString());
+		}
+	}
+
+	@Benchmark
+	public void scoreGenerateAll(Blackhole bh) throws UndefinedTickException {
+		markAllDirty();
+		for (MMLScore score : scoreList) {
+			bh.consume(score.generateAll());
+		}
+	}
+}
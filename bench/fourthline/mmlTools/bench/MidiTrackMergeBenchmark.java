@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fourthline.mabiicco.midi.MMLMidiTrack;
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTempoEvent;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.core.MMLTicks;
+
+/**
+ * MIDI変換時のパートのマージについて, 1音ずつの挿入とパートをまとめたマージを比較します.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MidiTrackMergeBenchmark {
+
+	@Param({ BenchScores.SMALL, BenchScores.MEDIUM, BenchScores.LARGE })
+	public String scoreSize;
+
+	private List<MMLTrack> trackList;
+
+	@Setup
+	public void setup() throws Exception {
+		trackList = new ArrayList<>();
+		for (MMLScore score : BenchScores.load(scoreSize)) {
+			trackList.addAll(score.getTrackList());
+		}
+	}
+
+	/**
+	 * 変更前の実装と同じ, 先頭から挿入位置を探して1音ずつ挿入する変換.
+	 */
+	private static List<MMLNoteEvent> insertAll(List<MMLTempoEvent> tempoList, List<MMLEventList> parts) {
+		ArrayList<MMLNoteEvent> noteEventList = new ArrayList<>();
+		for (MMLEventList part : parts) {
+			for (MMLNoteEvent noteEvent : part.getMMLNoteEventList()) {
+				MMLNoteEvent addEvent = noteEvent.clone();
+				int targetTick = addEvent.getTickOffset();
+				int targetIndex = 0;
+				for (MMLNoteEvent n : noteEventList) {
+					if (n.getTickOffset() > targetTick) {
+						break;
+					}
+					targetIndex++;
+					if ( (n.getTickOffset() == targetTick) && (n.getNote() == addEvent.getNote()) ) {
+						break;
+					}
+				}
+				if (targetIndex > 0) {
+					MMLNoteEvent prevEvent = noteEventList.get(targetIndex - 1);
+					if (addEvent.getNote() == prevEvent.getNote()) {
+						if (prevEvent.getTickOffset() == targetTick) {
+							if (!MMLTempoEvent.searchEqualsTick(tempoList, targetTick)) {
+								if (addEvent.getVelocity() == 0) {
+									prevEvent.setTick(MMLTicks.minimumTick());
+								}
+								continue;
+							}
+							if (prevEvent.getVelocity() == 0) {
+								addEvent.setTick(MMLTicks.minimumTick());
+							}
+							targetIndex--;
+							noteEventList.remove(targetIndex);
+						} else {
+							trim(prevEvent, addEvent);
+						}
+					}
+				}
+				if (targetIndex < noteEventList.size()) {
+					trim(addEvent, noteEventList.get(targetIndex));
+				}
+				noteEventList.add(targetIndex, addEvent);
+			}
+		}
+		return noteEventList;
+	}
+
+	private static void trim(MMLNoteEvent note1, MMLNoteEvent note2) {
+		if (note1.getNote() == note2.getNote()) {
+			int tickOverlap = note1.getEndTick() - note2.getTickOffset();
+			if (tickOverlap > 0) {
+				note1.setTick(note1.getTick() - tickOverlap);
+			}
+		}
+	}
+
+	@Benchmark
+	public void insert(Blackhole bh) {
+		for (MMLTrack track : trackList) {
+			bh.consume(insertAll(track.getGlobalTempoList(), track.getMMLEventList()));
+		}
+	}
+
+	@Benchmark
+	public void merge(Blackhole bh) {
+		for (MMLTrack track : trackList) {
+			MMLMidiTrack midiTrack = new MMLMidiTrack(track.getGlobalTempoList());
+			for (MMLEventList eventList : track.getMMLEventList()) {
+				midiTrack.add(eventList.getMMLNoteEventList());
+			}
+			bh.consume(midiTrack.getNoteEventList());
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+
+/**
+ * MMLEventList のノート検索について, 先頭からの走査と二分探索を比較します.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteLookupBenchmark {
+	private static final int QUERY_COUNT = 1000;
+
+	@Param({ "10000", "50000" })
+	public int noteCount;
+
+	private MMLEventList eventList;
+	private long queryTicks[];
+
+	@Setup
+	public void setup() {
+		Random random = new Random(noteCount);
+		eventList = new MMLEventList(BenchScores.generateMML(random, noteCount));
+		long tickLength = eventList.getTickLength();
+		queryTicks = new long[QUERY_COUNT];
+		for (int i = 0; i < queryTicks.length; i++) {
+			queryTicks[i] = (long) (random.nextDouble() * tickLength);
+		}
+	}
+
+	/**
+	 * 変更前の実装と同じ, 先頭から走査する検索.
+	 */
+	private static MMLNoteEvent scanOnTickOffset(List<MMLNoteEvent> noteList, long tickOffset) {
+		for (MMLNoteEvent noteEvent : noteList) {
+			if (noteEvent.getTickOffset() <= tickOffset) {
+				if (tickOffset < noteEvent.getEndTick()) {
+					return noteEvent;
+				}
+			} else {
+				break;
+			}
+		}
+		return null;
+	}
+
+	private static MMLNoteEvent scanPrevNoteOnTickOffset(List<MMLNoteEvent> noteList, long tickOffset) {
+		MMLNoteEvent prevNote = null;
+		for (MMLNoteEvent noteEvent : noteList) {
+			if (noteEvent.getTickOffset() >= tickOffset) {
+				break;
+			}
+			prevNote = noteEvent;
+		}
+		return prevNote;
+	}
+
+	@Benchmark
+	public void searchOnTickOffset_scan(Blackhole bh) {
+		List<MMLNoteEvent> noteList = eventList.getMMLNoteEventList();
+		for (long tick : queryTicks) {
+			bh.consume(scanOnTickOffset(noteList, tick));
+		}
+	}
+
+	@Benchmark
+	public void searchOnTickOffset_index(Blackhole bh) {
+		for (long tick : queryTicks) {
+			bh.consume(eventList.searchOnTickOffset(tick));
+		}
+	}
+
+	@Benchmark
+	public void searchPrevNote_scan(Blackhole bh) {
+		List<MMLNoteEvent> noteList = eventList.getMMLNoteEventList();
+		for (long tick : queryTicks) {
+			bh.consume(scanPrevNoteOnTickOffset(noteList, tick));
+		}
+	}
+
+	@Benchmark
+	public void searchPrevNote_index(Blackhole bh) {
+		for (long tick : queryTicks) {
+			bh.consume(eventList.searchPrevNoteOnTickOffset(tick));
+		}
+	}
+
+	@Benchmark
+	public void indexOfMMLString(Blackhole bh) {
+		for (long tick : queryTicks) {
+			bh.consume(eventList.indexOfMMLString(tick));
+		}
+	}
+
+	/**
+	 * 既存ノートを同じ位置に置き直す (ピアノロール上での編集確定に相当).
+	 */
+	@Benchmark
+	public void addMMLNoteEvent(Blackhole bh) {
+		for (long tick : queryTicks) {
+			MMLNoteEvent noteEvent = eventList.searchOnTickOffset(tick);
+			if (noteEvent != null) {
+				eventList.deleteMMLEvent(noteEvent);
+				eventList.addMMLNoteEvent(noteEvent);
+			}
+		}
+		bh.consume(eventList);
+	}
+}
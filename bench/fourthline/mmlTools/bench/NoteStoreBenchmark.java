@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * MMLEventList のノートの保持について, 配列にまとめた状態 (packed) と
+ * ノートのオブジェクトに展開した状態 (expanded) を比較します.
+ * <p>1回あたりの確保量は -prof gc で確認してください.
+ * 保持しているメモリ量は main で測定します.</p>
+ * <pre>
+ * ant bench -Dbench.args="NoteStoreBenchmark -prof gc"
+ * java -cp bench-dest:dest fourthline.mmlTools.bench.NoteStoreBenchmark 100000
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NoteStoreBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int noteCount;
+
+	/** 空白を挿入する位置と長さ. 先頭の小節より後ろをすべてずらします. */
+	private static final int SHIFT_START = 384;
+	private static final int SHIFT_TICK = 96;
+
+	private String mml;
+	private MMLEventList packedList;
+	private MMLEventList expandedList;
+
+	@Setup
+	public void setup() {
+		mml = BenchScores.generateMML(new Random(noteCount), noteCount);
+		packedList = new MMLEventList(mml);
+		expandedList = new MMLEventList(mml);
+		expandedList.getMMLNoteEventList();
+	}
+
+	@Benchmark
+	public MMLEventList parsePacked() {
+		return new MMLEventList(mml);
+	}
+
+	@Benchmark
+	public List<MMLNoteEvent> parseExpanded() {
+		return new MMLEventList(mml).getMMLNoteEventList();
+	}
+
+	/**
+	 * 配列を共有するだけのclone.
+	 */
+	@Benchmark
+	public MMLEventList clonePacked() {
+		return packedList.clone();
+	}
+
+	/**
+	 * 展開したリストのclone. ノートを配列にまとめます.
+	 */
+	@Benchmark
+	public MMLEventList cloneExpanded() {
+		return expandedList.clone();
+	}
+
+	@Benchmark
+	public String toMMLStringPacked() throws UndefinedTickException {
+		return packedList.toMMLString();
+	}
+
+	@Benchmark
+	public String toMMLStringExpanded() throws UndefinedTickException {
+		return expandedList.toMMLString();
+	}
+
+	@Benchmark
+	public void forEachNotePacked(Blackhole bh) {
+		packedList.forEachNote(noteEvent -> bh.consume(noteEvent.getNote()));
+	}
+
+	@Benchmark
+	public void forEachNoteExpanded(Blackhole bh) {
+		expandedList.forEachNote(noteEvent -> bh.consume(noteEvent.getNote()));
+	}
+
+	/**
+	 * 先頭付近への空白の挿入と削除. 配列にまとめている場合は差分の記録だけです.
+	 */
+	@Benchmark
+	public long shiftTickPacked() {
+		return shiftTick(packedList);
+	}
+
+	/**
+	 * 展開したリストへの空白の挿入と削除. 以降のノートをすべて書き換えます.
+	 */
+	@Benchmark
+	public long shiftTickExpanded() {
+		return shiftTick(expandedList);
+	}
+
+	/**
+	 * 空白の挿入と削除の後に, 範囲検索とハッシュを取得します.
+	 */
+	@Benchmark
+	public long shiftTickAndReadPacked() {
+		return shiftTickAndRead(packedList);
+	}
+
+	@Benchmark
+	public long shiftTickAndReadExpanded() {
+		return shiftTickAndRead(expandedList);
+	}
+
+	private static long shiftTick(MMLEventList eventList) {
+		eventList.insertTick(SHIFT_START, SHIFT_TICK);
+		eventList.removeTick(SHIFT_START, SHIFT_TICK);
+		return eventList.getVersion();
+	}
+
+	private static long shiftTickAndRead(MMLEventList eventList) {
+		shiftTick(eventList);
+		long count[] = { 0 };
+		eventList.forEachNote(0, SHIFT_START, noteEvent -> count[0]++);
+		return eventList.getContentHash() + count[0];
+	}
+
+	private static long usedHeap(MemoryMXBean memory) {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * 同じMMLのパートを複数保持したときの, 1音あたりのヒープ使用量を表示します.
+	 * @param args [音数] [パート数]
+	 */
+	public static void main(String args[]) {
+		int noteCount = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int partCount = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+		String mml = BenchScores.generateMML(new Random(noteCount), noteCount);
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		for (boolean expand : new boolean[] { false, true }) {
+			List<MMLEventList> list = new ArrayList<>();
+			long base = usedHeap(memory);
+			int count[] = { 0 };
+			for (int i = 0; i < partCount; i++) {
+				MMLEventList eventList = new MMLEventList(mml);
+				if (expand) {
+					eventList.getMMLNoteEventList();
+				}
+				eventList.forEachNote(noteEvent -> count[0]++);
+				list.add(eventList);
+			}
+			long used = usedHeap(memory) - base;
+			System.out.printf("%-8s parts=%d notes/part=%d heap=%dKB (%.1f byte/note)%n",
+					expand ? "expanded" : "packed", list.size(), count[0] / partCount, used / 1024, (double) used / Math.max(count[0], 1));
+		}
+	}
+}
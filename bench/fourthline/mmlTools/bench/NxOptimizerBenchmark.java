@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.core.MMLTokenizer;
+import fourthline.mmlTools.optimizer.BpCmOptimizer;
+import fourthline.mmlTools.optimizer.MMLStringOptimizer;
+import fourthline.mmlTools.optimizer.NxOptimizer;
+import fourthline.mmlTools.optimizer.OxLxOptimizer;
+
+/**
+ * NxOptimizer の長いパートに対する処理時間. メモリ使用量は -prof gc で確認します.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NxOptimizerBenchmark {
+
+	@Param({ "10000" })
+	public int tokenCount;
+
+	@Param({ "1", "4" })
+	public int beamWidth;
+
+	private List<String> tokenList;
+
+	@Setup
+	public void setup() throws Exception {
+		Random random = new Random(tokenCount);
+		tokenList = new ArrayList<>();
+		while (tokenList.size() < tokenCount) {
+			// NxOptimizer の入力は, 前段のパスで最適化済みのMML.
+			String mml = new MMLEventList(BenchScores.generateMML(random, 1000)).toMMLString(true, true);
+			mml = runPass(new OxLxOptimizer(), mml);
+			mml = runPass(new BpCmOptimizer(), mml);
+			MMLTokenizer tokenizer = new MMLTokenizer(mml);
+			while (tokenizer.hasNext() && (tokenList.size() < tokenCount)) {
+				tokenList.add(tokenizer.next());
+			}
+		}
+	}
+
+	private static String runPass(MMLStringOptimizer.Optimizer optimizer, String mml) {
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		while (tokenizer.hasNext()) {
+			optimizer.nextToken(tokenizer.next());
+		}
+		return optimizer.getMinString();
+	}
+
+	@Benchmark
+	public String optimize() {
+		NxOptimizer optimizer = new NxOptimizer(beamWidth);
+		for (String token : tokenList) {
+			optimizer.nextToken(token);
+		}
+		return optimizer.getMinString();
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.core.MMLTokenizer;
+
+/**
+ * MMLTokenizer の文字列Iteratorとカーソルの比較. メモリ使用量は -prof gc で確認します.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+
+	@Param({ "2000" })
+	public int noteCount;
+
+	private String mml;
+
+	@Setup
+	public void setup() {
+		mml = BenchScores.generateMML(new Random(noteCount), noteCount);
+	}
+
+	@Benchmark
+	public int iterator() {
+		int hash = 0;
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		while (tokenizer.hasNext()) {
+			String token = tokenizer.next();
+			hash = hash * 31 + token.charAt(0) + token.length();
+		}
+		return hash;
+	}
+
+	@Benchmark
+	public int cursor() {
+		int hash = 0;
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		while (tokenizer.nextToken()) {
+			hash = hash * 31 + tokenizer.getTokenChar() + (tokenizer.getEndIndex() - tokenizer.getStartIndex());
+		}
+		return hash;
+	}
+
+	@Benchmark
+	public MMLEventList parseEventList() {
+		return new MMLEventList(mml);
+	}
+}
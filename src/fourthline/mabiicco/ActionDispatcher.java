@@ -18,7 +18,10 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.IntSupplier;
 
@@ -35,6 +38,7 @@ import fourthline.mabiicco.ui.About;
 import fourthline.mabiicco.ui.MMLSeqView;
 import fourthline.mabiicco.ui.MainFrame;
 import fourthline.mabiicco.ui.editor.MMLTranspose;
+import fourthline.mabiicco.ui.editor.RecoveryJournal;
 import fourthline.mabiicco.ui.mml.MMLImportPanel;
 import fourthline.mabiicco.ui.mml.MMLScorePropertyPanel;
 import fourthline.mmlTools.MMLScore;
@@ -105,6 +109,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	private final HashMap<String, Consumer<Object>> actionMap = new HashMap<>();
 
 	private File openedFile = null;
+	private RecoveryJournal recoveryJournal = null;
 
 	private final FileFilter mmsFilter = new FileNameExtensionFilter(AppResource.appText("file.mms"), "mms");
 	private final FileFilter mmiFilter = new FileNameExtensionFilter(AppResource.appText("file.mmi"), "mmi");
@@ -292,6 +297,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 			return;
 		}
 
+		mmlSeqView.flushGenerate();
 		if (openedFile != null) {
 			if (fileState.isModified()) {
 				int status = JOptionPane.showConfirmDialog(mainFrame, 
@@ -309,6 +315,9 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	private void quitAction() {
 		//  閉じる前に、変更が保存されていなければダイアログ表示する.
 		if (checkCloseModifiedFileState()) {
+			if (recoveryJournal != null) {
+				recoveryJournal.close(true);
+			}
 			System.exit(0);
 		}
 	}
@@ -318,6 +327,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	 * @return　保存に成功した場合は true, 失敗した場合は false を返す.
 	 */
 	private boolean saveMMLFile(File file) {
+		mmlSeqView.flushGenerate();
 		try {
 			FileOutputStream outputStream = new FileOutputStream(file);
 			mmlSeqView.getMMLScore().writeToOutputStream(outputStream);
@@ -465,6 +475,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	 * @return 終了できる状態であれば、trueを返す.
 	 */
 	private boolean checkCloseModifiedFileState() {
+		mmlSeqView.flushGenerate();
 		if (!fileState.isModified()) {
 			// 保存が必要な変更なし.
 			return true;
@@ -520,6 +531,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 
 	private void stopAction() {
 		MabiDLS.getInstance().getSequencer().stop();
+		mmlSeqView.stopPlayback();
 		mainFrame.enableNoplayItems();
 	}
 
@@ -608,6 +620,10 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 			}
 		}
 
+		if (recoveryJournal != null) {
+			recoveryJournal.setFileName((openedFile != null) ? openedFile.getAbsolutePath() : "");
+		}
+
 		// undo-UI更新
 		mainFrame.setCanUndo(fileState.canUndo());
 
@@ -628,17 +644,68 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	}
 
 	/**
-	 * データ復旧.
+	 * データ復旧. 復旧の後, 新しいジャーナルへの記録を開始します.
+	 * 復旧しなかった場合も, 前のジャーナルは新しいレコードを書き込むときに {@link RecoveryJournal#getPreviousPath()} へ移して残します.
 	 * @return 復旧処理を実行したとき trueを返す.
 	 */
 	public boolean recoveryCheck() {
+		Path journalPath = Paths.get(AppResource.appText("recover.journal"));
+		boolean result = false;
+		if (journalPath.toFile().exists()) {
+			result = recoveryJournal(journalPath);
+		} else {
+			result = recoveryLegacyFile();
+		}
+
+		try {
+			recoveryJournal = new RecoveryJournal(journalPath);
+			mmlSeqView.setRecoveryJournal(recoveryJournal);
+			notifyUpdateFileState();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return result;
+	}
+
+	private boolean confirmRecovery(String name) {
+		int status = JOptionPane.showConfirmDialog(mainFrame,
+				AppResource.appText("recover.message")+"\n"+name,
+				AppResource.appText("recover.title"),
+				JOptionPane.YES_NO_OPTION);
+		return (status == JOptionPane.OK_OPTION);
+	}
+
+	private void recoveryFinish(boolean result, String filename) {
+		if (!result) {
+			JOptionPane.showMessageDialog(mainFrame,
+					"recover.fail", "recover.title", JOptionPane.WARNING_MESSAGE);
+		}
+		if ( result && (filename.length() > 0) ) {
+			openedFile = new File(filename);
+		}
+		notifyUpdateFileState();
+	}
+
+	private boolean recoveryJournal(Path journalPath) {
+		try {
+			List<RecoveryJournal.Record> records = RecoveryJournal.read(journalPath);
+			if ( records.isEmpty() || !confirmRecovery(journalPath.getFileName().toString()) ) {
+				return false;
+			}
+			boolean result = mmlSeqView.recovery(records);
+			recoveryFinish(result, RecoveryJournal.getFileName(records));
+			return result;
+		} catch (IOException e) {}
+		return false;
+	}
+
+	/**
+	 * 旧形式の復旧用ファイル.
+	 */
+	private boolean recoveryLegacyFile() {
 		File recoveryFile = new File(AppResource.appText("recover.filename"));
 		if (recoveryFile.exists()) {
-			int status = JOptionPane.showConfirmDialog(mainFrame,
-					AppResource.appText("recover.message")+"\n"+recoveryFile.getName(),
-					AppResource.appText("recover.title"),
-					JOptionPane.YES_NO_OPTION);
-			if (status != JOptionPane.OK_OPTION) {
+			if (!confirmRecovery(recoveryFile.getName())) {
 				return false;
 			}
 			try {
@@ -648,14 +715,7 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 				reader.close();
 				recoveryFile.delete();
 				boolean result = mmlSeqView.recovery(data);
-				if (!result) {
-					JOptionPane.showMessageDialog(mainFrame,
-							"recover.fail", "recover.title", JOptionPane.WARNING_MESSAGE);
-				}
-				if ( result && (filename.length() > 0) ) {
-					openedFile = new File(filename);
-				}
-				notifyUpdateFileState();
+				recoveryFinish(result, filename);
 				return result;
 			} catch (IOException e) {}
 		}
@@ -666,6 +726,12 @@ public final class ActionDispatcher implements ActionListener, IFileStateObserve
 	 * 復旧用データを書き出す.
 	 */
 	public void writeRecoveryData() {
+		// ジャーナルへの記録中は, 書き込み待ちのレコードを反映するだけでよい.
+		if (recoveryJournal != null) {
+			recoveryJournal.flush();
+			return;
+		}
+
 		String filename = "";
 		if (openedFile != null) {
 			filename = openedFile.getAbsolutePath();
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.batch;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1ファイル分の一括処理の結果.
+ */
+public final class BatchResult {
+	public enum Status {
+		/** すべての処理に成功. */
+		OK,
+		/** 処理は完了したが, 検証で注意がある. */
+		WARN,
+		/** 途中の処理に失敗. */
+		ERROR
+	}
+
+	/** 処理の段階. */
+	public enum Stage {
+		PARSE, GENERATE, VALIDATE, EXPORT
+	}
+
+	private final Path path;
+	private Status status = Status.OK;
+	private final long stageNanos[] = new long[Stage.values().length];
+	private final List<String> rankList = new ArrayList<>();
+	private final List<String> messageList = new ArrayList<>();
+
+	BatchResult(Path path) {
+		this.path = path;
+	}
+
+	void addTime(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()] += nanos;
+	}
+
+	void addRank(String rank) {
+		rankList.add(rank);
+	}
+
+	void warn(String message) {
+		if (status == Status.OK) {
+			status = Status.WARN;
+		}
+		messageList.add(message);
+	}
+
+	void error(Stage stage, Exception e) {
+		error(stage, e.toString());
+	}
+
+	void error(Stage stage, String message) {
+		status = Status.ERROR;
+		messageList.add(stage + ": " + message);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @param stage
+	 * @return 指定段階の処理時間 (ナノ秒)
+	 */
+	public long getTime(Stage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+
+	/**
+	 * @return 全段階の処理時間 (ナノ秒)
+	 */
+	public long getTotalTime() {
+		long total = 0;
+		for (long nanos : stageNanos) {
+			total += nanos;
+		}
+		return total;
+	}
+
+	/**
+	 * @return トラックごとの作曲ランク
+	 */
+	public List<String> getRankList() {
+		return rankList;
+	}
+
+	public List<String> getMessageList() {
+		return messageList;
+	}
+
+	/**
+	 * 1行の結果表示.
+	 * <pre>OK    12.3 ms (parse 1.0, generate 8.2, validate 0.6, export 2.5) rank [A, C] path</pre>
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-5s %7.1f ms (", status, getTotalTime() / 1e6));
+		for (Stage stage : Stage.values()) {
+			if (stage.ordinal() > 0) {
+				sb.append(", ");
+			}
+			sb.append(String.format("%s %.1f", stage.name().toLowerCase(), getTime(stage) / 1e6));
+		}
+		sb.append(") rank ").append(rankList).append(' ').append(path);
+		return sb.toString();
+	}
+}
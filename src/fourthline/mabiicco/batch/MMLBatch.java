@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+
+import fourthline.mabiicco.batch.BatchResult.Stage;
+import fourthline.mabiicco.batch.BatchResult.Status;
+import fourthline.mabiicco.midi.InstType;
+import fourthline.mabiicco.midi.MabiDLS;
+import fourthline.mmlTools.ComposeRank;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.ScoreGenerator;
+import fourthline.mmlTools.ScoreGenerator.TrackResult;
+import fourthline.mmlTools.core.TuningBase;
+import fourthline.mmlTools.parser.IMMLFileParser;
+import fourthline.mmlTools.parser.MMLEventParser;
+import fourthline.mmlTools.parser.MMLEventVisitor;
+import fourthline.mmlTools.parser.MMLParseWarning;
+
+/**
+ * ディレクトリ以下のMMLファイル (.mmi, .mms, .mml) を一括で変換, 検証します.
+ * <p>ファイルごとに parse → generate → ランク計算, 検証 → MIDI出力 を行い, 処理時間と集計を表示します.
+ * Swing, JavaFXのクラスは使用しません.</p>
+ * <pre>
+ * java -cp MabiIcco.jar fourthline.mabiicco.batch.MMLBatch [-dls DLSファイル] [-o MIDI出力先] [-j スレッド数] [-q キューサイズ] ディレクトリ...
+ * </pre>
+ */
+public final class MMLBatch {
+	private static final String EXTENSIONS[] = { ".mmi", ".mms", ".mml" };
+
+	private final int threadCount;
+	private final int queueSize;
+	private final Path outputDir;
+	private PrintStream out = System.out;
+
+	/**
+	 * @param threadCount 並列に処理するファイル数
+	 * @param queueSize 処理待ちのファイル数の上限. 上限に達すると, ファイルの探索側で処理します.
+	 * @param outputDir MIDIの出力先. nullの場合は出力しません.
+	 */
+	public MMLBatch(int threadCount, int queueSize, Path outputDir) {
+		if ( (threadCount <= 0) || (queueSize <= 0) ) {
+			throw new IllegalArgumentException();
+		}
+		this.threadCount = threadCount;
+		this.queueSize = queueSize;
+		this.outputDir = outputDir;
+	}
+
+	/**
+	 * 結果の表示先を設定します. nullの場合は表示しません.
+	 * @param out
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+	}
+
+	public static boolean isTargetFile(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		for (String ext : EXTENSIONS) {
+			if (name.endsWith(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 指定したディレクトリ (またはファイル) 以下のMMLファイルを処理します.
+	 * @param inputList
+	 * @return ファイルごとの結果. パスの順に並べます.
+	 * @throws IOException ディレクトリの探索に失敗した場合.
+	 * @throws InterruptedException
+	 */
+	public List<BatchResult> run(List<Path> inputList) throws IOException, InterruptedException {
+		List<BatchResult> resultList = Collections.synchronizedList(new ArrayList<>());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			for (Path input : inputList) {
+				Path root = input.toAbsolutePath();
+				Path base = Files.isDirectory(root) ? root : root.getParent();
+				try (Stream<Path> stream = Files.walk(root)) {
+					stream.filter(path -> Files.isRegularFile(path) && isTargetFile(path))
+					.forEach(path -> executor.execute(() -> {
+						BatchResult result = process(base, path);
+						resultList.add(result);
+						print(result);
+					}));
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		List<BatchResult> list = new ArrayList<>(resultList);
+		list.sort(Comparator.comparing(BatchResult::getPath));
+		return list;
+	}
+
+	private void print(BatchResult result) {
+		if (out == null) {
+			return;
+		}
+		synchronized (out) {
+			out.println(result);
+			for (String message : result.getMessageList()) {
+				out.println("      " + message);
+			}
+		}
+	}
+
+	/**
+	 * 1ファイルを処理します.
+	 * @param base MIDI出力先のディレクトリ構成の基準
+	 * @param path
+	 * @return
+	 */
+	BatchResult process(Path base, Path path) {
+		BatchResult result = new BatchResult(path);
+		Stage stage = Stage.PARSE;
+		long time = System.nanoTime();
+		try {
+			MMLScore score;
+			try (InputStream inputStream = Files.newInputStream(path)) {
+				score = IMMLFileParser.getParser(path.toFile()).parse(inputStream);
+			}
+			time = lap(result, stage, time);
+
+			stage = Stage.GENERATE;
+			List<TrackResult> generateList = ScoreGenerator.getDefault().generate(score.getTrackSnapshot());
+			time = lap(result, stage, time);
+			for (TrackResult trackResult : generateList) {
+				if (!trackResult.isSuccess()) {
+					result.error(stage, trackResult.toString());
+				}
+			}
+			if (result.getStatus() == Status.ERROR) {
+				return result;
+			}
+
+			stage = Stage.VALIDATE;
+			validate(score, result);
+			time = lap(result, stage, time);
+
+			if (outputDir != null) {
+				stage = Stage.EXPORT;
+				export(score, outputDir.resolve(midiFileName(base.relativize(path))));
+				time = lap(result, stage, time);
+			}
+		} catch (Exception e) {
+			lap(result, stage, time);
+			result.error(stage, e);
+		}
+		return result;
+	}
+
+	private static long lap(BatchResult result, Stage stage, long startTime) {
+		long time = System.nanoTime();
+		result.addTime(stage, time - startTime);
+		return time;
+	}
+
+	/**
+	 * 作曲ランクを求め, 出力用MMLを再度パースして注意がないかを確認します.
+	 */
+	private void validate(MMLScore score, BatchResult result) {
+		int trackIndex = 0;
+		for (MMLTrack track : score.getTrackList()) {
+			trackIndex++;
+			String mml[] = track.getMabiMMLArray();
+			String rank = ComposeRank.mmlRank(mml[0], mml[1], mml[2], mml[3]);
+			result.addRank(rank);
+			if (ComposeRank.isOverRank(rank)) {
+				result.warn("track " + trackIndex + ": rank over " + track.mmlRankFormat());
+			}
+			for (int part = 0; part < mml.length; part++) {
+				MMLEventParser parser = new MMLEventParser(mml[part]);
+				parser.parse(NOP_VISITOR);
+				for (MMLParseWarning warning : parser.getWarnList()) {
+					result.warn("track " + trackIndex + " part " + (part+1) + ": " + warning);
+				}
+			}
+		}
+	}
+
+	private static final MMLEventVisitor NOP_VISITOR = new MMLEventVisitor() {
+		@Override
+		public void note(int note, int tick, int offset, int velocity, TuningBase tuningBase, int startIndex, int endIndex) {}
+
+		@Override
+		public void tempo(int tempo, int offset, int startIndex, int endIndex) {}
+	};
+
+	private static Path midiFileName(Path relativePath) {
+		String name = relativePath.getFileName().toString();
+		int index = name.lastIndexOf('.');
+		return relativePath.resolveSibling(name.substring(0, index) + ".mid");
+	}
+
+	private void export(MMLScore score, Path midiFile) throws Exception {
+		Sequence sequence = MabiDLS.getInstance().createSequence(score, false);
+		Files.createDirectories(midiFile.toAbsolutePath().getParent());
+		MidiSystem.write(sequence, 1, midiFile.toFile());
+	}
+
+	/**
+	 * 結果の集計を表示します.
+	 * @param resultList
+	 * @param wallTime 全体の処理時間 (ナノ秒)
+	 */
+	public static void printSummary(PrintStream out, List<BatchResult> resultList, long wallTime) {
+		int count[] = new int[Status.values().length];
+		long stageTime[] = new long[Stage.values().length];
+		for (BatchResult result : resultList) {
+			count[result.getStatus().ordinal()]++;
+			for (Stage stage : Stage.values()) {
+				stageTime[stage.ordinal()] += result.getTime(stage);
+			}
+		}
+
+		out.printf("files: %d  ok: %d  warn: %d  error: %d\n", resultList.size(),
+				count[Status.OK.ordinal()], count[Status.WARN.ordinal()], count[Status.ERROR.ordinal()]);
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			if (stage.ordinal() > 0) {
+				sb.append(", ");
+			}
+			sb.append(String.format("%s %.2f s", stage.name().toLowerCase(), stageTime[stage.ordinal()] / 1e9));
+		}
+		double seconds = wallTime / 1e9;
+		out.printf("time: %.2f s (%s)  %.1f files/s\n", seconds, sb, (seconds > 0) ? resultList.size() / seconds : 0.0);
+	}
+
+	private static void usage() {
+		System.err.println("usage: MMLBatch [-dls file] [-o dir] [-j threads] [-q queueSize] dir...");
+		System.exit(2);
+	}
+
+	public static void main(String args[]) {
+		System.setProperty("java.awt.headless", "true");
+		String dlsFile = MabiDLS.DEFALUT_DLS_PATH;
+		Path outputDir = null;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		int queueSize = 0;
+		List<Path> inputList = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-dls": dlsFile = args[++i]; break;
+				case "-o":   outputDir = Paths.get(args[++i]); break;
+				case "-j":   threadCount = Integer.parseInt(args[++i]); break;
+				case "-q":   queueSize = Integer.parseInt(args[++i]); break;
+				default:     inputList.add(Paths.get(args[i]));
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+			usage();
+		}
+		if (inputList.isEmpty() || (threadCount <= 0) || (queueSize < 0)) {
+			usage();
+		}
+		if (queueSize == 0) {
+			queueSize = threadCount * 4;
+		}
+
+		try {
+			// .mmlファイルの読み込みとMIDI出力には楽器の種別が必要.
+			MabiDLS.getInstance().loadingDLSFile(new File(dlsFile));
+			if (MabiDLS.getInstance().getAvailableInstByInstType(InstType.MAIN_INST_LIST).length == 0) {
+				System.err.println("DLS not loaded: .mml files cannot be parsed, and MIDI files contain no notes. ("+dlsFile+")");
+			}
+
+			long startTime = System.nanoTime();
+			List<BatchResult> resultList = new MMLBatch(threadCount, queueSize, outputDir).run(inputList);
+			printSummary(System.out, resultList, System.nanoTime() - startTime);
+
+			boolean error = resultList.stream().anyMatch(t -> t.getStatus() == Status.ERROR);
+			System.exit(error ? 1 : 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(2);
+		}
+	}
+}
@@ -0,0 +1,4 @@
+/**
+ * コマンドラインでの一括処理.
+ */
+package fourthline.mabiicco.batch;
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.midi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * DLSファイルのチャンクヘッダだけを読み, 楽器ごとのサンプルサイズを求めます.
+ * <p>サンプルデータは読みません. 楽器をロードしたときのメモリ使用量の見積りに使います.
+ * 複数の楽器で共有するサンプルは, それぞれの楽器で数えます.</p>
+ */
+final class DLSIndex {
+	private static final int CHUNK_HEADER_SIZE = 8;
+
+	/** (bank, program) → サンプルサイズ (byte) */
+	private final Map<Integer, Long> sampleSizeMap = new HashMap<>();
+
+	@FunctionalInterface
+	private interface ChunkVisitor {
+		/**
+		 * @param id チャンクID
+		 * @param type LISTの場合はリストタイプ, それ以外はnull
+		 * @param start データの開始位置 (LISTの場合はリストタイプの後)
+		 * @param end データの終了位置
+		 */
+		void visit(String id, String type, long start, long end) throws IOException;
+	}
+
+	private final SeekableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+
+	private DLSIndex(SeekableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	public static DLSIndex read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return read(channel);
+		}
+	}
+
+	public static DLSIndex read(SeekableByteChannel channel) throws IOException {
+		DLSIndex index = new DLSIndex(channel);
+		index.readSoundbank();
+		return index;
+	}
+
+	private static int key(int bank, int program) {
+		return (bank << 7) | program;
+	}
+
+	/**
+	 * @param bank
+	 * @param program
+	 * @return 楽器のサンプルサイズ (byte). 楽器がない場合は0.
+	 */
+	public long getSampleSize(int bank, int program) {
+		return sampleSizeMap.getOrDefault(key(bank, program), 0L);
+	}
+
+	public int getInstrumentCount() {
+		return sampleSizeMap.size();
+	}
+
+	private ByteBuffer read(long position, int size) throws IOException {
+		buffer.clear().limit(size);
+		channel.position(position);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("DLSIndex: unexpected EOF");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private String readFourCC(long position) throws IOException {
+		byte b[] = new byte[4];
+		read(position, 4).get(b);
+		return new String(b, StandardCharsets.US_ASCII);
+	}
+
+	private void forEachChunk(long start, long end, ChunkVisitor visitor) throws IOException {
+		long position = start;
+		while (position + CHUNK_HEADER_SIZE <= end) {
+			String id = readFourCC(position);
+			long size = read(position + 4, 4).getInt() & 0xffffffffL;
+			long dataStart = position + CHUNK_HEADER_SIZE;
+			long dataEnd = Math.min(dataStart + size, end);
+			if (id.equals("LIST") && (size >= 4)) {
+				visitor.visit(id, readFourCC(dataStart), dataStart + 4, dataEnd);
+			} else {
+				visitor.visit(id, null, dataStart, dataEnd);
+			}
+			position = dataStart + size + (size & 1);
+		}
+	}
+
+	private void readSoundbank() throws IOException {
+		if ( !readFourCC(0).equals("RIFF") || !readFourCC(8).equals("DLS ") ) {
+			throw new IOException("DLSIndex: not a DLS file");
+		}
+		long end = Math.min(CHUNK_HEADER_SIZE + (read(4, 4).getInt() & 0xffffffffL), channel.size());
+		Map<Integer, List<Integer>> waveLinkMap = new HashMap<>();
+		List<Long> waveSizeList = new ArrayList<>();
+		forEachChunk(12, end, (id, type, start, dataEnd) -> {
+			if ("lins".equals(type)) {
+				readInstrumentList(start, dataEnd, waveLinkMap);
+			} else if ("wvpl".equals(type)) {
+				readWavePool(start, dataEnd, waveSizeList);
+			}
+		});
+
+		// wlnkのテーブルインデックスは, ウェーブプール内のwaveの順番に対応する.
+		waveLinkMap.forEach((key, linkList) -> {
+			long size = 0;
+			for (int index : new TreeSet<>(linkList)) {
+				if (index < waveSizeList.size()) {
+					size += waveSizeList.get(index);
+				}
+			}
+			sampleSizeMap.put(key, size);
+		});
+	}
+
+	private void readInstrumentList(long start, long end, Map<Integer, List<Integer>> waveLinkMap) throws IOException {
+		forEachChunk(start, end, (id, type, insStart, insEnd) -> {
+			if (!"ins ".equals(type)) {
+				return;
+			}
+			int patch[] = { -1 };
+			List<Integer> linkList = new ArrayList<>();
+			forEachChunk(insStart, insEnd, (id2, type2, start2, end2) -> {
+				if (id2.equals("insh") && (end2 - start2 >= 12)) {
+					ByteBuffer b = read(start2 + 4, 8);
+					int bank = (b.get(0) & 0xff) + ((b.get(1) & 127) << 7);
+					int program = b.get(4) & 127;
+					patch[0] = key(bank, program);
+				} else if ("lrgn".equals(type2)) {
+					readRegionList(start2, end2, linkList);
+				}
+			});
+			if (patch[0] >= 0) {
+				waveLinkMap.computeIfAbsent(patch[0], t -> new ArrayList<>()).addAll(linkList);
+			}
+		});
+	}
+
+	private void readRegionList(long start, long end, List<Integer> linkList) throws IOException {
+		forEachChunk(start, end, (id, type, rgnStart, rgnEnd) -> {
+			if ("rgn ".equals(type) || "rgn2".equals(type)) {
+				forEachChunk(rgnStart, rgnEnd, (id2, type2, start2, end2) -> {
+					if (id2.equals("wlnk") && (end2 - start2 >= 12)) {
+						linkList.add(read(start2 + 8, 4).getInt());
+					}
+				});
+			}
+		});
+	}
+
+	private void readWavePool(long start, long end, List<Long> waveSizeList) throws IOException {
+		forEachChunk(start, end, (id, type, waveStart, waveEnd) -> {
+			if (!"wave".equals(type)) {
+				return;
+			}
+			long size[] = { 0 };
+			forEachChunk(waveStart, waveEnd, (id2, type2, start2, end2) -> {
+				if (id2.equals("data")) {
+					size[0] = end2 - start2;
+				}
+			});
+			waveSizeList.add(size[0]);
+		});
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mabiicco.midi;
@@ -30,15 +30,27 @@ public final class InstClass {
 	private final int lowerNote;
 	private final int upperNote;
 	private final InstType type;
-	private final Instrument inst;
+	private volatile Instrument inst;
+	private final long sampleSize;
+	private final File dlsFile;
 
 	private static final String RESOURCE_NAME = "instrument";
 	private static final ResourceBundle instResource = ResourceBundle.getBundle(RESOURCE_NAME, new ResourceLoader());
 
 	public InstClass(String name, int bank, int program, Instrument inst) {
+		this(name, bank, program, inst, null, 0);
+	}
+
+	/**
+	 * @param dlsFile 楽器を読み込んだDLSファイル
+	 * @param sampleSize ロード時に読み込むサンプルサイズの見積り (byte)
+	 */
+	InstClass(String name, int bank, int program, Instrument inst, File dlsFile, long sampleSize) {
 		String str[] = name.split(",");
 		this.name = str[0];
 		this.inst = inst;
+		this.dlsFile = dlsFile;
+		this.sampleSize = sampleSize;
 
 		if (str.length > 1) {
 			this.type = InstType.getInstType(str[1]);
@@ -74,6 +86,11 @@ public final class InstClass {
 		return false;
 	}
 
+	@Override
+	public int hashCode() {
+		return (bank << 7) ^ program;
+	}
+
 	public int getBank() {
 		return this.bank;
 	}
@@ -98,6 +115,28 @@ public final class InstClass {
 		return this.inst;
 	}
 
+	/**
+	 * DLSファイルを読み直したときに, 新しいInstrumentに置き換えます.
+	 * @param inst
+	 */
+	void setInstrument(Instrument inst) {
+		this.inst = inst;
+	}
+
+	/**
+	 * @return ロード時に読み込むサンプルサイズの見積り (byte). 不明な場合は0.
+	 */
+	public long getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @return 楽器を読み込んだDLSファイル. 不明な場合はnull.
+	 */
+	public File getDlsFile() {
+		return dlsFile;
+	}
+
 	/**
 	 * プログラム番号上で有効なパート情報を取得する.
 	 * @param program
@@ -137,6 +176,14 @@ public final class InstClass {
 		}
 	}
 
+	/**
+	 * DLSファイルの楽器の一覧を読み込みます.
+	 * サンプルデータはファイル上に残したまま読み込まず, シンセサイザへのロード時に読み込みます.
+	 * @param dlsFile
+	 * @return
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 */
 	public static List<InstClass> loadDLS(File dlsFile) throws InvalidMidiDataException, IOException {
 		Soundbank sb = null;
 		try {
@@ -145,22 +192,29 @@ public final class InstClass {
 			MabiIccoProperties.getInstance().setDlsFile(null);
 			throw new IOException("loadDLS: "+dlsFile.getName());
 		}
+		DLSIndex index = null;
+		try {
+			index = DLSIndex.read(dlsFile);
+		} catch (IOException e) {
+			System.err.println("DLSIndex: "+e.getMessage());
+		}
 
 		ArrayList<InstClass> instArray = new ArrayList<>();
 		for (Instrument inst : sb.getInstruments()) {
 			String name = instName(inst);
-			String originalName = inst.getName();
 			int bank = inst.getPatch().getBank();
 			int program = inst.getPatch().getProgram();
-			System.out.printf("%d=%s \"%s\"\n", program,  originalName, name);
 			if (name != null) {
 				name = ""+program+": "+name;
 				instArray.add(new InstClass( name,
 						bank,
 						program,
-						inst));
+						inst,
+						dlsFile,
+						(index != null) ? index.getSampleSize(bank, program) : 0));
 			}
 		}
+		System.out.printf("%s: %d/%d instruments\n", dlsFile.getName(), instArray.size(), sb.getInstruments().length);
 
 		return instArray;
 	}
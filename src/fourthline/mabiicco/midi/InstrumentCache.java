@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.midi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * シンセサイザにロードした楽器を, サンプルサイズの上限つきのLRUで管理します.
+ * <p>シンセサイザの操作は行わず, ロードとアンロードが必要な楽器を返します.</p>
+ * <p>アンロードした楽器のサンプルは, DLSファイルを読み直すまでSoundbankに残ります.
+ * 残っているサンプルの合計が上限を超えたDLSファイルを, 読み直す対象として返します.</p>
+ */
+final class InstrumentCache {
+	/** 上限 (MB) を指定するシステムプロパティ. 既定は最大ヒープの1/4. */
+	public static final String BUDGET_PROPERTY = "mabiicco.instrumentCacheSize";
+
+	private final long budget;
+	private long usedSize = 0;
+	/** アクセス順. 先頭が最も古い. */
+	private final LinkedHashMap<InstClass, Long> loadedMap = new LinkedHashMap<>(16, 0.75f, true);
+	/** アンロードしたが, サンプルがSoundbankに残っている楽器. */
+	private final Map<InstClass, Long> staleMap = new HashMap<>();
+
+	public static long defaultBudget() {
+		Long size = Long.getLong(BUDGET_PROPERTY);
+		if (size != null) {
+			return size * 1024 * 1024;
+		}
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * @param budget 保持するサンプルサイズの上限 (byte)
+	 */
+	public InstrumentCache(long budget) {
+		this.budget = budget;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public long getUsedSize() {
+		return usedSize;
+	}
+
+	public boolean contains(InstClass inst) {
+		return loadedMap.containsKey(inst);
+	}
+
+	public List<InstClass> getLoadedList() {
+		return new ArrayList<>(loadedMap.keySet());
+	}
+
+	/**
+	 * 楽器を使用します. 使用した楽器は最も新しくなります.
+	 * @param required 使用する楽器
+	 * @param loadList 新たにロードが必要な楽器を追加します.
+	 * @return 上限を超えたため, アンロードする楽器. 使用する楽器はアンロードしません.
+	 */
+	public List<InstClass> use(Collection<InstClass> required, List<InstClass> loadList) {
+		for (InstClass inst : required) {
+			if (loadedMap.get(inst) == null) {
+				long size = inst.getSampleSize();
+				loadedMap.put(inst, size);
+				usedSize += size;
+				loadList.add(inst);
+				// 残っていたサンプルをそのまま使う.
+				staleMap.remove(inst);
+			}
+		}
+
+		List<InstClass> unloadList = new ArrayList<>();
+		Iterator<Map.Entry<InstClass, Long>> it = loadedMap.entrySet().iterator();
+		while ( (usedSize > budget) && it.hasNext() ) {
+			Map.Entry<InstClass, Long> entry = it.next();
+			if (!required.contains(entry.getKey())) {
+				unload(entry);
+				unloadList.add(entry.getKey());
+				it.remove();
+			}
+		}
+		return unloadList;
+	}
+
+	/**
+	 * 指定した楽器以外をすべてアンロードします.
+	 * @param required
+	 * @return アンロードする楽器
+	 */
+	public List<InstClass> retainOnly(Collection<InstClass> required) {
+		List<InstClass> unloadList = new ArrayList<>();
+		Iterator<Map.Entry<InstClass, Long>> it = loadedMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<InstClass, Long> entry = it.next();
+			if (!required.contains(entry.getKey())) {
+				unload(entry);
+				unloadList.add(entry.getKey());
+				it.remove();
+			}
+		}
+		return unloadList;
+	}
+
+	private void unload(Map.Entry<InstClass, Long> entry) {
+		usedSize -= entry.getValue();
+		if (entry.getKey().getDlsFile() != null) {
+			staleMap.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * アンロードした楽器のサンプルが残っているサイズを取得します.
+	 * @param dlsFile
+	 * @return
+	 */
+	public long getStaleSize(File dlsFile) {
+		long size = 0;
+		for (Map.Entry<InstClass, Long> entry : staleMap.entrySet()) {
+			if (dlsFile.equals(entry.getKey().getDlsFile())) {
+				size += entry.getValue();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * 読み直すDLSファイルを取得します. 取得したファイルの楽器は, 残っているサンプルがないものとして扱います.
+	 * @param all trueの場合は, サンプルが残っているすべてのファイル. falseの場合は, 上限を超えたファイルだけ.
+	 * @return
+	 */
+	public List<File> takeStaleFiles(boolean all) {
+		Map<File, Long> fileMap = new LinkedHashMap<>();
+		for (Map.Entry<InstClass, Long> entry : staleMap.entrySet()) {
+			fileMap.merge(entry.getKey().getDlsFile(), entry.getValue(), Long::sum);
+		}
+		List<File> fileList = new ArrayList<>();
+		for (Map.Entry<File, Long> entry : fileMap.entrySet()) {
+			if ( all || (entry.getValue() > budget) ) {
+				fileList.add(entry.getKey());
+			}
+		}
+		staleMap.keySet().removeIf(inst -> fileList.contains(inst.getDlsFile()));
+		return fileList;
+	}
+
+	/**
+	 * ロードに失敗した楽器を外します.
+	 * @param inst
+	 */
+	public void remove(InstClass inst) {
+		Long size = loadedMap.remove(inst);
+		if (size != null) {
+			usedSize -= size;
+		}
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2014-2015 たんらる
+ * Copyright (C) 2014-2016 たんらる
  */
 
 package fourthline.mabiicco.midi;
@@ -19,6 +19,7 @@ import fourthline.mmlTools.core.MMLTicks;
 public class MMLMidiTrack {
 	private List<MMLTempoEvent> tempoList;
 	private ArrayList<MMLNoteEvent> noteEventList;
+	private final ArrayList<List<MMLNoteEvent>> partList = new ArrayList<>();
 
 	public MMLMidiTrack(List<MMLTempoEvent> tempoList) {
 		if (tempoList != null) {
@@ -29,14 +30,144 @@ public class MMLMidiTrack {
 		noteEventList = new ArrayList<>();
 	}
 
+	/**
+	 * 追加されたノートリストを変換したリストを取得します.
+	 * @return
+	 */
 	public List<MMLNoteEvent> getNoteEventList() {
+		mergeParts();
 		return noteEventList;
 	}
 
+	/**
+	 * ノートリストを追加します. 変換は {@link #getNoteEventList()} でまとめて行います.
+	 * 後から追加したリストほど, 同じ位置の同じ音の扱いで後発音になります.
+	 * @param list
+	 */
 	public void add(List<MMLNoteEvent> list) {
+		partList.add(list);
+	}
+
+	/**
+	 * 追加されたノートリストをマージします.
+	 * すべてのリストで開始位置が重複なく並んでいれば, 全パートを1回の走査でマージします. それ以外はパートごとにマージします.
+	 */
+	private void mergeParts() {
+		if (partList.isEmpty()) {
+			return;
+		}
+		boolean strict = noteEventList.isEmpty();
+		for (List<MMLNoteEvent> list : partList) {
+			strict &= isStrictlySorted(list);
+		}
+		if (strict) {
+			new PartMerger(partList.size()).merge();
+		} else {
+			for (List<MMLNoteEvent> list : partList) {
+				mergePart(list);
+			}
+		}
+		partList.clear();
+	}
+
+	private static boolean isStrictlySorted(List<MMLNoteEvent> list) {
+		int prevTick = Integer.MIN_VALUE;
+		for (MMLNoteEvent noteEvent : list) {
+			if (noteEvent.getTickOffset() <= prevTick) {
+				return false;
+			}
+			prevTick = noteEvent.getTickOffset();
+		}
+		return true;
+	}
+
+	/**
+	 * 1つのノートリストを, 変換済みのリストに追加します.
+	 * <p>開始位置の順に並んだリストは, 既存のリストと先頭から順にマージします.
+	 * 並んでいない場合は, 1つずつ挿入位置を探します.</p>
+	 * @param list
+	 */
+	private void mergePart(List<MMLNoteEvent> list) {
+		if (!isSorted(list)) {
+			for (MMLNoteEvent noteEvent : list) {
+				addItem(noteEvent.clone());
+			}
+			return;
+		}
+
+		ArrayList<MMLNoteEvent> srcList = noteEventList;
+		ArrayList<MMLNoteEvent> mergeList = new ArrayList<>(srcList.size() + list.size());
+		int srcIndex = 0;
+		for (MMLNoteEvent noteEvent : list) {
+			MMLNoteEvent addEvent = noteEvent.clone();
+			int targetTick = addEvent.getTickOffset();
+
+			// マージ済みの部分にある同じ位置, 同じ音の直後が挿入位置. なければ既存のリストを進める.
+			int targetIndex = searchSameNote(mergeList, addEvent);
+			if (targetIndex < 0) {
+				while (srcIndex < srcList.size()) {
+					MMLNoteEvent srcEvent = srcList.get(srcIndex);
+					if (srcEvent.getTickOffset() > targetTick) {
+						break;
+					}
+					mergeList.add(srcEvent);
+					srcIndex++;
+					if ( (srcEvent.getTickOffset() == targetTick) && (srcEvent.getNote() == addEvent.getNote()) ) {
+						break;
+					}
+				}
+				targetIndex = mergeList.size();
+			}
+
+			MMLNoteEvent nextEvent = null;
+			if (targetIndex < mergeList.size()) {
+				nextEvent = mergeList.get(targetIndex);
+			} else if (srcIndex < srcList.size()) {
+				nextEvent = srcList.get(srcIndex);
+			}
+			insertItem(mergeList, targetIndex, addEvent, nextEvent);
+		}
+		mergeList.addAll(srcList.subList(srcIndex, srcList.size()));
+		noteEventList = mergeList;
+	}
+
+	private static boolean isSorted(List<MMLNoteEvent> list) {
+		int prevTick = Integer.MIN_VALUE;
 		for (MMLNoteEvent noteEvent : list) {
-			addItem(noteEvent.clone());
+			if (noteEvent.getTickOffset() < prevTick) {
+				return false;
+			}
+			prevTick = noteEvent.getTickOffset();
+		}
+		return true;
+	}
+
+	/**
+	 * 開始位置と音が同じノートを探します.
+	 * @return 見つかったノートの次のindex. ない場合は -1.
+	 */
+	private static int searchSameNote(List<MMLNoteEvent> list, MMLNoteEvent addEvent) {
+		int targetTick = addEvent.getTickOffset();
+		int low = 0;
+		int high = list.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (list.get(mid).getTickOffset() < targetTick) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low; i < list.size(); i++) {
+			MMLNoteEvent noteEvent = list.get(i);
+			if (noteEvent.getTickOffset() != targetTick) {
+				break;
+			}
+			if (noteEvent.getNote() == addEvent.getNote()) {
+				return i + 1;
+			}
 		}
+		return -1;
 	}
 
 	private void addItem(MMLNoteEvent addEvent) {
@@ -52,9 +183,26 @@ public class MMLMidiTrack {
 			}
 		}
 
+		MMLNoteEvent nextEvent = null;
+		if ( targetIndex < noteEventList.size() ) {
+			nextEvent = noteEventList.get( targetIndex );
+		}
+		insertItem(noteEventList, targetIndex, addEvent, nextEvent);
+	}
+
+	/**
+	 * 前後の音との重複を修正して, ノートを挿入します.
+	 * @param list 挿入先
+	 * @param targetIndex 挿入位置
+	 * @param addEvent 挿入するノート
+	 * @param nextEvent 挿入位置の後ろにくるノート
+	 */
+	private void insertItem(List<MMLNoteEvent> list, int targetIndex, MMLNoteEvent addEvent, MMLNoteEvent nextEvent) {
+		int targetTick = addEvent.getTickOffset();
+
 		// 前の音との重複修正
 		if ( targetIndex > 0 ) {
-			MMLNoteEvent prevEvent = noteEventList.get( targetIndex - 1 );
+			MMLNoteEvent prevEvent = list.get( targetIndex - 1 );
 			if (addEvent.getNote() == prevEvent.getNote()) {
 				if ( prevEvent.getTickOffset() == targetTick ) {
 					// 開始位置が同じときには, 後発音で更新する.
@@ -70,7 +218,7 @@ public class MMLMidiTrack {
 							addEvent.setTick(MMLTicks.minimumTick());
 						}
 						targetIndex--;
-						noteEventList.remove(targetIndex);
+						list.remove(targetIndex);
 					}
 				} else {
 					trimOverlapNote(prevEvent, addEvent);
@@ -79,12 +227,193 @@ public class MMLMidiTrack {
 		}
 
 		// 後ろの音との重複修正
-		if ( targetIndex < noteEventList.size() ) {
-			MMLNoteEvent nextEvent = noteEventList.get( targetIndex );
+		if ( nextEvent != null ) {
 			trimOverlapNote(addEvent, nextEvent);
 		}
 
-		noteEventList.add(targetIndex, addEvent);
+		list.add(targetIndex, addEvent);
+	}
+
+	/**
+	 * パートごとの変換結果 (追加位置に置かれたノート).
+	 */
+	private static final class Entry {
+		private final MMLNoteEvent noteEvent;
+		private final int part;
+		/** 置き換える前のノート. */
+		private final Entry replaced;
+		/** l64音に更新したパート. これより前のパートによる重複修正は上書きされています. */
+		private int minimumTickPart = -1;
+
+		private Entry(MMLNoteEvent noteEvent, int part, Entry replaced) {
+			this.noteEvent = noteEvent;
+			this.part = part;
+			this.replaced = replaced;
+		}
+
+		/**
+		 * 指定したパートまでを追加した時点で置かれているノート.
+		 */
+		private Entry at(int part) {
+			Entry entry = this;
+			while ( (entry != null) && (entry.part > part) ) {
+				entry = entry.replaced;
+			}
+			return entry;
+		}
+
+		/**
+		 * 後ろの音と重なる部分を削ります.
+		 * @param part 後ろの音を追加したパート
+		 * @param tickOffset 後ろの音の開始位置
+		 */
+		private void trim(int part, int tickOffset) {
+			if (part >= minimumTickPart) {
+				int tickOverlap = noteEvent.getEndTick() - tickOffset;
+				if (tickOverlap > 0) {
+					noteEvent.setTick( noteEvent.getTick() - tickOverlap );
+				}
+			}
+		}
+	}
+
+	/**
+	 * 開始位置の順に並んだ複数のパートを, 先頭から1回の走査でマージします.
+	 * <p>パートを1つずつ挿入した場合と同じ結果になるように, 「パートkまでを追加した時点」の前後の音をパートごとに追跡します.
+	 * 同じ位置の同じ音は, 音の高さで引く表で検出します.</p>
+	 */
+	private final class PartMerger {
+		private final int partCount;
+		private final int index[];
+		/** パートkまでを追加した時点で, 処理済みの位置の最後にあるノート. */
+		private final Entry last[];
+		/** 後ろの音による重複修正を待っているノート. パートkのノートは, パートk-1までの次の音で修正します. */
+		private final List<List<Entry>> pending = new ArrayList<>();
+
+		/** 同じ位置のノート (追加順). */
+		private final ArrayList<Entry> group = new ArrayList<>();
+		/** 同じ位置のノートを, 音の高さで引く表. */
+		private final Entry noteTable[] = new Entry[256];
+
+		private PartMerger(int partCount) {
+			this.partCount = partCount;
+			this.index = new int[partCount];
+			this.last = new Entry[partCount];
+			for (int i = 0; i < partCount; i++) {
+				pending.add(new ArrayList<>());
+			}
+		}
+
+		private void merge() {
+			int tickOffset;
+			while ( (tickOffset = nextTickOffset()) != Integer.MAX_VALUE ) {
+				mergeGroup(tickOffset);
+			}
+		}
+
+		private int nextTickOffset() {
+			int tickOffset = Integer.MAX_VALUE;
+			for (int i = 0; i < partCount; i++) {
+				List<MMLNoteEvent> list = partList.get(i);
+				if (index[i] < list.size()) {
+					tickOffset = Math.min(tickOffset, list.get(index[i]).getTickOffset());
+				}
+			}
+			return tickOffset;
+		}
+
+		private void mergeGroup(int tickOffset) {
+			boolean tempo = MMLTempoEvent.searchEqualsTick(tempoList, tickOffset);
+			for (int part = 0; part < partCount; part++) {
+				List<MMLNoteEvent> list = partList.get(part);
+				if ( (index[part] >= list.size()) || (list.get(index[part]).getTickOffset() != tickOffset) ) {
+					continue;
+				}
+				MMLNoteEvent addEvent = list.get(index[part]++).clone();
+				if (group.isEmpty()) {
+					// この位置で最初のノートは, 後ろのパートが待っている次の音になる.
+					resolvePending(part, addEvent);
+				}
+				addNote(part, addEvent, tempo);
+			}
+
+			// パートごとの最後のノートと, 変換結果を更新する.
+			for (int part = 0; part < partCount; part++) {
+				for (Entry entry : group) {
+					if (entry.part <= part) {
+						last[part] = current(entry).at(part);
+					}
+				}
+			}
+			for (Entry entry : group) {
+				noteEventList.add(current(entry).noteEvent);
+			}
+			for (Entry entry : group) {
+				noteTable[entry.noteEvent.getNote() & 0xff] = null;
+			}
+			group.clear();
+		}
+
+		/**
+		 * 同じ位置, 同じ音で最後に追加したノート.
+		 */
+		private Entry current(Entry entry) {
+			return noteTable[entry.noteEvent.getNote() & 0xff];
+		}
+
+		private void resolvePending(int part, MMLNoteEvent nextEvent) {
+			for (int i = part + 1; i < partCount; i++) {
+				for (Entry entry : pending.get(i)) {
+					if (entry.noteEvent.getNote() == nextEvent.getNote()) {
+						entry.trim(i, nextEvent.getTickOffset());
+					}
+				}
+				pending.get(i).clear();
+			}
+		}
+
+		private void addNote(int part, MMLNoteEvent addEvent, boolean tempo) {
+			int tableIndex = addEvent.getNote() & 0xff;
+			Entry prevEntry = noteTable[tableIndex];
+			if (prevEntry != null) {
+				// 開始位置が同じときには, 後発音で更新する.
+				// 前の音とテンポ指定がある場合は元あったノートのまま.
+				// 後発音が V0 の場合は l64音に更新する.
+				if (!tempo) {
+					if (addEvent.getVelocity() == 0) {
+						prevEntry.noteEvent.setTick(MMLTicks.minimumTick());
+						prevEntry.minimumTickPart = part;
+					}
+				} else {
+					Entry entry = new Entry(addEvent, part, prevEntry);
+					if (prevEntry.noteEvent.getVelocity() == 0) {
+						addEvent.setTick(MMLTicks.minimumTick());
+						entry.minimumTickPart = part;
+					}
+					noteTable[tableIndex] = entry;
+					if (isLastInGroup(prevEntry)) {
+						pending.get(part).add(entry);
+					}
+				}
+				return;
+			}
+
+			// 前の音との重複修正. 同じ位置に別の音があれば, それが前の音になる.
+			if ( group.isEmpty() && (last[part] != null) && (last[part].noteEvent.getNote() == addEvent.getNote()) ) {
+				last[part].trim(part, addEvent.getTickOffset());
+			}
+			Entry entry = new Entry(addEvent, part, null);
+			group.add(entry);
+			noteTable[tableIndex] = entry;
+			pending.get(part).add(entry);
+		}
+
+		private boolean isLastInGroup(Entry entry) {
+			while (entry.replaced != null) {
+				entry = entry.replaced;
+			}
+			return group.get(group.size() - 1) == entry;
+		}
 	}
 
 	private void trimOverlapNote(MMLNoteEvent note1, MMLNoteEvent note2) {
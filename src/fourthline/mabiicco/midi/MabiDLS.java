@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2015 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mabiicco.midi;
@@ -10,8 +10,12 @@ import java.nio.ByteBuffer;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.sound.midi.*;
 
@@ -21,6 +25,8 @@ import fourthline.mmlTools.MMLNoteEvent;
 import fourthline.mmlTools.MMLScore;
 import fourthline.mmlTools.MMLTempoEvent;
 import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.TempoMap;
+import fourthline.mmlTools.TrackSnapshot;
 import fourthline.mmlTools.core.MMLTickTable;
 
 /**
@@ -36,6 +42,20 @@ public final class MabiDLS {
 	public static final int MAX_MIDI_PART = 12;
 	private ArrayList<InstClass> insts = new ArrayList<>();
 
+	// シンセサイザにロードした楽器. 上限を超えたら古いものからアンロードします.
+	private final InstrumentCache instCache = new InstrumentCache(InstrumentCache.defaultBudget());
+	private final Set<InstClass> synthLoadedInsts = new HashSet<>();
+	private final AtomicReference<MMLScore> preloadScore = new AtomicReference<>();
+	private final ExecutorService preloadExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "InstrumentPreload");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// 変換済みのMIDIイベント. トラックの位置ごとに保持します.
+	private final MidiEventCache trackCache[] = new MidiEventCache[MAX_MIDI_PART];
+	private final MidiEventCache voiceCache[][] = new MidiEventCache[2][MMLScore.MAX_TRACK];
+
 	public static final String DEFALUT_DLS_PATH = "Nexon/Mabinogi/mp3/MSXspirit.dls";
 
 	private ArrayList<Runnable> notifier = new ArrayList<>();
@@ -150,10 +170,17 @@ public final class MabiDLS {
 		}
 	}
 
+	/**
+	 * スコアで使用する楽器をシンセサイザにロードします.
+	 * ロード済みの楽器がキャッシュの上限を超えた場合は, 使用しない楽器を古いものからアンロードします.
+	 * @param score
+	 */
 	public synchronized void loadRequiredInstruments(MMLScore score) {
+		if (synthesizer == null) {
+			return;
+		}
 		ArrayList<InstClass> requiredInsts = new ArrayList<>();
-		ArrayList<MMLTrack> trackList = new ArrayList<>(score.getTrackList());
-		for (MMLTrack track : trackList) {
+		for (MMLTrack track : score.getTrackSnapshot()) {
 			InstClass inst1 = getInstByProgram( track.getProgram() );
 			InstClass inst2 = getInstByProgram( track.getSongProgram() );
 			if ( (inst1 != null) && (!requiredInsts.contains(inst1)) ) {
@@ -164,17 +191,77 @@ public final class MabiDLS {
 			}
 		}
 
-		// load required Instruments
-		List<Instrument> loadedList = Arrays.asList(synthesizer.getLoadedInstruments());
-		for (InstClass inst : requiredInsts) {
+		ArrayList<InstClass> loadList = new ArrayList<>();
+		List<InstClass> unloadList = instCache.use(requiredInsts, loadList);
+		unloadInstruments(unloadList, false);
+		for (InstClass inst : loadList) {
 			try {
-				Instrument instrument = inst.getInstrument();
-				if (!loadedList.contains(instrument)) {
-					synthesizer.loadInstrument(instrument);
-				}
+				loadInstrument(inst);
 			} catch (OutOfMemoryError e) {
-				AppErrorHandler.getInstance().exec();
-				System.exit(1);
+				// 使用しない楽器をすべてアンロードして, もう一度ロードする.
+				System.err.println("loadInstrument: "+e.getMessage());
+				unloadInstruments(instCache.retainOnly(requiredInsts), true);
+				try {
+					loadInstrument(inst);
+				} catch (OutOfMemoryError e2) {
+					AppErrorHandler.getInstance().exec();
+					System.exit(1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * スコアで使用する楽器を, バックグラウンドでロードします.
+	 * ロード待ちの間に再度呼び出された場合は, 最後のスコアだけをロードします.
+	 * @param score
+	 */
+	public void preloadRequiredInstruments(MMLScore score) {
+		if (preloadScore.getAndSet(score) == null) {
+			preloadExecutor.execute(() -> loadRequiredInstruments(preloadScore.getAndSet(null)));
+		}
+	}
+
+	private void loadInstrument(InstClass inst) {
+		if (synthesizer.loadInstrument(inst.getInstrument())) {
+			synthLoadedInsts.add(inst);
+		} else {
+			instCache.remove(inst);
+		}
+	}
+
+	/**
+	 * 楽器をシンセサイザからアンロードします.
+	 * <p>アンロードしてもサンプルはSoundbankが保持しているため, 残っているサンプルが上限を超えたDLSファイルだけを読み直し,
+	 * そのファイルの楽器を新しいSoundbankのものに置き換えます.</p>
+	 * @param unloadList
+	 * @param compactAll trueの場合は, サンプルが残っているすべてのDLSファイルを読み直します.
+	 */
+	private void unloadInstruments(List<InstClass> unloadList, boolean compactAll) {
+		for (InstClass inst : unloadList) {
+			if (synthLoadedInsts.remove(inst)) {
+				synthesizer.unloadInstrument(inst.getInstrument());
+			}
+		}
+
+		for (File file : instCache.takeStaleFiles(compactAll)) {
+			Soundbank soundbank;
+			try {
+				soundbank = MidiSystem.getSoundbank(file);
+			} catch (InvalidMidiDataException | IOException e) {
+				System.err.println("reload DLS: "+e.getMessage());
+				continue;
+			}
+			for (InstClass inst : insts) {
+				if (file.equals(inst.getDlsFile())) {
+					Instrument instrument = soundbank.getInstrument(inst.getInstrument().getPatch());
+					if (instrument != null) {
+						inst.setInstrument(instrument);
+						if (synthLoadedInsts.contains(inst)) {
+							synthesizer.loadInstrument(instrument);
+						}
+					}
+				}
 			}
 		}
 	}
@@ -215,6 +302,19 @@ public final class MabiDLS {
 		return null;
 	}
 
+	/**
+	 * プログラム番号の楽器種別を取得します.
+	 * @param program
+	 * @return 楽器がない場合は {@link InstType#NONE}.
+	 */
+	private InstType getInstType(int program) {
+		InstClass inst = getInstByProgram(program);
+		if (inst == null) {
+			return InstType.NONE;
+		}
+		return inst.getType();
+	}
+
 	/**
 	 * 単音再生
 	 */
@@ -317,19 +417,43 @@ public final class MabiDLS {
 
 	/**
 	 * MIDIシーケンスを作成します。
+	 * 前回から変更のないトラックは, 変換済みのMIDIイベントを再利用します.
 	 * @throws InvalidMidiDataException 
 	 */
-	public Sequence createSequence(MMLScore score) throws InvalidMidiDataException {
+	public synchronized Sequence createSequence(MMLScore score) throws InvalidMidiDataException {
+		return createSequence(score, trackCache, voiceCache);
+	}
+
+	/**
+	 * MIDIシーケンスを作成します。
+	 * @param score
+	 * @param useCache falseの場合は変換済みのMIDIイベントを使わず, 保持もしません. 複数のスレッドから同時に呼び出せます.
+	 * @return
+	 * @throws InvalidMidiDataException
+	 */
+	public Sequence createSequence(MMLScore score, boolean useCache) throws InvalidMidiDataException {
+		if (useCache) {
+			return createSequence(score);
+		}
+		return createSequence(score, new MidiEventCache[MAX_MIDI_PART], new MidiEventCache[2][MMLScore.MAX_TRACK]);
+	}
+
+	private Sequence createSequence(MMLScore score, MidiEventCache trackCache[], MidiEventCache voiceCache[][]) throws InvalidMidiDataException {
 		Sequence sequence = new Sequence(Sequence.PPQ, MMLTickTable.TPQN);
 
+		// 変換中に編集されても, 同じトラック列を使う.
+		TrackSnapshot trackSnapshot = score.getTrackSnapshot();
 		int trackCount = 0;
-		for (MMLTrack mmlTrack : score.getTrackList()) {
-			convertMidiTrack(sequence.createTrack(), mmlTrack, trackCount);
+		for (MMLTrack mmlTrack : trackSnapshot) {
+			convertMidiTrack(sequence.createTrack(), mmlTrack, trackCount, trackCache);
 			trackCount++;
 			if (trackCount >= MAX_MIDI_PART) {
 				break;
 			}
 		}
+		for (int i = trackCount; i < trackCache.length; i++) {
+			trackCache[i] = null;
+		}
 
 		// グローバルテンポ
 		Track track = sequence.getTracks()[0];
@@ -344,13 +468,13 @@ public final class MabiDLS {
 		}
 
 		// コーラスパートの作成
-		createVoiceMidiTrack(sequence, score, 13, 100); // 男声コーラス
-		createVoiceMidiTrack(sequence, score, 14, 110); // 女声コーラス
+		createVoiceMidiTrack(sequence, trackSnapshot, 13, 100, voiceCache[0]); // 男声コーラス
+		createVoiceMidiTrack(sequence, trackSnapshot, 14, 110, voiceCache[1]); // 女声コーラス
 
 		return sequence;
 	}
 
-	private void createVoiceMidiTrack(Sequence sequence, MMLScore score, int channel, int program) throws InvalidMidiDataException {
+	private void createVoiceMidiTrack(Sequence sequence, TrackSnapshot trackSnapshot, int channel, int program, MidiEventCache cache[]) throws InvalidMidiDataException {
 		Track track = sequence.createTrack();
 		ShortMessage pcMessage = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 
 				channel,
@@ -358,13 +482,26 @@ public final class MabiDLS {
 				0);
 		track.add(new MidiEvent(pcMessage, 0));
 
-		for (MMLTrack mmlTrack : score.getTrackList()) {
-			if (mmlTrack.getSongProgram() != program) {
+		int trackIndex = 0;
+		for (MMLTrack mmlTrack : trackSnapshot) {
+			if ( (mmlTrack.getSongProgram() != program) || (getInstByProgram(program) == null) ) {
+				cache[trackIndex++] = null;
 				continue;
 			}
 
-			InstType instType = getInstByProgram(program).getType();
-			convertMidiPart(track, mmlTrack.getMMLEventAtIndex(3).getMMLNoteEventList(), channel, instType);
+			MMLEventList parts[] = { mmlTrack.getMMLEventAtIndex(3) };
+			MidiEventCache eventCache = cache[trackIndex];
+			if ( (eventCache == null) || !eventCache.matches(mmlTrack, program, mmlTrack.getTempoMap(), parts) ) {
+				InstType instType = getInstType(program);
+				eventCache = new MidiEventCache(mmlTrack, program, mmlTrack.getTempoMap(), parts);
+				convertMidiPart(eventCache.eventList, parts[0].getNoteListView(), channel, instType);
+				cache[trackIndex] = eventCache;
+			}
+			eventCache.addTo(track);
+			trackIndex++;
+		}
+		for (int i = trackIndex; i < cache.length; i++) {
+			cache[i] = null;
 		}
 	}
 
@@ -374,28 +511,41 @@ public final class MabiDLS {
 	 * @param channel
 	 * @throws InvalidMidiDataException
 	 */
-	private void convertMidiTrack(Track track, MMLTrack mmlTrack, int channel) throws InvalidMidiDataException {
+	private void convertMidiTrack(Track track, MMLTrack mmlTrack, int channel, MidiEventCache trackCache[]) throws InvalidMidiDataException {
+		int trackIndex = channel;
 		int program = mmlTrack.getProgram();
-		channel = convertMidiChannel(channel);
-		ShortMessage pcMessage = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 
-				channel,
-				program,
-				0);
-		track.add(new MidiEvent(pcMessage, 0));
 		boolean enablePart[] = InstClass.getEnablePartByProgram(program);
-		InstType instType = getInstByProgram(mmlTrack.getProgram()).getType();
-
-		MMLMidiTrack midiTrack = new MMLMidiTrack(mmlTrack.getGlobalTempoList());
+		ArrayList<MMLEventList> partList = new ArrayList<>();
 		for (int i = 0; i < enablePart.length; i++) {
 			if (enablePart[i]) {
-				MMLEventList eventList = mmlTrack.getMMLEventAtIndex(i);
-				midiTrack.add(eventList.getMMLNoteEventList());
+				partList.add(mmlTrack.getMMLEventAtIndex(i));
 			}
 		}
-		convertMidiPart(track, midiTrack.getNoteEventList(), channel, instType);
+		MMLEventList parts[] = partList.toArray(new MMLEventList[partList.size()]);
+		TempoMap tempoMap = mmlTrack.getTempoMap();
+
+		MidiEventCache eventCache = trackCache[trackIndex];
+		if ( (eventCache == null) || !eventCache.matches(mmlTrack, program, tempoMap, parts) ) {
+			channel = convertMidiChannel(channel);
+			eventCache = new MidiEventCache(mmlTrack, program, tempoMap, parts);
+			ShortMessage pcMessage = new ShortMessage(ShortMessage.PROGRAM_CHANGE, 
+					channel,
+					program,
+					0);
+			eventCache.eventList.add(new MidiEvent(pcMessage, 0));
+			InstType instType = getInstType(program);
+
+			MMLMidiTrack midiTrack = new MMLMidiTrack(mmlTrack.getGlobalTempoList());
+			for (MMLEventList eventList : parts) {
+				midiTrack.add(eventList.getNoteListView());
+			}
+			convertMidiPart(eventCache.eventList, midiTrack.getNoteEventList(), channel, instType);
+			trackCache[trackIndex] = eventCache;
+		}
+		eventCache.addTo(track);
 	}
 
-	private void convertMidiPart(Track track, List<MMLNoteEvent> eventList, int channel, InstType inst) {
+	private void convertMidiPart(List<MidiEvent> track, List<MMLNoteEvent> eventList, int channel, InstType inst) {
 		int volumn = MMLNoteEvent.INIT_VOL;
 
 		// Noteイベントの変換
@@ -444,6 +594,51 @@ public final class MabiDLS {
 		return channel;
 	}
 
+	/**
+	 * MMLTrackから変換したMIDIイベント.
+	 * 変換元のトラック, パートとそのバージョン, 楽器, テンポが同じであれば再利用できます.
+	 */
+	private static final class MidiEventCache {
+		private final MMLTrack mmlTrack;
+		private final int program;
+		private final TempoMap tempoMap;
+		private final MMLEventList parts[];
+		private final long versions[];
+		private final ArrayList<MidiEvent> eventList = new ArrayList<>();
+
+		private MidiEventCache(MMLTrack mmlTrack, int program, TempoMap tempoMap, MMLEventList parts[]) {
+			this.mmlTrack = mmlTrack;
+			this.program = program;
+			this.tempoMap = tempoMap;
+			this.parts = parts;
+			this.versions = new long[parts.length];
+			for (int i = 0; i < parts.length; i++) {
+				versions[i] = parts[i].getVersion();
+			}
+		}
+
+		private boolean matches(MMLTrack mmlTrack, int program, TempoMap tempoMap, MMLEventList parts[]) {
+			if ( (this.mmlTrack != mmlTrack) || (this.program != program) || (this.tempoMap != tempoMap) ) {
+				return false;
+			}
+			if (this.parts.length != parts.length) {
+				return false;
+			}
+			for (int i = 0; i < parts.length; i++) {
+				if ( (this.parts[i] != parts[i]) || (versions[i] != parts[i].getVersion()) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void addTo(Track track) {
+			for (MidiEvent event : eventList) {
+				track.add(event);
+			}
+		}
+	}
+
 	public static void main(String args[]) {
 		try {
 			MabiDLS midi = new MabiDLS();
@@ -10,6 +10,7 @@ import java.awt.Dimension;
 import java.awt.Frame;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
@@ -187,7 +188,11 @@ public final class ColumnPanel extends JPanel implements MouseListener, MouseMot
 		Color rectColor = ColorManager.defaultColor().getActiveRectColor(trackIndex);
 		g.setColor(rectColor);
 
-		for (MMLNoteEvent noteEvent : activePart.getMMLNoteEventList()) {
+		// 描画範囲のノートのみ.
+		Rectangle clip = g.getClipBounds();
+		long startTick = (clip != null) ? pianoRollView.convertXtoTick(clip.x) : 0;
+		long endTick = (clip != null) ? pianoRollView.convertXtoTick(clip.x + clip.width) : Long.MAX_VALUE;
+		activePart.forEachNote(startTick, endTick, noteEvent -> {
 			int x = pianoRollView.convertTicktoX( noteEvent.getTickOffset() );
 			int width = pianoRollView.convertTicktoX( noteEvent.getTick() );
 			int velocity = noteEvent.getVelocity();
@@ -195,7 +200,7 @@ public final class ColumnPanel extends JPanel implements MouseListener, MouseMot
 			if (velocity > 15) velocity = 15;
 			int y = DRAW_HEIGHT - velocity - 2;
 			g.drawLine(x, y, x+width-1, y);
-		}
+		});
 	}
 
 	private void setSequenceBar(int x) {
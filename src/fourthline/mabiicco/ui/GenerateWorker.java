@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.swing.Timer;
+
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.ScoreGenerator;
+import fourthline.mmlTools.ScoreGenerator.Job;
+import fourthline.mmlTools.ScoreGenerator.TrackResult;
+import fourthline.mmlTools.TrackSnapshot;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * 編集後の generate をバックグラウンドで行います.
+ * <p>連続した編集は, 最後の編集から一定時間後にまとめて generate します.
+ * generate中に次の編集があった場合は, 実行中の generate を中止して結果を捨てます.
+ * 変更のあったトラックのコピーを generate し, 結果はEDTでまとめて反映します.</p>
+ * <p>メソッドはすべてEDTから呼び出してください.</p>
+ */
+final class GenerateWorker {
+	/**
+	 * 結果の通知先. EDTから呼び出します.
+	 */
+	interface Listener {
+		/**
+		 * generate待ちの状態が変わったときに呼び出します.
+		 * @param pending 反映していない編集があればtrue.
+		 */
+		void generateStateChanged(boolean pending);
+
+		/**
+		 * generateの結果を反映したときに呼び出します.
+		 * @param trackIndexes generateしたトラック
+		 */
+		void generateCompleted(int trackIndexes[]);
+
+		/**
+		 * generateに失敗したときに呼び出します.
+		 * @param e
+		 */
+		void generateFailed(UndefinedTickException e);
+	}
+
+	private final Supplier<MMLScore> scoreSupplier;
+	private final ScoreGenerator generator;
+	private final Listener listener;
+	private final Timer timer;
+
+	// 編集の要求ごとに増加する. 実行中のgenerateが古くなったかどうかの判定に使う.
+	private long requestCount = 0;
+	private Job runningJob = null;
+	private boolean pending = false;
+
+	/**
+	 * @param scoreSupplier 編集中のスコア
+	 * @param generator
+	 * @param delay 最後の編集から generate を開始するまでの時間 (ms)
+	 * @param listener
+	 */
+	GenerateWorker(Supplier<MMLScore> scoreSupplier, ScoreGenerator generator, int delay, Listener listener) {
+		this.scoreSupplier = scoreSupplier;
+		this.generator = generator;
+		this.listener = listener;
+		this.timer = new Timer(delay, t -> start());
+		this.timer.setRepeats(false);
+	}
+
+	/**
+	 * 反映していない編集があるかどうか.
+	 * @return
+	 */
+	public boolean isPending() {
+		return pending;
+	}
+
+	/**
+	 * 編集があったことを通知し, generateを予約します.
+	 */
+	public void request() {
+		requestCount++;
+		cancelRunningJob();
+		timer.restart();
+		setPending(true);
+	}
+
+	/**
+	 * 予約中と実行中の generate を取り消します. スコアを置き換えるときに使います.
+	 */
+	public void cancel() {
+		requestCount++;
+		timer.stop();
+		cancelRunningJob();
+		setPending(false);
+	}
+
+	/**
+	 * 反映していない編集があれば, この場で generate します.
+	 * 保存, Undoなど, generate済みの状態が必要な操作の前に呼び出します.
+	 * @return 失敗した場合は {@link Listener#generateFailed(UndefinedTickException)} を呼び出して false を返します.
+	 */
+	public boolean flush() {
+		if (!pending) {
+			return true;
+		}
+		requestCount++;
+		timer.stop();
+		cancelRunningJob();
+		int trackIndexes[];
+		try {
+			trackIndexes = scoreSupplier.get().generateModifiedTracks();
+		} catch (UndefinedTickException e) {
+			setPending(false);
+			listener.generateFailed(e);
+			return false;
+		}
+		setPending(false);
+		listener.generateCompleted(trackIndexes);
+		return true;
+	}
+
+	private void cancelRunningJob() {
+		if (runningJob != null) {
+			runningJob.cancel();
+			runningJob = null;
+		}
+	}
+
+	private void setPending(boolean b) {
+		if (pending != b) {
+			pending = b;
+			listener.generateStateChanged(b);
+		}
+	}
+
+	private void start() {
+		MMLScore score = scoreSupplier.get();
+		TrackSnapshot trackSnapshot = score.getTrackSnapshot();
+		int trackIndexes[] = MMLScore.getModifiedTrackIndexes(trackSnapshot);
+		List<MMLTrack> copyList = new ArrayList<>(trackIndexes.length);
+		for (int trackIndex : trackIndexes) {
+			copyList.add(trackSnapshot.get(trackIndex).copyForGenerate());
+		}
+
+		long request = requestCount;
+		Job job[] = { null };
+		job[0] = generator.submit(copyList, trackIndexes, (result, done, total) -> {
+			if (done == total) {
+				EventQueue.invokeLater(() -> publish(request, job[0], score, trackSnapshot, copyList));
+			}
+		});
+		if (requestCount == request) {
+			runningJob = job[0];
+		}
+		if (trackIndexes.length == 0) {
+			publish(request, job[0], score, trackSnapshot, copyList);
+		}
+	}
+
+	/**
+	 * generateしたコピーの結果をスコアに反映します.
+	 */
+	private void publish(long request, Job job, MMLScore score, TrackSnapshot trackSnapshot, List<MMLTrack> copyList) {
+		if ( (request != requestCount) || (job != runningJob) ) {
+			// 後の編集で古くなった結果は捨てる.
+			return;
+		}
+		runningJob = null;
+
+		List<TrackResult> resultList;
+		try {
+			resultList = job.await();
+			ScoreGenerator.checkResult(resultList);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (UndefinedTickException e) {
+			setPending(false);
+			listener.generateFailed(e);
+			return;
+		}
+
+		if ( (score != scoreSupplier.get()) || (score.getTrackSnapshot().getVersion() != trackSnapshot.getVersion()) ) {
+			// トラックの構成が変わっていれば, 作り直す.
+			request();
+			return;
+		}
+		int trackIndexes[] = new int[resultList.size()];
+		for (int i = 0; i < trackIndexes.length; i++) {
+			trackIndexes[i] = resultList.get(i).getTrackIndex();
+			if (!trackSnapshot.get(trackIndexes[i]).applyGenerated(copyList.get(i))) {
+				request();
+				return;
+			}
+		}
+		setPending(false);
+		listener.generateCompleted(trackIndexes);
+	}
+}
@@ -1,10 +1,11 @@
 /*
- * Copyright (C) 2013-2015 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mabiicco.ui;
 
 import javax.sound.midi.Sequencer;
+import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
@@ -12,6 +13,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JViewport;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -24,6 +26,7 @@ import fourthline.mabiicco.midi.MabiDLS;
 import fourthline.mabiicco.ui.PianoRollView.PaintMode;
 import fourthline.mabiicco.ui.editor.MMLEditor;
 import fourthline.mabiicco.ui.editor.MMLScoreUndoEdit;
+import fourthline.mabiicco.ui.editor.RecoveryJournal;
 import fourthline.mabiicco.ui.mml.MMLInputPanel;
 import fourthline.mabiicco.ui.mml.MMLOutputPanel;
 import fourthline.mabiicco.ui.mml.MMLPartChangePanel;
@@ -31,8 +34,9 @@ import fourthline.mabiicco.ui.mml.TrackPropertyPanel;
 import fourthline.mmlTools.MMLEventList;
 import fourthline.mmlTools.MMLNoteEvent;
 import fourthline.mmlTools.MMLScore;
-import fourthline.mmlTools.MMLTempoEvent;
 import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.ScoreGenerator;
+import fourthline.mmlTools.TempoMap;
 import fourthline.mmlTools.core.MMLTicks;
 import fourthline.mmlTools.core.UndefinedTickException;
 
@@ -83,7 +87,39 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 
 	private final JPanel panel;
 	private JLabel timeView;
-	private Thread timeViewUpdateThread;
+
+	/** 再生中の描画間隔 (ms). */
+	private static final int PLAYBACK_FRAME_INTERVAL = 16;
+	private final Timer playbackTimer = new Timer(PLAYBACK_FRAME_INTERVAL, t -> updatePlayback());
+	private final PlaybackClock playbackClock = new PlaybackClock();
+
+	/** 最後の編集から generate を開始するまでの時間 (ms). */
+	private static final int GENERATE_DELAY = 100;
+	private final GenerateWorker generateWorker = new GenerateWorker(() -> mmlScore, ScoreGenerator.getDefault(), GENERATE_DELAY, new GenerateWorker.Listener() {
+		@Override
+		public void generateStateChanged(boolean pending) {
+			updateTimeView();
+		}
+
+		@Override
+		public void generateCompleted(int trackIndexes[]) {
+			if (tabbedPane.getTabCount() == mmlScore.getTrackCount()) {
+				updateMMLPart(trackIndexes);
+			} else {
+				updateAllMMLPart();
+			}
+		}
+
+		@Override
+		public void generateFailed(UndefinedTickException e) {
+			String msg = AppResource.appText("fail.mml_modify") + "\n" + e.getMessage();
+			JOptionPane.showMessageDialog(parentFrame, msg, AppResource.getAppTitle(), JOptionPane.WARNING_MESSAGE);
+			System.err.println("REVERT: " + e.getMessage());
+			undoEdit.revertState();
+			editor.reset();
+			updateAllMMLPart();
+		}
+	});
 
 	private final Frame parentFrame;
 
@@ -126,8 +162,8 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		initialSetView();
 		initializeMMLTrack();
 
-		startSequenceThread();
-		startTimeViewUpdateThread();
+		// 再生位置が変わったら時間表示を更新する.
+		pianoRollView.addPropertyChangeListener(PianoRollView.SEQUENCE_TICK_PROPERTY, t -> updateTimeView());
 	}
 
 	public boolean recovery(String s) {
@@ -143,6 +179,28 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		return result;
 	}
 
+	/**
+	 * ジャーナルから復旧します.
+	 * @param records
+	 * @return 復旧できた場合は true.
+	 */
+	public boolean recovery(List<RecoveryJournal.Record> records) {
+		boolean result = undoEdit.replay(records);
+		System.out.println("recover: "+result);
+		if (result) {
+			mmlScore = mmlScore.toGeneratedScore();
+			undoEdit.revertState();
+			updateTrackTabIcon();
+			updateActivePart(false);
+			updateProgramSelect();
+		}
+		return result;
+	}
+
+	public void setRecoveryJournal(RecoveryJournal journal) {
+		undoEdit.setRecoveryJournal(journal);
+	}
+
 	public String getRecoveryData() {
 		return undoEdit.getBackupString();
 	}
@@ -178,6 +236,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	public void initializeMMLTrack() {
+		generateWorker.cancel();
 		mmlScore = new MMLScore();
 		tabbedPane.removeAll();
 		trackCounter = 0;
@@ -255,6 +314,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	 * 現在選択中のトラックを削除します。
 	 */
 	public void removeMMLTrack() {
+		flushGenerate();
 		int index = tabbedPane.getSelectedIndex();
 
 		mmlScore.removeTrack(index);
@@ -293,14 +353,59 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		new Thread(() -> {
 			long startTick = pianoRollView.getSequencePosition();
 			MabiDLS.getInstance().createSequenceAndStart(mmlScore, startTick);
+			EventQueue.invokeLater(() -> startPlayback(startTick));
 		}).start();
 	}
 
+	/**
+	 * 再生位置の表示を開始します. 再生中だけ, 一定間隔で再生位置を描画します.
+	 */
+	private void startPlayback(long startTick) {
+		playbackClock.start(mmlScore.getTempoMap(), startTick, System.nanoTime());
+		playbackTimer.start();
+	}
+
+	/**
+	 * 再生位置の表示を終了します. 停止, 一時停止, トラック終端で呼び出します.
+	 */
+	public void stopPlayback() {
+		EventQueue.invokeLater(() -> {
+			playbackTimer.stop();
+			scrollPane.repaint();
+			updateTimeView();
+		});
+	}
+
+	private void updatePlayback() {
+		Sequencer sequencer = MabiDLS.getInstance().getSequencer();
+		if (!sequencer.isRunning()) {
+			// ループ再生の切り替わりなど.
+			return;
+		}
+		int prevX = pianoRollView.convertTicktoX(pianoRollView.getSequencePlayPosition());
+		long tick = playbackClock.getTick(sequencer.getTickPosition(), System.nanoTime());
+		pianoRollView.setRunningSequencePosition(tick);
+		updatePianoRollView(prevX);
+		updateTimeView();
+	}
+
+	/**
+	 * 再生中に再生位置を移動したときに, 表示の基準を取り直します.
+	 */
+	private void seekPlayback(long tick) {
+		int prevX = pianoRollView.convertTicktoX(pianoRollView.getSequencePlayPosition());
+		playbackClock.start(mmlScore.getTempoMap(), tick, System.nanoTime());
+		pianoRollView.setRunningSequencePosition(tick);
+		updatePianoRollView(prevX);
+		updateTimeView();
+	}
+
 	/**
 	 * 新規で複数のトラックをセットする。
 	 */
 	@Override
 	public void setMMLScore(MMLScore score) {
+		generateWorker.cancel();
 		mmlScore = score;
 
 		pianoRollView.repaint();
@@ -415,6 +520,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		} else {
 			sequencer.setTempoInBPM(120);
 			sequencer.setTickPosition(0);
+			seekPlayback(0);
 		}
 	}
 
@@ -433,11 +539,13 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	public void outputClipBoardAction() {
+		flushGenerate();
 		MMLOutputPanel outputPanel = new MMLOutputPanel(parentFrame, mmlScore.getTrackList());
 		outputPanel.showDialog();
 	}
 
 	public void mmlImport() {
+		flushGenerate();
 		String text = MMLInputPanel.getClipboardString();
 		if (new MMLTrack().setMML(text).isEmpty()) {
 			return;
@@ -450,6 +558,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	public void mmlExport() {
+		flushGenerate();
 		int index = getActiveTrackIndex();
 		String text = getMMLScore().getTrack(index).getMabiMML();
 		MMLOutputPanel.copyToClipboard(parentFrame, text);
@@ -602,9 +711,9 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	public void undo() {
-		if (undoEdit.canUndo()) {
+		if (flushGenerate() && undoEdit.canUndo()) {
 			undoEdit.undo();
-			mmlScore = mmlScore.toGeneratedScore();
+			generateRestoredScore();
 			resetTrackView();
 			updateSelectedTrackAndMMLPart();
 			updateActivePart(false);
@@ -612,15 +721,26 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	public void redo() {
-		if (undoEdit.canRedo()) {
+		if (flushGenerate() && undoEdit.canRedo()) {
 			undoEdit.redo();
-			mmlScore = mmlScore.toGeneratedScore();
+			generateRestoredScore();
 			resetTrackView();
 			updateSelectedTrackAndMMLPart();
 			updateActivePart(false);
 		}
 	}
 
+	/**
+	 * Undo/Redoで作り直したトラックをgenerateします. 変更のないトラックは前回の結果を使います.
+	 */
+	private void generateRestoredScore() {
+		try {
+			mmlScore.generateAll();
+		} catch (UndefinedTickException e) {
+			System.err.println("generate: " + e.getMessage());
+		}
+	}
+
 	public void nextStepTimeTo(boolean next) {
 		try {
 			int step = MMLTicks.getTick(mmlScore.getBaseOnly());
@@ -641,9 +761,8 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 				int tempo = mmlScore.getTempoOnTick(tick);
 				sequencer.setTickPosition(tick);
 				sequencer.setTempoInBPM(tempo);
+				seekPlayback(tick);
 			}
-
-			updatePianoRollView();
 		} catch (UndefinedTickException e) {}
 	}
 
@@ -665,25 +784,33 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		updateSelectedTrackAndMMLPart();
 	}
 
+	/**
+	 * 編集したパートを反映します.
+	 * @param generate trueの場合は, 変更のあったトラックをバックグラウンドで generate してから表示を更新します.
+	 */
 	@Override
 	public void updateActivePart(boolean generate) {
 		if (generate) {
-			try {
-				mmlScore.generateAll();
-			} catch (UndefinedTickException e) {
-				EventQueue.invokeLater(() -> {
-					String msg = AppResource.appText("fail.mml_modify") + "\n" + e.getMessage();
-					JOptionPane.showMessageDialog(parentFrame, msg, AppResource.getAppTitle(), JOptionPane.WARNING_MESSAGE);
-				});
-				System.err.println("REVERT: " + e.getMessage());
-				undoEdit.revertState();
-				editor.reset();
-			}
+			generateWorker.request();
+			panel.repaint();
+			updateTimeView();
+			return;
+		}
+		if (!flushGenerate()) {
+			return;
 		}
 
 		updateAllMMLPart();
 	}
 
+	/**
+	 * 反映していない編集があれば, generateします.
+	 * @return 失敗した場合は, 編集を元に戻して false を返します.
+	 */
+	public boolean flushGenerate() {
+		return generateWorker.flush();
+	}
+
 	private void updateAllMMLPart() {
 		if (tabbedPane.getTabCount() != mmlScore.getTrackCount()) {
 			resetTrackView();
@@ -699,10 +826,28 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		MabiDLS.getInstance().updatePanpot(mmlScore);
 		undoEdit.saveState();
 		panel.repaint();
+		updateTimeView();
+	}
+
+	/**
+	 * 指定したトラックのMMLテキストを更新します.
+	 * @param trackIndexes
+	 */
+	private void updateMMLPart(int trackIndexes[]) {
+		for (int trackIndex : trackIndexes) {
+			MMLTrackView view = (MMLTrackView) tabbedPane.getComponentAt(trackIndex);
+			view.updateTrack();
+			MabiDLS.getInstance().setChannelPanpot(trackIndex, mmlScore.getTrack(trackIndex).getPanpot());
+		}
+
+		undoEdit.saveState();
+		panel.repaint();
+		updateTimeView();
 	}
 
 	@Override
 	public void updateActiveTrackProgram(int trackIndex, int program, int songProgram) {
+		flushGenerate();
 		mmlScore.getTrack(trackIndex).setProgram(program);
 		mmlScore.getTrack(trackIndex).setSongProgram(songProgram);
 
@@ -723,7 +868,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 			if ( (mode == PaintMode.ALL_TRACK) || 
 					( (mode == PaintMode.ACTIVE_TRACK) && (track == getSelectedTrack()))) {
 				for (MMLEventList eventList : track.getMMLEventList()) {
-					MMLNoteEvent noteEvent = eventList.searchOnTickOffset(tickOffset);
+					MMLNoteEvent noteEvent = eventList.getNoteOnTickOffset(tickOffset);
 					if ( (noteEvent != null) && (note == noteEvent.getNote()) ) {
 						tabbedPane.setSelectedIndex(trackIndex);
 						MMLTrackView view = (MMLTrackView) tabbedPane.getSelectedComponent();
@@ -762,6 +907,7 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 
 	public void setTimeView(JLabel timeView) {
 		this.timeView = timeView;
+		updateTimeView();
 	}
 
 	public IFileState getFileState() {
@@ -788,67 +934,31 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 		updateActivePart(true);
 	}
 
-	// TimeViewを更新するためのスレッドを開始します.
-	private void startTimeViewUpdateThread() {
-		if (timeViewUpdateThread != null) {
-			return;
-		}
-		// TODO: びみょう・・・？
-		timeViewUpdateThread = new Thread(() -> {
-			while (true) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				updateTimeView();
-			}
-		});
-		timeViewUpdateThread.start();
-	}
-
 	private void updateTimeView() {
 		long position = pianoRollView.getSequencePlayPosition();
-		List<MMLTempoEvent> tempoList = mmlScore.getTempoEventList();
-		long time = MMLTempoEvent.getTimeOnTickOffset(tempoList, (int)position);
+		TempoMap tempoMap = mmlScore.getTempoMap();
+		long time = tempoMap.getTimeOnTickOffset(position);
 		int totalTick = mmlScore.getTotalTickLength();
-		long totalTime = MMLTempoEvent.getTimeOnTickOffset(tempoList, totalTick);
-		int tempo = MMLTempoEvent.searchOnTick(tempoList, (int)position);
+		long totalTime = tempoMap.getTimeOnTickOffset(totalTick);
+		int tempo = tempoMap.getTempoOnTick(position);
 
 		String str = String.format("time %d:%02d.%d/%d:%02d.%d (t%d)", 
 				(time/60/1000), (time/1000%60), (time/100%10),
 				(totalTime/60/1000), (totalTime/1000%60), (totalTime/100%10),
 				tempo);
+		if (generateWorker.isPending()) {
+			str += "  " + AppResource.appText("status.generating");
+		}
 		if (timeView != null) {
 			timeView.setText(str);
 		}
 	}
 
-	private Thread updateViewThread;
-	// PianoRoll, Sequence系の描画を行うスレッドを開始します.
-	private void startSequenceThread() {
-		if (updateViewThread != null) {
-			return;
-		}
-		updateViewThread = new Thread(() -> {
-			while (true) {
-				try {
-					Thread.sleep(25);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-				if (MabiDLS.getInstance().getSequencer().isRunning()) {
-					EventQueue.invokeLater(() -> {
-						updatePianoRollView();
-					});
-				}
-			}
-		});
-		updateViewThread.start();
-	}
-
-	private void updatePianoRollView() {
-		pianoRollView.updateRunningSequencePosition();
+	/**
+	 * 再生位置がビュー外にあればスクロールします. スクロールしないときは再生位置の線の部分だけを描画します.
+	 * @param prevX 前回描画した再生位置
+	 */
+	private void updatePianoRollView(int prevX) {
 		int measure = pianoRollView.getMeasureWidth();
 		long position = pianoRollView.getSequencePlayPosition();
 		position = pianoRollView.convertTicktoX(position);
@@ -866,8 +976,17 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 			}
 			point.setLocation(position, point.getY());
 			viewport.setViewPosition(point);
+			scrollPane.repaint();
+		} else {
+			// スクロールしないときは, 再生位置の線の部分だけを描画する.
+			int x = pianoRollView.convertTicktoX(pianoRollView.getSequencePlayPosition());
+			repaintSequenceLine(pianoRollView, prevX, x);
+			repaintSequenceLine(columnView, prevX, x);
 		}
-		scrollPane.repaint();
+	}
+
+	private void repaintSequenceLine(JComponent component, int x1, int x2) {
+		component.repaint(Math.min(x1, x2), 0, Math.abs(x2 - x1) + 1, component.getHeight());
 	}
 
 	@Override
@@ -887,8 +1006,6 @@ public final class MMLSeqView implements IMMLManager, ChangeListener, ActionList
 	}
 
 	private void updateProgramSelect() {
-		new Thread(() -> {
-			MabiDLS.getInstance().loadRequiredInstruments(mmlScore);
-		}).start();
+		MabiDLS.getInstance().preloadRequiredInstruments(mmlScore);
 	}
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ピアノロールの変化の少ないレイヤーを, タイル単位でオフスクリーンに保持します.
+ * <p>タイルは {@link VolatileImage} に描画します. GraphicsConfigurationがない場合は {@link BufferedImage} を使用します.
+ * 表示条件 (拡大率など) が変わったら全体を, 内容が変わったら変化したX範囲のタイルだけを捨てます.</p>
+ */
+final class PianoRollTileCache {
+
+	/**
+	 * タイルの内容を描画する.
+	 */
+	@FunctionalInterface
+	interface TilePainter {
+		/**
+		 * @param g 描画先. ピアノロールの座標系で, タイルの範囲にclipされています.
+		 * @param rect タイルの範囲
+		 */
+		void paintTile(Graphics2D g, Rectangle rect);
+	}
+
+	static final int TILE_SIZE = 256;
+
+	/** 保持するタイルの最小数 (256x256x4byte で 16MB). */
+	static final int MIN_TILES = 64;
+
+	/** 保持するタイルの最大数. 表示範囲の大きさから決めます. */
+	private int maxTiles = MIN_TILES;
+
+	private final Map<Long, Image> tileMap = new LinkedHashMap<Long, Image>(MIN_TILES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Image> eldest) {
+			if (size() > maxTiles) {
+				eldest.getValue().flush();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private Object layerKey = null;
+	private int renderCount = 0;
+
+	/**
+	 * 表示条件を設定します. 前回と異なる場合は, すべてのタイルを捨てます.
+	 * @param key 表示条件. equalsで比較します.
+	 */
+	void setLayerKey(Object key) {
+		if (!key.equals(layerKey)) {
+			layerKey = key;
+			invalidateAll();
+		}
+	}
+
+	/**
+	 * 表示範囲の大きさから, 保持するタイルの最大数を決めます.
+	 * <p>表示範囲の全体と, その上下左右1タイル分を保持できる数にします. 縮小した場合は, 古いものから捨てます.</p>
+	 * @param width 表示範囲の幅
+	 * @param height 表示範囲の高さ
+	 */
+	void setViewportSize(int width, int height) {
+		int cols = (Math.max(width, 0) + TILE_SIZE - 1) / TILE_SIZE + 2;
+		int rows = (Math.max(height, 0) + TILE_SIZE - 1) / TILE_SIZE + 2;
+		int tiles = Math.max(cols * rows, MIN_TILES);
+		if (tiles == maxTiles) {
+			return;
+		}
+		maxTiles = tiles;
+		Iterator<Image> it = tileMap.values().iterator();
+		while ( (tileMap.size() > maxTiles) && it.hasNext() ) {
+			it.next().flush();
+			it.remove();
+		}
+	}
+
+	int getMaxTiles() {
+		return maxTiles;
+	}
+
+	void invalidateAll() {
+		for (Image tile : tileMap.values()) {
+			tile.flush();
+		}
+		tileMap.clear();
+	}
+
+	/**
+	 * 指定したX範囲に重なるタイルを捨てます.
+	 * @param x1 開始位置
+	 * @param x2 終了位置 (含む)
+	 */
+	void invalidate(int x1, int x2) {
+		int col1 = Math.floorDiv(x1, TILE_SIZE);
+		int col2 = Math.floorDiv(x2, TILE_SIZE);
+		Iterator<Map.Entry<Long, Image>> it = tileMap.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Image> entry = it.next();
+			int col = (int)(entry.getKey() >> 32);
+			if ( (col >= col1) && (col <= col2) ) {
+				entry.getValue().flush();
+				it.remove();
+			}
+		}
+	}
+
+	int getTileCount() {
+		return tileMap.size();
+	}
+
+	/**
+	 * タイルを描画した回数 (テスト用).
+	 */
+	int getRenderCount() {
+		return renderCount;
+	}
+
+	/**
+	 * 指定範囲に重なるタイルを描画します. 保持していないタイルは作成します.
+	 * @param g
+	 * @param clip 描画範囲
+	 * @param gc nullの場合は {@link BufferedImage} を使用します.
+	 * @param painter
+	 */
+	void paint(Graphics2D g, Rectangle clip, GraphicsConfiguration gc, TilePainter painter) {
+		int col1 = Math.floorDiv(clip.x, TILE_SIZE);
+		int col2 = Math.floorDiv(clip.x + clip.width - 1, TILE_SIZE);
+		int row1 = Math.floorDiv(clip.y, TILE_SIZE);
+		int row2 = Math.floorDiv(clip.y + clip.height - 1, TILE_SIZE);
+		for (int col = col1; col <= col2; col++) {
+			for (int row = row1; row <= row2; row++) {
+				paintTile(g, col, row, gc, painter);
+			}
+		}
+	}
+
+	private void paintTile(Graphics2D g, int col, int row, GraphicsConfiguration gc, TilePainter painter) {
+		long key = ((long)col << 32) | (row & 0xffffffffL);
+		Rectangle rect = new Rectangle(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+		Image tile = tileMap.get(key);
+		if (tile instanceof VolatileImage) {
+			VolatileImage volatileTile = (VolatileImage) tile;
+			int status = volatileTile.validate(gc);
+			if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+				volatileTile.flush();
+				tile = null;
+			} else if (status == VolatileImage.IMAGE_RESTORED) {
+				renderTile(volatileTile, rect, painter);
+			}
+		}
+		if (tile == null) {
+			tile = createTile(gc);
+			renderTile(tile, rect, painter);
+			tileMap.put(key, tile);
+		}
+
+		g.drawImage(tile, rect.x, rect.y, null);
+		if ( (tile instanceof VolatileImage) && ((VolatileImage) tile).contentsLost() ) {
+			// 次回に作り直す.
+			tileMap.remove(key);
+			tile.flush();
+		}
+	}
+
+	private Image createTile(GraphicsConfiguration gc) {
+		if (gc != null) {
+			return gc.createCompatibleVolatileImage(TILE_SIZE, TILE_SIZE);
+		}
+		return new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+	}
+
+	private void renderTile(Image tile, Rectangle rect, TilePainter painter) {
+		renderCount++;
+		Graphics2D g = (Graphics2D) tile.getGraphics();
+		g.setColor(Color.WHITE);
+		g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+		g.translate(-rect.x, -rect.y);
+		g.clip(rect);
+		painter.paintTile(g, rect);
+		g.dispose();
+	}
+}
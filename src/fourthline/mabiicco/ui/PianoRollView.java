@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2015 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mabiicco.ui;
@@ -12,6 +12,8 @@ import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Stroke;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.swing.JPanel;
@@ -27,18 +29,24 @@ import fourthline.mmlTools.MMLEventList;
 import fourthline.mmlTools.MMLNoteEvent;
 import fourthline.mmlTools.MMLScore;
 import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.TrackSnapshot;
 import fourthline.mmlTools.core.MMLTicks;
 import fourthline.mmlTools.core.UndefinedTickException;
 
 
 /**
  * ピアノロール表示を行うためのビューです.
+ * <p>背景とアクティブパート以外のノートは {@link PianoRollTileCache} のタイルに描画しておき,
+ * 変化したtick範囲のタイルだけを描画し直します. アクティブパート, 選択, 再生位置は毎回描画します.</p>
  */
 public final class PianoRollView extends JPanel {
 	private static final long serialVersionUID = -7229093886476553295L;
 
 	public static final int OCTNUM = 9;
 
+	/** 再生開始位置のプロパティ名. 変更時にPropertyChangeEventを通知します. */
+	public static final String SEQUENCE_TICK_PROPERTY = "sequenceTick";
+
 	/**
 	 * ノートの表示高さ
 	 */
@@ -105,6 +113,31 @@ public final class PianoRollView extends JPanel {
 
 	private static final int DRAW_START_MARGIN = 192;
 
+	private final PianoRollTileCache tileCache = new PianoRollTileCache();
+	/**
+	 * タイルに描画したパート. 描画したときのバージョンとノート [offset, tick, note] を保持します.
+	 */
+	private static final class PaintedPart {
+		private final MMLEventList eventList;
+		private final long version;
+		private final int notes[];
+
+		private PaintedPart(MMLEventList eventList) {
+			this.eventList = eventList;
+			this.version = eventList.getVersion();
+			this.notes = toNoteArray(eventList);
+		}
+
+		private boolean isPainted(MMLEventList eventList) {
+			return (this.eventList == eventList) && (this.version == eventList.getVersion());
+		}
+	}
+	private final List<PaintedPart> paintedPartList = new ArrayList<>();
+	/** タイルの表示条件. 毎回作らないよう, 同じリストに詰め直して比較します. */
+	private final List<Object> layerKey = new ArrayList<>();
+	private List<Object> paintedLayerKey = null;
+	private int paintedWidth = 0;
+
 	public enum PaintMode {
 		ALL_TRACK("paintMode.all_track"), 
 		ACTIVE_TRACK("paintMode.active_track"),
@@ -188,7 +221,10 @@ public final class PianoRollView extends JPanel {
 		} catch (UndefinedTickException e) {
 			e.printStackTrace();
 		}
-		setWidth( convertTicktoX(tickLength) );
+		int width = convertTicktoX(tickLength);
+		if (width != getPreferredSize().width) {
+			setWidth(width);
+		}
 	}
 
 	/**
@@ -285,8 +321,12 @@ public final class PianoRollView extends JPanel {
 		return convertTicktoX( sequencePosition );
 	}
 
-	public void updateRunningSequencePosition() {
-		runningSequencePosition = MabiDLS.getInstance().getSequencer().getTickPosition();
+	/**
+	 * 再生中の表示位置を設定します.
+	 * @param tick
+	 */
+	public void setRunningSequencePosition(long tick) {
+		runningSequencePosition = tick;
 	}
 
 	public long getSequencePlayPosition() {
@@ -300,18 +340,19 @@ public final class PianoRollView extends JPanel {
 
 	public void setSequenceTick(long tick) {
 		if (!MabiDLS.getInstance().getSequencer().isRunning()) {
+			long prevPosition = sequencePosition;
 			sequencePosition = tick;
+			firePropertyChange(SEQUENCE_TICK_PROPERTY, prevPosition, tick);
 		}
 	}
 
 	/**
 	 * 現在の描画位置 tick値を更新します.
+	 * @param rect 描画範囲
 	 */
-	private void updateViewTick() {
-		double x = viewport.getViewPosition().getX();
-		double width = viewport.getExtentSize().getWidth();
-		startViewTick = convertXtoTick((int)x);
-		endViewTick = convertXtoTick((int)(x + width));
+	private void updateViewTick(Rectangle rect) {
+		startViewTick = convertXtoTick(rect.x);
+		endViewTick = convertXtoTick(rect.x + rect.width);
 	}
 
 	/**
@@ -321,21 +362,23 @@ public final class PianoRollView extends JPanel {
 	@Override
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
-		updateViewTick();
 
-		// FIXME: しぼったほうがいいかも？
+		// トラック長が変わったときだけ幅を変更する.
 		updateViewWidthTrackLength();
 
-		Graphics2D g2 = (Graphics2D)g.create();
-		for (int i = 0; i <= OCTNUM; i++) {
-			paintOctPianoLine(g2, i, (char)('0'+OCTNUM-i-1));
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
 		}
 
-		paintMeasure(g2);
-		paintPitchRangeBorder(g2);
+		Graphics2D g2 = (Graphics2D)g.create();
+		Rectangle visibleRect = getVisibleRect();
+		tileCache.setViewportSize(visibleRect.width, visibleRect.height);
+		updateTileCache();
+		tileCache.paint(g2, clip, getGraphicsConfiguration(), this::paintTileLayer);
 
-		paintOtherTrack(g2);
-		paintActiveTrack(g2);
+		updateViewTick(clip);
+		paintActivePart(g2);
 		paintSelectedNote(g2);
 		paintSelectingArea(g2);
 		paintSequenceLine(g2, getTotalHeight());
@@ -343,6 +386,132 @@ public final class PianoRollView extends JPanel {
 		g2.dispose();
 	}
 
+	/**
+	 * タイルに描画するレイヤー (背景, アクティブパート以外のノート).
+	 */
+	private void paintTileLayer(Graphics2D g, Rectangle rect) {
+		updateViewTick(rect);
+		for (int i = 0; i <= OCTNUM; i++) {
+			int y = 12 * noteHeight * i;
+			if ( (y <= rect.y + rect.height) && (y + 12 * noteHeight >= rect.y) ) {
+				paintOctPianoLine(g, i, (char)('0'+OCTNUM-i-1));
+			}
+		}
+
+		paintMeasure(g);
+		paintPitchRangeBorder(g);
+
+		paintOtherTrack(g);
+		if (paintMode != PaintMode.ACTIVE_PART) {
+			int trackIndex = mmlManager.getActiveTrackIndex();
+			paintMMLTrack(g, trackIndex, mmlManager.getMMLScore().getTrack(trackIndex));
+		}
+	}
+
+	/**
+	 * タイルの表示条件を確認し, 内容が変わったパートのtick範囲のタイルを捨てます.
+	 * <p>パートのバージョンが前回描画したときと同じであれば, ノートは参照しません.
+	 * バージョンが変わったパートだけ, 前回描画したときの内容と比較します.
+	 * ノートを直接変更した場合は, 編集側で {@link MMLEventList#markDirty()} を呼び出しています.</p>
+	 */
+	private void updateTileCache() {
+		MMLScore score = mmlManager.getMMLScore();
+		TrackSnapshot trackSnapshot = score.getTrackSnapshot();
+		layerKey.clear();
+		Collections.addAll(layerKey, wideScale, noteHeight, paintMode,
+				mmlManager.getActiveTrackIndex(), System.identityHashCode(mmlManager.getActiveMMLPart()),
+				lowerNote, upperNote, MabiIccoProperties.getInstance().getViewRage(),
+				score.getBaseOnly(), score.getTimeCountOnly(), trackSnapshot.getVersion());
+		for (MMLTrack track : trackSnapshot) {
+			layerKey.add(track.getProgram());
+			layerKey.add(track.getSongProgram());
+			layerKey.add(track.getMMLEventList().size());
+		}
+		if (!layerKey.equals(paintedLayerKey)) {
+			paintedLayerKey = new ArrayList<>(layerKey);
+			tileCache.setLayerKey(paintedLayerKey);
+		}
+
+		int width = getWidth();
+		if (width != paintedWidth) {
+			tileCache.invalidate(Math.min(width, paintedWidth), Math.max(width, paintedWidth));
+			paintedWidth = width;
+		}
+
+		int partIndex = 0;
+		for (MMLTrack track : trackSnapshot) {
+			for (MMLEventList eventList : track.getMMLEventList()) {
+				if (partIndex == paintedPartList.size()) {
+					paintedPartList.add(null);
+				}
+				PaintedPart painted = paintedPartList.get(partIndex);
+				if ( (painted == null) || !painted.isPainted(eventList) ) {
+					PaintedPart newPainted = new PaintedPart(eventList);
+					if (painted != null) {
+						invalidateNoteRange(painted.notes, newPainted.notes);
+					}
+					paintedPartList.set(partIndex, newPainted);
+				}
+				partIndex++;
+			}
+		}
+		while (paintedPartList.size() > partIndex) {
+			paintedPartList.remove(paintedPartList.size()-1);
+		}
+	}
+
+	private static int[] toNoteArray(MMLEventList eventList) {
+		int count[] = { 0 };
+		eventList.forEachNote(t -> count[0]++);
+		int array[] = new int[count[0] * 3];
+		int index[] = { 0 };
+		eventList.forEachNote(noteEvent -> {
+			int i = index[0];
+			array[i] = noteEvent.getTickOffset();
+			array[i+1] = noteEvent.getTick();
+			array[i+2] = noteEvent.getNote();
+			index[0] = i + 3;
+		});
+		return array;
+	}
+
+	private static boolean equalsNote(int array1[], int index1, int array2[], int index2) {
+		return (array1[index1*3] == array2[index2*3])
+				&& (array1[index1*3+1] == array2[index2*3+1])
+				&& (array1[index1*3+2] == array2[index2*3+2]);
+	}
+
+	/**
+	 * 先頭と末尾の一致する部分を除いた範囲のタイルを捨てます.
+	 */
+	private void invalidateNoteRange(int painted[], int notes[]) {
+		int oldSize = painted.length / 3;
+		int newSize = notes.length / 3;
+		int head = 0;
+		while ( (head < oldSize) && (head < newSize) && equalsNote(painted, head, notes, head) ) {
+			head++;
+		}
+		int tail = 0;
+		while ( (tail < oldSize - head) && (tail < newSize - head)
+				&& equalsNote(painted, oldSize-1-tail, notes, newSize-1-tail) ) {
+			tail++;
+		}
+
+		long startTick = Long.MAX_VALUE;
+		long endTick = Long.MIN_VALUE;
+		for (int i = head; i < oldSize - tail; i++) {
+			startTick = Math.min(startTick, painted[i*3]);
+			endTick = Math.max(endTick, painted[i*3] + painted[i*3+1]);
+		}
+		for (int i = head; i < newSize - tail; i++) {
+			startTick = Math.min(startTick, notes[i*3]);
+			endTick = Math.max(endTick, notes[i*3] + notes[i*3+1]);
+		}
+		if (startTick <= endTick) {
+			tileCache.invalidate(convertTicktoX(startTick) - 2, convertTicktoX(endTick) + 2);
+		}
+	}
+
 	private void paintOctPianoLine(Graphics2D g, int pos, char posText) {
 		int startY = 12 * noteHeight * pos;
 		int octave = OCTNUM - pos - 1;
@@ -478,7 +647,7 @@ public final class PianoRollView extends JPanel {
 		g.drawLine(x+width, y+height, x+2, y+height);
 	}
 
-	private void drawNote(Graphics2D g, MMLNoteEvent noteEvent, Color rectColor, Color fillColor, boolean drawOption, MMLNoteEvent prevNote) {
+	private void drawNote(Graphics2D g, MMLNoteEvent noteEvent, Color rectColor, Color fillColor, boolean drawOption, int prevVelocity) {
 		int note = noteEvent.getNote();
 		int tick = noteEvent.getTick();
 		int offset = noteEvent.getTickOffset();
@@ -497,7 +666,7 @@ public final class PianoRollView extends JPanel {
 		if (drawOption) {
 			// velocityの描画.
 			int velocity = noteEvent.getVelocity();
-			if ( (prevNote == null) || (prevNote.getVelocity() != velocity) ) {
+			if (prevVelocity != velocity) {
 				String s = "V" + velocity;
 				g.setColor(Color.DARK_GRAY);
 				g.drawString(s, x, y);
@@ -511,22 +680,43 @@ public final class PianoRollView extends JPanel {
 	 * @param mmlPart
 	 */
 	private void paintMMLPart(Graphics2D g, List<MMLNoteEvent> mmlPart, Color rectColor, Color fillColor, boolean drawOption) {
-		MMLNoteEvent prevNote = new MMLNoteEvent(0, 0, 0, MMLNoteEvent.INIT_VOL);
+		int prevVelocity = MMLNoteEvent.INIT_VOL;
 		// 現在のView範囲のみを描画する.
 		for (MMLNoteEvent noteEvent : mmlPart) {
-			if ( (noteEvent.getEndTick() < startViewTick) && (noteEvent.getTickOffset() < startViewTick - DRAW_START_MARGIN) ) {
-				prevNote = noteEvent;
+			if (isOutOfView(noteEvent)) {
+				prevVelocity = noteEvent.getVelocity();
 				continue;
 			}
 			if (noteEvent.getTickOffset() > endViewTick) {
 				break;
 			}
 
-			drawNote(g, noteEvent, rectColor, fillColor, drawOption, prevNote);
-			prevNote = noteEvent;
+			drawNote(g, noteEvent, rectColor, fillColor, drawOption, prevVelocity);
+			prevVelocity = noteEvent.getVelocity();
 		}
 	}
 
+	/**
+	 * MMLEventリストのロールを表示します. View範囲のノートだけをインデックスで参照し, 配列にまとめたパートも展開しません.
+	 */
+	private void paintMMLPart(Graphics2D g, MMLEventList eventList, Color rectColor, Color fillColor, boolean drawOption) {
+		// 範囲の先頭のノートで, 手前のノートの音量を取得する.
+		int prevVelocity[] = { Integer.MIN_VALUE };
+		eventList.forEachNote(startViewTick - DRAW_START_MARGIN - 1, endViewTick, noteEvent -> {
+			if (prevVelocity[0] == Integer.MIN_VALUE) {
+				prevVelocity[0] = eventList.searchPrevNoteOnTickOffset(noteEvent.getTickOffset()).getVelocity();
+			}
+			if ( !isOutOfView(noteEvent) && (noteEvent.getTickOffset() <= endViewTick) ) {
+				drawNote(g, noteEvent, rectColor, fillColor, drawOption, prevVelocity[0]);
+			}
+			prevVelocity[0] = noteEvent.getVelocity();
+		});
+	}
+
+	private boolean isOutOfView(MMLNoteEvent noteEvent) {
+		return (noteEvent.getEndTick() < startViewTick) && (noteEvent.getTickOffset() < startViewTick - DRAW_START_MARGIN);
+	}
+
 	/**
 	 * 1トラック分のロールを表示します。（アクティブトラックは表示しない）
 	 * @param g
@@ -551,20 +741,17 @@ public final class PianoRollView extends JPanel {
 			} else {
 				colorIndex++;
 			}
-			paintMMLPart(g, track.getMMLEventList().get(i).getMMLNoteEventList(), rectColor, fillColor, false);
+			paintMMLPart(g, track.getMMLEventList().get(i), rectColor, fillColor, false);
 		}
 	}
 
-	private void paintActiveTrack(Graphics2D g) {
+	private void paintActivePart(Graphics2D g) {
 		int trackIndex = mmlManager.getActiveTrackIndex();
-		if (paintMode != PaintMode.ACTIVE_PART) {
-			paintMMLTrack(g, trackIndex, mmlManager.getMMLScore().getTrack(trackIndex));
-		}
 		MMLEventList activePart = mmlManager.getActiveMMLPart();
 		if (activePart != null) {
 			Color rectColor = ColorManager.defaultColor().getActiveRectColor(trackIndex);
 			Color fillColor = ColorManager.defaultColor().getActiveFillColor(trackIndex);
-			paintMMLPart(g, activePart.getMMLNoteEventList(), rectColor, fillColor, true);
+			paintMMLPart(g, activePart, rectColor, fillColor, true);
 		}
 	}
 
@@ -574,10 +761,11 @@ public final class PianoRollView extends JPanel {
 			return;
 		}
 		if (mmlScore != null) {
-			for (int i = 0; i < mmlScore.getTrackCount(); i++) {
-				MMLTrack track = mmlScore.getTrack(i);
-				if (track != mmlScore.getTrack(mmlManager.getActiveTrackIndex())) {
-					paintMMLTrack(g, i, track);
+			TrackSnapshot trackSnapshot = mmlScore.getTrackSnapshot();
+			int activeTrackIndex = mmlManager.getActiveTrackIndex();
+			for (int i = 0; i < trackSnapshot.size(); i++) {
+				if (i != activeTrackIndex) {
+					paintMMLTrack(g, i, trackSnapshot.get(i));
 				}
 			}
 		}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import fourthline.mmlTools.TempoMap;
+
+/**
+ * 再生位置の補間.
+ * <p>再生開始時の位置と時刻を基準にして, 経過時間からTempoMapで再生位置を求めます.
+ * シーケンサの位置と大きくずれた場合 (シーク, ループなど) は, シーケンサの位置を基準に取り直します.</p>
+ */
+final class PlaybackClock {
+
+	/** 基準を取り直すずれの大きさ (tick). */
+	static final long MAX_DRIFT_TICK = 12;
+
+	private TempoMap tempoMap;
+	private long baseMicrosec;
+	private long baseNanoTime;
+
+	/**
+	 * 基準の位置と時刻を設定します.
+	 * @param tempoMap 再生中のスコアのTempoMap
+	 * @param tick 基準の位置
+	 * @param nanoTime 基準の時刻 ({@link System#nanoTime()})
+	 */
+	void start(TempoMap tempoMap, long tick, long nanoTime) {
+		this.tempoMap = tempoMap;
+		this.baseMicrosec = tempoMap.getMicrosecOnTickOffset(tick);
+		this.baseNanoTime = nanoTime;
+	}
+
+	/**
+	 * 指定時刻の再生位置を取得します.
+	 * @param sequencerTick シーケンサが示している位置
+	 * @param nanoTime 時刻 ({@link System#nanoTime()})
+	 * @return 再生位置 (tick)
+	 */
+	long getTick(long sequencerTick, long nanoTime) {
+		long tick = tempoMap.getTickOffsetOnMicrosec(baseMicrosec + (nanoTime - baseNanoTime) / 1000L);
+		if (Math.abs(tick - sequencerTick) > MAX_DRIFT_TICK) {
+			start(tempoMap, sequencerTick, nanoTime);
+			return sequencerTick;
+		}
+		return tick;
+	}
+}
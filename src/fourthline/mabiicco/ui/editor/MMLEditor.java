@@ -136,7 +136,7 @@ public final class MMLEditor implements MouseInputListener, IEditState, IEditCon
 		if (editEventList == null) {
 			return;
 		}
-		for (MMLNoteEvent noteEvent : editEventList.getMMLNoteEventList()) {
+		for (MMLNoteEvent noteEvent : editEventList.getMMLNoteEventList(tickOffset[0], tickOffset[1])) {
 			if ( (noteEvent.getNote() >= note[0]) && (noteEvent.getNote() <= note[1]) 
 					&& (noteEvent.getEndTick() > tickOffset[0])
 					&& (noteEvent.getTickOffset() <= tickOffset[1]) ) {
@@ -213,6 +213,7 @@ public final class MMLEditor implements MouseInputListener, IEditState, IEditCon
 			noteEvent.setNote(note);
 		}
 		noteEvent.setTick((int)newTick);
+		markDirtyActivePart();
 		notePlayer.playNote(noteEvent.getNote(), noteEvent.getVelocity());
 	}
 
@@ -247,6 +248,7 @@ public final class MMLEditor implements MouseInputListener, IEditState, IEditCon
 				velocity = note2.getVelocity();
 			}
 		}
+		markDirtyActivePart();
 
 		notePlayer.playNote( pianoRollView.convertY2Note(p.y), velocity );
 	}
@@ -259,6 +261,17 @@ public final class MMLEditor implements MouseInputListener, IEditState, IEditCon
 			noteEvent.setNote(revertNote.getNote());
 			noteEvent.setTickOffset(revertNote.getTickOffset());
 		}
+		markDirtyActivePart();
+	}
+
+	/**
+	 * 選択中のノートを直接変更したことを, アクティブパートに通知する.
+	 */
+	private void markDirtyActivePart() {
+		MMLEventList editEventList = mmlManager.getActiveMMLPart();
+		if (editEventList != null) {
+			editEventList.markDirty();
+		}
 	}
 
 	/**
@@ -271,8 +284,11 @@ public final class MMLEditor implements MouseInputListener, IEditState, IEditCon
 		if (editEventList == null) {
 			return;
 		}
+		// 移動中のノートはリストの並び順を崩しているので, すべて外してから追加する.
 		for (MMLNoteEvent noteEvent : selectedNote) {
 			editEventList.deleteMMLEvent(noteEvent);
+		}
+		for (MMLNoteEvent noteEvent : selectedNote) {
 			editEventList.addMMLNoteEvent(noteEvent);
 		}
 		if (!select) {
@@ -228,6 +228,7 @@ public final class MMLNotePropertyPanel extends JPanel implements ActionListener
 				targetNote.setTuningNote( tuningNoteCheckBox.isSelected() ? base : null );
 			}
 		}
+		eventList.markDirty();
 	}
 
 	private void updateView() {
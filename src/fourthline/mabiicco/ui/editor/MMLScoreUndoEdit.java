@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2014 たんらる
+ * Copyright (C) 2014-2016 たんらる
  */
 
 package fourthline.mabiicco.ui.editor;
@@ -7,11 +7,14 @@ package fourthline.mabiicco.ui.editor;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Stack;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -25,19 +28,29 @@ import fourthline.mabiicco.IFileStateObserver;
 import fourthline.mabiicco.ui.IMMLManager;
 import fourthline.mmlTools.MMLScore;
 
+/**
+ * MMLScoreのUndo/Redo.
+ * <p>編集ごとの状態は, 直前の状態と内容が同じ部分を共有して保持します ({@link ScoreSnapshot}).
+ * 履歴の件数には上限を設けず, 見積りメモリ量が上限を超えたら古いものから捨てます.</p>
+ * <p>{@link RecoveryJournal} を設定すると, 履歴の変更を差分としてジャーナルに追記します.</p>
+ */
 public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFileState {
 	private static final long serialVersionUID = 4093930608712571204L;
 
 	private IFileStateObserver fileStateObserver = null;
 
-	private static final int MAX_UNDO = 20;
-	private final Stack<byte[]> undoState = new Stack<>();
-	private final Stack<byte[]> redoState = new Stack<>();
+	/** 履歴の見積りメモリ量の上限 (byte). */
+	private static final long DEFAULT_MEMORY_LIMIT = 32L * 1024 * 1024;
+	private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+	private long memoryUsage = 0;
+
+	private final Stack<ScoreSnapshot> undoState = new Stack<>();
+	private final Stack<ScoreSnapshot> redoState = new Stack<>();
 
 	private final IMMLManager mmlManager;
 	private int originalIndex = 0; /** オリジナル位置. undo/redo範囲外になった場合は 負値. 0~size-1 */
 
-	private String backupString = null;
+	private RecoveryJournal journal = null;
 
 	public MMLScoreUndoEdit(IMMLManager mmlManager) {
 		this.mmlManager = mmlManager;
@@ -46,38 +59,97 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 	public void initState() {
 		undoState.clear();
 		redoState.clear();
+		memoryUsage = 0;
 		originalIndex = 0;
 
 		saveState();
+		compactJournal();
+	}
+
+	/**
+	 * 復旧用のジャーナルを設定します. 現在の履歴を書き出してから, 以降の変更を追記します.
+	 * @param journal nullの場合は記録しません.
+	 */
+	public void setRecoveryJournal(RecoveryJournal journal) {
+		this.journal = journal;
+		compactJournal();
+	}
+
+	/**
+	 * 履歴の見積りメモリ量の上限を設定します. 直前の状態は上限を超えても残します.
+	 * @param limit 上限 (byte)
+	 */
+	public void setMemoryLimit(long limit) {
+		memoryLimit = limit;
+		trimState();
+	}
+
+	/**
+	 * 保持している履歴の見積りメモリ量を取得します.
+	 * @return byte
+	 */
+	public long getMemoryUsage() {
+		return memoryUsage;
+	}
+
+	public int getUndoCount() {
+		return undoState.size() - 1;
 	}
 
 	@Override
 	public void saveState() {
 		MMLScore score = mmlManager.getMMLScore();
-		byte state[] = score.getObjectState();
-		if ( !undoState.empty() && Arrays.equals(state, undoState.lastElement()) ) {
+		ScoreSnapshot prev = undoState.empty() ? null : undoState.lastElement();
+		ScoreSnapshot state = new ScoreSnapshot(score, prev);
+		if (state.sameAs(prev)) {
 			return;
 		}
 
-		undoState.push(state);
+		pushUndoState(state);
 		redoState.clear();
-
-		if (undoState.size() > MAX_UNDO) {
-			undoState.remove(0);
-			originalIndex = -1;
+		trimState();
+		if (journal != null) {
+			journal.append(() -> deltaRecord(RecoveryJournal.SAVE, state, prev));
+			if (journal.needsCompaction()) {
+				compactJournal();
+			}
 		}
 
 		if (fileStateObserver != null)
 			fileStateObserver.notifyUpdateFileState();
 
-		System.out.println("saveState() "+undoState.size());
-		makeBackup();
+		System.out.println("saveState() "+undoState.size()+" "+(memoryUsage/1024)+"KB");
+	}
+
+	private void pushUndoState(ScoreSnapshot state) {
+		memoryUsage += undoState.empty() ? state.getMemorySize() : state.getDeltaSize();
+		undoState.push(state);
+	}
+
+	private ScoreSnapshot popUndoState() {
+		ScoreSnapshot state = undoState.pop();
+		memoryUsage -= undoState.empty() ? state.getMemorySize() : state.getDeltaSize();
+		return state;
+	}
+
+	/**
+	 * 見積りメモリ量が上限を超えていれば, 古い履歴から捨てます.
+	 */
+	private void trimState() {
+		while ( (memoryUsage > memoryLimit) && (undoState.size() > 2) ) {
+			ScoreSnapshot first = undoState.remove(0);
+			ScoreSnapshot second = undoState.firstElement();
+			memoryUsage += second.getMemorySize() - second.getDeltaSize() - first.getMemorySize();
+			if (originalIndex >= 0) {
+				originalIndex--;
+			}
+		}
 	}
 
 	@Override
 	public void revertState() {
 		MMLScore score = mmlManager.getMMLScore();
-		score.putObjectState(undoState.lastElement());
+		undoState.lastElement().restoreTo(score);
 	}
 
 	@Override
@@ -86,10 +158,10 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 
 		MMLScore score = mmlManager.getMMLScore();
 		if (canUndo()) {
-			byte nextState[] = undoState.pop();
-			score.putObjectState(undoState.lastElement());
+			ScoreSnapshot nextState = popUndoState();
+			undoState.lastElement().restoreTo(score);
 			redoState.push(nextState);
-			makeBackup();
+			appendJournal(RecoveryJournal.UNDO);
 			if (fileStateObserver != null)
 				fileStateObserver.notifyUpdateFileState();
 		}
@@ -101,10 +173,10 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 
 		MMLScore score = mmlManager.getMMLScore();
 		if (canRedo()) {
-			byte state[] = redoState.pop();
-			score.putObjectState(state);
-			undoState.push(state);
-			makeBackup();
+			ScoreSnapshot state = redoState.pop();
+			state.restoreTo(score);
+			pushUndoState(state);
+			appendJournal(RecoveryJournal.REDO);
 			if (fileStateObserver != null)
 				fileStateObserver.notifyUpdateFileState();
 		}
@@ -136,6 +208,7 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 	@Override
 	public void setOriginalBase() {
 		originalIndex = undoState.size() - 1;
+		appendJournal(RecoveryJournal.ORIGINAL);
 	}
 
 	@Override
@@ -143,26 +216,20 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 		this.fileStateObserver = observer;
 	}
 
-	private void makeBackup() {
-		try {
-			backupString = compress(makeBackupString());
-		} catch (IOException e) {
-			backupString = null;
-		}
-	}
-
-	private void writeStack(PrintStream out, Stack<byte[]> data) throws IOException {
+	private void writeStack(PrintStream out, Stack<ScoreSnapshot> data) throws IOException {
 		out.println(data.size());
 		for (int i = 0; i < data.size(); i++) {
-			out.println( Base64.getEncoder().encodeToString( data.get(i) ));
+			out.println( Base64.getEncoder().encodeToString( data.get(i).toObjectState() ));
 		}
 	}
 
-	private void readStack(BufferedReader in, Stack<byte[]> data) throws IOException {
+	private void readStack(BufferedReader in, Stack<ScoreSnapshot> data) throws IOException {
 		data.clear();
 		int count = Integer.parseInt(in.readLine());
+		ScoreSnapshot prev = null;
 		for (int i = 0; i < count; i++) {
-			data.add( Base64.getDecoder().decode( in.readLine() ));
+			prev = ScoreSnapshot.fromObjectState(Base64.getDecoder().decode( in.readLine() ), prev);
+			data.add(prev);
 		}
 	}
 
@@ -200,9 +267,126 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 		// originalIndex@int
 		originalIndex = Integer.parseInt( breader.readLine() );
 
+		memoryUsage = 0;
+		for (int i = 0; i < undoState.size(); i++) {
+			memoryUsage += (i == 0) ? undoState.get(i).getMemorySize() : undoState.get(i).getDeltaSize();
+		}
+		compactJournal();
 		return true;
 	}
 
+	private static byte[] deltaRecord(byte type, ScoreSnapshot state, ScoreSnapshot prev) throws IOException {
+		ByteArrayOutputStream bstream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bstream);
+		out.writeByte(type);
+		state.writeDelta(out, prev);
+		out.close();
+		return bstream.toByteArray();
+	}
+
+	private void appendJournal(byte type) {
+		if (journal != null) {
+			journal.append(() -> new byte[] { type });
+		}
+	}
+
+	/**
+	 * ジャーナルを現在の履歴だけのものに置き換えます.
+	 * 各状態は変更されないため, レコードの作成はジャーナルのスレッドで行います.
+	 */
+	private void compactJournal() {
+		if ( (journal == null) || undoState.empty() ) {
+			return;
+		}
+		List<ScoreSnapshot> undoList = new ArrayList<>(undoState);
+		List<ScoreSnapshot> redoList = new ArrayList<>(redoState);
+		int original = originalIndex;
+		journal.compact(() -> {
+			List<byte[]> records = new ArrayList<>();
+			ScoreSnapshot prev = null;
+			int index = 0;
+			for (ScoreSnapshot state : undoList) {
+				records.add(deltaRecord((prev == null) ? RecoveryJournal.RESET : RecoveryJournal.SAVE, state, prev));
+				if (index++ == original) {
+					records.add(new byte[] { RecoveryJournal.ORIGINAL });
+				}
+				prev = state;
+			}
+			// redoの状態を追加してから, undoで戻す.
+			for (int i = redoList.size()-1; i >= 0; i--) {
+				ScoreSnapshot state = redoList.get(i);
+				records.add(deltaRecord(RecoveryJournal.SAVE, state, prev));
+				if (index++ == original) {
+					records.add(new byte[] { RecoveryJournal.ORIGINAL });
+				}
+				prev = state;
+			}
+			for (int i = 0; i < redoList.size(); i++) {
+				records.add(new byte[] { RecoveryJournal.UNDO });
+			}
+			return records;
+		});
+	}
+
+	/**
+	 * ジャーナルのレコードを再生して, 履歴とMMLScoreを復旧します.
+	 * MMLScoreは最後の状態になりますが, MMLは生成されていません.
+	 * @param records {@link RecoveryJournal#read(java.nio.file.Path)} で読み込んだレコード.
+	 * @return 復旧できた場合は true.
+	 */
+	public boolean replay(List<RecoveryJournal.Record> records) {
+		RecoveryJournal currentJournal = journal;
+		journal = null;
+		boolean result = false;
+		try {
+			MMLScore score = mmlManager.getMMLScore();
+			for (RecoveryJournal.Record record : records) {
+				DataInputStream in = record.getDataInputStream();
+				switch (record.getType()) {
+				case RecoveryJournal.RESET:
+					ScoreSnapshot.applyDelta(in, score);
+					undoState.clear();
+					redoState.clear();
+					memoryUsage = 0;
+					originalIndex = -1;
+					pushUndoState(new ScoreSnapshot(score, null));
+					result = true;
+					break;
+				case RecoveryJournal.SAVE:
+					if (result) {
+						ScoreSnapshot.applyDelta(in, score);
+						saveState();
+					}
+					break;
+				case RecoveryJournal.UNDO:
+					if (canUndo()) {
+						undo();
+					}
+					break;
+				case RecoveryJournal.REDO:
+					if (canRedo()) {
+						redo();
+					}
+					break;
+				case RecoveryJournal.ORIGINAL:
+					if (result) {
+						setOriginalBase();
+					}
+					break;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			result = false;
+		} finally {
+			journal = currentJournal;
+		}
+		if (result) {
+			compactJournal();
+		}
+		return result;
+	}
+
 	private String compress(String s) {
 		try {
 			ByteArrayOutputStream bstream = new ByteArrayOutputStream();
@@ -239,16 +423,22 @@ public final class MMLScoreUndoEdit extends AbstractUndoableEdit implements IFil
 
 	public boolean recover(String s) {
 		try {
-			boolean result = parseBackupString(decompress(s));
-			makeBackup();
-			return result;
+			return parseBackupString(decompress(s));
 		} catch (NumberFormatException | IOException e) {
 			System.out.println(e.getMessage());
 		}
 		return false;
 	}
 
+	/**
+	 * 復旧用データを作成します. 履歴を全て書き出すため, 必要なときだけ呼び出してください.
+	 * @return 作成できなかった場合はnull.
+	 */
 	public String getBackupString() {
-		return backupString;
+		try {
+			return compress(makeBackupString());
+		} catch (IOException e) {
+			return null;
+		}
 	}
 }
@@ -79,6 +79,7 @@ public final class MMLTempoEditor extends AbstractMarkerEditor<MMLTempoEvent> {
 			return;
 		}
 		targetEvent.setTempo(tempo);
+		mmlManager.getMMLScore().getTempoEventList().markDirty();
 	}
 
 	@Override
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui.editor;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 復旧用の追記型ジャーナル.
+ * <p>レコードは [長さ(int)][CRC32(int)][種別(byte) + データ] の形式で, バックグラウンドのスレッドから追記します.
+ * 読み込み時は, 長さやCRCが合わないレコード以降を捨てます.
+ * ファイルが大きくなったら, 現在の状態だけを書いたファイルに置き換えます (compaction).</p>
+ * <p>既存のジャーナルは, 最初のレコードを書き込むまで変更しません.
+ * 書き込むときに, 空でなければ {@link #getPreviousPath()} に移してから新しく作成します.</p>
+ */
+public final class RecoveryJournal {
+
+	/** 新しい状態から始める. データは {@link ScoreSnapshot} の差分 (前の状態なし). */
+	public static final byte RESET = 1;
+	/** 状態の追加. データは直前の状態からの差分. */
+	public static final byte SAVE = 2;
+	public static final byte UNDO = 3;
+	public static final byte REDO = 4;
+	/** 現在の状態を保存済みとする. */
+	public static final byte ORIGINAL = 5;
+	/** 編集中のファイル名. データはUTF-8文字列. */
+	public static final byte FILE_NAME = 6;
+
+	private static final int HEADER_SIZE = 8;
+
+	/** compactionを行う最小のファイルサイズ. */
+	private static final long COMPACT_MIN_SIZE = 1024 * 1024;
+
+	/**
+	 * 読み込んだレコード.
+	 */
+	public static final class Record {
+		private final byte type;
+		private final byte data[];
+
+		private Record(byte type, byte data[]) {
+			this.type = type;
+			this.data = data;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public DataInputStream getDataInputStream() {
+			return new DataInputStream(new ByteArrayInputStream(data));
+		}
+	}
+
+	private final Path path;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "RecoveryJournal");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private FileChannel channel = null;
+	private volatile long size = 0;
+	private volatile long compactedSize = 0;
+	private String fileName = null;
+
+	/**
+	 * ジャーナルを作成します. ファイルは最初のレコードを書き込むときに作成します.
+	 * @param path
+	 * @throws IOException
+	 */
+	public RecoveryJournal(Path path) throws IOException {
+		this.path = path;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * 新しいジャーナルを書き始めたときに, 既存のジャーナルを移す先.
+	 * @return
+	 */
+	public Path getPreviousPath() {
+		return path.resolveSibling(path.getFileName() + ".prev");
+	}
+
+	/**
+	 * 書き込み用にファイルを開きます. 既存のジャーナルは {@link #getPreviousPath()} に移します.
+	 * バックグラウンドのスレッドから呼び出します.
+	 */
+	private FileChannel channel() throws IOException {
+		if (channel == null) {
+			if (Files.exists(path) && (Files.size(path) > 0)) {
+				Files.move(path, getPreviousPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+		return channel;
+	}
+
+	/**
+	 * 書き込み済みのファイルサイズを取得します.
+	 * @return byte
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * compactionが必要かどうかを判定します.
+	 * @return 前回のcompactionから十分に大きくなっていればtrue.
+	 */
+	public boolean needsCompaction() {
+		return size > Math.max(COMPACT_MIN_SIZE, compactedSize * 4);
+	}
+
+	/**
+	 * レコードを追記します. レコードの作成と書き込みはバックグラウンドで行います.
+	 * @param record [種別 + データ] を作成する. 作成に使うオブジェクトは変更されないものにしてください.
+	 */
+	void append(Callable<byte[]> record) {
+		executor.execute(() -> {
+			try {
+				writeRecord(channel(), record.call());
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * ファイルを指定したレコードだけのものに置き換えます. 作成と書き込みはバックグラウンドで行います.
+	 * @param records 現在の状態を表すレコードのリストを作成する.
+	 */
+	void compact(Callable<List<byte[]>> records) {
+		executor.execute(() -> {
+			try {
+				Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+				long newSize = 0;
+				try (FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					if (fileName != null) {
+						newSize += writeRecord(tempChannel, fileNameRecord(fileName));
+					}
+					for (byte record[] : records.call()) {
+						newSize += writeRecord(tempChannel, record);
+					}
+				}
+				channel().close();
+				try {
+					Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+				channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+				size = newSize;
+				compactedSize = newSize;
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * 編集中のファイル名を記録します.
+	 * @param name ファイル名. ファイルがない場合は空文字列.
+	 */
+	public void setFileName(String name) {
+		executor.execute(() -> {
+			if (name.equals(fileName)) {
+				return;
+			}
+			fileName = name;
+			try {
+				writeRecord(channel(), fileNameRecord(name));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	private static byte[] fileNameRecord(String name) {
+		byte s[] = name.getBytes(StandardCharsets.UTF_8);
+		byte record[] = new byte[s.length+1];
+		record[0] = FILE_NAME;
+		System.arraycopy(s, 0, record, 1, s.length);
+		return record;
+	}
+
+	private int writeRecord(FileChannel targetChannel, byte record[]) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+		buffer.putInt(record.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(record);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			targetChannel.write(buffer);
+		}
+		if (targetChannel == channel) {
+			size += buffer.limit();
+		}
+		return buffer.limit();
+	}
+
+	/**
+	 * 書き込み待ちのレコードをすべて書き込み, ディスクに反映します.
+	 */
+	public void flush() {
+		try {
+			executor.submit(() -> {
+				if (channel != null) {
+					channel.force(false);
+				}
+				return null;
+			}).get();
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * ジャーナルを閉じます.
+	 * @param delete trueの場合はファイルを削除します (正常終了). 書き込みをしていない場合は, 既存のジャーナルを残します.
+	 */
+	public void close(boolean delete) {
+		executor.execute(() -> {
+			try {
+				if (channel == null) {
+					return;
+				}
+				channel.close();
+				if (delete) {
+					Files.deleteIfExists(path);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {}
+	}
+
+	/**
+	 * ジャーナルファイルを読み込みます. 壊れたレコード以降は読みません.
+	 * @param path
+	 * @return レコードのリスト
+	 * @throws IOException
+	 */
+	public static List<Record> read(Path path) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		List<Record> list = new ArrayList<>();
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if ( (length <= 0) || (length > buffer.remaining()) ) {
+				break;
+			}
+			byte record[] = new byte[length];
+			buffer.get(record);
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			byte data[] = new byte[length-1];
+			System.arraycopy(record, 1, data, 0, data.length);
+			list.add(new Record(record[0], data));
+		}
+		return Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * 最後に記録されたファイル名を取得します.
+	 * @param records
+	 * @return 記録がなければ空文字列.
+	 */
+	public static String getFileName(List<Record> records) {
+		String name = "";
+		for (Record record : records) {
+			if (record.type == FILE_NAME) {
+				name = new String(record.data, StandardCharsets.UTF_8);
+			}
+		}
+		return name;
+	}
+}
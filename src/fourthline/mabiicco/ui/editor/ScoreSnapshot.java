@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui.editor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTempoEvent;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.Marker;
+
+/**
+ * Undo用のMMLScoreの状態.
+ * <p>直前の状態と内容が同じトラック, パートのMML文字列は共有します.
+ * 復元するときは, 内容が異なるトラックだけを作り直します.</p>
+ */
+final class ScoreSnapshot {
+
+	/** 文字列以外の1トラックあたりの見積りサイズ. */
+	private static final int TRACK_OVERHEAD = 64;
+
+	/**
+	 * 1トラックの状態.
+	 */
+	private static final class TrackState {
+		private final String mml[];
+		private final String name;
+		private final int program;
+		private final int songProgram;
+		private final int panpot;
+		/** {@link MMLTrack#getContentHash()}. 差分から作成した場合は使わない. */
+		private final long contentHash;
+
+		private TrackState(MMLTrack track) {
+			contentHash = track.getContentHash();
+			mml = track.getOriginalMMLArray();
+			name = track.getTrackName();
+			program = track.getProgram();
+			songProgram = track.getSongProgram();
+			panpot = track.getPanpot();
+		}
+
+		private TrackState(DataInputStream in) throws IOException {
+			contentHash = 0;
+			name = readString(in);
+			program = in.readInt();
+			songProgram = in.readInt();
+			panpot = in.readInt();
+			mml = new String[in.readInt()];
+			for (int i = 0; i < mml.length; i++) {
+				mml[i] = readString(in);
+			}
+		}
+
+		private void writeTo(DataOutputStream out) throws IOException {
+			writeString(out, name);
+			out.writeInt(program);
+			out.writeInt(songProgram);
+			out.writeInt(panpot);
+			out.writeInt(mml.length);
+			for (String s : mml) {
+				writeString(out, s);
+			}
+		}
+
+		private boolean matches(MMLTrack track) {
+			if (contentHash != track.getContentHash()) {
+				return false;
+			}
+			if ( (program != track.getProgram())
+					|| (songProgram != track.getSongProgram())
+					|| (panpot != track.getPanpot())
+					|| !Objects.equals(name, track.getTrackName()) ) {
+				return false;
+			}
+			if (!Arrays.equals(mml, track.getOriginalMMLArray())) {
+				return false;
+			}
+			// MMLに反映されていない編集がある.
+			for (MMLEventList eventList : track.getMMLEventList()) {
+				if (eventList.isDirty()) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean matches(TrackState state) {
+			return (contentHash == state.contentHash)
+					&& (program == state.program)
+					&& (songProgram == state.songProgram)
+					&& (panpot == state.panpot)
+					&& Objects.equals(name, state.name)
+					&& Arrays.equals(mml, state.mml);
+		}
+
+		/**
+		 * 前の状態と同じ文字列を共有します.
+		 */
+		private void share(TrackState state) {
+			for (int i = 0; i < mml.length; i++) {
+				if (mml[i].equals(state.mml[i])) {
+					mml[i] = state.mml[i];
+				}
+			}
+		}
+
+		private MMLTrack toTrack() {
+			MMLTrack track = new MMLTrack().setMML(mml[0], mml[1], mml[2], mml[3]);
+			track.setTrackName(name);
+			track.setProgram(program);
+			track.setSongProgram(songProgram);
+			track.setPanpot(panpot);
+			return track;
+		}
+
+		private long memorySize(TrackState prev) {
+			long size = TRACK_OVERHEAD + ((name != null) ? name.length() * 2 : 0);
+			for (int i = 0; i < mml.length; i++) {
+				if ( (prev == null) || (mml[i] != prev.mml[i]) ) {
+					size += mml[i].length() * 2;
+				}
+			}
+			return size;
+		}
+	}
+
+	private final String title;
+	private final String author;
+	private final String baseTime;
+	private final String markers;
+	private final MMLTempoEvent tempoList[];
+	private final TrackState trackStates[];
+
+	/** {@link MMLScore#getContentHash()}. 異なれば内容を比較せずに別の状態とします. */
+	private final long contentHash;
+
+	/** 単独で保持した場合の見積りサイズ (byte). */
+	private final long memorySize;
+
+	/** 前の状態と共有していない部分の見積りサイズ (byte). */
+	private final long deltaSize;
+
+	/**
+	 * MMLScoreの状態を作成します.
+	 * @param score
+	 * @param prev 直前の状態. 内容が同じ部分を共有します. nullの場合は共有しません.
+	 */
+	ScoreSnapshot(MMLScore score, ScoreSnapshot prev) {
+		contentHash = score.getContentHash();
+		title = score.getTitle();
+		author = score.getAuthor();
+		baseTime = score.getBaseTime();
+		markers = markerString(score.getMarkerList());
+
+		List<MMLTempoEvent> scoreTempoList = score.getTempoEventList();
+		if ( (prev != null) && prev.equalsTempoList(scoreTempoList) ) {
+			tempoList = prev.tempoList;
+		} else {
+			tempoList = new MMLTempoEvent[scoreTempoList.size()];
+			for (int i = 0; i < tempoList.length; i++) {
+				MMLTempoEvent tempoEvent = scoreTempoList.get(i);
+				tempoList[i] = new MMLTempoEvent(tempoEvent.getTempo(), tempoEvent.getTickOffset());
+			}
+		}
+
+		List<MMLTrack> trackList = score.getTrackList();
+		trackStates = new TrackState[trackList.size()];
+		long size = 0;
+		long delta = 0;
+		for (int i = 0; i < trackStates.length; i++) {
+			TrackState state = new TrackState(trackList.get(i));
+			TrackState prevState = ((prev != null) && (i < prev.trackStates.length)) ? prev.trackStates[i] : null;
+			if (prevState != null) {
+				if (state.matches(prevState)) {
+					state = prevState;
+				} else {
+					state.share(prevState);
+				}
+			}
+			trackStates[i] = state;
+			size += state.memorySize(null);
+			if (state != prevState) {
+				delta += state.memorySize(prevState);
+			}
+		}
+		long headerSize = (title.length() + author.length() + markers.length()) * 2 + tempoList.length * TRACK_OVERHEAD;
+		memorySize = size + headerSize;
+		deltaSize = delta + headerSize;
+	}
+
+	private static String markerString(List<Marker> markerList) {
+		StringBuilder sb = new StringBuilder();
+		for (Marker marker : markerList) {
+			sb.append(marker.toString()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private boolean equalsTempoList(List<MMLTempoEvent> list) {
+		return Arrays.equals(tempoList, list.toArray());
+	}
+
+	/**
+	 * 内容が同じかどうかを判定します. 直前の状態から作成した場合は, 共有を使って比較します.
+	 */
+	boolean sameAs(ScoreSnapshot snapshot) {
+		if ( (snapshot == null) || (contentHash != snapshot.contentHash) || (trackStates.length != snapshot.trackStates.length) ) {
+			return false;
+		}
+		for (int i = 0; i < trackStates.length; i++) {
+			TrackState state = trackStates[i];
+			if ( (state != snapshot.trackStates[i]) && !state.matches(snapshot.trackStates[i]) ) {
+				return false;
+			}
+		}
+		return title.equals(snapshot.title)
+				&& author.equals(snapshot.author)
+				&& baseTime.equals(snapshot.baseTime)
+				&& markers.equals(snapshot.markers)
+				&& ( (tempoList == snapshot.tempoList) || Arrays.equals(tempoList, snapshot.tempoList) );
+	}
+
+	long getMemorySize() {
+		return memorySize;
+	}
+
+	long getDeltaSize() {
+		return deltaSize;
+	}
+
+	/**
+	 * MMLScoreをこの状態に戻します. 内容が異なるトラックだけを作り直します.
+	 * @param score
+	 */
+	void restoreTo(MMLScore score) {
+		score.setTitle(title);
+		score.setAuthor(author);
+		score.setBaseTime(baseTime);
+
+		restoreMarker(score, markers);
+
+		for (int i = 0; i < trackStates.length; i++) {
+			if (i < score.getTrackCount()) {
+				if (!trackStates[i].matches(score.getTrack(i))) {
+					score.setTrack(i, trackStates[i].toTrack());
+				}
+			} else {
+				score.addTrack(trackStates[i].toTrack());
+			}
+		}
+		while (score.getTrackCount() > trackStates.length) {
+			score.removeTrack(score.getTrackCount()-1);
+		}
+
+		if (!equalsTempoList(score.getTempoEventList())) {
+			restoreTempoList(score, tempoList);
+		}
+	}
+
+	private static void restoreMarker(MMLScore score, String markers) {
+		List<Marker> markerList = score.getMarkerList();
+		if (!markers.equals(markerString(markerList))) {
+			markerList.clear();
+			for (String s : markers.split("\n")) {
+				if (s.isEmpty()) {
+					continue;
+				}
+				// <tickOffset>=<name>
+				int sep = s.indexOf('=');
+				markerList.add(new Marker(s.substring(sep+1), Integer.parseInt(s.substring(0, sep))));
+			}
+		}
+	}
+
+	/**
+	 * テンポリストは各トラックと共有しているため, 中身を置き換えます.
+	 */
+	private static void restoreTempoList(MMLScore score, MMLTempoEvent tempoList[]) {
+		List<MMLTempoEvent> scoreTempoList = score.getTempoEventList();
+		scoreTempoList.clear();
+		for (MMLTempoEvent tempoEvent : tempoList) {
+			scoreTempoList.add(new MMLTempoEvent(tempoEvent.getTempo(), tempoEvent.getTickOffset()));
+		}
+	}
+
+	/**
+	 * 直前の状態からの差分を書き出します. 内容が異なるトラックだけを書き出します.
+	 * @param out
+	 * @param prev 直前の状態. nullの場合はすべてを書き出します.
+	 * @throws IOException
+	 */
+	void writeDelta(DataOutputStream out, ScoreSnapshot prev) throws IOException {
+		writeString(out, title);
+		writeString(out, author);
+		writeString(out, baseTime);
+		writeString(out, markers);
+
+		boolean tempoChanged = (prev == null) || ( (tempoList != prev.tempoList) && !Arrays.equals(tempoList, prev.tempoList) );
+		out.writeBoolean(tempoChanged);
+		if (tempoChanged) {
+			out.writeInt(tempoList.length);
+			for (MMLTempoEvent tempoEvent : tempoList) {
+				out.writeInt(tempoEvent.getTempo());
+				out.writeInt(tempoEvent.getTickOffset());
+			}
+		}
+
+		out.writeInt(trackStates.length);
+		for (int i = 0; i < trackStates.length; i++) {
+			TrackState state = trackStates[i];
+			TrackState prevState = ((prev != null) && (i < prev.trackStates.length)) ? prev.trackStates[i] : null;
+			boolean changed = (prevState == null) || ( (state != prevState) && !state.matches(prevState) );
+			out.writeBoolean(changed);
+			if (changed) {
+				state.writeTo(out);
+			}
+		}
+	}
+
+	/**
+	 * {@link #writeDelta(DataOutputStream, ScoreSnapshot)} で書き出した差分をMMLScoreに適用します.
+	 * MMLScoreは, 差分を作成したときの直前の状態である必要があります.
+	 * @param in
+	 * @param score
+	 * @throws IOException
+	 */
+	static void applyDelta(DataInputStream in, MMLScore score) throws IOException {
+		score.setTitle(readString(in));
+		score.setAuthor(readString(in));
+		score.setBaseTime(readString(in));
+		restoreMarker(score, readString(in));
+
+		MMLTempoEvent newTempoList[] = null;
+		if (in.readBoolean()) {
+			newTempoList = new MMLTempoEvent[in.readInt()];
+			for (int i = 0; i < newTempoList.length; i++) {
+				int tempo = in.readInt();
+				newTempoList[i] = new MMLTempoEvent(tempo, in.readInt());
+			}
+		}
+
+		int trackCount = in.readInt();
+		for (int i = 0; i < trackCount; i++) {
+			if (in.readBoolean()) {
+				MMLTrack track = new TrackState(in).toTrack();
+				if (i < score.getTrackCount()) {
+					score.setTrack(i, track);
+				} else {
+					score.addTrack(track);
+				}
+			} else if (i >= score.getTrackCount()) {
+				throw new IOException("invalid delta");
+			}
+		}
+		while (score.getTrackCount() > trackCount) {
+			score.removeTrack(score.getTrackCount()-1);
+		}
+
+		if (newTempoList != null) {
+			restoreTempoList(score, newTempoList);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte b[] = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte b[] = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * {@link MMLScore#getObjectState()} 形式に変換します.
+	 * @return
+	 */
+	byte[] toObjectState() {
+		MMLScore score = new MMLScore();
+		restoreTo(score);
+		return score.getObjectState();
+	}
+
+	/**
+	 * {@link MMLScore#getObjectState()} 形式から作成します.
+	 * @param objState
+	 * @param prev 直前の状態. 内容が同じ部分を共有します.
+	 * @return
+	 */
+	static ScoreSnapshot fromObjectState(byte objState[], ScoreSnapshot prev) {
+		MMLScore score = new MMLScore();
+		score.putObjectState(objState);
+		return new ScoreSnapshot(score, prev);
+	}
+}
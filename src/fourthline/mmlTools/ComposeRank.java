@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools;
@@ -65,6 +65,15 @@ public final class ComposeRank {
 		return RANK_0.getRank();
 	}
 
+	/**
+	 * 作曲不可ランクかどうかを判定します.
+	 * @param rank {@link #mmlRank(String, String, String, String)} で求めたランクの文字
+	 * @return 作曲不可であればtrue.
+	 */
+	public static boolean isOverRank(String rank) {
+		return RANK_0.getRank().equals(rank);
+	}
+
 	/**
 	 * for Test, package private
 	 * @param melody
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import fourthline.mmlTools.core.TuningBase;
+
+/**
+ * 内容比較用の64bitハッシュ.
+ * <p>ノートのハッシュは加算で集計するため, ノートの追加と削除は加減算で差分を更新できます.
+ * ハッシュが異なれば内容は異なります. 一致した場合に内容が同じかどうかは, 全体を比較して確認してください.</p>
+ */
+final class ContentHash {
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+	private ContentHash() {}
+
+	/**
+	 * SplitMix64 の混合関数.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * 順番に意味のある値を連結します.
+	 */
+	static long combine(long hash, long value) {
+		return mix(hash * GOLDEN + value);
+	}
+
+	static long of(String s) {
+		return (s == null) ? 0 : mix(s.hashCode() + GOLDEN);
+	}
+
+	/**
+	 * {@link MMLNoteEvent#equals(Object)} で比較する内容のハッシュ.
+	 */
+	static long of(MMLNoteEvent noteEvent) {
+		return of(noteEvent.getNote(), noteEvent.getTick(), noteEvent.getTickOffset(), noteEvent.getVelocity(), noteEvent.getTuningBase());
+	}
+
+	static long of(int note, int tick, int tickOffset, int velocity, TuningBase tuningBase) {
+		long position = ((long) tickOffset << 32) | (tick & 0xffffffffL);
+		int tuning = (tuningBase != null) ? tuningBase.ordinal() + 1 : 0;
+		long value = ((long) note << 32) | ((velocity & 0xffffL) << 16) | tuning;
+		return combine(mix(position), value);
+	}
+}
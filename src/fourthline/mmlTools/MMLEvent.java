@@ -5,7 +5,6 @@
 package fourthline.mmlTools;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.List;
 
 import fourthline.mmlTools.core.UndefinedTickException;
@@ -59,21 +58,24 @@ public abstract class MMLEvent implements Serializable {
 	 * @param tick 削除するtick長
 	 */
 	public static void removeTick(List<? extends MMLEvent> list, int startTick, int tick) {
-		ArrayList<MMLEvent> deleteEvent = new ArrayList<>();
+		// 削除するものを先にまとめて除き, 1件ずつの検索 (O(n^2)) を避ける.
+		boolean delete = false;
 		for (MMLEvent event : list) {
 			int eventTick = event.getTickOffset();
-			if (eventTick >= startTick) {
-				if (eventTick < startTick+tick) {
-					// 削除リストに加えておく.
-					deleteEvent.add(event);
-				} else {
-					event.setTickOffset(eventTick - tick);
-				}
+			if ( (eventTick >= startTick) && (eventTick < startTick+tick) ) {
+				delete = true;
+				break;
 			}
 		}
+		if (delete) {
+			list.removeIf(event -> (event.getTickOffset() >= startTick) && (event.getTickOffset() < startTick+tick));
+		}
 
-		for (MMLEvent event : deleteEvent) {
-			list.remove(event);
+		for (MMLEvent event : list) {
+			int eventTick = event.getTickOffset();
+			if (eventTick >= startTick) {
+				event.setTickOffset(eventTick - tick);
+			}
 		}
 	}
 
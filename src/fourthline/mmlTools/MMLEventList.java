@@ -1,22 +1,38 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 import fourthline.mmlTools.core.MMLTicks;
+import fourthline.mmlTools.core.TuningBase;
 import fourthline.mmlTools.core.UndefinedTickException;
 import fourthline.mmlTools.parser.MMLEventParser;
+import fourthline.mmlTools.parser.MMLEventVisitor;
 
 
 /**
  * 1行のMMLデータを扱います.
+ * <p>参照用のメソッド ({@link #forEachNote(Consumer)}, {@link #getNoteListView()}, {@link #toMMLString()} など) は
+ * 配列にまとめたノートを展開しないため, 変更と同時でなければ複数のスレッドから呼び出せます.
+ * ノートのオブジェクトを返す {@link #getMMLNoteEventList()}, {@link #searchOnTickOffset(long)} と編集用のメソッドは
+ * 配列を展開するため, 変更として扱い, 編集と同じスレッドから呼び出してください.</p>
+ * <p>編集中に別スレッドから参照した場合, 参照の結果は編集途中の内容を含むことがありますが,
+ * 参照側はノートの保持状態を書き換えず, キャッシュは編集後のバージョンでは使われないため, 編集の内容は失われません.</p>
+ * <p>{@link #insertTick(int, int)}, {@link #removeTick(int, int)} が差分の記録だけで済むのは, 配列にまとめている場合だけです.
+ * ノートのオブジェクトに展開したパートは, 呼び出し側がノートの位置を直接参照するため, 以降のノートをすべて書き換え (O(n)),
+ * 次に参照したときに範囲検索用のインデックスとハッシュも作り直します (O(n)).</p>
  */
 public final class MMLEventList implements Serializable, Cloneable {
 	private static final long serialVersionUID = -1430758411579285535L;
@@ -24,6 +40,41 @@ public final class MMLEventList implements Serializable, Cloneable {
 	private List<MMLNoteEvent>   noteList   = new ArrayList<>();
 	private List<MMLTempoEvent>  tempoList;
 
+	// 読み込んだまま変更していないノートは, 配列にまとめて保持します. このとき noteList は null です.
+	// 配列は変更しないため, clone は配列を共有し, ノートのオブジェクトが必要になったときに展開します.
+	// 空白の挿入, 削除は差分として記録し, 全ノートを参照するときに反映したリストに置き換えます.
+	// 参照側からの置き換えは, 置き換え前のリストのままである場合だけ compareAndSet で行います.
+	private transient volatile PackedNoteList packedNotes = null;
+	private static final AtomicReferenceFieldUpdater<MMLEventList, PackedNoteList> PACKED_NOTES =
+			AtomicReferenceFieldUpdater.newUpdater(MMLEventList.class, PackedNoteList.class, "packedNotes");
+
+	// 変更検出用. 内容が変わるたびにversionを進め, dirtyを立てます.
+	// 参照側のキャッシュは, 内容を読む前のversionで記録します. 内容の変更後には必ずversionを進めます.
+	private transient volatile long version = 0;
+	private transient boolean dirty = true;
+
+	// tick範囲検索用. versionが変わったら作り直します.
+	private transient volatile MMLNoteIndex noteIndex = null;
+	private static final AtomicReferenceFieldUpdater<MMLEventList, MMLNoteIndex> NOTE_INDEX =
+			AtomicReferenceFieldUpdater.newUpdater(MMLEventList.class, MMLNoteIndex.class, "noteIndex");
+
+	// ノートの内容のハッシュ. ノートの追加, 削除, 変更は差分で更新します.
+	// ノートを直接書き換えた場合 (versionだけが進んだ場合) は, 次に取得するときに作り直します.
+	private static final class NoteHash {
+		private final long version;
+		private final long hash;
+
+		private NoteHash(long version, long hash) {
+			this.version = version;
+			this.hash = hash;
+		}
+	}
+	private transient volatile NoteHash noteHash = null;
+	private static final AtomicReferenceFieldUpdater<MMLEventList, NoteHash> NOTE_HASH =
+			AtomicReferenceFieldUpdater.newUpdater(MMLEventList.class, NoteHash.class, "noteHash");
+	// 編集中に差分で更新しているハッシュ. 編集するスレッドだけが使います.
+	private transient NoteHash updatingHash = null;
+
 	/**
 	 * 
 	 * @param mml
@@ -43,21 +94,246 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	private void parseMML(String mml) {
-		MMLEventParser parser = new MMLEventParser(mml);
+		PackedNoteList.Builder builder = new PackedNoteList.Builder(mml.length() / 2);
+		new MMLEventParser(mml).parse(new MMLEventVisitor() {
+			@Override
+			public void note(int note, int tick, int offset, int velocity, TuningBase tuningBase, int startIndex, int endIndex) {
+				if ( (velocity < 0) || (velocity > MMLNoteEvent.MAX_VOL) ) {
+					throw new IllegalArgumentException("velocity  "+velocity);
+				}
+				builder.add(note, tick, offset, velocity, tuningBase, new int[] { startIndex, endIndex });
+			}
 
-		while (parser.hasNext()) {
-			MMLEvent event = parser.next();
+			@Override
+			public void tempo(int tempo, int offset, int startIndex, int endIndex) {
+				new MMLTempoEvent(tempo, offset).appendToListElement(tempoList);
+			}
+		});
+		if (builder.size() > 0) {
+			packedNotes = builder.build();
+			noteList = null;
+		}
+	}
+
+	/**
+	 * ノートのリストを取得します. 配列にまとめている場合は, ノートのオブジェクトを作成します.
+	 */
+	private List<MMLNoteEvent> notes() {
+		PackedNoteList packed = packedNotes;
+		if (packed != null) {
+			noteList = packed.toList();
+			packedNotes = null;
+		}
+		return noteList;
+	}
 
-			if (event instanceof MMLTempoEvent) {
-				((MMLTempoEvent) event).appendToListElement(tempoList);
-			} else if (event instanceof MMLNoteEvent) {
-				noteList.add((MMLNoteEvent) event);
+	/**
+	 * 配列にまとめたノートを, 差分を反映した状態で取得します.
+	 * <p>参照用のメソッドから呼ぶため, 配列は書き換えず, 反映したリストに置き換えます.
+	 * 置き換えは, その間に展開や編集がなかった場合だけ行います.</p>
+	 * @return 展開済みの場合はnull
+	 */
+	private PackedNoteList packed() {
+		PackedNoteList packed = packedNotes;
+		if (packed != null) {
+			PackedNoteList resolved = packed.resolved();
+			if (resolved != packed) {
+				PACKED_NOTES.compareAndSet(this, packed, resolved);
 			}
+			return resolved;
 		}
+		return null;
+	}
+
+	private int noteCount() {
+		PackedNoteList packed = packedNotes;
+		return (packed != null) ? packed.size() : noteList.size();
+	}
+
+	/**
+	 * index番目のノートを取得します. 配列にまとめている場合は, flyweightに読み込みます.
+	 */
+	private MMLNoteEvent noteAt(PackedNoteList packed, int index, MMLNoteEvent flyweight) {
+		return (packed != null) ? packed.load(index, flyweight) : noteList.get(index);
+	}
+
+	private int tickOffsetAt(PackedNoteList packed, int index) {
+		return (packed != null) ? packed.getTickOffset(index) : noteList.get(index).getTickOffset();
+	}
+
+	private int endTickAt(PackedNoteList packed, int index) {
+		return (packed != null) ? packed.getEndTick(index) : noteList.get(index).getEndTick();
+	}
+
+	/**
+	 * ノートを順に参照します. 配列にまとめている場合も, ノートのオブジェクトを作りません.
+	 * <p>渡すノートは使い回すことがあるため, 保持したり変更したりしないでください.</p>
+	 * @param action
+	 */
+	public void forEachNote(Consumer<MMLNoteEvent> action) {
+		PackedNoteList packed = packed();
+		if (packed != null) {
+			MMLNoteEvent flyweight = PackedNoteList.newFlyweight();
+			for (int i = 0; i < packed.size(); i++) {
+				action.accept(packed.load(i, flyweight));
+			}
+		} else {
+			noteList.forEach(action);
+		}
+	}
+
+	/**
+	 * 指定したtick範囲に重なるノートを順に参照します. 範囲の検索は O(log n) で行い, 配列にまとめている場合も展開しません.
+	 * <p>範囲外のノートを含むことがあるのは, {@link #getMMLNoteEventList(long, long)} と同じです.
+	 * 渡すノートは使い回すことがあるため, 保持したり変更したりしないでください.</p>
+	 * @param startTick 開始位置. 終了位置がこれより後ろのノートを含みます.
+	 * @param endTick 終了位置. 開始位置がこれ以前のノートを含みます.
+	 * @param action
+	 */
+	public void forEachNote(long startTick, long endTick, Consumer<MMLNoteEvent> action) {
+		long version = this.version;
+		PackedNoteList packed = packed();
+		MMLNoteIndex index = getNoteIndex(version, packed);
+		int fromIndex = index.fromIndex(startTick);
+		int toIndex = index.toIndex(endTick);
+		MMLNoteEvent flyweight = (packed != null) ? PackedNoteList.newFlyweight() : null;
+		for (int i = fromIndex; i < toIndex; i++) {
+			action.accept(noteAt(packed, i, flyweight));
+		}
+	}
+
+	/**
+	 * 参照用のノートリストを取得します. 配列にまとめている場合も展開せず, 要素を取得するたびにノートのコピーを作ります.
+	 * <p>リストは変更できません. 展開済みの場合の要素はノートそのものなので, 変更しないでください.</p>
+	 * @return ノートのリスト
+	 */
+	public List<MMLNoteEvent> getNoteListView() {
+		PackedNoteList packed = packed();
+		if (packed != null) {
+			return packed.asList();
+		}
+		return Collections.unmodifiableList(noteList);
+	}
+
+	/**
+	 * ノートを配列にまとめているかどうか. ノートのオブジェクトが必要になると, 展開します.
+	 */
+	boolean isPacked() {
+		return (packedNotes != null);
+	}
+
+	public boolean isEmpty() {
+		return (noteCount() == 0);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		PackedNoteList packed = packed();
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("noteList", (packed != null) ? packed.toList() : noteList);
+		fields.put("tempoList", tempoList);
+		out.writeFields();
 	}
 
 	public void setGlobalTempoList(List<MMLTempoEvent> globalTempoList) {
 		tempoList = globalTempoList;
+		markDirty();
+	}
+
+	/**
+	 * 内容が変更されたことを記録します.
+	 * ノートを直接書き換えた場合は, 呼び出し側でこのメソッドを呼んでください.
+	 */
+	public void markDirty() {
+		version++;
+		dirty = true;
+	}
+
+	/**
+	 * 内容の変更ごとに増加するバージョンを取得します.
+	 * @return バージョン
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * 前回 {@link #clearDirty()} を呼んでから変更があったかどうかを取得します.
+	 * @return 変更があればtrue.
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+
+	public void clearDirty() {
+		dirty = false;
+	}
+
+	/**
+	 * ノートの内容のハッシュを取得します. 内容が同じリストは同じ値になります.
+	 * <p>変更がなければ前回の値をそのまま返します.</p>
+	 * @return 64bitハッシュ
+	 */
+	public long getContentHash() {
+		NoteHash noteHash = this.noteHash;
+		long version = this.version;
+		if ( (noteHash == null) || (noteHash.version != version) ) {
+			long hash = 0;
+			PackedNoteList packed = packed();
+			if (packed != null) {
+				for (int i = 0; i < packed.size(); i++) {
+					hash += packed.contentHash(i);
+				}
+			} else {
+				for (MMLNoteEvent noteEvent : noteList) {
+					hash += ContentHash.of(noteEvent);
+				}
+			}
+			NoteHash newHash = new NoteHash(version, hash);
+			NOTE_HASH.compareAndSet(this, noteHash, newHash);
+			return hash;
+		}
+		return noteHash.hash;
+	}
+
+	/**
+	 * このクラスのメソッドでノートを変更する前に呼び出します. 変更の後には {@link #endUpdate()} を呼び出します.
+	 * ハッシュが最新であれば, 以降は {@link #addHash(MMLNoteEvent)}, {@link #removeHash(MMLNoteEvent)} で差分を更新します.
+	 */
+	private void beginUpdate() {
+		NoteHash noteHash = this.noteHash;
+		boolean hashUpdate = (noteHash != null) && (noteHash.version == version);
+		markDirty();
+		updatingHash = null;
+		if (hashUpdate) {
+			updatingHash = new NoteHash(version, noteHash.hash);
+			this.noteHash = updatingHash;
+		}
+	}
+
+	/**
+	 * 変更の途中に参照したキャッシュを使わないように, versionを進めます.
+	 */
+	private void endUpdate() {
+		markDirty();
+		if ( (updatingHash != null) && (noteHash == updatingHash) ) {
+			noteHash = new NoteHash(version, updatingHash.hash);
+		}
+		updatingHash = null;
+	}
+
+	private void updateHash(long value) {
+		if ( (updatingHash != null) && (noteHash == updatingHash) ) {
+			updatingHash = new NoteHash(version, updatingHash.hash + value);
+			noteHash = updatingHash;
+		}
+	}
+
+	private void addHash(MMLNoteEvent noteEvent) {
+		updateHash(ContentHash.of(noteEvent));
+	}
+
+	private void removeHash(MMLNoteEvent noteEvent) {
+		updateHash(-ContentHash.of(noteEvent));
 	}
 
 	public List<MMLTempoEvent> getGlobalTempoList() {
@@ -65,7 +341,10 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	public long getTickLength() {
-		if (noteList.size() > 0) {
+		PackedNoteList packed = packedNotes;
+		if (packed != null) {
+			return packed.getEndTick(packed.size() - 1);
+		} else if (noteList.size() > 0) {
 			int lastIndex = noteList.size() - 1;
 			MMLNoteEvent lastNote = noteList.get( lastIndex );
 
@@ -75,23 +354,147 @@ public final class MMLEventList implements Serializable, Cloneable {
 		}
 	}
 
+	/**
+	 * tick長の空白を挿入します.
+	 * <p>配列にまとめている場合は, 挿入位置以降のずれを差分として記録するだけで, ノートを書き換えません.
+	 * 展開している場合は, 以降のノートを書き換えます.</p>
+	 * @param startTick 挿入する位置
+	 * @param tick 挿入するtick長
+	 * @see MMLEvent#insertTick(List, int, int)
+	 */
+	public void insertTick(int startTick, int tick) {
+		PackedNoteList packed = packedNotes;
+		if (packed != null) {
+			packedNotes = packed.shift(packed.indexOfTickOffset(startTick), tick);
+		} else {
+			MMLEvent.insertTick(noteList, startTick, tick);
+		}
+		markDirty();
+	}
+
+	/**
+	 * tick長の部分を削除して詰めます. 削除する範囲から始まるノートは削除します.
+	 * <p>配列にまとめている場合, 削除するノートがなければ, 以降のずれを差分として記録するだけです.</p>
+	 * @param startTick 削除する位置
+	 * @param tick 削除するtick長
+	 * @see MMLEvent#removeTick(List, int, int)
+	 */
+	public void removeTick(int startTick, int tick) {
+		PackedNoteList packed = packedNotes;
+		if (packed != null) {
+			int fromIndex = packed.indexOfTickOffset(startTick);
+			int toIndex = packed.indexOfTickOffset(startTick + tick);
+			if (toIndex - fromIndex == packed.size()) {
+				noteList = new ArrayList<>();
+				packedNotes = null;
+			} else {
+				if (fromIndex < toIndex) {
+					packed = packed.remove(fromIndex, toIndex);
+				}
+				packedNotes = packed.shift(fromIndex, -tick);
+			}
+		} else {
+			MMLEvent.removeTick(noteList, startTick, tick);
+		}
+		markDirty();
+	}
+
+	/**
+	 * 編集用のノートリストを取得します. 配列にまとめている場合は, ノートのオブジェクトに展開します.
+	 * <p>参照だけであれば, {@link #forEachNote(Consumer)} か {@link #getNoteListView()} を使います.</p>
+	 * @return ノートのリスト
+	 */
 	public List<MMLNoteEvent> getMMLNoteEventList() {
-		return noteList;
+		return notes();
+	}
+
+	/**
+	 * tick範囲検索用のインデックスを取得します. 配列にまとめている場合は, 配列から作成します.
+	 * @param version ノートを読む前に取得したversion
+	 * @param packed {@link #packed()}. 展開済みの場合はnull.
+	 */
+	private MMLNoteIndex getNoteIndex(long version, PackedNoteList packed) {
+		MMLNoteIndex index = noteIndex;
+		int size = (packed != null) ? packed.size() : noteList.size();
+		if ( (index == null) || (index.getVersion() != version) || (index.size() != size) ) {
+			MMLNoteIndex newIndex = (packed != null) ? new MMLNoteIndex(packed, version) : new MMLNoteIndex(noteList, version);
+			NOTE_INDEX.compareAndSet(this, index, newIndex);
+			index = newIndex;
+		}
+		return index;
+	}
+
+	/**
+	 * 指定したtick範囲に重なるノートを取得します. 範囲の検索は O(log n) で行います.
+	 * <p>ノート同士が重なっている場合などは, 範囲外のノートを含むことがあります.
+	 * 返すリストはノートリストのビューのため, 変更しないでください.
+	 * 編集用のノートを返すため, 配列にまとめている場合は展開します.
+	 * 参照だけであれば, {@link #forEachNote(long, long, Consumer)} を使います.</p>
+	 * @param startTick 開始位置. 終了位置がこれより後ろのノートを含みます.
+	 * @param endTick 終了位置. 開始位置がこれ以前のノートを含みます.
+	 * @return ノートのリスト
+	 */
+	public List<MMLNoteEvent> getMMLNoteEventList(long startTick, long endTick) {
+		long version = this.version;
+		List<MMLNoteEvent> noteList = notes();
+		MMLNoteIndex index = getNoteIndex(version, null);
+		int fromIndex = index.fromIndex(startTick);
+		int toIndex = Math.max(fromIndex, index.toIndex(endTick));
+		return noteList.subList(fromIndex, toIndex);
+	}
+
+	/**
+	 * 開始位置がtickOffset以降となる最初のノートのindexを二分探索で取得します.
+	 * @param packed {@link #packed()}. 展開済みの場合はnull.
+	 * @param tickOffset
+	 * @return 該当するノートがない場合は, ノート数を返します.
+	 */
+	private int searchIndexOfTickOffset(PackedNoteList packed, long tickOffset) {
+		int low = 0;
+		int high = (packed != null) ? packed.size() : noteList.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (tickOffsetAt(packed, mid) < tickOffset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 終了位置がtickOffsetより後ろになる最初のノートのindexを二分探索で取得します.
+	 * ノート同士は重ならないため, 終了位置も開始位置と同じ順に並んでいます.
+	 * @param packed {@link #packed()}. 展開済みの場合はnull.
+	 * @param tickOffset
+	 * @return 該当するノートがない場合は, ノート数を返します.
+	 */
+	private int searchIndexOfEndTick(PackedNoteList packed, long tickOffset) {
+		int low = 0;
+		int high = (packed != null) ? packed.size() : noteList.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (endTickAt(packed, mid) <= tickOffset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
 	}
 
 	/**
 	 * 指定したtickOffset位置にあるNoteEventを検索します.
+	 * <p>編集用のノートを返すため, 配列にまとめている場合は展開します.
+	 * 参照だけであれば, {@link #getNoteOnTickOffset(long)} を使います.</p>
 	 * @param tickOffset
 	 * @return 見つからなかった場合は、nullを返します.
 	 */
 	public MMLNoteEvent searchOnTickOffset(long tickOffset) {
-		for (MMLNoteEvent noteEvent : noteList) {
-			if (noteEvent.getTickOffset() <= tickOffset) {
-				if (tickOffset < noteEvent.getEndTick()) {
-					return noteEvent;
-				}
-			} else {
-				break;
+		for (MMLNoteEvent noteEvent : getMMLNoteEventList(tickOffset, tickOffset)) {
+			if ( (noteEvent.getTickOffset() <= tickOffset) && (noteEvent.getEndTick() > tickOffset) ) {
+				return noteEvent;
 			}
 		}
 
@@ -99,19 +502,45 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	/**
-	 * 指定したtickOffset位置の手前のNoteを検索します.
+	 * 指定したtickOffset位置にあるNoteEventを参照します. 配列にまとめている場合は展開せず, ノートのコピーを返します.
+	 * <p>返したノートは変更しないでください.</p>
+	 * @param tickOffset
+	 * @return 見つからなかった場合は、nullを返します.
+	 */
+	public MMLNoteEvent getNoteOnTickOffset(long tickOffset) {
+		long version = this.version;
+		PackedNoteList packed = packed();
+		if (packed == null) {
+			return searchOnTickOffset(tickOffset);
+		}
+		MMLNoteIndex index = getNoteIndex(version, packed);
+		int toIndex = index.toIndex(tickOffset);
+		for (int i = index.fromIndex(tickOffset); i < toIndex; i++) {
+			if ( (packed.getTickOffset(i) <= tickOffset) && (packed.getEndTick(i) > tickOffset) ) {
+				return packed.get(i);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * 指定したtickOffset位置の手前のNoteを検索します. 配列にまとめている場合は展開せず, ノートのコピーを返します.
+	 * <p>返したノートは変更しないでください.</p>
 	 * @param tickOffset
 	 * @return
 	 */
 	public MMLNoteEvent searchPrevNoteOnTickOffset(long tickOffset) {
-		MMLNoteEvent prevNote = new MMLNoteEvent(-1, 0, 0);
-		for (MMLNoteEvent noteEvent : noteList) {
-			if (noteEvent.getTickOffset() >= tickOffset) {
-				break;
-			}
-			prevNote = noteEvent;
+		PackedNoteList packed = packed();
+		int index = searchIndexOfTickOffset(packed, tickOffset);
+		if (index > 0) {
+			return (packed != null) ? packed.get(index - 1) : noteList.get(index - 1);
 		}
-		return prevNote;
+		return new MMLNoteEvent(-1, 0, 0);
+	}
+
+	private int[] indexOfMMLStringAt(PackedNoteList packed, int index) {
+		return (packed != null) ? packed.getIndexOfMMLString(index) : noteList.get(index).getIndexOfMMLString();
 	}
 
 	/**
@@ -120,17 +549,17 @@ public final class MMLEventList implements Serializable, Cloneable {
 	 * @return
 	 */
 	public int[] indexOfMMLString(long tickOffset) {
+		PackedNoteList packed = packed();
+		int index = searchIndexOfEndTick(packed, tickOffset);
 		int start = 0;
-		for (MMLNoteEvent noteEvent : noteList) {
-			int index[] = noteEvent.getIndexOfMMLString();
-			if (noteEvent.getTickOffset() <= tickOffset) {
-				if (tickOffset < noteEvent.getEndTick()) {
-					return index;
-				}
-			} else {
-				return new int[] { start, index[0] };
+		if (index > 0) {
+			start = indexOfMMLStringAt(packed, index - 1)[1];
+		}
+		if (index < ((packed != null) ? packed.size() : noteList.size())) {
+			if (tickOffsetAt(packed, index) <= tickOffset) {
+				return indexOfMMLStringAt(packed, index);
 			}
-			start = index[1];
+			return new int[] { start, indexOfMMLStringAt(packed, index)[0] };
 		}
 		return new int[] { start, start };
 	}
@@ -141,51 +570,57 @@ public final class MMLEventList implements Serializable, Cloneable {
 	 * @param addNoteEvent
 	 */
 	public void addMMLNoteEvent(MMLNoteEvent addNoteEvent) {
-		int i;
 		if ((addNoteEvent.getNote() < -1) || (addNoteEvent.getTick() <= 0) || (addNoteEvent.getEndTick() <= 0)) {
 			return;
 		}
+		List<MMLNoteEvent> noteList = notes();
+		beginUpdate();
+		try {
+			addNoteEvent(noteList, addNoteEvent);
+		} finally {
+			endUpdate();
+		}
+	}
+
+	private void addNoteEvent(List<MMLNoteEvent> noteList, MMLNoteEvent addNoteEvent) {
+		int i;
 		int offset = addNoteEvent.getTickOffset();
 		if (offset < 0) {
 			addNoteEvent.setTick( (addNoteEvent.getTick() + offset) );
 			addNoteEvent.setTickOffset(0);
+			offset = 0;
 		}
 
 		// 追加したノートイベントに重なる前のノートを調節します.
-		for (i = 0; i < noteList.size(); i++) {
+		i = searchIndexOfEndTick(null, offset - 1);
+		if (i < noteList.size()) {
 			MMLNoteEvent noteEvent = noteList.get(i);
-			int tickOverlap = noteEvent.getEndTick() - addNoteEvent.getTickOffset();
-			if (addNoteEvent.getTickOffset() < noteEvent.getTickOffset()) {
-				break;
-			}
-			if (tickOverlap >= 0) {
+			if (noteEvent.getTickOffset() <= offset) {
 				// 追加するノートに音が重なっている.
+				int tickOverlap = noteEvent.getEndTick() - offset;
 				int tick = noteEvent.getTick() - tickOverlap;
+				removeHash(noteEvent);
 				if (tick == 0) {
 					noteList.remove(i);
-					break;
 				} else {
 					noteEvent.setTick(tick);
+					addHash(noteEvent);
 					i++;
-					break;
 				}
 			}
 		}
 
 		// ノートイベントを追加します.
 		noteList.add(i++, addNoteEvent);
+		addHash(addNoteEvent);
 
 		// 追加したノートイベントに重なっている後続のノートを削除します.
-		for ( ; i < noteList.size(); ) {
-			MMLNoteEvent noteEvent = noteList.get(i);
-			int tickOverlap = addNoteEvent.getEndTick() - noteEvent.getTickOffset();
-
-			if (tickOverlap > 0) {
-				noteList.remove(i);
-			} else {
-				break;
-			}
+		int end = i;
+		while ( (end < noteList.size()) && (noteList.get(end).getTickOffset() < addNoteEvent.getEndTick()) ) {
+			removeHash(noteList.get(end));
+			end++;
 		}
+		noteList.subList(i, end).clear();
 	}
 
 	/**
@@ -194,7 +629,33 @@ public final class MMLEventList implements Serializable, Cloneable {
 	 * @param deleteItem
 	 */
 	public void deleteMMLEvent(MMLEvent deleteItem) {
-		noteList.remove(deleteItem);
+		List<MMLNoteEvent> noteList = notes();
+		beginUpdate();
+		try {
+			deleteNoteEvent(noteList, deleteItem);
+		} finally {
+			endUpdate();
+		}
+	}
+
+	private void deleteNoteEvent(List<MMLNoteEvent> noteList, MMLEvent deleteItem) {
+		int index = searchIndexOfTickOffset(null, deleteItem.getTickOffset());
+		for ( ; index < noteList.size(); index++) {
+			MMLNoteEvent noteEvent = noteList.get(index);
+			if (noteEvent.getTickOffset() != deleteItem.getTickOffset()) {
+				break;
+			}
+			if (noteEvent.equals(deleteItem)) {
+				removeHash(noteList.remove(index));
+				return;
+			}
+		}
+
+		// 並び順が崩れている場合.
+		int removeIndex = noteList.indexOf(deleteItem);
+		if (removeIndex >= 0) {
+			removeHash(noteList.remove(removeIndex));
+		}
 	}
 
 	/**
@@ -217,18 +678,26 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	private void setUnsetVelocityCommand(MMLNoteEvent targetNote, int velocity, boolean isON) {
-		int beforeVelocity = targetNote.getVelocity();
-		int prevVelocity = MMLNoteEvent.INIT_VOL;
-		for (MMLNoteEvent note : noteList) {
-			if (note.getTickOffset() >= targetNote.getTickOffset()) {
-				if (beforeVelocity == note.getVelocity()) {
-					note.setVelocity(isON ? velocity : prevVelocity);
+		List<MMLNoteEvent> noteList = notes();
+		beginUpdate();
+		try {
+			int beforeVelocity = targetNote.getVelocity();
+			int prevVelocity = MMLNoteEvent.INIT_VOL;
+			for (MMLNoteEvent note : noteList) {
+				if (note.getTickOffset() >= targetNote.getTickOffset()) {
+					if (beforeVelocity == note.getVelocity()) {
+						removeHash(note);
+						note.setVelocity(isON ? velocity : prevVelocity);
+						addHash(note);
+					} else {
+						break;
+					}
 				} else {
-					break;
+					prevVelocity = note.getVelocity();
 				}
-			} else {
-				prevVelocity = note.getVelocity();
 			}
+		} finally {
+			endUpdate();
 		}
 	}
 
@@ -320,7 +789,15 @@ public final class MMLEventList implements Serializable, Cloneable {
 
 		// initial note: octave 4, tick 0, offset 0, velocity 8
 		MMLNoteEvent prevNoteEvent = new MMLNoteEvent(12*4, 0, 0, MMLNoteEvent.INIT_VOL);
-		for (MMLNoteEvent noteEvent : noteList) {
+		// 配列にまとめている場合は, 直前のノートを残すため2つのflyweightを交互に使う.
+		PackedNoteList packed = packed();
+		MMLNoteEvent flyweight[] = null;
+		if (packed != null) {
+			flyweight = new MMLNoteEvent[] { PackedNoteList.newFlyweight(), PackedNoteList.newFlyweight() };
+		}
+		int count = (packed != null) ? packed.size() : noteList.size();
+		for (int i = 0; i < count; i++) {
+			MMLNoteEvent noteEvent = noteAt(packed, i, (flyweight != null) ? flyweight[i & 1] : null);
 			// テンポのMML挿入判定
 			while ( (!localTempoList.isEmpty()) && (localTempoList.getFirst().getTickOffset() <= noteEvent.getTickOffset()) ) {
 				if (withTempo) {
@@ -353,16 +830,23 @@ public final class MMLEventList implements Serializable, Cloneable {
 
 	@Override
 	public String toString() {
-		return tempoList.toString() + noteList.toString();
+		return tempoList.toString() + getNoteListView().toString();
 	}
 
 	@Override
 	public MMLEventList clone() {
 		try {
 			MMLEventList obj = (MMLEventList) super.clone();
-			obj.noteList = new ArrayList<>();
-			for (MMLNoteEvent note : noteList) {
-				obj.noteList.add(note.clone());
+			// ノートは配列にまとめて共有し, 変更するときにオブジェクトを作る.
+			// 展開済みのリストは O(n) で配列にまとめ直す. cloneを参照するだけなら, 再び展開することはない.
+			PackedNoteList packed = packedNotes;
+			if (packed != null) {
+				obj.packedNotes = packed.copy();
+			} else if (!noteList.isEmpty()) {
+				obj.packedNotes = PackedNoteList.of(noteList);
+				obj.noteList = null;
+			} else {
+				obj.noteList = new ArrayList<>();
 			}
 			obj.tempoList = new ArrayList<>();
 			for (MMLTempoEvent tempo : tempoList) {
@@ -375,7 +859,7 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	public int getAlignmentStartTick(MMLEventList list2, int tickOffset) {
-		MMLNoteEvent target = list2.searchOnTickOffset(tickOffset);
+		MMLNoteEvent target = list2.getNoteOnTickOffset(tickOffset);
 		if ( (target == null) || (target.getTickOffset() == tickOffset) ) {
 			return tickOffset;
 		} else {
@@ -384,7 +868,7 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	public int getAlignmentEndTick(MMLEventList list2, int endTick) {
-		MMLNoteEvent target = list2.searchOnTickOffset(endTick-1);
+		MMLNoteEvent target = list2.getNoteOnTickOffset(endTick-1);
 		if ( (target == null) || (target.getEndTick() == endTick) ) {
 			return endTick;
 		} else {
@@ -393,6 +877,7 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	public void swap(MMLEventList list2, int startTick, int endTick) {
+		List<MMLNoteEvent> noteList = notes();
 		List<MMLNoteEvent> tmp1 = new ArrayList<>();
 		List<MMLNoteEvent> tmp2 = new ArrayList<>();
 		for (MMLNoteEvent noteEvent : noteList) {
@@ -403,6 +888,8 @@ public final class MMLEventList implements Serializable, Cloneable {
 		for (MMLNoteEvent noteEvent : tmp1) {
 			noteList.remove(noteEvent);
 		}
+		markDirty();
+		list2.markDirty();
 
 		for (MMLNoteEvent noteEvent : list2.getMMLNoteEventList()) {
 			if ( (noteEvent.getTickOffset() >= startTick) && (noteEvent.getEndTick() <= endTick) ) {
@@ -416,11 +903,13 @@ public final class MMLEventList implements Serializable, Cloneable {
 		for (MMLNoteEvent noteEvent : tmp1) {
 			list2.addMMLNoteEvent(noteEvent);
 		}
+		markDirty();
+		list2.markDirty();
 	}
 
 	public void move(MMLEventList list2, int startTick, int endTick) {
 		List<MMLNoteEvent> tmp1 = new ArrayList<>();
-		for (MMLNoteEvent noteEvent : noteList) {
+		for (MMLNoteEvent noteEvent : notes()) {
 			if ( (noteEvent.getTickOffset() >= startTick) && (noteEvent.getEndTick() <= endTick) ) {
 				tmp1.add(noteEvent);
 			}
@@ -432,11 +921,36 @@ public final class MMLEventList implements Serializable, Cloneable {
 	}
 
 	public void copy(MMLEventList list2, int startTick, int endTick) {
-		for (MMLNoteEvent noteEvent : noteList) {
+		forEachNote(noteEvent -> {
 			if ( (noteEvent.getTickOffset() >= startTick) && (noteEvent.getEndTick() <= endTick) ) {
 				list2.addMMLNoteEvent( noteEvent.clone() );
 			}
+		});
+	}
+
+	/**
+	 * ノートの内容が同じかどうかを判定します. ハッシュが異なる場合は, ノートを比較しません.
+	 * @param eventList
+	 * @return
+	 */
+	public boolean equalsNoteList(MMLEventList eventList) {
+		int count = noteCount();
+		if ( (count != eventList.noteCount()) || (this.getContentHash() != eventList.getContentHash()) ) {
+			return false;
+		}
+		PackedNoteList packed1 = packed();
+		PackedNoteList packed2 = eventList.packed();
+		if ( (packed1 != null) && packed1.sameNotes(packed2) ) {
+			return true;
+		}
+		MMLNoteEvent flyweight1 = PackedNoteList.newFlyweight();
+		MMLNoteEvent flyweight2 = PackedNoteList.newFlyweight();
+		for (int i = 0; i < count; i++) {
+			if (!noteAt(packed1, i, flyweight1).equals(eventList.noteAt(packed2, i, flyweight2))) {
+				return false;
+			}
 		}
+		return true;
 	}
 
 	@Override
@@ -446,10 +960,16 @@ public final class MMLEventList implements Serializable, Cloneable {
 		}
 
 		MMLEventList eventList = (MMLEventList) obj;
-		if ( Arrays.equals(this.noteList.toArray(), eventList.noteList.toArray()) &&
+		if ( equalsNoteList(eventList) &&
 				Arrays.equals(this.tempoList.toArray(), eventList.tempoList.toArray()) ) {
 			return true;
 		}
 		return false;
 	}
+
+	@Override
+	public int hashCode() {
+		long hash = getContentHash();
+		return (int) (hash ^ (hash >>> 32));
+	}
 }
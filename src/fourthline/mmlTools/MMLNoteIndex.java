@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.List;
+
+/**
+ * ノートリストのtick範囲検索用のインデックス.
+ * <p>開始位置の配列と, 先頭からの終了位置の最大値の配列を持ち, 範囲の検索を O(log n) で行います.
+ * 終了位置の最大値は単調増加のため, ノートが重なっていても二分探索できます.</p>
+ * <p>編集中にノートを直接移動した場合など, 開始位置の順に並んでいないときは全体を範囲とします.</p>
+ * <p>作成後は変更しないため, 複数のスレッドから参照できます.</p>
+ */
+final class MMLNoteIndex {
+	private final long version;
+	private final int startTick[];
+	private final int maxEndTick[];
+	private final boolean sorted;
+
+	/**
+	 * @param noteList
+	 * @param version 作成したときのノートリストのバージョン
+	 */
+	MMLNoteIndex(List<MMLNoteEvent> noteList, long version) {
+		this.version = version;
+		int size = noteList.size();
+		startTick = new int[size];
+		maxEndTick = new int[size];
+		for (int i = 0; i < size; i++) {
+			MMLNoteEvent noteEvent = noteList.get(i);
+			startTick[i] = noteEvent.getTickOffset();
+			maxEndTick[i] = noteEvent.getEndTick();
+		}
+		sorted = accumulate();
+	}
+
+	/**
+	 * 配列にまとめたノートから, ノートのオブジェクトを作らずに作成します.
+	 * @param packedNotes
+	 * @param version 作成したときのノートリストのバージョン
+	 */
+	MMLNoteIndex(PackedNoteList packedNotes, long version) {
+		this.version = version;
+		int size = packedNotes.size();
+		startTick = new int[size];
+		maxEndTick = new int[size];
+		for (int i = 0; i < size; i++) {
+			startTick[i] = packedNotes.getTickOffset(i);
+			maxEndTick[i] = packedNotes.getEndTick(i);
+		}
+		sorted = accumulate();
+	}
+
+	/**
+	 * 終了位置の配列を, 先頭からの最大値にします.
+	 * @return 開始位置の順に並んでいればtrue.
+	 */
+	private boolean accumulate() {
+		boolean sorted = true;
+		for (int i = 1; i < startTick.length; i++) {
+			maxEndTick[i] = Math.max(maxEndTick[i-1], maxEndTick[i]);
+			if (startTick[i-1] > startTick[i]) {
+				sorted = false;
+			}
+		}
+		return sorted;
+	}
+
+	long getVersion() {
+		return version;
+	}
+
+	int size() {
+		return startTick.length;
+	}
+
+	/**
+	 * 終了位置が指定位置より後ろになる可能性のある最初のindex.
+	 * @param tick
+	 * @return 該当するノートがない場合は, ノート数を返します.
+	 */
+	int fromIndex(long tick) {
+		if (!sorted) {
+			return 0;
+		}
+		int low = 0;
+		int high = maxEndTick.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (maxEndTick[mid] <= tick) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 開始位置が指定位置より後ろになる最初のindex.
+	 * @param tick
+	 * @return 該当するノートがない場合は, ノート数を返します.
+	 */
+	int toIndex(long tick) {
+		if (!sorted) {
+			return startTick.length;
+		}
+		int low = 0;
+		int high = startTick.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (startTick[mid] <= tick) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+}
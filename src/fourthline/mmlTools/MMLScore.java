@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2015 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools;
@@ -13,9 +13,9 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 import fourthline.mabiicco.midi.MabiDLS;
 import fourthline.mmlTools.core.MMLTicks;
@@ -31,8 +31,8 @@ import fourthline.mmlTools.parser.TextParser;
  * Score
  */
 public final class MMLScore implements IMMLFileParser {
-	private final LinkedList<MMLTrack> trackList = new LinkedList<>();
-	private final List<MMLTempoEvent> globalTempoList = new ArrayList<>();
+	private final AtomicReference<TrackSnapshot> tracks = new AtomicReference<>(TrackSnapshot.EMPTY);
+	private final MMLTempoList globalTempoList = new MMLTempoList();
 	private final List<Marker> markerList = new ArrayList<>();
 
 	public static final int MAX_TRACK = 12;
@@ -47,34 +47,51 @@ public final class MMLScore implements IMMLFileParser {
 	 * @param track
 	 * @return トラック数の上限を超えていて、追加できないときは -1. 追加できた場合は、追加したindex値を返します(0以上).
 	 */
-	public synchronized int addTrack(MMLTrack track) {
-		if (trackList.size() >= MAX_TRACK) {
+	public int addTrack(MMLTrack track) {
+		if (getTrackCount() >= MAX_TRACK) {
 			return -1;
 		}
 
-		// トラックリストの末尾に追加
-		trackList.add(track);
-		int trackIndex = trackList.size() - 1;
-
 		// グローバルテンポリストの統合.
 		MMLTempoEvent.mergeTempoList(track.getGlobalTempoList(), globalTempoList);
 		track.setGlobalTempoList(globalTempoList);
 
-		return trackIndex;
+		// トラックリストの末尾に追加
+		TrackSnapshot snapshot = updateTracks(t -> (t.size() < MAX_TRACK) ? t.add(track) : t);
+		if ( (snapshot.size() == 0) || (snapshot.get(snapshot.size() - 1) != track) ) {
+			return -1;
+		}
+		return snapshot.size() - 1;
 	}
 
 	/**
 	 * 指定したindexのトラックを削除します.
 	 * @param index
 	 */
-	public synchronized void removeTrack(int index) {
-		trackList.remove(index);
+	public void removeTrack(int index) {
+		updateTracks(t -> t.remove(index));
 	}
 
-	public synchronized void moveTrack(int fromIndex, int toIndex) {
-		MMLTrack mmlTrack = getTrack(fromIndex);
-		removeTrack(fromIndex);
-		trackList.add(toIndex, mmlTrack);
+	public void moveTrack(int fromIndex, int toIndex) {
+		updateTracks(t -> t.move(fromIndex, toIndex));
+	}
+
+	/**
+	 * トラック列を更新し, 新しいスナップショットを公開します.
+	 * @param update 現在のスナップショットから新しいスナップショットを作る. 他のスレッドと競合した場合は再度呼ばれます.
+	 * @return 公開したスナップショット
+	 */
+	private TrackSnapshot updateTracks(UnaryOperator<TrackSnapshot> update) {
+		return tracks.updateAndGet(update);
+	}
+
+	/**
+	 * 現在のトラック列のスナップショットを取得します.
+	 * 複数回トラックを参照する処理は, 1つのスナップショットを使うことで一貫した内容を参照できます.
+	 * @return
+	 */
+	public TrackSnapshot getTrackSnapshot() {
+		return tracks.get();
 	}
 
 	/**
@@ -82,15 +99,15 @@ public final class MMLScore implements IMMLFileParser {
 	 * @return
 	 */
 	public int getTrackCount() {
-		return trackList.size();
+		return tracks.get().size();
 	}
 
 	/**
 	 * 保持しているトラックリストを返します.
-	 * @return MMLTrackの配列
+	 * @return 現在のスナップショットの, 変更できないトラックのリスト
 	 */
-	public synchronized List<MMLTrack> getTrackList() {
-		return trackList;
+	public List<MMLTrack> getTrackList() {
+		return tracks.get().getTrackList();
 	}
 
 	/**
@@ -99,7 +116,7 @@ public final class MMLScore implements IMMLFileParser {
 	 * @return
 	 */
 	public MMLTrack getTrack(int index) {
-		return trackList.get(index);
+		return tracks.get().get(index);
 	}
 
 	/**
@@ -108,21 +125,30 @@ public final class MMLScore implements IMMLFileParser {
 	 * @param track
 	 */
 	public void setTrack(int index, MMLTrack track) {
-		trackList.set(index, track);
-
 		// グローバルテンポリストの統合.
 		MMLTempoEvent.mergeTempoList(track.getGlobalTempoList(), globalTempoList);
 		track.setGlobalTempoList(globalTempoList);
+
+		updateTracks(t -> t.set(index, track));
 	}
 
 	public int getTempoOnTick(long tickOffset) {
-		return MMLTempoEvent.searchOnTick(globalTempoList, tickOffset);
+		return getTempoMap().getTempoOnTick(tickOffset);
 	}
 
-	public List<MMLTempoEvent> getTempoEventList() {
+	public MMLTempoList getTempoEventList() {
 		return globalTempoList;
 	}
 
+	/**
+	 * グローバルテンポリストに対応するTempoMapを取得します.
+	 * テンポリストが変更されていれば作り直します.
+	 * @return
+	 */
+	public TempoMap getTempoMap() {
+		return globalTempoList.getTempoMap();
+	}
+
 	public List<Marker> getMarkerList() {
 		return markerList;
 	}
@@ -169,6 +195,30 @@ public final class MMLScore implements IMMLFileParser {
 		numTime = value;
 	}
 
+	/**
+	 * スコア全体の内容のハッシュを取得します.
+	 * トラックごとのハッシュ ({@link MMLTrack#getContentHash()}), テンポ, マーカー, タイトルなどを集計します.
+	 * @return 64bitハッシュ
+	 */
+	public long getContentHash() {
+		long hash = 0;
+		for (MMLTrack track : getTrackSnapshot()) {
+			hash = ContentHash.combine(hash, track.getContentHash());
+		}
+		hash = ContentHash.combine(hash, globalTempoList.size());
+		for (MMLTempoEvent tempoEvent : globalTempoList) {
+			hash = ContentHash.combine(hash, ((long) tempoEvent.getTickOffset() << 32) | tempoEvent.getTempo());
+		}
+		hash = ContentHash.combine(hash, markerList.size());
+		for (Marker marker : markerList) {
+			hash = ContentHash.combine(hash, ((long) marker.getTickOffset() << 32) ^ ContentHash.of(marker.getName()));
+		}
+		hash = ContentHash.combine(hash, ContentHash.of(title));
+		hash = ContentHash.combine(hash, ContentHash.of(author));
+		hash = ContentHash.combine(hash, ((long) numTime << 32) | baseTime);
+		return hash;
+	}
+
 	public int getMeasureTick() {
 		return (getTimeCountOnly() * getBeatTick());
 	}
@@ -184,12 +234,13 @@ public final class MMLScore implements IMMLFileParser {
 	public void addTicks(int tickPosition, int tick) {
 		for (MMLTrack track : getTrackList()) {
 			for (MMLEventList eventList : track.getMMLEventList()) {
-				MMLEvent.insertTick(eventList.getMMLNoteEventList(), tickPosition, tick);
+				eventList.insertTick(tickPosition, tick);
 			}
 		}
 
 		// テンポ
 		MMLEvent.insertTick(globalTempoList, tickPosition, tick);
+		globalTempoList.markDirty();
 
 		// マーカー
 		MMLEvent.insertTick(markerList, tickPosition, tick);
@@ -198,12 +249,13 @@ public final class MMLScore implements IMMLFileParser {
 	public void removeTicks(int tickPosition, int tick) {
 		for (MMLTrack track : getTrackList()) {
 			for (MMLEventList eventList : track.getMMLEventList()) {
-				MMLEvent.removeTick(eventList.getMMLNoteEventList(), tickPosition, tick);
+				eventList.removeTick(tickPosition, tick);
 			}
 		}
 
 		// テンポ
 		MMLEvent.removeTick(globalTempoList, tickPosition, tick);
+		globalTempoList.markDirty();
 
 		// マーカー
 		MMLEvent.removeTick(markerList, tickPosition, tick);
@@ -211,7 +263,7 @@ public final class MMLScore implements IMMLFileParser {
 
 	public int getTotalTickLength() {
 		long tick = 0;
-		for (MMLTrack track : trackList) {
+		for (MMLTrack track : getTrackSnapshot()) {
 			long currentTick = track.getMaxTickLength();
 			if (tick < currentTick) {
 				tick = currentTick;
@@ -246,7 +298,7 @@ public final class MMLScore implements IMMLFileParser {
 			stream.println("author="+getAuthor());
 			stream.println("time="+getBaseTime());
 
-			for (MMLTrack track : trackList) {
+			for (MMLTrack track : getTrackSnapshot()) {
 				stream.println("mml-track="+track.getOriginalMML());
 				stream.println("name="+track.getTrackName());
 				stream.println("program="+track.getProgram());
@@ -289,20 +341,49 @@ public final class MMLScore implements IMMLFileParser {
 	 */
 	public MMLScore toGeneratedScore() {
 		try {
+			byte objState[] = this.getObjectState();
 			MMLScore score = new MMLScore();
-			score.putObjectState( this.getObjectState() );
+			score.putObjectState(objState);
+			// 読み直したノートが異なれば, generateしても同じ結果にはならない.
+			if (!equalsNotes(score)) {
+				return this;
+			}
 			score.generateAll();
-			if ( Arrays.equals(this.getObjectState(), score.getObjectState()) ) {
+			if ( Arrays.equals(objState, score.getObjectState()) ) {
 				return score;
 			}
 		} catch (UndefinedTickException e) {}
 		return this;
 	}
 
+	/**
+	 * 各トラックのノートのハッシュが一致するかどうか.
+	 */
+	private boolean equalsNotes(MMLScore score) {
+		TrackSnapshot snapshot1 = getTrackSnapshot();
+		TrackSnapshot snapshot2 = score.getTrackSnapshot();
+		if (snapshot1.size() != snapshot2.size()) {
+			return false;
+		}
+		for (int i = 0; i < snapshot1.size(); i++) {
+			List<MMLEventList> parts1 = snapshot1.get(i).getMMLEventList();
+			List<MMLEventList> parts2 = snapshot2.get(i).getMMLEventList();
+			if (parts1.size() != parts2.size()) {
+				return false;
+			}
+			for (int j = 0; j < parts1.size(); j++) {
+				if (parts1.get(j).getContentHash() != parts2.get(j).getContentHash()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	@Override
 	public MMLScore parse(InputStream istream) throws MMLParseException {
 		this.globalTempoList.clear();
-		this.trackList.clear();
+		updateTracks(TrackSnapshot::clear);
 		this.markerList.clear();
 
 		List<SectionContents> contentsList = SectionContents.makeSectionContentsByInputStream(istream, "UTF-8");
@@ -326,16 +407,21 @@ public final class MMLScore implements IMMLFileParser {
 	private void parseMMLScore(String contents) {
 		TextParser.text(contents)
 		.pattern("mml-track=",   t -> this.addTrack(new MMLTrack().setMML(t)) )
-		.pattern("name=",        t -> this.trackList.getLast().setTrackName(t) )
-		.pattern("program=",     t -> this.trackList.getLast().setProgram(Integer.parseInt(t)) )
-		.pattern("songProgram=", t -> this.trackList.getLast().setSongProgram(Integer.parseInt(t)) )
-		.pattern("panpot=",      t -> this.trackList.getLast().setPanpot(Integer.parseInt(t)) )
+		.pattern("name=",        t -> lastTrack().setTrackName(t) )
+		.pattern("program=",     t -> lastTrack().setProgram(Integer.parseInt(t)) )
+		.pattern("songProgram=", t -> lastTrack().setSongProgram(Integer.parseInt(t)) )
+		.pattern("panpot=",      t -> lastTrack().setPanpot(Integer.parseInt(t)) )
 		.pattern("title=",       this::setTitle )
 		.pattern("author=",      this::setAuthor )
 		.pattern("time=",        this::setBaseTime )
 		.parse();
 	}
 
+	private MMLTrack lastTrack() {
+		TrackSnapshot snapshot = getTrackSnapshot();
+		return snapshot.get(snapshot.size() - 1);
+	}
+
 	/**
 	 * parse [marker] contents
 	 * @param contents
@@ -350,34 +436,72 @@ public final class MMLScore implements IMMLFileParser {
 		}
 	}
 
-	public MMLScore generateAll() throws UndefinedTickException {
-		Stack<UndefinedTickException> exceptionStack = new Stack<>();
-		trackList.parallelStream().forEach(t -> {
-			try {
-				t.generate();
-			} catch (UndefinedTickException e) {
-				exceptionStack.push(e);
+	/**
+	 * 前回のgenerateから変更のあったトラックを取得します.
+	 * 編集操作で変更したパートと, グローバルテンポの変更 (テンポを出力するパート) を変更とします.
+	 * @param trackSnapshot
+	 * @return 変更のあったトラックのindex
+	 */
+	public static int[] getModifiedTrackIndexes(TrackSnapshot trackSnapshot) {
+		int count = trackSnapshot.size();
+		int indexes[] = new int[count];
+		int modifiedCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (trackSnapshot.get(i).isModified()) {
+				indexes[modifiedCount++] = i;
 			}
-		});
-		if (!exceptionStack.isEmpty()) {
-			throw exceptionStack.pop();
 		}
+		return Arrays.copyOf(indexes, modifiedCount);
+	}
+
+	/**
+	 * 変更のあったトラックを {@link ScoreGenerator#getDefault()} で generate します.
+	 * @return
+	 * @throws UndefinedTickException 失敗したトラックのうち, 最初のトラックの例外.
+	 */
+	public MMLScore generateAll() throws UndefinedTickException {
+		generateModifiedTracks();
 		return this;
 	}
 
+	/**
+	 * 変更のあったトラックだけを generate します.
+	 * @return generateしたトラックのindex
+	 * @throws UndefinedTickException 失敗したトラックのうち, 最初のトラックの例外.
+	 */
+	public int[] generateModifiedTracks() throws UndefinedTickException {
+		TrackSnapshot trackSnapshot = getTrackSnapshot();
+		int indexes[] = getModifiedTrackIndexes(trackSnapshot);
+		if (indexes.length > 0) {
+			ScoreGenerator.checkResult(ScoreGenerator.getDefault().generate(trackSnapshot, indexes));
+		}
+		return indexes;
+	}
+
+	/**
+	 * すべてのトラックの generate を開始します. 完了は返り値の {@link ScoreGenerator.Job} で待ちます.
+	 * @param generator
+	 * @param listener 進捗の通知先. nullの場合は通知しません.
+	 * @return
+	 */
+	public ScoreGenerator.Job generateAll(ScoreGenerator generator, ScoreGenerator.ProgressListener listener) {
+		return generator.submit(getTrackSnapshot(), listener);
+	}
+
 	/**
 	 * 移調する.
 	 * @param transpose
 	 */
 	public void transpose(int transpose) {
 		MabiDLS dls = MabiDLS.getInstance();
-		for (MMLTrack track : trackList) {
+		for (MMLTrack track : getTrackSnapshot()) {
 			// 移調ができる楽器の種類かを確認. 通常の打楽器は不可, シロフォンは可能.
 			if (dls.getInstByProgram(track.getProgram()).getType().allowTranspose()) {
 				for (MMLEventList eventList : track.getMMLEventList()) {
 					for (MMLNoteEvent note : eventList.getMMLNoteEventList()) {
 						note.setNote( note.getNote() + transpose );
 					}
+					eventList.markDirty();
 				}
 			}
 		}
@@ -8,8 +8,6 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
-import fourthline.mmlTools.core.MMLTickTable;
-
 
 public final class MMLTempoEvent extends MMLEvent implements Cloneable {
 	private static final long serialVersionUID = 8014294359518840951L;
@@ -106,57 +104,26 @@ public final class MMLTempoEvent extends MMLEvent implements Cloneable {
 
 	/**
 	 * 指定したtickオフセット位置の先頭からの時間を返します.
+	 * 繰り返し変換する場合は, {@link TempoMap} を使用してください.
+	 * {@link MMLTempoList} の場合は, 保持しているTempoMapで変換します.
 	 * @param tempoList
 	 * @param tickOffset
 	 * @return 先頭からの時間（ms）
 	 */
 	public static long getTimeOnTickOffset(List<MMLTempoEvent> tempoList, int tickOffset) {
-		long totalTime = 0L;
-
-		int tempo = INITIAL_TEMPO;
-		int currentTick = 0;
-		for (MMLTempoEvent tempoEvent : tempoList) {
-			int currentTempoTick = tempoEvent.getTickOffset();
-			if (tickOffset < currentTempoTick) {
-				break;
-			}
-
-			int currentTempo = tempoEvent.getTempo();
-			if (tempo != currentTempo) {
-				totalTime += (currentTempoTick - currentTick) * 60 / tempo * 1000;
-				currentTick = currentTempoTick;
-			}
-
-			tempo = currentTempo;
-		}
-
-		totalTime += (tickOffset - currentTick) * 60 / tempo * 1000;
-		totalTime /= (double) MMLTickTable.TPQN;
-		return totalTime;
+		return TempoMap.update(null, tempoList).getTimeOnTickOffset(tickOffset);
 	}
 
 	/**
 	 * 指定した時間からtickオフセットを返します.
+	 * 繰り返し変換する場合は, {@link TempoMap} を使用してください.
+	 * {@link MMLTempoList} の場合は, 保持しているTempoMapで変換します.
 	 * @param tempoList
-	 * @param time
-	 * @return 先頭からの時間（ms）
+	 * @param time 先頭からの時間（ms）
+	 * @return tickオフセット
 	 */
 	public static long getTickOffsetOnTime(List<MMLTempoEvent> tempoList, long time) {
-		int tempo = INITIAL_TEMPO;
-		long pointTime = 0;
-		long tick = 0;
-		for (MMLTempoEvent tempoEvent : tempoList) {
-			long tempoTime = getTimeOnTickOffset(tempoList, tempoEvent.getTickOffset());
-			if (time <= tempoTime) {
-				break;
-			}
-			pointTime = tempoTime;
-			tempo = tempoEvent.getTempo();
-			tick = tempoEvent.getTickOffset();
-		}
-
-		tick += (time - pointTime) * MMLTickTable.TPQN * tempo / 60 / 1000;
-		return tick;
+		return TempoMap.update(null, tempoList).getTickOffsetOnTime(time);
 	}
 
 	/**
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.ArrayList;
+
+/**
+ * スコアで共有するグローバルテンポリスト.
+ * <p>対応する {@link TempoMap} を保持し, リストが変更されたときだけ作り直します.
+ * 追加, 削除はリストの変更として検出します.
+ * リスト中のテンポイベントを直接書き換えた場合は, {@link #markDirty()} を呼んでください.</p>
+ */
+public final class MMLTempoList extends ArrayList<MMLTempoEvent> {
+	private static final long serialVersionUID = 3190627314870484022L;
+
+	// テンポイベントの直接の書き換えと set の回数.
+	private int editCount = 0;
+
+	// 作成したTempoMapと, 作成時のリストの状態. 別スレッドからも参照するため, まとめて置き換える.
+	private static final class Cache {
+		private final TempoMap tempoMap;
+		private final int modCount;
+		private final int editCount;
+
+		private Cache(TempoMap tempoMap, int modCount, int editCount) {
+			this.tempoMap = tempoMap;
+			this.modCount = modCount;
+			this.editCount = editCount;
+		}
+	}
+	private transient volatile Cache cache = null;
+
+	/**
+	 * リスト中のテンポイベントを直接変更したことを記録します.
+	 */
+	public void markDirty() {
+		editCount++;
+	}
+
+	@Override
+	public MMLTempoEvent set(int index, MMLTempoEvent element) {
+		editCount++;
+		return super.set(index, element);
+	}
+
+	/**
+	 * テンポリストに対応するTempoMapを取得します. 変更がなければ前回と同じものを返します.
+	 * @return
+	 */
+	public TempoMap getTempoMap() {
+		Cache c = cache;
+		if ( (c == null) || (c.modCount != modCount) || (c.editCount != editCount) ) {
+			c = new Cache(new TempoMap(this), modCount, editCount);
+			cache = c;
+		}
+		return c.tempoMap;
+	}
+}
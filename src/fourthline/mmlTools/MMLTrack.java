@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2015 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools;
@@ -20,6 +20,7 @@ public final class MMLTrack implements Serializable {
 	private static final int PART_COUNT = 4;
 	private List<MMLEventList> mmlParts = new ArrayList<>();
 	private List<MMLTempoEvent> globalTempoList = new ArrayList<>();
+	private transient TempoMap tempoMap = null;
 	private boolean generated = false;
 
 	private int program = 0;
@@ -35,6 +36,17 @@ public final class MMLTrack implements Serializable {
 	// コーラスオプション (楽器＋歌）
 	private int songProgram = -1;  // コーラスを使用しない.
 
+	// 前回generateしたときのパートごとの状態. 変更のあったパートだけを作り直すために使います.
+	private transient PartCache partCache[] = null;
+	private transient TempoMap generatedTempoMap = null;
+	private transient int generatedTotalTick = -1;
+
+	// copyForGenerateで作成したコピーの, コピー元の状態.
+	private transient MMLTrack copySource = null;
+	private transient MMLEventList copySourceParts[] = null;
+	private transient long copySourceVersions[] = null;
+	private transient TempoMap copySourceTempoMap = null;
+
 	public MMLTrack() {
 		mmlParse();
 		generated = true;
@@ -117,6 +129,18 @@ public final class MMLTrack implements Serializable {
 		return mml;
 	}
 
+	/**
+	 * 編集用のMMLを取得する.
+	 * @return　各パートのMML文字列
+	 */
+	public String[] getOriginalMMLArray() {
+		String mml[] = new String[ PART_COUNT ];
+		for (int i = 0; i < mml.length; i++) {
+			mml[i] = originalMML.getText(i);
+		}
+		return mml;
+	}
+
 	public void setGlobalTempoList(List<MMLTempoEvent> globalTempoList) {
 		this.globalTempoList = globalTempoList;
 
@@ -129,6 +153,16 @@ public final class MMLTrack implements Serializable {
 		return this.globalTempoList;
 	}
 
+	/**
+	 * グローバルテンポリストに対応するTempoMapを取得します.
+	 * @return
+	 */
+	public TempoMap getTempoMap() {
+		TempoMap map = TempoMap.update(tempoMap, globalTempoList);
+		tempoMap = map;
+		return map;
+	}
+
 	public MMLTrack setProgram(int program) {
 		this.program = program;
 		return this;
@@ -175,6 +209,22 @@ public final class MMLTrack implements Serializable {
 		return mmlParts;
 	}
 
+	/**
+	 * ノートとトラックの設定 (名前, 楽器, パンポット) の内容のハッシュを取得します.
+	 * テンポはスコアで扱うため含みません.
+	 * @return 64bitハッシュ
+	 */
+	public long getContentHash() {
+		long hash = mmlParts.size();
+		for (MMLEventList eventList : mmlParts) {
+			hash = ContentHash.combine(hash, eventList.getContentHash());
+		}
+		hash = ContentHash.combine(hash, program);
+		hash = ContentHash.combine(hash, songProgram);
+		hash = ContentHash.combine(hash, panpot);
+		return ContentHash.combine(hash, ContentHash.of(trackName));
+	}
+
 	public long getMaxTickLength() {
 		long max = 0;
 		for (MMLEventList eventList : mmlParts) {
@@ -187,45 +237,273 @@ public final class MMLTrack implements Serializable {
 		return max;
 	}
 
+	/**
+	 * 前回generateしたときのパートごとの出力.
+	 */
+	private static final class PartCache {
+		private MMLEventList eventList = null;
+		private long version = -1;
+		private long hash = 0;
+		private String originalSource = null;
+		private String originalMML = "";
+		private String mabiSource = null;
+		private String mabiMML = "";
+
+		private boolean isModified(MMLEventList eventList) {
+			if (this.eventList != eventList) {
+				return true;
+			}
+			if (this.version == eventList.getVersion()) {
+				return false;
+			}
+			// 編集を取り消した場合など, 内容が前回と同じであれば作り直さない.
+			// ハッシュが一致したときは, 前回のMMLを読み直して確認する.
+			if ( (this.hash != eventList.getContentHash())
+					|| !new MMLEventList(originalMML).equalsNoteList(eventList) ) {
+				return true;
+			}
+			this.version = eventList.getVersion();
+			return false;
+		}
+
+		private void update(MMLEventList eventList) {
+			this.eventList = eventList;
+			this.version = eventList.getVersion();
+			this.hash = eventList.getContentHash();
+		}
+
+		private PartCache copy(MMLEventList eventList, long version) {
+			PartCache cache = new PartCache();
+			cache.eventList = eventList;
+			cache.version = version;
+			cache.hash = hash;
+			cache.originalSource = originalSource;
+			cache.originalMML = originalMML;
+			cache.mabiSource = mabiSource;
+			cache.mabiMML = mabiMML;
+			return cache;
+		}
+	}
+
+	/**
+	 * 別スレッドで generate するためのコピーを作成します.
+	 * ノートとテンポをコピーし, 前回のgenerateの状態も引き継ぎます.
+	 * <p>EDTから呼び出すため, パートはバージョンだけで比較し, MMLを読み直しません.</p>
+	 * コピーを generate した結果は {@link #applyGenerated(MMLTrack)} で反映します.
+	 * @return
+	 */
+	public MMLTrack copyForGenerate() {
+		MMLTrack copy = new MMLTrack();
+		try {
+			for (MMLTempoEvent tempo : globalTempoList) {
+				copy.globalTempoList.add(tempo.clone());
+			}
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e.getMessage());
+		}
+		int count = mmlParts.size();
+		boolean cacheValid = (partCache != null) && (partCache.length == count);
+		copy.mmlParts.clear();
+		copy.partCache = cacheValid ? new PartCache[count] : null;
+		copy.copySourceParts = new MMLEventList[count];
+		copy.copySourceVersions = new long[count];
+		for (int i = 0; i < count; i++) {
+			MMLEventList eventList = mmlParts.get(i);
+			MMLEventList copyList = eventList.clone();
+			copyList.setGlobalTempoList(copy.globalTempoList);
+			copy.mmlParts.add(copyList);
+			copy.copySourceParts[i] = eventList;
+			copy.copySourceVersions[i] = eventList.getVersion();
+			if (cacheValid) {
+				// 別のパートに置き換わった場合は, 最適化前のMMLだけを引き継ぐ.
+				// バージョンだけを比較し, 内容の比較 (MMLの読み直し) はコピーの generate で行う.
+				PartCache cache = partCache[i];
+				if (cache.eventList != eventList) {
+					copy.partCache[i] = cache.copy(null, copyList.getVersion());
+				} else {
+					long version = (cache.version == eventList.getVersion()) ? copyList.getVersion() : -1;
+					copy.partCache[i] = cache.copy(copyList, version);
+				}
+			}
+		}
+		copy.originalMML.setMMLText(getOriginalMMLArray());
+		copy.mabiMML.setMMLText(getMabiMMLArray());
+		copy.copySourceTempoMap = getTempoMap();
+		copy.tempoMap = copy.copySourceTempoMap;
+		copy.generatedTempoMap = generatedTempoMap;
+		copy.generatedTotalTick = generatedTotalTick;
+		copy.generated = generated;
+		copy.copySource = this;
+		return copy;
+	}
+
+	/**
+	 * {@link #copyForGenerate()} で作成し, generateしたコピーの結果を反映します.
+	 * @param copy
+	 * @return コピーの作成後にノートやテンポが変更されていて, 反映できない場合はfalse.
+	 */
+	public boolean applyGenerated(MMLTrack copy) {
+		int count = mmlParts.size();
+		if ( (copy.copySource != this) || (copy.partCache == null) || (copy.copySourceParts.length != count) ) {
+			return false;
+		}
+		for (int i = 0; i < count; i++) {
+			MMLEventList eventList = mmlParts.get(i);
+			if ( (eventList != copy.copySourceParts[i]) || (eventList.getVersion() != copy.copySourceVersions[i]) ) {
+				return false;
+			}
+		}
+		if (getTempoMap() != copy.copySourceTempoMap) {
+			return false;
+		}
+
+		originalMML.setMMLText(copy.getOriginalMMLArray());
+		mabiMML.setMMLText(copy.getMabiMMLArray());
+		partCache = new PartCache[count];
+		for (int i = 0; i < count; i++) {
+			MMLEventList eventList = mmlParts.get(i);
+			partCache[i] = copy.partCache[i].copy(eventList, copy.copySourceVersions[i]);
+			eventList.clearDirty();
+		}
+		generatedTempoMap = copy.generatedTempoMap;
+		generatedTotalTick = copy.generatedTotalTick;
+		generated = copy.generated;
+		return true;
+	}
+
+	/**
+	 * 変更のあったパートを調べる. テンポと全体の長さは, テンポを出力するパートに影響する.
+	 * @param originalUpdate 入力用MMLを作り直すパート
+	 * @param mabiUpdate 出力用MMLを作り直すパート
+	 */
+	private void checkModifiedParts(TempoMap currentTempoMap, int totalTick, boolean originalUpdate[], boolean mabiUpdate[]) {
+		int count = mmlParts.size();
+		boolean cacheValid = (partCache != null) && (partCache.length == count);
+		boolean tempoModified = (generatedTempoMap != currentTempoMap);
+		boolean tickModified = (generatedTotalTick != totalTick);
+		boolean modified[] = new boolean[count];
+		for (int i = 0; i < count; i++) {
+			modified[i] = !cacheValid || partCache[i].isModified(mmlParts.get(i));
+		}
+		for (int i = 0; i < count; i++) {
+			boolean isPrimaryTempoPart = (i == 0) || (i == 3);
+			originalUpdate[i] = modified[i] || (isPrimaryTempoPart && tempoModified);
+			mabiUpdate[i] = originalUpdate[i] || (isPrimaryTempoPart && tickModified);
+		}
+		// メロディパートの終端補正は和音パートにも依存する.
+		mabiUpdate[0] |= modified[1] || modified[2];
+	}
+
+	/**
+	 * 前回のgenerateから, 出力用MMLの作り直しが必要なパートを取得します.
+	 * ノートの変更はそのパートに, テンポの変更はテンポを出力するパート (0, 3) だけに影響します.
+	 * @return パートごとの作り直しの要否
+	 */
+	public boolean[] getModifiedParts() {
+		int count = mmlParts.size();
+		boolean originalUpdate[] = new boolean[count];
+		boolean mabiUpdate[] = new boolean[count];
+		checkModifiedParts(getTempoMap(), (int)this.getMaxTickLength(), originalUpdate, mabiUpdate);
+		return mabiUpdate;
+	}
+
+	/**
+	 * @return generateが必要なパートがあればtrue.
+	 */
+	public boolean isModified() {
+		for (boolean b : getModifiedParts()) {
+			if (b) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public MMLTrack generate() throws UndefinedTickException {
+		int count = mmlParts.size();
+		TempoMap currentTempoMap = getTempoMap();
+		int totalTick = (int)this.getMaxTickLength();
+		boolean originalUpdate[] = new boolean[count];
+		boolean mabiUpdate[] = new boolean[count];
+		checkModifiedParts(currentTempoMap, totalTick, originalUpdate, mabiUpdate);
+		if ( (partCache == null) || (partCache.length != count) ) {
+			partCache = new PartCache[count];
+			for (int i = 0; i < count; i++) {
+				partCache[i] = new PartCache();
+			}
+		}
+
 		String mml1 = getOriginalMML();
-		originalMML.setMMLText(getMMLStrings(false, false));
-		if (!this.equals(new MMLTrack().setMML(getOriginalMML()))) {
+		originalMML.setMMLText(getMMLStrings(false, false, totalTick, originalUpdate));
+		if (!verify(originalUpdate)) {
 			System.err.println("Verify error.");
 			System.err.println(mml1);
 			System.err.println(getOriginalMML());
+			generatedTempoMap = null;
 			throw new UndefinedTickException("Verify error.");
 		}
-		mabiMML.setMMLText(getMMLStrings(true, true));
+		mabiMML.setMMLText(getMMLStrings(true, true, totalTick, mabiUpdate));
+
+		for (int i = 0; i < count; i++) {
+			MMLEventList eventList = mmlParts.get(i);
+			partCache[i].update(eventList);
+			eventList.clearDirty();
+		}
+		generatedTempoMap = currentTempoMap;
+		generatedTotalTick = totalTick;
 		generated = true;
 		return this;
 	}
 
-	private String[] getMMLStrings(boolean tailFix, boolean mabiTempo) throws UndefinedTickException {
+	/**
+	 * 作り直したパートのMMLを再度パースして, 元のイベントリストと一致するかを確認します.
+	 * @param update 確認するパート
+	 * @return 一致すればtrue.
+	 */
+	private boolean verify(boolean update[]) {
+		for (int i = 0; i < update.length; i++) {
+			if (!update[i]) {
+				continue;
+			}
+			MMLEventList eventList = mmlParts.get(i);
+			MMLEventList verifyList = new MMLEventList(originalMML.getText(i));
+			if (!eventList.equalsNoteList(verifyList)) {
+				return false;
+			}
+			// テンポを出力するパートは, テンポリストも確認する.
+			boolean isPrimaryTempoPart = (i == 0) || ((i == 3) && !originalMML.getText(i).isEmpty());
+			if ( isPrimaryTempoPart && !Arrays.equals(globalTempoList.toArray(), verifyList.getGlobalTempoList().toArray()) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String[] getMMLStrings(boolean tailFix, boolean mabiTempo, int totalTick, boolean update[]) throws UndefinedTickException {
 		int count = mmlParts.size();
 		String mml[] = new String[count];
-		int totalTick = (int)this.getMaxTickLength();
 
 		for (int i = 0; i < count; i++) {
 			// メロディパートのMML更新（テンポ, tickLengthにあわせる.
 			MMLEventList eventList = mmlParts.get(i);
 			boolean isPrimaryTempoPart = (i == 0) || (i == 3);
-			if ( isPrimaryTempoPart ) {
+			if (!update[i]) {
+				mml[i] = null;
+			} else if ( isPrimaryTempoPart ) {
 				mml[i] = eventList.toMMLString(true, totalTick, mabiTempo);
 			} else {
 				mml[i] = eventList.toMMLString();
 			}
 		}
-		if (tailFix) { // 終端補正
-			mml[0] = tailFix(mml[0], mml[1], mml[2]);
+		if (tailFix && update[0]) { // 終端補正
+			mml[0] = tailFix(mml[0], getSourceMML(mml, 1, mabiTempo), getSourceMML(mml, 2, mabiTempo));
 		}
 		// for mabi MML, メロディ～和音2 までがカラの時にはメロディパートもカラにする.
-		if ( mabiTempo && mmlParts.get(0).getMMLNoteEventList().isEmpty() && mml[1].equals("") && mml[2].equals("") ) {
+		if ( mabiTempo && update[0] && mmlParts.get(0).isEmpty()
+				&& getSourceMML(mml, 1, mabiTempo).equals("") && getSourceMML(mml, 2, mabiTempo).equals("") ) {
 			mml[0] = "";
 		}
-		for (int i = 0; i < count; i++) {
-			mml[i] = new MMLStringOptimizer(mml[i]).toString();
-		}
+		optimize(mml, mabiTempo);
 		if ((mmlParts.get(3).getTickLength() == 0)) {
 			mml[3] = "";
 		}
@@ -233,6 +511,46 @@ public final class MMLTrack implements Serializable {
 		return mml;
 	}
 
+	/**
+	 * 最適化前のMMLを取得します. 作り直さなかったパートは前回のものを使います.
+	 */
+	private String getSourceMML(String mml[], int index, boolean mabiTempo) {
+		if (mml[index] != null) {
+			return mml[index];
+		}
+		return mabiTempo ? partCache[index].mabiSource : partCache[index].originalSource;
+	}
+
+	/**
+	 * 各パートのMMLを最適化します. 最適化前のMMLが前回と同じパートは, 前回の結果を使います.
+	 * @param mml 最適化前のMML. nullのパートは前回の結果に置き換えます.
+	 * @param mabiTempo
+	 */
+	private void optimize(String mml[], boolean mabiTempo) {
+		String source[] = new String[mml.length];
+		for (int i = 0; i < mml.length; i++) {
+			String prevSource = mabiTempo ? partCache[i].mabiSource : partCache[i].originalSource;
+			if ( (mml[i] != null) && !mml[i].equals(prevSource) ) {
+				source[i] = mml[i];
+			}
+		}
+
+		String optimized[] = MMLStringOptimizer.optimize(source);
+		for (int i = 0; i < mml.length; i++) {
+			PartCache cache = partCache[i];
+			if (source[i] != null) {
+				if (mabiTempo) {
+					cache.mabiSource = source[i];
+					cache.mabiMML = optimized[i];
+				} else {
+					cache.originalSource = source[i];
+					cache.originalMML = optimized[i];
+				}
+			}
+			mml[i] = mabiTempo ? cache.mabiMML : cache.originalMML;
+		}
+	}
+
 	private String tailFix(String melody, String chord1, String chord2) throws UndefinedTickException {
 		String s = melody;
 		MMLTrack partTrack = new MMLTrack().setMML(melody, chord1, chord2, "");
@@ -260,7 +578,7 @@ public final class MMLTrack implements Serializable {
 	 */
 	public double getPlayTime() {
 		int totalTick = (int)getMaxTickLength();
-		long playTime = MMLTempoEvent.getTimeOnTickOffset(globalTempoList, totalTick);
+		long playTime = getTempoMap().getTimeOnTickOffset(totalTick);
 
 		return playTime/1000.0;
 	}	
@@ -275,7 +593,7 @@ public final class MMLTrack implements Serializable {
 		long partTime[] = new long[mmlParts.size()];
 
 		int melodyTick = (int)mmlParts.get(0).getTickLength();
-		partTime[0] = MMLTempoEvent.getTimeOnTickOffset(globalTempoList, melodyTick);
+		partTime[0] = getTempoMap().getTimeOnTickOffset(melodyTick);
 
 		ArrayList<MMLTempoEvent> globalTailTempo = new ArrayList<>();
 		MMLTempoEvent lastTempoEvent = new MMLTempoEvent(120, 0);
@@ -283,10 +601,11 @@ public final class MMLTrack implements Serializable {
 			lastTempoEvent.setTempo(globalTempoList.get(globalTempoList.size()-1).getTempo());
 		}
 		globalTailTempo.add(new MMLTempoEvent(lastTempoEvent.getTempo(), 0));
+		TempoMap tailTempoMap = new TempoMap(globalTailTempo);
 
 		for (int i = 1; i < partTime.length; i++) {
 			int tick = (int)mmlParts.get(i).getTickLength();
-			partTime[i] = MMLTempoEvent.getTimeOnTickOffset(globalTailTempo, tick);
+			partTime[i] = tailTempoMap.getTimeOnTickOffset(tick);
 		}
 
 		long maxTime = 0;
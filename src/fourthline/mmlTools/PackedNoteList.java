@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import fourthline.mmlTools.core.TuningBase;
+
+/**
+ * ノートの内容を, 項目ごとのint配列にまとめて保持します.
+ * <p>ノートごとにオブジェクトを作らないため, 大きなパートのメモリ使用量を抑えます.
+ * 配列は作成後に変更しないため, {@link #copy()} で複数の {@link MMLEventList} から共有できます.</p>
+ * <p>空白の挿入, 削除による開始位置のずれは, {@link #shift(int, int)} で差分として記録し,
+ * {@link #resolved()} で反映したリストを作るまで配列に反映しません.
+ * 差分のないリストは変更しないため, 複数のスレッドから参照できます.</p>
+ * <p>{@link MMLNoteEvent} が必要な場合は, {@link #get(int)} で作成するか,
+ * {@link #load(int, MMLNoteEvent)} で使い回しのオブジェクトに読み込みます.</p>
+ */
+final class PackedNoteList {
+	private static final TuningBase TUNING_BASE[] = TuningBase.values();
+	/** flags: 調律の基準 (TuningBaseのordinal+1, 0は調律なし) */
+	private static final int FLAG_TUNING_MASK = 0xff;
+	/** flags: MML文字列上の位置を持つ */
+	private static final int FLAG_SOURCE = 0x100;
+
+	private final int size;
+	private final int tickOffset[];
+	private final int tick[];
+	private final int note[];
+	private final int velocity[];
+	private final int flags[];
+	private final int sourceStart[];
+	private final int sourceEnd[];
+
+	// tickOffset に加算する差分. 差分がなければnull.
+	private final TickDelta delta;
+
+	/**
+	 * index以降のすべての要素に値を加算する Fenwick tree.
+	 * 加算と, 1要素の値の取得がそれぞれ O(log n) です.
+	 */
+	private static final class TickDelta implements Cloneable {
+		private int tree[];
+
+		private TickDelta(int size) {
+			tree = new int[size + 1];
+		}
+
+		void add(int index, int value) {
+			for (int i = index + 1; i < tree.length; i += i & -i) {
+				tree[i] += value;
+			}
+		}
+
+		int get(int index) {
+			int value = 0;
+			for (int i = index + 1; i > 0; i -= i & -i) {
+				value += tree[i];
+			}
+			return value;
+		}
+
+		@Override
+		public TickDelta clone() {
+			try {
+				TickDelta obj = (TickDelta) super.clone();
+				obj.tree = tree.clone();
+				return obj;
+			} catch (CloneNotSupportedException e) {
+				throw new AssertionError(e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 末尾に追加して作成します.
+	 */
+	static final class Builder {
+		private int size = 0;
+		private int tickOffset[];
+		private int tick[];
+		private int note[];
+		private int velocity[];
+		private int flags[];
+		private int sourceStart[];
+		private int sourceEnd[];
+
+		Builder(int capacity) {
+			capacity = Math.max(capacity, 16);
+			tickOffset = new int[capacity];
+			tick = new int[capacity];
+			note = new int[capacity];
+			velocity = new int[capacity];
+			flags = new int[capacity];
+			sourceStart = new int[capacity];
+			sourceEnd = new int[capacity];
+		}
+
+		private void grow() {
+			int capacity = tickOffset.length + (tickOffset.length >> 1);
+			tickOffset = Arrays.copyOf(tickOffset, capacity);
+			tick = Arrays.copyOf(tick, capacity);
+			note = Arrays.copyOf(note, capacity);
+			velocity = Arrays.copyOf(velocity, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+			sourceStart = Arrays.copyOf(sourceStart, capacity);
+			sourceEnd = Arrays.copyOf(sourceEnd, capacity);
+		}
+
+		/**
+		 * @param sourceIndex MML文字列上の位置 { startIndex, endIndex }. ない場合はnull.
+		 */
+		Builder add(int note, int tick, int tickOffset, int velocity, TuningBase tuningBase, int sourceIndex[]) {
+			if (size == this.tickOffset.length) {
+				grow();
+			}
+			this.tickOffset[size] = tickOffset;
+			this.tick[size] = tick;
+			this.note[size] = note;
+			this.velocity[size] = velocity;
+			int flag = (tuningBase != null) ? tuningBase.ordinal() + 1 : 0;
+			if (sourceIndex != null) {
+				flag |= FLAG_SOURCE;
+				sourceStart[size] = sourceIndex[0];
+				sourceEnd[size] = sourceIndex[1];
+			}
+			this.flags[size] = flag;
+			size++;
+			return this;
+		}
+
+		Builder add(MMLNoteEvent noteEvent) {
+			return add(noteEvent.getNote(), noteEvent.getTick(), noteEvent.getTickOffset(), noteEvent.getVelocity(),
+					noteEvent.getTuningBase(), noteEvent.getIndexOfMMLString());
+		}
+
+		int size() {
+			return size;
+		}
+
+		PackedNoteList build() {
+			return new PackedNoteList(this);
+		}
+	}
+
+	private PackedNoteList(Builder builder) {
+		size = builder.size;
+		tickOffset = Arrays.copyOf(builder.tickOffset, size);
+		tick = Arrays.copyOf(builder.tick, size);
+		note = Arrays.copyOf(builder.note, size);
+		velocity = Arrays.copyOf(builder.velocity, size);
+		flags = Arrays.copyOf(builder.flags, size);
+		sourceStart = Arrays.copyOf(builder.sourceStart, size);
+		sourceEnd = Arrays.copyOf(builder.sourceEnd, size);
+		delta = null;
+	}
+
+	private PackedNoteList(PackedNoteList list, int tickOffset[], TickDelta delta) {
+		size = list.size;
+		this.tickOffset = tickOffset;
+		tick = list.tick;
+		note = list.note;
+		velocity = list.velocity;
+		flags = list.flags;
+		sourceStart = list.sourceStart;
+		sourceEnd = list.sourceEnd;
+		this.delta = delta;
+	}
+
+	static PackedNoteList of(List<MMLNoteEvent> noteList) {
+		Builder builder = new Builder(noteList.size());
+		for (MMLNoteEvent noteEvent : noteList) {
+			builder.add(noteEvent);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * 配列を共有するコピーを作成します. 差分はコピーごとに持ちます.
+	 * 差分がなければ変更しないため, そのまま共有します.
+	 */
+	PackedNoteList copy() {
+		return (delta == null) ? this : new PackedNoteList(this, tickOffset, delta.clone());
+	}
+
+	/**
+	 * 同じ配列を共有し, どちらも差分がない場合にtrue.
+	 */
+	boolean sameNotes(PackedNoteList list) {
+		return (list != null) && (tickOffset == list.tickOffset) && (tick == list.tick)
+				&& (delta == null) && (list.delta == null);
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getTickOffset(int index) {
+		return (delta == null) ? tickOffset[index] : tickOffset[index] + delta.get(index);
+	}
+
+	int getTick(int index) {
+		return tick[index];
+	}
+
+	int getEndTick(int index) {
+		return getTickOffset(index) + tick[index];
+	}
+
+	/**
+	 * 開始位置がtick以上の最初のノートのindexを取得します.
+	 * @return 該当するノートがなければ size()
+	 */
+	int indexOfTickOffset(long tick) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getTickOffset(mid) < tick) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * index以降のノートの開始位置をずらします. 配列には {@link #resolved()} で反映します.
+	 * <p>差分のないリストは共有していることがあるため変更せず, 常に新しいリストを返します.
+	 * 差分の配列は前のリストと共有して書き換えるため, 前のリストは以降使わないでください.
+	 * 参照中のスレッドが前のリストを保持していても, 新しいリストとは別のオブジェクトになるため置き換えられません.</p>
+	 * @param index
+	 * @param tick
+	 * @return 差分を記録したリスト
+	 */
+	PackedNoteList shift(int index, int tick) {
+		if ( (index >= size) || (tick == 0) ) {
+			return this;
+		}
+		PackedNoteList list = new PackedNoteList(this, tickOffset, (delta != null) ? delta : new TickDelta(size));
+		list.delta.add(index, tick);
+		return list;
+	}
+
+	/**
+	 * 記録している差分を開始位置の配列に反映したリストを取得します. 全ノートを参照する前に呼び出します.
+	 * @return 差分がなければ, このリスト
+	 */
+	PackedNoteList resolved() {
+		if (delta == null) {
+			return this;
+		}
+		int newTickOffset[] = new int[size];
+		for (int i = 0; i < size; i++) {
+			newTickOffset[i] = tickOffset[i] + delta.get(i);
+		}
+		return new PackedNoteList(this, newTickOffset, null);
+	}
+
+	/**
+	 * [fromIndex, toIndex) のノートを除いたリストを作成します.
+	 */
+	PackedNoteList remove(int fromIndex, int toIndex) {
+		PackedNoteList list = resolved();
+		Builder builder = new Builder(size - (toIndex - fromIndex));
+		int sourceIndex[] = new int[2];
+		for (int i = 0; i < size; i++) {
+			if ( (i < fromIndex) || (i >= toIndex) ) {
+				sourceIndex[0] = sourceStart[i];
+				sourceIndex[1] = sourceEnd[i];
+				builder.add(note[i], tick[i], list.tickOffset[i], velocity[i], getTuningBase(i),
+						((flags[i] & FLAG_SOURCE) != 0) ? sourceIndex : null);
+			}
+		}
+		return builder.build();
+	}
+
+	int getNote(int index) {
+		return note[index];
+	}
+
+	int getVelocity(int index) {
+		return velocity[index];
+	}
+
+	TuningBase getTuningBase(int index) {
+		int tuning = flags[index] & FLAG_TUNING_MASK;
+		return (tuning == 0) ? null : TUNING_BASE[tuning - 1];
+	}
+
+	/**
+	 * MML文字列上の位置 { startIndex, endIndex } を取得します.
+	 * @return 位置がなければnull
+	 */
+	int[] getIndexOfMMLString(int index) {
+		if ((flags[index] & FLAG_SOURCE) == 0) {
+			return null;
+		}
+		return new int[] { sourceStart[index], sourceEnd[index] };
+	}
+
+	/**
+	 * ノートを新しいオブジェクトとして取得します.
+	 */
+	MMLNoteEvent get(int index) {
+		MMLNoteEvent noteEvent = new MMLNoteEvent(note[index], tick[index], getTickOffset(index), velocity[index]);
+		noteEvent.setTuningNote(getTuningBase(index));
+		noteEvent.setIndexOfMMLString(getIndexOfMMLString(index));
+		return noteEvent;
+	}
+
+	/**
+	 * 使い回しのオブジェクトにノートを読み込みます.
+	 * @param index
+	 * @param flyweight {@link #newFlyweight()} で作成したオブジェクト
+	 * @return flyweight
+	 */
+	MMLNoteEvent load(int index, MMLNoteEvent flyweight) {
+		flyweight.setNote(note[index]);
+		flyweight.setTick(tick[index]);
+		flyweight.setTickOffset(getTickOffset(index));
+		flyweight.setVelocity(velocity[index]);
+		flyweight.setTuningNote(getTuningBase(index));
+		if ((flags[index] & FLAG_SOURCE) != 0) {
+			int sourceIndex[] = flyweight.getIndexOfMMLString();
+			if (sourceIndex == null) {
+				sourceIndex = new int[2];
+				flyweight.setIndexOfMMLString(sourceIndex);
+			}
+			sourceIndex[0] = sourceStart[index];
+			sourceIndex[1] = sourceEnd[index];
+		} else {
+			flyweight.setIndexOfMMLString(null);
+		}
+		return flyweight;
+	}
+
+	static MMLNoteEvent newFlyweight() {
+		return new MMLNoteEvent(0, 0, 0);
+	}
+
+	/**
+	 * {@link MMLNoteEvent#equals(Object)} と同じ項目を比較します.
+	 */
+	boolean equalsAt(int index, MMLNoteEvent noteEvent) {
+		return (getTickOffset(index) == noteEvent.getTickOffset())
+				&& (tick[index] == noteEvent.getTick())
+				&& (note[index] == noteEvent.getNote())
+				&& (velocity[index] == noteEvent.getVelocity())
+				&& (getTuningBase(index) == noteEvent.getTuningBase());
+	}
+
+	long contentHash(int index) {
+		return ContentHash.of(note[index], tick[index], getTickOffset(index), velocity[index], getTuningBase(index));
+	}
+
+	/**
+	 * すべてのノートをオブジェクトにしたリストを作成します.
+	 */
+	List<MMLNoteEvent> toList() {
+		PackedNoteList packed = resolved();
+		List<MMLNoteEvent> list = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(packed.get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * 変更できないリストとして参照します. 要素は取得するたびに {@link #get(int)} で作成します.
+	 */
+	List<MMLNoteEvent> asList() {
+		return new NoteListView(resolved());
+	}
+
+	private static final class NoteListView extends AbstractList<MMLNoteEvent> implements RandomAccess {
+		private final PackedNoteList packed;
+
+		private NoteListView(PackedNoteList packed) {
+			this.packed = packed;
+		}
+
+		@Override
+		public MMLNoteEvent get(int index) {
+			if ( (index < 0) || (index >= packed.size) ) {
+				throw new IndexOutOfBoundsException("index "+index);
+			}
+			return packed.get(index);
+		}
+
+		@Override
+		public int size() {
+			return packed.size;
+		}
+	}
+
+	/**
+	 * 配列の見積りサイズ (byte).
+	 */
+	long memorySize() {
+		return 7L * (16 + 4L * size);
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * トラックごとの generate を専用のスレッドで並列に実行します.
+ * <p>トラックごとに処理時間とエラーを {@link TrackResult} で返します.
+ * 処理の中止と, 進捗の通知ができます.</p>
+ */
+public final class ScoreGenerator {
+	/** 既定のスレッド数を指定するシステムプロパティ. */
+	public static final String THREADS_PROPERTY = "mabiicco.generateThreads";
+
+	private static final ScoreGenerator defaultInstance = new ScoreGenerator(
+			Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * 既定の ScoreGenerator を取得します. {@link MMLScore#generateAll()} が使用します.
+	 * @return
+	 */
+	public static ScoreGenerator getDefault() {
+		return defaultInstance;
+	}
+
+	/**
+	 * 進捗の通知を受け取ります. generateを実行したスレッド, または {@link Job#cancel()} を呼び出したスレッドから呼び出します.
+	 */
+	@FunctionalInterface
+	public interface ProgressListener {
+		/**
+		 * @param result 完了したトラックの結果
+		 * @param doneCount 完了したトラック数 (中止したものも含む)
+		 * @param totalCount 全体のトラック数
+		 */
+		void progress(TrackResult result, int doneCount, int totalCount);
+	}
+
+	/**
+	 * 1トラック分の結果.
+	 */
+	public static final class TrackResult {
+		private final int trackIndex;
+		private final MMLTrack track;
+		private final long nanos;
+		private final Throwable error;
+		private final boolean cancelled;
+
+		private TrackResult(int trackIndex, MMLTrack track, long nanos, Throwable error, boolean cancelled) {
+			this.trackIndex = trackIndex;
+			this.track = track;
+			this.nanos = nanos;
+			this.error = error;
+			this.cancelled = cancelled;
+		}
+
+		public int getTrackIndex() {
+			return trackIndex;
+		}
+
+		public MMLTrack getTrack() {
+			return track;
+		}
+
+		/**
+		 * @return 処理時間 (ナノ秒)
+		 */
+		public long getTime() {
+			return nanos;
+		}
+
+		/**
+		 * @return 失敗した場合の例外. 成功または中止した場合はnull.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * @return 開始前に中止した場合はtrue.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isSuccess() {
+			return (error == null) && (!cancelled);
+		}
+
+		@Override
+		public String toString() {
+			String state = cancelled ? "cancelled" : (error != null) ? error.toString() : "ok";
+			return String.format("track %d: %.2f ms, %s", trackIndex+1, nanos / 1e6, state);
+		}
+	}
+
+	/**
+	 * 実行中の処理.
+	 */
+	public static final class Job {
+		private final TrackResult results[];
+		private final List<Future<?>> futureList = new ArrayList<>();
+		private final CountDownLatch latch;
+		private volatile boolean cancelled = false;
+
+		private Job(int count) {
+			results = new TrackResult[count];
+			latch = new CountDownLatch(count);
+		}
+
+		/**
+		 * 開始前のトラックを中止します. 処理中のトラックは完了まで実行します.
+		 */
+		public void cancel() {
+			cancelled = true;
+			synchronized (futureList) {
+				for (Future<?> future : futureList) {
+					future.cancel(false);
+				}
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		public boolean isDone() {
+			return latch.getCount() == 0;
+		}
+
+		/**
+		 * すべてのトラックの完了を待ちます.
+		 * @return トラック順の結果
+		 * @throws InterruptedException
+		 */
+		public List<TrackResult> await() throws InterruptedException {
+			latch.await();
+			return getResultList();
+		}
+
+		/**
+		 * すべてのトラックの完了を待ちます.
+		 * @param timeout
+		 * @param unit
+		 * @return トラック順の結果. タイムアウトした場合はnull.
+		 * @throws InterruptedException
+		 */
+		public List<TrackResult> await(long timeout, TimeUnit unit) throws InterruptedException {
+			if (!latch.await(timeout, unit)) {
+				return null;
+			}
+			return getResultList();
+		}
+
+		private List<TrackResult> getResultList() {
+			synchronized (results) {
+				List<TrackResult> list = new ArrayList<>(results.length);
+				Collections.addAll(list, results);
+				return list;
+			}
+		}
+	}
+
+	private final ExecutorService executor;
+	private final int threadCount;
+
+	/**
+	 * @param threadCount 並列に generate するトラック数
+	 */
+	public ScoreGenerator(int threadCount) {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("threadCount: "+threadCount);
+		}
+		this.threadCount = threadCount;
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threadCount, r -> {
+			Thread thread = new Thread(r, "ScoreGenerator-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	/**
+	 * スナップショットのトラックの generate を開始します.
+	 * @param trackSnapshot
+	 * @param listener 進捗の通知先. nullの場合は通知しません.
+	 * @return
+	 */
+	public Job submit(TrackSnapshot trackSnapshot, ProgressListener listener) {
+		int trackIndexes[] = new int[trackSnapshot.size()];
+		for (int i = 0; i < trackIndexes.length; i++) {
+			trackIndexes[i] = i;
+		}
+		return submit(trackSnapshot, trackIndexes, listener);
+	}
+
+	/**
+	 * スナップショットの指定したトラックの generate を開始します.
+	 * @param trackSnapshot
+	 * @param trackIndexes generateするトラックのindex. 結果はこの順に並べます.
+	 * @param listener 進捗の通知先. nullの場合は通知しません.
+	 * @return
+	 */
+	public Job submit(TrackSnapshot trackSnapshot, int trackIndexes[], ProgressListener listener) {
+		List<MMLTrack> trackList = new ArrayList<>(trackIndexes.length);
+		for (int trackIndex : trackIndexes) {
+			trackList.add(trackSnapshot.get(trackIndex));
+		}
+		return submit(trackList, trackIndexes, listener);
+	}
+
+	/**
+	 * トラックの generate を開始します. スコアに含まれないトラック (コピーなど) にも使えます.
+	 * @param trackList
+	 * @param trackIndexes 結果に記録するトラックのindex. trackListと同じ長さ.
+	 * @param listener 進捗の通知先. nullの場合は通知しません.
+	 * @return
+	 */
+	public Job submit(List<MMLTrack> trackList, int trackIndexes[], ProgressListener listener) {
+		if (trackList.size() != trackIndexes.length) {
+			throw new IllegalArgumentException();
+		}
+		int count = trackIndexes.length;
+		Job job = new Job(count);
+		AtomicInteger doneCount = new AtomicInteger();
+		synchronized (job.futureList) {
+			for (int i = 0; i < count; i++) {
+				int position = i;
+				int trackIndex = trackIndexes[i];
+				MMLTrack track = trackList.get(i);
+				// 開始前に中止したものは done で, 実行時に中止を検出したものはタスク内で結果を作る.
+				Runnable task = () -> {
+					TrackResult result;
+					if (job.cancelled) {
+						result = new TrackResult(trackIndex, track, 0, null, true);
+					} else {
+						result = generate(trackIndex, track);
+					}
+					complete(job, position, result, doneCount, listener);
+				};
+				FutureTask<Void> future = new FutureTask<Void>(task, null) {
+					@Override
+					protected void done() {
+						if (isCancelled()) {
+							complete(job, position, new TrackResult(trackIndex, track, 0, null, true), doneCount, listener);
+						}
+					}
+				};
+				job.futureList.add(future);
+				executor.execute(future);
+			}
+		}
+		return job;
+	}
+
+	private static TrackResult generate(int trackIndex, MMLTrack track) {
+		long startTime = System.nanoTime();
+		Throwable error = null;
+		try {
+			track.generate();
+		} catch (Throwable e) {
+			// Errorも結果として返し, 完了を待つ側が止まらないようにする.
+			error = e;
+		}
+		return new TrackResult(trackIndex, track, System.nanoTime() - startTime, error, false);
+	}
+
+	private static void complete(Job job, int position, TrackResult result, AtomicInteger doneCount, ProgressListener listener) {
+		synchronized (job.results) {
+			if (job.results[position] != null) {
+				return;
+			}
+			job.results[position] = result;
+		}
+		int done = doneCount.incrementAndGet();
+		try {
+			if (listener != null) {
+				listener.progress(result, done, job.results.length);
+			}
+		} finally {
+			job.latch.countDown();
+		}
+	}
+
+	/**
+	 * スナップショットのトラックを generate し, 完了を待ちます.
+	 * @param trackSnapshot
+	 * @return トラック順の結果
+	 */
+	public List<TrackResult> generate(TrackSnapshot trackSnapshot) {
+		return await(submit(trackSnapshot, null));
+	}
+
+	/**
+	 * スナップショットの指定したトラックを generate し, 完了を待ちます.
+	 * @param trackSnapshot
+	 * @param trackIndexes
+	 * @return 指定した順の結果
+	 */
+	public List<TrackResult> generate(TrackSnapshot trackSnapshot, int trackIndexes[]) {
+		return await(submit(trackSnapshot, trackIndexes, null));
+	}
+
+	/**
+	 * 待機中の割り込みでは中止せず, 完了後に割り込み状態を戻します.
+	 */
+	private static List<TrackResult> await(Job job) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return job.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 結果に失敗があれば, 最初のトラックの例外を投げます.
+	 * @param resultList
+	 * @throws UndefinedTickException
+	 * @throws CancellationException 中止したトラックがある場合.
+	 */
+	public static void checkResult(List<TrackResult> resultList) throws UndefinedTickException {
+		for (TrackResult result : resultList) {
+			Throwable error = result.getError();
+			if (error instanceof UndefinedTickException) {
+				throw (UndefinedTickException) error;
+			} else if (error instanceof RuntimeException) {
+				throw (RuntimeException) error;
+			} else if (error instanceof Error) {
+				throw (Error) error;
+			} else if (result.isCancelled()) {
+				throw new CancellationException("track " + (result.getTrackIndex()+1));
+			}
+		}
+	}
+}
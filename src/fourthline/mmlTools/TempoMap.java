@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.List;
+
+import fourthline.mmlTools.core.MMLTickTable;
+
+
+/**
+ * テンポリストから作成する, tickと時間の変換表.
+ * <p>テンポ区間ごとの開始位置と累積時間（μs）を保持し, 二分探索で変換します.</p>
+ * <p>作成後に変更されることはありません. テンポリストが変更されたときは {@link #update(TempoMap, List)} で作り直します.</p>
+ * <p>スコアのテンポリスト ({@link MMLTempoList}) は, 対応するTempoMapを保持しています.</p>
+ */
+public final class TempoMap {
+	private static final long MICROSEC_PER_MINUTE = 60L * 1000L * 1000L;
+
+	// 区間ごとの開始tick, テンポ, 開始時点の累積時間（μs）. 先頭は tick 0 の初期テンポ.
+	private final int tickOffsets[];
+	private final int tempos[];
+	private final long timeOffsets[];
+
+	// テンポリストとの一致判定用.
+	private final int sourceTicks[];
+	private final int sourceTempos[];
+
+	public TempoMap(List<MMLTempoEvent> tempoList) {
+		int size = tempoList.size();
+		sourceTicks = new int[size];
+		sourceTempos = new int[size];
+		for (int i = 0; i < size; i++) {
+			MMLTempoEvent tempoEvent = tempoList.get(i);
+			sourceTicks[i] = tempoEvent.getTickOffset();
+			sourceTempos[i] = tempoEvent.getTempo();
+		}
+
+		int ticks[] = new int[size+1];
+		int temps[] = new int[size+1];
+		long times[] = new long[size+1];
+		int count = 1;
+		ticks[0] = 0;
+		temps[0] = MMLTempoEvent.INITIAL_TEMPO;
+		times[0] = 0L;
+		for (int i = 0; i < size; i++) {
+			int tick = sourceTicks[i];
+			int tempo = sourceTempos[i];
+			int last = count - 1;
+			if (tempo == temps[last]) {
+				continue;
+			}
+			if (tick <= ticks[last]) {
+				// 同じ位置のテンポは後のもので上書きする.
+				temps[last] = tempo;
+				continue;
+			}
+			ticks[count] = tick;
+			temps[count] = tempo;
+			times[count] = times[last] + tickToMicrosec(tick - ticks[last], temps[last]);
+			count++;
+		}
+
+		tickOffsets = new int[count];
+		tempos = new int[count];
+		timeOffsets = new long[count];
+		System.arraycopy(ticks, 0, tickOffsets, 0, count);
+		System.arraycopy(temps, 0, tempos, 0, count);
+		System.arraycopy(times, 0, timeOffsets, 0, count);
+	}
+
+	/**
+	 * キャッシュしているTempoMapがテンポリストと一致していれば, そのまま返します.
+	 * 一致していなければ, 新たに作成します.
+	 * <p>{@link MMLTempoList} の場合は, リストが保持しているTempoMapを返します.</p>
+	 * @param tempoMap キャッシュしているTempoMap. null可.
+	 * @param tempoList テンポリスト
+	 * @return テンポリストに一致するTempoMap
+	 */
+	public static TempoMap update(TempoMap tempoMap, List<MMLTempoEvent> tempoList) {
+		if (tempoList instanceof MMLTempoList) {
+			return ((MMLTempoList) tempoList).getTempoMap();
+		}
+		if ( (tempoMap != null) && (tempoMap.matches(tempoList)) ) {
+			return tempoMap;
+		}
+		return new TempoMap(tempoList);
+	}
+
+	/**
+	 * 作成元のテンポリストと内容が一致しているかどうかを判定します.
+	 * @param tempoList
+	 * @return 一致していればtrue.
+	 */
+	public boolean matches(List<MMLTempoEvent> tempoList) {
+		int size = tempoList.size();
+		if (size != sourceTicks.length) {
+			return false;
+		}
+		for (int i = 0; i < size; i++) {
+			MMLTempoEvent tempoEvent = tempoList.get(i);
+			if ( (tempoEvent.getTickOffset() != sourceTicks[i]) || (tempoEvent.getTempo() != sourceTempos[i]) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long tickToMicrosec(long tick, int tempo) {
+		return tick * MICROSEC_PER_MINUTE / ((long)tempo * MMLTickTable.TPQN);
+	}
+
+	private static long microsecToTick(long time, int tempo) {
+		return time * tempo * MMLTickTable.TPQN / MICROSEC_PER_MINUTE;
+	}
+
+	/**
+	 * 指定したtickを含む区間のindexを取得します.
+	 */
+	private int searchIndexOnTick(long tickOffset) {
+		int low = 0;
+		int high = tickOffsets.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (tickOffsets[mid] <= tickOffset) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 指定した時間を含む区間のindexを取得します.
+	 */
+	private int searchIndexOnTime(long time) {
+		int low = 0;
+		int high = timeOffsets.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (timeOffsets[mid] < time) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * 指定したtick位置のテンポを取得します.
+	 * @param tickOffset
+	 * @return テンポ
+	 */
+	public int getTempoOnTick(long tickOffset) {
+		return tempos[ searchIndexOnTick(tickOffset) ];
+	}
+
+	/**
+	 * 指定したtickオフセット位置の先頭からの時間を返します.
+	 * @param tickOffset
+	 * @return 先頭からの時間（μs）
+	 */
+	public long getMicrosecOnTickOffset(long tickOffset) {
+		int index = searchIndexOnTick(tickOffset);
+		return timeOffsets[index] + tickToMicrosec(tickOffset - tickOffsets[index], tempos[index]);
+	}
+
+	/**
+	 * 指定したtickオフセット位置の先頭からの時間を返します.
+	 * @param tickOffset
+	 * @return 先頭からの時間（ms）
+	 */
+	public long getTimeOnTickOffset(long tickOffset) {
+		return getMicrosecOnTickOffset(tickOffset) / 1000L;
+	}
+
+	/**
+	 * 指定した時間からtickオフセットを返します.
+	 * @param time 先頭からの時間（μs）
+	 * @return tickオフセット
+	 */
+	public long getTickOffsetOnMicrosec(long time) {
+		int index = searchIndexOnTime(time);
+		return tickOffsets[index] + microsecToTick(time - timeOffsets[index], tempos[index]);
+	}
+
+	/**
+	 * 指定した時間からtickオフセットを返します.
+	 * @param time 先頭からの時間（ms）
+	 * @return tickオフセット
+	 */
+	public long getTickOffsetOnTime(long time) {
+		return getTickOffsetOnMicrosec(time * 1000L);
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * ある時点のトラック列. 作成後に変更されることはありません.
+ * <p>{@link MMLScore} はトラックの追加, 削除, 移動のたびに新しいスナップショットを作り, 置き換えて公開します.
+ * 描画やMIDI変換はスナップショットを1つ取得して使うことで, 他のスレッドの編集中でもロックなしで一貫したトラック列を参照できます.
+ * トラックの数は {@link MMLScore#MAX_TRACK} までのため, 変更ごとに配列をコピーします.</p>
+ * <p>トラックの中身 (ノートなど) は共有しています.</p>
+ */
+public final class TrackSnapshot implements Iterable<MMLTrack> {
+	static final TrackSnapshot EMPTY = new TrackSnapshot(new MMLTrack[0], 0);
+
+	private final MMLTrack tracks[];
+	private final long version;
+	private final List<MMLTrack> trackList;
+
+	private TrackSnapshot(MMLTrack tracks[], long version) {
+		this.tracks = tracks;
+		this.version = version;
+		this.trackList = Collections.unmodifiableList(Arrays.asList(tracks));
+	}
+
+	/**
+	 * トラック列の変更ごとに増加するバージョンを取得します.
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return tracks.length;
+	}
+
+	public MMLTrack get(int index) {
+		return tracks[index];
+	}
+
+	/**
+	 * @return 変更できないトラックのリスト
+	 */
+	public List<MMLTrack> getTrackList() {
+		return trackList;
+	}
+
+	@Override
+	public Iterator<MMLTrack> iterator() {
+		return trackList.iterator();
+	}
+
+	TrackSnapshot add(MMLTrack track) {
+		MMLTrack newTracks[] = Arrays.copyOf(tracks, tracks.length + 1);
+		newTracks[tracks.length] = track;
+		return new TrackSnapshot(newTracks, version + 1);
+	}
+
+	TrackSnapshot remove(int index) {
+		if ( (index < 0) || (index >= tracks.length) ) {
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+tracks.length);
+		}
+		MMLTrack newTracks[] = new MMLTrack[tracks.length - 1];
+		System.arraycopy(tracks, 0, newTracks, 0, index);
+		System.arraycopy(tracks, index + 1, newTracks, index, tracks.length - index - 1);
+		return new TrackSnapshot(newTracks, version + 1);
+	}
+
+	TrackSnapshot set(int index, MMLTrack track) {
+		MMLTrack newTracks[] = tracks.clone();
+		newTracks[index] = track;
+		return new TrackSnapshot(newTracks, version + 1);
+	}
+
+	TrackSnapshot move(int fromIndex, int toIndex) {
+		MMLTrack track = tracks[fromIndex];
+		TrackSnapshot removed = remove(fromIndex);
+		if ( (toIndex < 0) || (toIndex > removed.tracks.length) ) {
+			throw new IndexOutOfBoundsException("Index: "+toIndex+", Size: "+removed.tracks.length);
+		}
+		MMLTrack newTracks[] = new MMLTrack[tracks.length];
+		System.arraycopy(removed.tracks, 0, newTracks, 0, toIndex);
+		newTracks[toIndex] = track;
+		System.arraycopy(removed.tracks, toIndex, newTracks, toIndex + 1, removed.tracks.length - toIndex);
+		return new TrackSnapshot(newTracks, version + 1);
+	}
+
+	TrackSnapshot clear() {
+		return new TrackSnapshot(new MMLTrack[0], version + 1);
+	}
+}
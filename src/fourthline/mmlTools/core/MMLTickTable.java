@@ -1,166 +1,318 @@
 /*
- * Copyright (C) 2015 たんらる
+ * Copyright (C) 2015-2016 たんらる
  */
 
 package fourthline.mmlTools.core;
 
 import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * 音長とtickの変換表.
+ * <p>tick → 音長 の逆変換表は, ビルド時に {@link #main(String[])} で生成したリソース {@value #INV_TABLE_RESOURCE} から読み込みます.
+ * リソースがない場合は, 起動時に生成します.</p>
+ */
 public final class MMLTickTable {
 
 	private static final int COMBN = 2;
 	public static final int TPQN = 96;
 
+	/** 音長指定の最大値. */
+	public static final int MAX_LENGTH = 64;
+
+	static final String INV_TABLE_RESOURCE = "tickInvTable.txt";
+
 	/**
 	 * For MML text -> tick
+	 * 音長文字列 "1.", "1", "2.", "2", ... "64" とそのtick. 逆変換表ではこのindexを使います.
 	 */
-	private final LinkedHashMap<String, Integer> tickTable = new LinkedHashMap<>();
+	private final String lengthNames[] = new String[MAX_LENGTH*2];
+	private final int lengthTicks[] = new int[MAX_LENGTH*2];
+
+	/**
+	 * For MML text -> tick
+	 * 音長 * 2 + (付点なら1) をindexとしたtick.
+	 */
+	private final int tickTable[] = new int[(MAX_LENGTH+1)*2];
 
 	/**
 	 * For tick -> MML text
+	 * tickをindexとした, 音長文字列のindexの組み合わせ. 変換できないtickはnull.
 	 */
-	private final LinkedHashMap<Integer, List<String>> tickInvTable = new LinkedHashMap<>();
+	private short tickInvTable[][];
 
 	public static MMLTickTable createTickTable() {
-		MMLTickTable tickTable = new MMLTickTable();
-		return tickTable;
+		InputStream inputStream = MMLTickTable.class.getResourceAsStream(INV_TABLE_RESOURCE);
+		if (inputStream != null) {
+			try (InputStream stream = inputStream) {
+				return new MMLTickTable(stream);
+			} catch (IOException e) {}
+		}
+		return new MMLTickTable();
 	}
 
 	MMLTickTable() {
-		long startTime = System.currentTimeMillis();
 		generateTickTable();
 		generateInvTable();
-		long endTime = System.currentTimeMillis();
-		System.out.println("MMLTickTable " + (endTime - startTime) + "ms");
 	}
 
 	MMLTickTable(InputStream inputStream) {
-		long startTime = System.currentTimeMillis();
 		generateTickTable();
 		readFromInputStreamInvTable(inputStream);
-		long endTime = System.currentTimeMillis();
-		System.out.println("MMLTickTable " + (endTime - startTime) + "ms");
 	}
 
+	/**
+	 * 逆変換表を取得します. （確認用）
+	 * @return tickと音長文字列の組み合わせ
+	 */
 	public Map<Integer, List<String>> getInvTable() {
-		return this.tickInvTable;
+		LinkedHashMap<Integer, List<String>> map = new LinkedHashMap<>();
+		for (int tick = 0; tick < tickInvTable.length; tick++) {
+			String pattern[] = getInvPattern(tick);
+			if (pattern != null) {
+				map.put(tick, Arrays.asList(pattern));
+			}
+		}
+		return Collections.unmodifiableMap(map);
 	}
 
+	/**
+	 * 変換表を取得します. （確認用）
+	 * @return 音長文字列とtick
+	 */
 	public Map<String, Integer> getTable() {
-		return this.tickTable;
+		LinkedHashMap<String, Integer> map = new LinkedHashMap<>();
+		for (int i = 0; i < lengthNames.length; i++) {
+			map.put(lengthNames[i], lengthTicks[i]);
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * 音長のtickを取得します.
+	 * @param length 音長 (1～64)
+	 * @param dot 付点
+	 * @return tick. 変換できない場合は0.
+	 */
+	int getTick(int length, boolean dot) {
+		if ( (length <= 0) || (length > MAX_LENGTH) ) {
+			return 0;
+		}
+		return tickTable[length*2 + (dot ? 1 : 0)];
+	}
+
+	int getMinimumTick() {
+		int minimum = Integer.MAX_VALUE;
+		for (int tick : lengthTicks) {
+			minimum = Math.min(minimum, tick);
+		}
+		return minimum;
+	}
+
+	/**
+	 * 逆変換表の音長文字列を取得します.
+	 * @param index {@link #getInvIndex(int)} で得たindex
+	 * @return 音長文字列
+	 */
+	String getLengthName(int index) {
+		return lengthNames[index];
+	}
+
+	/**
+	 * tickに対応する音長文字列のindexの組み合わせを取得します.
+	 * @param tick
+	 * @return 変換できない場合はnull.
+	 */
+	short[] getInvIndex(int tick) {
+		if ( (tick < 0) || (tick >= tickInvTable.length) ) {
+			return null;
+		}
+		return tickInvTable[tick];
 	}
 
-	private void add(int l, boolean dot) {
-		int tick = (int)( TPQN*4 / l ); 
+	private String[] getInvPattern(int tick) {
+		short index[] = getInvIndex(tick);
+		if (index == null) {
+			return null;
+		}
+		String pattern[] = new String[index.length];
+		for (int i = 0; i < index.length; i++) {
+			pattern[i] = lengthNames[index[i]];
+		}
+		return pattern;
+	}
+
+	private void add(int index, int l, boolean dot) {
+		int tick = (int)( TPQN*4 / l );
 		if (dot) {
 			tick += tick / 2;
 		}
-		String s = l+(dot?".":"");
-		tickTable.put(s, tick);
+		lengthNames[index] = dot ? Integer.toString(l).concat(".") : Integer.toString(l);
+		lengthTicks[index] = tick;
+		tickTable[l*2 + (dot ? 1 : 0)] = tick;
 	}
 
 	private void generateTickTable() {
-		for (int i = 1; i <= 64; i++) {
-			add(i, true);
-			add(i, false);
+		int index = 0;
+		for (int i = 1; i <= MAX_LENGTH; i++) {
+			add(index++, i, true);
+			add(index++, i, false);
+		}
+	}
+
+	/**
+	 * 音長文字列の長さの重み. 短く扱いやすい音長ほど小さくなります.
+	 */
+	private int patternLength(String s) {
+		switch (s) {
+		case "1": case "2": case "4": case "8": case "16":
+			return s.length();
+		case "1.": case "2.": case "4.": case "8.": case "16.":
+			return s.length()*2;
+		default:
+			return s.length()*3;
 		}
 	}
 
-	private int patternLength(List<String> pattern) {
+	private int patternLength(short pattern[], int weight[]) {
 		int len = 0;
-		List<String> spll = Arrays.asList("1", "2", "4", "8", "16");
-		for (String s : pattern) {
-			if (spll.stream().anyMatch(s::equals)) {
-				len += s.length();
-			} else if (spll.stream().map(t -> t+".").anyMatch(s::equals)) {
-				len += s.length()*2;
-			} else {
-				len += s.length()*3;
-			}
+		for (short index : pattern) {
+			len += weight[index];
 		}
-		return len + pattern.size()*10;
+		return len + pattern.length*10;
 	}
 
 	private void generateInvTable() {
-		String keys[] = tickTable.keySet().toArray(new String[tickTable.size()]);
-		int mTick = tickTable.values().stream().max(Integer::compare).get();
+		int size = lengthNames.length;
+		int weight[] = new int[size];
+		int mTick = 0;
+		for (int i = 0; i < size; i++) {
+			weight[i] = patternLength(lengthNames[i]);
+			mTick = Math.max(mTick, lengthTicks[i]);
+		}
+
+		tickInvTable = new short[mTick+1][];
+		Short keys[] = new Short[size];
+		for (short i = 0; i < size; i++) {
+			keys[i] = i;
+		}
 		for (int i = 1; i <= COMBN; i++) {
-			List<List<String>> pattern = new Combination<>(keys, i).getArray();
-			for (List<String> list : pattern) {
-				int tick = list.stream().mapToInt(tickTable::get).sum();
+			for (List<Short> list : new Combination<>(keys, i).getArray()) {
+				short pattern[] = new short[list.size()];
+				int tick = 0;
+				for (int j = 0; j < pattern.length; j++) {
+					pattern[j] = list.get(j);
+					tick += lengthTicks[pattern[j]];
+				}
 				if (tick > mTick) {
 					continue;
 				}
-				if (!tickInvTable.containsKey(tick)) {
-					tickInvTable.put(tick, list);
-				} else {
-					List<String> currentList = tickInvTable.get(tick);
-					if ( (patternLength(list) <= patternLength(currentList)) ) {
-						tickInvTable.put(tick, list);
-					}
+				short currentPattern[] = tickInvTable[tick];
+				if ( (currentPattern == null) || (patternLength(pattern, weight) <= patternLength(currentPattern, weight)) ) {
+					tickInvTable[tick] = pattern;
 				}
 			}
 		}
 	}
 
+	private int registeredKeyCount() {
+		int count = 0;
+		for (short pattern[] : tickInvTable) {
+			if (pattern != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
 	void writeToOutputStreamInvTable(OutputStream outputStream) {
 		try {
 			PrintStream stream = new PrintStream(outputStream, false, "UTF-8");
 			stream.println("# Generated Text --- ");
-			stream.println("# registered key: " + tickInvTable.size());
+			stream.println("# registered key: " + registeredKeyCount());
 
-			int max = tickInvTable.keySet().stream().max(Integer::compare).get();
+			int max = tickInvTable.length - 1;
+			while ( (max > 0) && (tickInvTable[max] == null) ) {
+				max--;
+			}
 			for (int i = 1; i <= max; i++) {
-				if (tickInvTable.containsKey(i)) {
+				String pattern[] = getInvPattern(i);
+				if (pattern != null) {
 					stream.print(i+"=");
-					tickInvTable.get(i).forEach( s -> {
+					for (String s : pattern) {
 						stream.print("[" + s + "]");
-					});
+					}
 					stream.println();
 				} else {
 					stream.println("# "+i+"=<< not supported >>");
 				}
 			}
+			stream.flush();
 		} catch (UnsupportedEncodingException e) {}
 	}
 
 	private void readFromInputStreamInvTable(InputStream inputStream) {
+		Map<String, Short> indexMap = new LinkedHashMap<>();
+		int mTick = 0;
+		for (short i = 0; i < lengthNames.length; i++) {
+			indexMap.put(lengthNames[i], i);
+			mTick = Math.max(mTick, lengthTicks[i]);
+		}
+		tickInvTable = new short[mTick+1][];
+
 		try {
-			InputStreamReader reader = new InputStreamReader(inputStream, "UTF-8");
-			new BufferedReader(reader).lines().forEach(s -> {
-				if (!s.startsWith("#")) {
-					int keySep = s.indexOf('=');
-					String key = s.substring(0, keySep);
-					String itemList = s.substring(keySep+1);
-					ArrayList<String> valueList = new ArrayList<>();
-					while (itemList.length() > 0) {
-						int itemIndex = itemList.indexOf(']');
-						String item = itemList.substring(1, itemIndex);
-						valueList.add(item);
-						itemList = itemList.substring(itemIndex+1);
-					}
-					tickInvTable.put(Integer.parseInt(key), valueList);
+			BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+			String s;
+			while ((s = reader.readLine()) != null) {
+				if (s.startsWith("#")) {
+					continue;
 				}
-			});
-		} catch (UnsupportedEncodingException e) {}
+				// <tick>=[音長][音長]
+				int keySep = s.indexOf('=');
+				int tick = Integer.parseInt(s.substring(0, keySep));
+				short pattern[] = new short[COMBN];
+				int count = 0;
+				int itemIndex = keySep+1;
+				while (itemIndex < s.length()) {
+					int itemEnd = s.indexOf(']', itemIndex);
+					pattern[count++] = indexMap.get(s.substring(itemIndex+1, itemEnd));
+					itemIndex = itemEnd+1;
+				}
+				tickInvTable[tick] = Arrays.copyOf(pattern, count);
+			}
+		} catch (IOException e) {}
 	}
 
 	private void printTickList() {
 		writeToOutputStreamInvTable(System.out);
 	}
 
+	/**
+	 * 逆変換表を生成して出力します.
+	 * @param args 出力先ファイル. 指定しない場合は標準出力.
+	 */
 	public static void main(String args[]) {
 		MMLTickTable tickTable = new MMLTickTable();
-		tickTable.printTickList();
+		if (args.length > 0) {
+			try (FileOutputStream outputStream = new FileOutputStream(args[0])) {
+				tickTable.writeToOutputStreamInvTable(outputStream);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+		} else {
+			tickTable.printTickList();
+		}
 	}
 }
@@ -1,14 +1,10 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools.core;
 
 
-import java.util.Arrays;
-import java.util.List;
-
-
 /**
  * 音符の時間変換値
  * @author たんらる
@@ -17,33 +13,89 @@ public final class MMLTicks {
 
 	private static final MMLTickTable tickTable = MMLTickTable.createTickTable();
 
+	/** 2の累乗の音長 (1～64) の文字列とtick. */
+	private static final String BASE_NAMES[] = { "1", "2", "4", "8", "16", "32", "64" };
+	private static final int BASE_TICKS[] = new int[BASE_NAMES.length];
+	private static final int MINIMUM_TICK = tickTable.getMinimumTick();
+	static {
+		for (int i = 0; i < BASE_NAMES.length; i++) {
+			BASE_TICKS[i] = tickTable.getTick(1 << i, false);
+		}
+	}
+
+	/**
+	 * 音長文字列をtickに変換します.
+	 * 末尾の数字以外の文字は, 変換できるまで取り除きます.
+	 * @param gt 音長文字列
+	 * @return tick
+	 * @throws UndefinedTickException 変換できない
+	 */
 	public static int getTick(String gt) throws UndefinedTickException {
-		String str = gt;
-		while (!tickTable.getTable().containsKey(str)) {
-			if (str.length() == 0) {
-				break;
+		return getTick(gt, 0, gt.length());
+	}
+
+	/**
+	 * 文字列の範囲にある音長をtickに変換します.
+	 * @param s 文字列
+	 * @param start 開始位置
+	 * @param end 終了位置 (このindexは含まない)
+	 * @return tick
+	 * @throws UndefinedTickException 変換できない
+	 */
+	public static int getTick(CharSequence s, int start, int end) throws UndefinedTickException {
+		int tick = parseTick(s, start, end);
+		if (tick <= 0) {
+			throw new UndefinedTickException(s.subSequence(start, end).toString());
+		}
+		return tick;
+	}
+
+	/**
+	 * 文字列の範囲にある音長をtickに変換します. 変換できない場合も例外は使いません.
+	 * @param s 文字列
+	 * @param start 開始位置
+	 * @param end 終了位置 (このindexは含まない)
+	 * @return tick. 変換できない場合は0.
+	 */
+	public static int parseTick(CharSequence s, int start, int end) {
+		int index = end;
+		while (index > start) {
+			int tick = getLengthTick(s, start, index);
+			if (tick > 0) {
+				return tick;
 			}
-			char ch = str.charAt(str.length()-1);
-			if (!Character.isDigit(ch)) {
-				int len = str.length();
-				str = str.substring(0, len - 1);
-			} else {
-				throw new UndefinedTickException(gt);
+			if (Character.isDigit(s.charAt(index-1))) {
+				break;
 			}
+			index--;
 		}
 
-		return tickTable.getTable().get(str);
+		return 0;
 	}
 
-	public static int minimumTick() {
-		Integer minimum = null;
-		for (Integer i : tickTable.getTable().values()) {
-			if ( (minimum == null) || (i < minimum) ) {
-				minimum = i;
+	/**
+	 * s[start, end) が "数字" または "数字." であれば, そのtickを返します.
+	 * @return tick. 変換できない場合は0.
+	 */
+	private static int getLengthTick(CharSequence s, int start, int end) {
+		boolean dot = (s.charAt(end-1) == '.');
+		int numEnd = dot ? end-1 : end;
+		if ( (numEnd <= start) || (numEnd - start > 2) || (s.charAt(start) == '0') ) {
+			return 0;
+		}
+		int length = 0;
+		for (int i = start; i < numEnd; i++) {
+			char ch = s.charAt(i);
+			if ( (ch < '0') || (ch > '9') ) {
+				return 0;
 			}
+			length = length * 10 + (ch - '0');
 		}
+		return tickTable.getTick(length, dot);
+	}
 
-		return minimum;
+	public static int minimumTick() {
+		return MINIMUM_TICK;
 	}
 
 
@@ -72,35 +124,32 @@ public final class MMLTicks {
 		this.needTie = needTie;
 	}
 
-	private String mmlNotePart(String phoneticString) {
-		return mmlNotePart(Arrays.asList(phoneticString));
+	private void appendNotePart(StringBuilder sb, String phoneticString) {
+		if (needTie) {
+			sb.append('&');
+		}
+		sb.append(noteName).append(phoneticString);
 	}
 
-	private String mmlNotePart(List<String> phoneticString) {
-		StringBuilder sb = new StringBuilder();
-
-		phoneticString.forEach(t -> {
-			if (needTie) {
-				sb.append('&');
-			}
-			sb.append(noteName).append(t);
-		});
-
-		return sb.toString();
+	private void appendNotePart(StringBuilder sb, short invIndex[]) {
+		for (short index : invIndex) {
+			appendNotePart(sb, tickTable.getLengthName(index));
+		}
 	}
 
 	private String makeMMLText(StringBuilder sb, int remTick) throws UndefinedTickException {
 		// 1~64の分割
 		if (remTick > 0) {
-			for (int base = 1; base <= 64; base *= 2) {
-				int baseTick = getTick(""+base);
-				if (tickTable.getInvTable().containsKey(remTick)) {
-					sb.append( mmlNotePart(tickTable.getInvTable().get(remTick)) );
+			for (int i = 0; i < BASE_NAMES.length; i++) {
+				int baseTick = BASE_TICKS[i];
+				short invIndex[] = tickTable.getInvIndex(remTick);
+				if (invIndex != null) {
+					appendNotePart(sb, invIndex);
 					remTick = 0;
 					break;
 				}
 				while (remTick >= baseTick) {
-					sb.append( mmlNotePart(""+base) );
+					appendNotePart(sb, BASE_NAMES[i]);
 					remTick -= baseTick;
 				}
 			}
@@ -127,10 +176,10 @@ public final class MMLTicks {
 		StringBuilder sb = new StringBuilder();
 
 		// "1."
-		int mTick = getTick("1.");
-		int tick1 = getTick("1");
+		int mTick = tickTable.getTick(1, true);
+		int tick1 = tickTable.getTick(1, false);
 		while (remTick > (tick1*2)) {
-			sb.append( mmlNotePart("1.") );
+			appendNotePart(sb, "1.");
 			remTick -= mTick;
 		}
 
@@ -149,7 +198,7 @@ public final class MMLTicks {
 
 		int baseTick = base.getTick();
 		while (remTick >= baseTick) {
-			sb.append( mmlNotePart(base.getBase()) );
+			appendNotePart(sb, base.getBase());
 			remTick -= baseTick;
 		}
 
@@ -9,16 +9,63 @@ import java.util.Iterator;
 
 /**
  * MML命令の分割
+ * <p>{@link #nextToken()} でトークンを進め, 種類と開始・終了位置を取得するカーソルとして使用できます.
+ * 文字列を生成しないため, パース処理ではこちらを使用します.
+ * {@link #next()} はトークン文字列を返すIteratorです.</p>
  * @author たんらる
  */
 public final class MMLTokenizer implements Iterator<String> {
-	private static final String noteString = "abcdefgABCDEFGnNrR";
-	private static final String tokenString = noteString + "tToOlLvV<>&";
-	private final String mml_src;
+
+	/**
+	 * トークンの種類. トークンの先頭文字で決まります.
+	 */
+	public enum TokenKind {
+		/** a～g */
+		NOTE,
+		/** n */
+		NX,
+		/** r */
+		REST,
+		/** t */
+		TEMPO,
+		/** o */
+		OCTAVE,
+		/** l */
+		LENGTH,
+		/** v */
+		VOLUME,
+		/** &gt; */
+		OCTAVE_UP,
+		/** &lt; */
+		OCTAVE_DOWN,
+		/** &amp; */
+		TIE,
+		/** トークン以外の文字で始まる (MMLの先頭のみ) */
+		OTHER
+	}
+
+	/** ASCII文字ごとのトークン種別. トークンの先頭にならない文字はnull. */
+	private static final TokenKind KIND_TABLE[] = new TokenKind[128];
+	static {
+		for (char ch : "abcdefgABCDEFG".toCharArray()) {
+			KIND_TABLE[ch] = TokenKind.NOTE;
+		}
+		KIND_TABLE['n'] = KIND_TABLE['N'] = TokenKind.NX;
+		KIND_TABLE['r'] = KIND_TABLE['R'] = TokenKind.REST;
+		KIND_TABLE['t'] = KIND_TABLE['T'] = TokenKind.TEMPO;
+		KIND_TABLE['o'] = KIND_TABLE['O'] = TokenKind.OCTAVE;
+		KIND_TABLE['l'] = KIND_TABLE['L'] = TokenKind.LENGTH;
+		KIND_TABLE['v'] = KIND_TABLE['V'] = TokenKind.VOLUME;
+		KIND_TABLE['>'] = TokenKind.OCTAVE_UP;
+		KIND_TABLE['<'] = TokenKind.OCTAVE_DOWN;
+		KIND_TABLE['&'] = TokenKind.TIE;
+	}
+
+	private final CharSequence mml_src;
 	int startIndex = 0;
 	int endIndex = 0;
 
-	public MMLTokenizer(String src) {
+	public MMLTokenizer(CharSequence src) {
 		mml_src = src;
 	}
 
@@ -30,11 +77,23 @@ public final class MMLTokenizer implements Iterator<String> {
 		return false;
 	}
 
-	@Override
-	public String next() {
+	/**
+	 * 次のトークンに進めます.
+	 * @return トークンがなければfalse.
+	 */
+	public boolean nextToken() {
+		if (!hasNext()) {
+			return false;
+		}
 		startIndex = endIndex;
 		endIndex = searchToken(endIndex+1);
-		return mml_src.substring(startIndex, endIndex);
+		return true;
+	}
+
+	@Override
+	public String next() {
+		nextToken();
+		return mml_src.subSequence(startIndex, endIndex).toString();
 	}
 
 	@Override
@@ -51,18 +110,94 @@ public final class MMLTokenizer implements Iterator<String> {
 		return new int[] { startIndex, endIndex };
 	}
 
-	public static boolean isToken(char ch) {
-		if (tokenString.indexOf(ch) < 0)
-			return false;
+	/**
+	 * @return 現在のトークンの開始位置
+	 */
+	public int getStartIndex() {
+		return startIndex;
+	}
 
-		return true;
+	/**
+	 * @return 現在のトークンの終了位置 (このindexは含まない)
+	 */
+	public int getEndIndex() {
+		return endIndex;
+	}
+
+	public CharSequence getSource() {
+		return mml_src;
+	}
+
+	/**
+	 * @return 現在のトークンの先頭文字
+	 */
+	public char getTokenChar() {
+		return mml_src.charAt(startIndex);
+	}
+
+	/**
+	 * @return 現在のトークンの種類
+	 */
+	public TokenKind getTokenKind() {
+		TokenKind kind = kindOf(getTokenChar());
+		return (kind != null) ? kind : TokenKind.OTHER;
+	}
+
+	/**
+	 * 文字の種類を取得します.
+	 * @param ch
+	 * @return トークンの先頭にならない文字はnull.
+	 */
+	public static TokenKind kindOf(char ch) {
+		return (ch < KIND_TABLE.length) ? KIND_TABLE[ch] : null;
+	}
+
+	public static boolean isToken(char ch) {
+		return kindOf(ch) != null;
 	}
 
 	public static boolean isNote(char ch) {
-		if (noteString.indexOf(ch) < 0)
-			return false;
+		TokenKind kind = kindOf(ch);
+		return (kind == TokenKind.NOTE) || (kind == TokenKind.NX) || (kind == TokenKind.REST);
+	}
 
-		return true;
+	/**
+	 * 文字列の範囲を整数に変換します. {@link Integer#parseInt(String)} と同じ規則で変換します.
+	 * @param s 文字列
+	 * @param start 開始位置
+	 * @param end 終了位置 (このindexは含まない)
+	 * @return 変換した値
+	 * @throws NumberFormatException 変換できない
+	 */
+	public static int parseInt(CharSequence s, int start, int end) throws NumberFormatException {
+		int index = start;
+		boolean negative = false;
+		if (index < end) {
+			char ch = s.charAt(index);
+			if ( (ch == '-') || (ch == '+') ) {
+				negative = (ch == '-');
+				index++;
+			}
+		}
+		if (index >= end) {
+			throw new NumberFormatException(s.subSequence(start, end).toString());
+		}
+
+		// 負の値で累積して, Integer.MIN_VALUE まで扱う.
+		int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+		int result = 0;
+		for ( ; index < end; index++) {
+			int digit = Character.digit(s.charAt(index), 10);
+			if ( (digit < 0) || (result < limit / 10) ) {
+				throw new NumberFormatException(s.subSequence(start, end).toString());
+			}
+			result *= 10;
+			if (result < limit + digit) {
+				throw new NumberFormatException(s.subSequence(start, end).toString());
+			}
+			result -= digit;
+		}
+		return negative ? result : -result;
 	}
 
 	public static String noteName(String token) {
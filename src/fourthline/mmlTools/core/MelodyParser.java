@@ -1,5 +1,5 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools.core;
@@ -35,7 +35,11 @@ public final class MelodyParser {
 	private int maxNote = R_NOTE;
 
 	private int noteNumber = R_NOTE;
-	private String gt;
+
+	/** 直前のノートの音長. 文字列は必要になるまで作りません. */
+	private CharSequence gtSource = null;
+	private int gtStart = 0;
+	private int gtEnd = 0;
 
 	public MelodyParser(String mml) {
 		this(mml, "4", 120);
@@ -95,7 +99,16 @@ public final class MelodyParser {
 	}
 
 	public String getGt() {
-		return gt;
+		if (gtSource == null) {
+			return null;
+		}
+		return gtSource.subSequence(gtStart, gtEnd).toString();
+	}
+
+	private void setGt(CharSequence src, int start, int end) {
+		gtSource = src;
+		gtStart = start;
+		gtEnd = end;
 	}
 
 	public boolean checkPitch(int min, int max) {
@@ -148,7 +161,7 @@ public final class MelodyParser {
 			if ( now_elem.getValue().equals(pre_elem.getValue()) ) 
 				continue; // now tempo == pre tempo
 
-			length_total += (now_elem.getKey() - pre_elem.getKey())*60 / pre_elem.getValue();
+			length_total += (now_elem.getKey() - pre_elem.getKey()) * 60.0 / pre_elem.getValue();
 
 			pre_elem = now_elem;
 		}
@@ -159,11 +172,6 @@ public final class MelodyParser {
 	}
 
 
-	private int mmlGT(String gt) throws UndefinedTickException {
-		int tick = MMLTicks.getTick(gt);
-		return tick;
-	}
-
 	/**
 	 * ノートのmin, maxを記録する
 	 * @param note
@@ -215,83 +223,153 @@ public final class MelodyParser {
 		return result;
 	}
 
-	private void mmlOperation(String note) throws ParserWarn3ML {
-		try {
-			switch(note.charAt(0)) {
-			case 'l': 
-			case 'L':
-				mml_L = note.substring(1);
-				break;
-			case 't':
-			case 'T':
-				int temp = Integer.parseInt( note.substring(1) );
-				tempoList.put(mml_length, temp);
-				if ( (temp <= 255) && (temp >= 32) ) {
-					this.tempo = temp;
-				}
-				if ( (this.playingNote == 'r') || (this.playingNote == 'R') ) {
-					throw new ParserWarn3ML();
-				}
-				break;
-			case 'o':
-			case 'O':
-				mml_oct = Integer.parseInt( note.substring(1) );
-				break;
-			case '<':
-				if (mml_oct > 0) {
-					mml_oct--;
-				}
-				break;
-			case '>':
-				if (mml_oct < 8) {
-					mml_oct++;
-				}
-				break;
-			default:
+	/**
+	 * {@link #parseToken(CharSequence, int, int)} で検出した注意.
+	 */
+	public enum WarnType {
+		/** 注意なし */
+		NONE,
+		/** 音長を変換できない. ノートは無効になります. */
+		UNDEFINED_TICK,
+		/** 休符の直後のテンポ指定 */
+		TEMPO_ON_REST,
+		/** 数値を変換できない. 命令は無視されます. */
+		INVALID_NUMBER
+	}
+
+	private WarnType warnType = WarnType.NONE;
+
+	/**
+	 * 直前の {@link #parseToken(CharSequence, int, int)} で検出した注意を取得します.
+	 * @return 注意がなければ {@link WarnType#NONE}.
+	 */
+	public WarnType getWarnType() {
+		return warnType;
+	}
+
+	private void mmlOperation(CharSequence src, int start, int end) {
+		switch(src.charAt(start)) {
+		case 'l': 
+		case 'L':
+			mml_L = src.subSequence(start+1, end).toString();
+			break;
+		case 't':
+		case 'T':
+			int temp;
+			try {
+				temp = MMLTokenizer.parseInt(src, start+1, end);
+			} catch (NumberFormatException e) {
+				warnType = WarnType.INVALID_NUMBER;
 				break;
 			}
-		} catch (NumberFormatException e) {
-			System.err.println("skip: "+note);
+			tempoList.put(mml_length, temp);
+			if ( (temp <= 255) && (temp >= 32) ) {
+				this.tempo = temp;
+			}
+			if ( (this.playingNote == 'r') || (this.playingNote == 'R') ) {
+				warnType = WarnType.TEMPO_ON_REST;
+			}
+			break;
+		case 'o':
+		case 'O':
+			try {
+				mml_oct = MMLTokenizer.parseInt(src, start+1, end);
+			} catch (NumberFormatException e) {
+				warnType = WarnType.INVALID_NUMBER;
+			}
+			break;
+		case '<':
+			if (mml_oct > 0) {
+				mml_oct--;
+			}
+			break;
+		case '>':
+			if (mml_oct < 8) {
+				mml_oct++;
+			}
+			break;
+		default:
+			break;
 		}
 	}
 
 	public int noteGT(String note) throws UndefinedTickException, ParserWarn3ML {
-		if (!MMLTokenizer.isNote(note.charAt(0))) {
-			mmlOperation(note);
+		return noteGT(note, 0, note.length());
+	}
+
+	/**
+	 * 1トークンを解析します.
+	 * @param src MML
+	 * @param start トークンの開始位置
+	 * @param end トークンの終了位置 (このindexは含まない)
+	 * @return ノートのtick. ノート以外は0.
+	 * @throws UndefinedTickException
+	 * @throws ParserWarn3ML
+	 */
+	public int noteGT(CharSequence src, int start, int end) throws UndefinedTickException, ParserWarn3ML {
+		int tick = parseToken(src, start, end);
+		switch (warnType) {
+		case UNDEFINED_TICK:
+			throw new UndefinedTickException(getGt());
+		case TEMPO_ON_REST:
+			throw new ParserWarn3ML();
+		case INVALID_NUMBER:
+			System.err.println("skip: "+src.subSequence(start, end));
+			break;
+		default:
+			break;
+		}
+		return tick;
+	}
+
+	/**
+	 * 1トークンを解析します. 例外は使わず, 注意は {@link #getWarnType()} で取得します.
+	 * @param src MML
+	 * @param start トークンの開始位置
+	 * @param end トークンの終了位置 (このindexは含まない)
+	 * @return ノートのtick. ノート以外は0. 音長を変換できない場合は-1.
+	 */
+	public int parseToken(CharSequence src, int start, int end) {
+		warnType = WarnType.NONE;
+		char note1 = src.charAt(start);
+		if (!MMLTokenizer.isNote(note1)) {
+			mmlOperation(src, start, end);
 			return 0;
 		}
 
-		this.playingNote = note.charAt(0);
+		this.playingNote = note1;
 
-		if ( (this.playingNote == 'n') || (this.playingNote == 'N') ) {
+		if ( (note1 == 'n') || (note1 == 'N') ) {
 			try {
-				noteNumber = Integer.parseInt(note.substring(1));
+				noteNumber = MMLTokenizer.parseInt(src, start+1, end);
 			} catch (NumberFormatException e) {
-				throw new UndefinedTickException(note);
+				setGt(src, start, end);
+				warnType = WarnType.UNDEFINED_TICK;
+				return -1;
 			}
 			noteMinMax( noteNumber );
-			gt = "";
-			return mmlGT(mml_L);
+			setGt("", 0, 0);
+			return lengthTick(mml_L, 0, mml_L.length());
 		}
 
-		char note1 = note.charAt(0);
 		char note2 = ' ';
-		gt = mml_L;
+		setGt(mml_L, 0, mml_L.length());
 
-		if (note.length() > 1) {
-			int startIndex = 1;
-			note2 = note.charAt(1);
+		if (end - start > 1) {
+			int index = start+1;
+			note2 = src.charAt(index);
 
 			if ( (note2 == '+') || (note2 == '-') || (note2 == '#') )
-				startIndex++;
+				index++;
 
-			if (startIndex < note.length()) {
-				String s = note.substring(startIndex);
-				if ( (s.length() > 0) && (s.charAt(0) == '.' || Character.isDigit(s.charAt(0))) ) {
-					gt = s;
+			if (index < end) {
+				char ch = src.charAt(index);
+				if ( (ch == '.') || Character.isDigit(ch) ) {
+					setGt(src, index, end);
 				}
-				if (gt.startsWith(".")) {
-					gt = mml_L+".";
+				if ( (gtStart < gtEnd) && (gtSource.charAt(gtStart) == '.') ) {
+					String s = mml_L+".";
+					setGt(s, 0, s.length());
 				}
 			}
 		}
@@ -304,7 +382,17 @@ public final class MelodyParser {
 			noteNumber = R_NOTE;
 		}
 
-		return mmlGT(gt);
+		return lengthTick(gtSource, gtStart, gtEnd);
+	}
+
+	private int lengthTick(CharSequence s, int start, int end) {
+		int tick = MMLTicks.parseTick(s, start, end);
+		if (tick <= 0) {
+			setGt(s, start, end);
+			warnType = WarnType.UNDEFINED_TICK;
+			return -1;
+		}
+		return tick;
 	}
 
 	protected void reset() {
@@ -320,21 +408,26 @@ public final class MelodyParser {
 		MMLTokenizer mt = new MMLTokenizer(mml_src);
 		reset();
 
-		while (mt.hasNext()) {
-			int parseIndex[] = mt.getIndex();
-			String item = mt.next();
-
-			try {
-				mml_length += noteGT(item);
-			} catch (ParserWarn3ML warn) {
-				System.err.println(warn.getMessage()+parseIndex[1]);
-				warnIndex.add(parseIndex[1]);
+		while (mt.nextToken()) {
+			int startIndex = mt.getStartIndex();
+			int endIndex = mt.getEndIndex();
+			int tick = parseToken(mml_src, startIndex, endIndex);
+			switch (warnType) {
+			case UNDEFINED_TICK:
+				throw new UndefinedTickException(getGt());
+			case TEMPO_ON_REST:
+				warnIndex.add(startIndex);
+				break;
+			case INVALID_NUMBER:
+				System.err.println("skip: "+mml_src.substring(startIndex, endIndex));
+				break;
+			default:
+				mml_length += tick;
+				break;
 			}
 		}
 
-		try {
-			mmlOperation("T0");
-		} catch (ParserWarn3ML warn) {}
+		mmlOperation("T0", 0, 2);
 
 		return mml_length;
 	}
@@ -1,13 +1,29 @@
 /*
- * Copyright (C) 2015 たんらる
+ * Copyright (C) 2015-2016 たんらる
  */
 
 package fourthline.mmlTools.optimizer;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
 import fourthline.mmlTools.core.MMLTokenizer;
 
 /**
  * MMLEventListで出力したMMLに対して最適化を行う.
+ * <p>最適化は登録されたパスの順に行います. 同じMMLに対する最適化結果はキャッシュします.</p>
  */
 public final class MMLStringOptimizer {
 
@@ -21,6 +37,192 @@ public final class MMLStringOptimizer {
 		return debug;
 	}
 
+	/**
+	 * 最適化パス.
+	 */
+	private static final class Pass {
+		private final String name;
+		private final Supplier<? extends Optimizer> factory;
+		private final LongAdder time = new LongAdder();
+		private final LongAdder count = new LongAdder();
+
+		private Pass(String name, Supplier<? extends Optimizer> factory) {
+			this.name = name;
+			this.factory = factory;
+		}
+	}
+
+	private static final List<Pass> passList = new CopyOnWriteArrayList<>();
+	static {
+		passList.add(new Pass("OxLx", OxLxOptimizer::new));
+		passList.add(new Pass("BpCm", BpCmOptimizer::new));
+		passList.add(new Pass("Nx", NxOptimizer::new));
+	}
+
+	/**
+	 * 最適化パスを末尾に登録します. 同じ名前のパスがあれば置き換えます.
+	 * @param name パス名
+	 * @param factory パスごとに新しいOptimizerを作成するSupplier
+	 */
+	public static synchronized void registerPass(String name, Supplier<? extends Optimizer> factory) {
+		Pass pass = new Pass(name, factory);
+		for (int i = 0; i < passList.size(); i++) {
+			if (passList.get(i).name.equals(name)) {
+				passList.set(i, pass);
+				clearCache();
+				return;
+			}
+		}
+		passList.add(pass);
+		clearCache();
+	}
+
+	/**
+	 * 最適化パスの登録を解除します.
+	 * @param name パス名
+	 */
+	public static synchronized void unregisterPass(String name) {
+		passList.removeIf(t -> t.name.equals(name));
+		clearCache();
+	}
+
+	/**
+	 * 登録されている最適化パス名を実行順で取得します.
+	 * @return パス名のリスト
+	 */
+	public static List<String> getPassNames() {
+		List<String> list = new ArrayList<>();
+		passList.forEach(t -> list.add(t.name));
+		return list;
+	}
+
+	/**
+	 * 最適化結果のキャッシュ. 入力MMLをキーとし, 入力と結果の合計文字数が上限を超えたら古いものから捨てます.
+	 * 1件ごとにパート全体のMMLを保持するため, 件数ではなく文字数で制限します.
+	 */
+	private static final int DEFAULT_CACHE_LIMIT = 4 * 1024 * 1024;
+	private static int cacheLimit = DEFAULT_CACHE_LIMIT;
+	private static long cacheChars = 0;
+	private static final LinkedHashMap<String, String> cache = new LinkedHashMap<>(256, 0.75f, true);
+	private static final LongAdder cacheHitCount = new LongAdder();
+	private static final LongAdder cacheMissCount = new LongAdder();
+	private static final LongAdder tokenizeCount = new LongAdder();
+
+	/**
+	 * キャッシュする最適化結果の上限を, 入力と結果のMMLの合計文字数で設定します. 0でキャッシュを使用しません.
+	 * @param chars
+	 */
+	public static void setCacheLimit(int chars) {
+		synchronized (cache) {
+			cacheLimit = Math.max(chars, 0);
+			trimCache();
+		}
+	}
+
+	public static int getCacheLimit() {
+		return cacheLimit;
+	}
+
+	public static void clearCache() {
+		synchronized (cache) {
+			cache.clear();
+			cacheChars = 0;
+		}
+	}
+
+	/**
+	 * キャッシュしているMMLの合計文字数を取得します.
+	 * @return
+	 */
+	public static long getCacheChars() {
+		synchronized (cache) {
+			return cacheChars;
+		}
+	}
+
+	private static void putCache(String mml, String result) {
+		long chars = mml.length() + result.length();
+		synchronized (cache) {
+			if (chars > cacheLimit) {
+				return;
+			}
+			String old = cache.put(mml, result);
+			if (old != null) {
+				cacheChars -= mml.length() + old.length();
+			}
+			cacheChars += chars;
+			trimCache();
+		}
+	}
+
+	/**
+	 * 上限を超えた分を, 最近使用していないものから捨てます.
+	 */
+	private static void trimCache() {
+		Iterator<Map.Entry<String, String>> it = cache.entrySet().iterator();
+		while ( (cacheChars > cacheLimit) && it.hasNext() ) {
+			Map.Entry<String, String> entry = it.next();
+			cacheChars -= entry.getKey().length() + entry.getValue().length();
+			it.remove();
+		}
+	}
+
+	public static long getCacheHitCount() {
+		return cacheHitCount.sum();
+	}
+
+	public static long getCacheMissCount() {
+		return cacheMissCount.sum();
+	}
+
+	/**
+	 * キャッシュのヒット率を取得します.
+	 * @return 0.0～1.0. まだ最適化していなければ0.0.
+	 */
+	public static double getCacheHitRate() {
+		long hit = getCacheHitCount();
+		long total = hit + getCacheMissCount();
+		return (total == 0) ? 0.0 : (double) hit / total;
+	}
+
+	/**
+	 * パスに渡すトークン列を作成した回数を取得します.
+	 * @return
+	 */
+	public static long getTokenizeCount() {
+		return tokenizeCount.sum();
+	}
+
+	/**
+	 * パスごとの累積処理時間を取得します.
+	 * @return パス名と処理時間（ns）. 実行順.
+	 */
+	public static Map<String, Long> getPassTime() {
+		Map<String, Long> map = new LinkedHashMap<>();
+		passList.forEach(t -> map.put(t.name, t.time.sum()));
+		return map;
+	}
+
+	/**
+	 * パスごとの実行回数を取得します.
+	 * @return パス名と実行回数. 実行順.
+	 */
+	public static Map<String, Long> getPassCount() {
+		Map<String, Long> map = new LinkedHashMap<>();
+		passList.forEach(t -> map.put(t.name, t.count.sum()));
+		return map;
+	}
+
+	public static void resetStatistics() {
+		cacheHitCount.reset();
+		cacheMissCount.reset();
+		tokenizeCount.reset();
+		passList.forEach(t -> {
+			t.time.reset();
+			t.count.reset();
+		});
+	}
+
 	private String originalMML;
 
 	/**
@@ -36,30 +238,166 @@ public final class MMLStringOptimizer {
 	}
 
 	private String getOptimizedString() {
-		return optimize();
+		return optimize(originalMML);
+	}
+
+	/**
+	 * MMLを最適化します. キャッシュにあれば, その結果を返します.
+	 * @param mml MMLEventListで出力したMML文字列.
+	 * @return 最適化したMML
+	 */
+	public static String optimize(String mml) {
+		// デバッグ時は各パスの出力を確認できるよう, キャッシュを使用しない.
+		boolean useCache = !debug && (cacheLimit > 0);
+		if (useCache) {
+			String result;
+			synchronized (cache) {
+				result = cache.get(mml);
+			}
+			if (result != null) {
+				cacheHitCount.increment();
+				return result;
+			}
+			cacheMissCount.increment();
+		}
+
+		String result = runPass(mml);
+		if (useCache) {
+			putCache(mml, result);
+		}
+		return result;
 	}
 
-	private String optimize() {
-		String mml = originalMML;
-		Optimizer optimizerList[] = {
-				new OxLxOptimizer(),
-				new BpCmOptimizer(),
-				new NxOptimizer()
-		};
+	/**
+	 * パートを並列に最適化する専用のスレッド.
+	 * <p>共通の ForkJoinPool は使わず, 呼び出し元のスレッドも処理を分担します.
+	 * 専用スレッドがすべて使用中の場合は, 呼び出し元が残りのパートを順に処理するため,
+	 * {@link fourthline.mmlTools.ScoreGenerator} のスレッドから呼び出しても待ち続けることはありません.</p>
+	 */
+	private static final ExecutorService partExecutor;
+	static {
+		AtomicInteger threadNumber = new AtomicInteger();
+		partExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread thread = new Thread(r, "MMLStringOptimizer-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
 
-		for (Optimizer optimizer : optimizerList) {
-			MMLTokenizer tokenizer = new MMLTokenizer(mml);
-			while (tokenizer.hasNext()) {
-				String token = tokenizer.next();
+	/**
+	 * 複数パートのMMLを並列に最適化します.
+	 * @param mml 各パートのMML. nullの要素はnullのまま返します.
+	 * @return 最適化したMML
+	 */
+	public static String[] optimize(String mml[]) {
+		String result[] = new String[mml.length];
+		List<FutureTask<String>> taskList = new ArrayList<>(mml.length);
+		for (String t : mml) {
+			taskList.add((t == null) ? null : new FutureTask<>(() -> optimize(t)));
+		}
+
+		// 先頭以外のパートを専用スレッドに渡し, 開始していないものは呼び出し元で実行する.
+		boolean submitted = false;
+		for (FutureTask<String> task : taskList) {
+			if (task != null) {
+				if (submitted) {
+					partExecutor.execute(task);
+				}
+				submitted = true;
+			}
+		}
+		for (FutureTask<String> task : taskList) {
+			if (task != null) {
+				task.run();
+			}
+		}
+
+		boolean interrupted = false;
+		try {
+			for (int i = 0; i < result.length; i++) {
+				FutureTask<String> task = taskList.get(i);
+				while (task != null) {
+					try {
+						result[i] = task.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						if (cause instanceof RuntimeException) {
+							throw (RuntimeException) cause;
+						} else if (cause instanceof Error) {
+							throw (Error) cause;
+						}
+						throw new IllegalStateException(cause);
+					}
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 登録順にパスを実行します.
+	 * <p>トークン列は1パートにつき1回作成し, 次のパスへそのまま渡します.
+	 * パスがMMLを書き換えた場合だけ, 出力したMMLからトークン列を作り直します.</p>
+	 */
+	private static String runPass(String mml) {
+		String tokens[] = null;
+		for (Pass pass : passList) {
+			if (tokens == null) {
+				tokens = tokenize(mml);
+			}
+			long startTime = System.nanoTime();
+			Optimizer optimizer = pass.factory.get();
+			for (String token : tokens) {
 				optimizer.nextToken(token);
 			}
-			mml = optimizer.getMinString();
+			String result = optimizer.getMinString();
+			pass.time.add(System.nanoTime() - startTime);
+			pass.count.increment();
+
+			if (!result.equals(mml)) {
+				mml = result;
+				tokens = null;
+			}
 		}
 
 		return mml;
 	}
 
-	interface Optimizer {
+	/**
+	 * MMLをトークンの配列にします. 区切り位置を先に求め, 配列を1回だけ作成します.
+	 */
+	private static String[] tokenize(String mml) {
+		tokenizeCount.increment();
+		int endIndex[] = new int[Math.max(mml.length() / 2, 16)];
+		int count = 0;
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		while (tokenizer.nextToken()) {
+			if (count == endIndex.length) {
+				endIndex = Arrays.copyOf(endIndex, count * 2);
+			}
+			endIndex[count++] = tokenizer.getEndIndex();
+		}
+
+		String tokens[] = new String[count];
+		int startIndex = 0;
+		for (int i = 0; i < count; i++) {
+			tokens[i] = mml.substring(startIndex, endIndex[i]);
+			startIndex = endIndex[i];
+		}
+		return tokens;
+	}
+
+	/**
+	 * 最適化パス. トークンを順に受け取り, 最も短いMMLを返します.
+	 */
+	public interface Optimizer {
 		public void nextToken(String token);
 		public String getMinString();
 	}
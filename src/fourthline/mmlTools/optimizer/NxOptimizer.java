@@ -1,12 +1,12 @@
 /*
- * Copyright (C) 2015 たんらる
+ * Copyright (C) 2015-2016 たんらる
  */
 
 package fourthline.mmlTools.optimizer;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
-import java.util.OptionalInt;
 
 import fourthline.mmlTools.core.MMLTokenizer;
 import fourthline.mmlTools.core.MelodyParser;
@@ -16,93 +16,154 @@ import fourthline.mmlTools.core.UndefinedTickException;
 
 /**
  * Nxを使用した最適化.
+ * <p>出力済みのオクターブを状態とした探索を行い, 状態ごとに最短の候補を残します.
+ * オクターブ指定を保留した状態をいくつ残すかは, ビーム幅で指定します.
+ * ビーム幅1 (デフォルト) は従来と同じ結果になります. 2以上では, 同じ音を表す別の (短いことのある) 結果になる場合があります.</p>
  */
 public final class NxOptimizer implements MMLStringOptimizer.Optimizer {
 
-	private static class NxBuilder implements Cloneable {
-		private StringBuilder builder = new StringBuilder();
-		private int nCount = 0;
-		private int prevOct;
-		private OptionalInt offset = OptionalInt.empty();
+	public static final int DEFAULT_BEAM_WIDTH = 1;
 
-		private void addOctToken(int offset, String token) {
-			if (!this.offset.isPresent()) {
-				this.offset = OptionalInt.of( offset );
-			}
+	/**
+	 * 生成中の文字列. 追加した文字列を連結リストで保持し, 候補どうしで前方を共有します.
+	 */
+	private static final class Rope {
+		private static final Rope EMPTY = new Rope(null, "");
+
+		private final Rope prev;
+		private final String text;
+		private final int length;
+
+		private Rope(Rope prev, String text) {
+			this.prev = prev;
+			this.text = text;
+			this.length = (prev == null) ? text.length() : prev.length + text.length();
 		}
 
-		private NxBuilder(int initOct) {
-			prevOct = initOct;
+		private Rope append(String s) {
+			if (s.isEmpty()) {
+				return this;
+			}
+			return new Rope(this, s);
 		}
 
 		@Override
 		public String toString() {
-			return builder.toString()+" [o"+prevOct+"] ("+offset+") ";
+			char buf[] = new char[length];
+			int index = length;
+			for (Rope rope = this; rope != null; rope = rope.prev) {
+				index -= rope.text.length();
+				rope.text.getChars(0, rope.text.length(), buf, index);
+			}
+			return new String(buf);
+		}
+	}
+
+	/**
+	 * 候補. 変更せず, 文字列を追加するときは新しい候補を作ります.
+	 */
+	private static final class NxBuilder {
+		private final Rope rope;
+		private final boolean useNx;
+		private final int prevOct;
+
+		private NxBuilder(Rope rope, boolean useNx, int prevOct) {
+			this.rope = rope;
+			this.useNx = useNx;
+			this.prevOct = prevOct;
+		}
+
+		private NxBuilder append(String s) {
+			return new NxBuilder(rope.append(s), useNx, prevOct);
 		}
 
 		@Override
-		public NxBuilder clone() {
-			NxBuilder obj = new NxBuilder(prevOct);
-			obj.builder = new StringBuilder(builder.toString());
-			if (offset.isPresent()) {
-				obj.offset = OptionalInt.of( offset.getAsInt() );
-			}
-			return obj;
+		public String toString() {
+			return rope.toString()+" [o"+prevOct+"] ";
 		}
 	}
 
+	/** 短いものを優先し, 同じ長さならNxを使わないものを優先する. */
+	private static final Comparator<NxBuilder> BUILDER_ORDER = (t1, t2) -> {
+		int ret = t1.rope.length - t2.rope.length;
+		if (ret == 0) {
+			ret = Boolean.compare(t1.useNx, t2.useNx);
+		}
+		return ret;
+	};
+
+	private final int beamWidth;
 	private int octave = 4;
 	private MelodyParser parser = new MelodyParser("");
 
 	/**
-	 * 
+	 * 候補のリスト. 出力済みのオクターブが同じ候補は, 以降の出力が同じになるため1つだけ残します.
 	 */
 	private List<NxBuilder> builderList = new ArrayList<>();
 
 	public NxOptimizer() {
-		builderList.add(new NxBuilder(octave));
+		this(DEFAULT_BEAM_WIDTH);
+	}
+
+	/**
+	 * @param beamWidth ノートごとに残す, オクターブ指定を保留した候補の数.
+	 */
+	public NxOptimizer(int beamWidth) {
+		this.beamWidth = Math.max(beamWidth, 1);
+		builderList.add(new NxBuilder(Rope.EMPTY, false, octave));
 	}
 
+	/**
+	 * 最短の候補を取得します. 同順位の場合はリストの前にあるものを選びます.
+	 */
 	private NxBuilder minStack(List<NxBuilder> stack) {
-		return stack.stream().min((t1, t2) -> {
-			int ret = t1.builder.length() - t2.builder.length();
-			if (ret == 0) {
-				ret = t1.nCount - t2.nCount;
+		NxBuilder min = stack.get(0);
+		for (NxBuilder builder : stack) {
+			if (BUILDER_ORDER.compare(builder, min) < 0) {
+				min = builder;
 			}
-			return ret;
-		}).get();
+		}
+		return min;
 	}
 
-	private void addPattern(List<NxBuilder> prevMap) {
+	/**
+	 * Nxで出力する候補を追加します.
+	 * 直前の候補のうち短いものからビーム幅の数だけ, ノートのかわりにNxを出力した候補を作ります.
+	 * Nxは出力済みのオクターブを変えないため, オクターブ指定を保留した状態として残ります.
+	 */
+	private void addPattern(List<NxBuilder> prevList) {
 		if (parser.getNoteNumber() < 0) {
 			return;
 		}
-		prevMap.forEach(t -> {
-			t.builder.append("n"+parser.getNoteNumber());
-			t.nCount++;
-		});
-		builderList.add( minStack(prevMap) );
-		clearOctToken();
-	}
-
-	private void addOctToken(String token) {
-		builderList.forEach(t -> {
-			t.addOctToken(t.builder.length(), token);
-		});
-	}
-
-	private void clearOctToken() {
-		builderList.forEach(t -> {
-			t.offset = OptionalInt.empty();
-		});
+		String nx = "n"+parser.getNoteNumber();
+		if (beamWidth == 1) {
+			// 従来と同じ候補を選ぶ.
+			NxBuilder prev = minStack(prevList);
+			addBuilder(new NxBuilder(prev.rope.append(nx), true, prev.prevOct));
+			return;
+		}
+		List<NxBuilder> sortList = new ArrayList<>(prevList);
+		sortList.sort(BUILDER_ORDER);
+		for (int i = 0; (i < beamWidth) && (i < sortList.size()); i++) {
+			NxBuilder prev = sortList.get(i);
+			addBuilder(new NxBuilder(prev.rope.append(nx), true, prev.prevOct));
+		}
 	}
 
-	private List<NxBuilder> listClone() {
-		List<NxBuilder> cloneList = new ArrayList<>();
-		builderList.forEach(t -> {
-			cloneList.add(t.clone());
-		});
-		return cloneList;
+	/**
+	 * 候補を追加します. 出力済みのオクターブが同じ候補があれば, 短いほうを残します.
+	 */
+	private void addBuilder(NxBuilder newBuilder) {
+		for (int i = 0; i < builderList.size(); i++) {
+			NxBuilder builder = builderList.get(i);
+			if (builder.prevOct == newBuilder.prevOct) {
+				if (BUILDER_ORDER.compare(newBuilder, builder) < 0) {
+					builderList.set(i, newBuilder);
+				}
+				return;
+			}
+		}
+		builderList.add(newBuilder);
 	}
 
 	private void cleanList() {
@@ -112,7 +173,7 @@ public final class NxOptimizer implements MMLStringOptimizer.Optimizer {
 	}
 
 	private void notePattern(String token, String noteLength) {
-		List<NxBuilder> prevList = listClone();
+		List<NxBuilder> prevList = builderList;
 		addNoteToken(token);
 		cleanList();
 		if (noteLength.length() == 0) {
@@ -127,31 +188,29 @@ public final class NxOptimizer implements MMLStringOptimizer.Optimizer {
 			notePattern(token, s[1]);
 		} else if (firstC == '>') {
 			octave++;
-			addOctToken(token);
 		} else if (firstC == '<') {
 			octave--;
-			addOctToken(token);
 		} else if (firstC == 'o') {
 			octave = Integer.parseInt(s[1]);
-			addOctToken(token);
 		} else {
 			addToken(token);
 		}
 	}
 
+	/**
+	 * 保留中のオクターブ指定とノートを出力します. 出力後は, すべての候補が同じオクターブになります.
+	 */
 	private void addNoteToken(String token) {
+		List<NxBuilder> newList = new ArrayList<>(builderList.size());
 		builderList.forEach(t -> {
-			t.builder.append( OxLxOptimizer.getOctaveString(t.prevOct, octave) );
-			t.builder.append(token);
-			t.prevOct = octave;
+			String s = OxLxOptimizer.getOctaveString(t.prevOct, octave) + token;
+			newList.add(new NxBuilder(t.rope.append(s), t.useNx, octave));
 		});
-		clearOctToken();
+		builderList = newList;
 	}
 
 	private void addToken(String token) {
-		builderList.forEach(t -> {
-			t.builder.append(token);
-		});
+		builderList.replaceAll(t -> t.append(token));
 	}
 
 	private void printMap() {
@@ -175,6 +234,6 @@ public final class NxOptimizer implements MMLStringOptimizer.Optimizer {
 
 	@Override
 	public String getMinString() {
-		return minStack(builderList).builder.toString();
+		return minStack(builderList).rope.toString();
 	}
 }
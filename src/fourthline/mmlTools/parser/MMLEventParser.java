@@ -1,27 +1,31 @@
 /*
- * Copyright (C) 2013-2014 たんらる
+ * Copyright (C) 2013-2016 たんらる
  */
 
 package fourthline.mmlTools.parser;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import fourthline.mmlTools.MMLEvent;
 import fourthline.mmlTools.MMLNoteEvent;
 import fourthline.mmlTools.MMLTempoEvent;
 import fourthline.mmlTools.core.MMLTokenizer;
 import fourthline.mmlTools.core.MelodyParser;
-import fourthline.mmlTools.core.ParserWarn3ML;
 import fourthline.mmlTools.core.TuningBase;
-import fourthline.mmlTools.core.UndefinedTickException;
 
+/**
+ * MMLをイベントに変換します.
+ * <p>{@link #parse(MMLEventVisitor)} はイベントを値でVisitorに渡し, 注意は {@link #getWarnList()} に記録します.
+ * Iteratorとして使う場合は, 解析結果のイベントオブジェクトを順に返します.</p>
+ */
 public final class MMLEventParser implements Iterator<MMLEvent> {
-	private final MMLTokenizer tokenizer;
-	private final MelodyParser parser;
+	private final String mml;
+	private final List<MMLParseWarning> warnList = new ArrayList<>();
 
 	public MMLEventParser(String mml) {
-		tokenizer = new MMLTokenizer(mml);
-		parser = new MelodyParser(mml);
+		this.mml = (mml == null) ? "" : mml;
 	}
 
 	public static int firstNoteNumber(String mml) {
@@ -36,108 +40,159 @@ public final class MMLEventParser implements Iterator<MMLEvent> {
 		return -1;
 	}
 
-	private MMLEvent nextItem = null;
+	/**
+	 * 直前の解析で記録した注意を取得します.
+	 * @return 注意のリスト
+	 */
+	public List<MMLParseWarning> getWarnList() {
+		return warnList;
+	}
 
-	// MMLパース用
-	private boolean hasTie = false;
-	private int totalTick = 0;
-	private MMLNoteEvent prevNoteEvent = null;
-	private int volumn = MMLNoteEvent.INIT_VOL;
+	// MMLパース用. タイで連結中のノート.
+	private boolean hasPendingNote;
+	private int pendingNote;
+	private int pendingTick;
+	private int pendingOffset;
+	private int pendingVelocity;
+	private TuningBase pendingTuningBase;
+	private int pendingStartIndex;
+	private int pendingEndIndex;
 
 	/**
-	 * @return すべてMMLパースが終っているときは、nullを返す.
+	 * MML全体を解析し, イベントをVisitorに渡します.
+	 * @param visitor
 	 */
-	private MMLEvent parseNextEvent() {
-		while (tokenizer.hasNext()) {
-			String token = tokenizer.next();
-			char firstC = token.charAt(0);
+	public void parse(MMLEventVisitor visitor) {
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		MelodyParser parser = new MelodyParser(mml);
+		boolean hasTie = false;
+		int totalTick = 0;
+		int volumn = MMLNoteEvent.INIT_VOL;
+		hasPendingNote = false;
+		warnList.clear();
+
+		while (tokenizer.nextToken()) {
+			int start = tokenizer.getStartIndex();
+			int end = tokenizer.getEndIndex();
+			char firstC = tokenizer.getTokenChar();
 			if ( firstC == '&' ) {
 				hasTie = true;
 				continue;
 			}
 			if ( (firstC == 'v') || (firstC == 'V') ) {
+				int nextVolumn;
 				try {
-					int nextVolumn = Integer.parseInt( token.substring(1) );
-					if ( (nextVolumn >= 0) && (nextVolumn <= MMLNoteEvent.MAX_VOL) ) {
-						volumn = nextVolumn;
-					}
-					continue;
+					nextVolumn = MMLTokenizer.parseInt(mml, start+1, end);
 				} catch (NumberFormatException e) {
-					e.printStackTrace();
+					addWarn(MMLParseWarning.Type.INVALID_NUMBER, start, end);
+					continue;
+				}
+				if ( (nextVolumn >= 0) && (nextVolumn <= MMLNoteEvent.MAX_VOL) ) {
+					volumn = nextVolumn;
+					visitor.volume(volumn, totalTick, start, end);
+				} else {
+					addWarn(MMLParseWarning.Type.OUT_OF_RANGE, start, end);
 				}
+				continue;
 			}
 			if ( (firstC == 't') || (firstC == 'T') ) {
+				int tempo;
 				try {
-					int tempo = Integer.parseInt( token.substring(1) );
-					nextItem = new MMLTempoEvent(tempo, totalTick);
-				} catch (IllegalArgumentException e) {
+					tempo = MMLTokenizer.parseInt(mml, start+1, end);
+				} catch (NumberFormatException e) {
+					addWarn(MMLParseWarning.Type.INVALID_NUMBER, start, end);
 					continue;
 				}
+				if ( (tempo >= 32) && (tempo <= 255) ) {
+					visitor.tempo(tempo, totalTick, start, end);
+				} else {
+					addWarn(MMLParseWarning.Type.OUT_OF_RANGE, start, end);
+				}
+				continue;
+			}
 
-				return nextItem;
+			int tick = parser.parseToken(mml, start, end);
+			switch (parser.getWarnType()) {
+			case UNDEFINED_TICK:
+				addWarn(MMLParseWarning.Type.UNDEFINED_TICK, start, end);
+				continue;
+			case INVALID_NUMBER:
+				addWarn(MMLParseWarning.Type.INVALID_NUMBER, start, end);
+				break;
+			default:
+				break;
 			}
-			try {
-				int tick = parser.noteGT(token);
-				if (MMLTokenizer.isNote(firstC)) {
-					/* tie でかつ、同じノートであれば、前のNoteEventにTickを加算する */
-					if ( (hasTie) && (prevNoteEvent != null) && (prevNoteEvent.getNote() == parser.getNoteNumber())) {
-						int prevTick = prevNoteEvent.getTick();
-						if ( (prevTick == tick) && (TuningBase.getInstance(tick) != null) ) {
-							prevNoteEvent.setTuningNote(TuningBase.getInstance(tick));
-						}
-						prevNoteEvent.setTick( prevTick + tick);
-						prevNoteEvent.getIndexOfMMLString()[1] = tokenizer.getIndex()[1];
-					} else if (parser.getNoteNumber() >= -1) {
-						nextItem = prevNoteEvent;
-						prevNoteEvent = new MMLNoteEvent(parser.getNoteNumber(), tick, totalTick, volumn);
-						prevNoteEvent.setIndexOfMMLString(tokenizer.getIndex());
+			if (MMLTokenizer.isNote(firstC)) {
+				int noteNumber = parser.getNoteNumber();
+				/* tie でかつ、同じノートであれば、前のノートにTickを加算する */
+				if ( (hasTie) && (hasPendingNote) && (pendingNote == noteNumber) ) {
+					if ( (pendingTick == tick) && (TuningBase.getInstance(tick) != null) ) {
+						pendingTuningBase = TuningBase.getInstance(tick);
 					}
+					pendingTick += tick;
+					pendingEndIndex = end;
+				} else if (noteNumber >= -1) {
+					flushNote(visitor);
+					hasPendingNote = true;
+					pendingNote = noteNumber;
+					pendingTick = tick;
+					pendingOffset = totalTick;
+					pendingVelocity = volumn;
+					pendingTuningBase = null;
+					pendingStartIndex = start;
+					pendingEndIndex = end;
+				}
 
-					hasTie = false;
-					totalTick += tick;
-					if (nextItem != null) {
-						return nextItem;
-					}
-				} 
-			} catch (UndefinedTickException | ParserWarn3ML e) {
-				System.err.println(e.getMessage());
+				hasTie = false;
+				totalTick += tick;
 			}
-
 		}
 
-		nextItem = prevNoteEvent;
-		prevNoteEvent = null;
-
-		return nextItem;
+		flushNote(visitor);
 	}
 
-	@Override
-	public boolean hasNext() {
-		if (nextItem == null) {
-			parseNextEvent();
+	private void flushNote(MMLEventVisitor visitor) {
+		if (hasPendingNote) {
+			hasPendingNote = false;
+			visitor.note(pendingNote, pendingTick, pendingOffset, pendingVelocity, pendingTuningBase, pendingStartIndex, pendingEndIndex);
 		}
+	}
 
-		if (nextItem == null) {
-			return false;
-		} else {
-			return true;
-		}
+	private void addWarn(MMLParseWarning.Type type, int start, int end) {
+		warnList.add(new MMLParseWarning(type, start, end));
 	}
 
-	@Override
-	public MMLEvent next() {
-		if (nextItem == null) {
-			return parseNextEvent();
-		}
+	private Iterator<MMLEvent> eventIterator = null;
+
+	private Iterator<MMLEvent> eventIterator() {
+		if (eventIterator == null) {
+			List<MMLEvent> eventList = new ArrayList<>();
+			parse(new MMLEventVisitor() {
+				@Override
+				public void note(int note, int tick, int offset, int velocity, TuningBase tuningBase, int startIndex, int endIndex) {
+					MMLNoteEvent noteEvent = new MMLNoteEvent(note, tick, offset, velocity);
+					noteEvent.setTuningNote(tuningBase);
+					noteEvent.setIndexOfMMLString(new int[] { startIndex, endIndex });
+					eventList.add(noteEvent);
+				}
 
-		MMLEvent returnEvent = nextItem;
-		nextItem = null;
+				@Override
+				public void tempo(int tempo, int offset, int startIndex, int endIndex) {
+					eventList.add(new MMLTempoEvent(tempo, offset));
+				}
+			});
+			eventIterator = eventList.iterator();
+		}
+		return eventIterator;
+	}
 
-		return returnEvent;
+	@Override
+	public boolean hasNext() {
+		return eventIterator().hasNext();
 	}
 
 	@Override
-	public void remove() {
-		tokenizer.remove();
+	public MMLEvent next() {
+		return eventIterator().next();
 	}
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.parser;
+
+import fourthline.mmlTools.core.TuningBase;
+
+/**
+ * {@link MMLEventParser#parse(MMLEventVisitor)} が解析したイベントを受け取ります.
+ * <p>イベントはオブジェクトを作らず, 値で渡されます. 音源文字列の位置は [startIndex, endIndex) です.</p>
+ */
+public interface MMLEventVisitor {
+	/**
+	 * ノート. タイで連結したノートは, 連結後に1つのノートとして渡されます.
+	 * 連結が確定してから渡すため, 後続のテンポや音量より後になることがあります.
+	 * @param note ノート番号
+	 * @param tick 音長
+	 * @param offset 開始tick
+	 * @param velocity 音量
+	 * @param tuningBase 調律ノートの単位. 調律ノートでなければnull.
+	 * @param startIndex 先頭トークンの開始位置
+	 * @param endIndex 最後のトークンの終了位置
+	 */
+	void note(int note, int tick, int offset, int velocity, TuningBase tuningBase, int startIndex, int endIndex);
+
+	/**
+	 * テンポ. 範囲外のテンポは渡されません.
+	 * @param tempo テンポ
+	 * @param offset tick
+	 * @param startIndex トークンの開始位置
+	 * @param endIndex トークンの終了位置
+	 */
+	void tempo(int tempo, int offset, int startIndex, int endIndex);
+
+	/**
+	 * 音量の変更.
+	 * @param velocity 音量
+	 * @param offset tick
+	 * @param startIndex トークンの開始位置
+	 * @param endIndex トークンの終了位置
+	 */
+	default void volume(int velocity, int offset, int startIndex, int endIndex) {}
+}
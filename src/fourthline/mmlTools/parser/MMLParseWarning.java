@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.parser;
+
+/**
+ * MML解析の注意. 解析は止めずに記録します.
+ */
+public final class MMLParseWarning {
+	public enum Type {
+		/** 音長を変換できない. ノートは無視されます. */
+		UNDEFINED_TICK,
+		/** 数値を変換できない. 命令は無視されます. */
+		INVALID_NUMBER,
+		/** テンポ, 音量が範囲外. 命令は無視されます. */
+		OUT_OF_RANGE
+	}
+
+	private final Type type;
+	private final int startIndex;
+	private final int endIndex;
+
+	public MMLParseWarning(Type type, int startIndex, int endIndex) {
+		this.type = type;
+		this.startIndex = startIndex;
+		this.endIndex = endIndex;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getStartIndex() {
+		return startIndex;
+	}
+
+	public int getEndIndex() {
+		return endIndex;
+	}
+
+	@Override
+	public String toString() {
+		return type + " [" + startIndex + ", " + endIndex + ")";
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.batch;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.MidiSystem;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fourthline.mabiicco.batch.BatchResult.Stage;
+import fourthline.mabiicco.batch.BatchResult.Status;
+import fourthline.mmlTools.MMLScoreTest;
+
+/**
+ * MMLBatchのテスト.
+ */
+public class MMLBatchTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private void copyFixture(String name, File dir) throws IOException {
+		try (InputStream inputStream = MMLScoreTest.class.getResourceAsStream(name)) {
+			Files.copy(inputStream, new File(dir, name).toPath());
+		}
+	}
+
+	@Test
+	public void test_run() throws Exception {
+		File inputDir = folder.newFolder("input");
+		File subDir = new File(inputDir, "sub");
+		subDir.mkdir();
+		copyFixture("format0.mmi", inputDir);
+		copyFixture("format1.mmi", subDir);
+		Files.write(new File(subDir, "broken.mmi").toPath(), "broken".getBytes());
+		Files.write(new File(subDir, "readme.txt").toPath(), "readme".getBytes());
+		Path outputDir = folder.newFolder("output").toPath();
+
+		MMLBatch batch = new MMLBatch(2, 1, outputDir);
+		batch.setOutput(null);
+		List<BatchResult> resultList = batch.run(Arrays.asList(inputDir.toPath()));
+
+		assertEquals(3, resultList.size());
+		BatchResult result = resultList.get(0);
+		assertEquals("format0.mmi", result.getPath().getFileName().toString());
+		assertEquals(Status.OK, result.getStatus());
+		assertEquals(Arrays.asList("F"), result.getRankList());
+		assertTrue(result.getTime(Stage.GENERATE) > 0);
+
+		result = resultList.get(1);
+		assertEquals("broken.mmi", result.getPath().getFileName().toString());
+		assertEquals(Status.ERROR, result.getStatus());
+		assertTrue(result.getMessageList().get(0).startsWith("PARSE: "));
+
+		result = resultList.get(2);
+		assertEquals("format1.mmi", result.getPath().getFileName().toString());
+		assertEquals(Status.OK, result.getStatus());
+		assertEquals(Arrays.asList("F", "F"), result.getRankList());
+
+		// 入力と同じディレクトリ構成でMIDIを出力する.
+		assertNotNull(MidiSystem.getSequence(outputDir.resolve("format0.mid").toFile()));
+		assertNotNull(MidiSystem.getSequence(outputDir.resolve("sub/format1.mid").toFile()));
+		assertFalse(Files.exists(outputDir.resolve("sub/broken.mid")));
+	}
+
+	@Test
+	public void test_isTargetFile() {
+		File dir = new File("dir");
+		assertTrue(MMLBatch.isTargetFile(new File(dir, "a.mmi").toPath()));
+		assertTrue(MMLBatch.isTargetFile(new File(dir, "a.MMS").toPath()));
+		assertTrue(MMLBatch.isTargetFile(new File(dir, "a.mml").toPath()));
+		assertFalse(MMLBatch.isTargetFile(new File(dir, "a.mid").toPath()));
+	}
+}
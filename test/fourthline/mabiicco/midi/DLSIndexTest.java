@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.midi;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Soundbank;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * DLSIndexのテスト.
+ */
+public final class DLSIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] chunk(String id, byte[] ... data) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (byte b[] : data) {
+			body.write(b);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(id.getBytes(StandardCharsets.US_ASCII));
+		out.write(ints(body.size()));
+		body.writeTo(out);
+		if ((body.size() & 1) != 0) {
+			out.write(0);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] list(String type, byte[] ... data) throws IOException {
+		byte all[][] = new byte[data.length+1][];
+		all[0] = type.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(data, 0, all, 1, data.length);
+		return chunk("LIST", all);
+	}
+
+	private static byte[] ints(int ... values) {
+		ByteBuffer b = ByteBuffer.allocate(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		for (int v : values) {
+			b.putInt(v);
+		}
+		return b.array();
+	}
+
+	private static byte[] shorts(int ... values) {
+		ByteBuffer b = ByteBuffer.allocate(values.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+		for (int v : values) {
+			b.putShort((short) v);
+		}
+		return b.array();
+	}
+
+	private static byte[] region(int waveIndex) throws IOException {
+		return list("rgn ",
+				chunk("rgnh", shorts(0, 127, 0, 127, 0, 0)),
+				chunk("wsmp", ints(20), shorts(60, 0), ints(0, 0, 0)),
+				chunk("wlnk", shorts(0, 0), ints(1, waveIndex)));
+	}
+
+	private static byte[] instrument(int ulBank, int program, int ... waveIndex) throws IOException {
+		byte regions[][] = new byte[waveIndex.length][];
+		for (int i = 0; i < waveIndex.length; i++) {
+			regions[i] = region(waveIndex[i]);
+		}
+		return list("ins ",
+				chunk("insh", ints(waveIndex.length, ulBank, program)),
+				list("lrgn", regions));
+	}
+
+	private static byte[] wave(int size) throws IOException {
+		// PCM, 1ch, 22050Hz, 16bit
+		return list("wave",
+				chunk("fmt ", shorts(1, 1), ints(22050, 44100), shorts(2, 16)),
+				chunk("data", new byte[size]));
+	}
+
+	private File createDLS() throws IOException {
+		byte dls[] = chunk("RIFF", "DLS ".getBytes(StandardCharsets.US_ASCII),
+				chunk("colh", ints(3)),
+				list("lins",
+						instrument(0, 5, 0, 1),
+						instrument(0x0201, 10, 1, 1, 2),
+						instrument(0x80000000, 0, 2)),
+				chunk("ptbl", ints(8, 0)),
+				list("wvpl", wave(100), wave(301), wave(1000)));
+		File file = folder.newFile("test.dls");
+		Files.write(file.toPath(), dls);
+		return file;
+	}
+
+	@Test
+	public void test_sampleSize() throws Exception {
+		File file = createDLS();
+		DLSIndex index = DLSIndex.read(file);
+
+		assertEquals(3, index.getInstrumentCount());
+		assertEquals(100 + 301, index.getSampleSize(0, 5));
+		// 同じwaveを複数のリージョンで使う場合は1回だけ数える.
+		assertEquals(301 + 1000, index.getSampleSize(2*128+1, 10));
+		assertEquals(1000, index.getSampleSize(0, 0));
+		assertEquals(0, index.getSampleSize(0, 6));
+
+		// Java Sound で読み込んだ楽器と bank, program が一致する.
+		Soundbank soundbank = MidiSystem.getSoundbank(file);
+		assertEquals(3, soundbank.getInstruments().length);
+		for (Instrument inst : soundbank.getInstruments()) {
+			assertTrue(index.getSampleSize(inst.getPatch().getBank(), inst.getPatch().getProgram()) > 0);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void test_notDLS() throws Exception {
+		File file = folder.newFile("test.wav");
+		Files.write(file.toPath(), chunk("RIFF", "WAVE".getBytes(StandardCharsets.US_ASCII)));
+		DLSIndex.read(file);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.midi;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * InstrumentCacheのテスト.
+ */
+public final class InstrumentCacheTest {
+
+	private static InstClass inst(int program, long sampleSize) {
+		return new InstClass("inst"+program, 0, program, null, null, sampleSize);
+	}
+
+	private static InstClass inst(int program, long sampleSize, File dlsFile) {
+		return new InstClass("inst"+program, 0, program, null, dlsFile, sampleSize);
+	}
+
+	@Test
+	public void test_lru() {
+		InstrumentCache cache = new InstrumentCache(1000);
+		InstClass a = inst(1, 400);
+		InstClass b = inst(2, 400);
+		InstClass c = inst(3, 400);
+		List<InstClass> loadList = new ArrayList<>();
+
+		assertEquals(Arrays.asList(), cache.use(Arrays.asList(a, b), loadList));
+		assertEquals(Arrays.asList(a, b), loadList);
+		assertEquals(800, cache.getUsedSize());
+
+		// ロード済みの楽器は再度ロードしない. 使用したものが新しくなる.
+		loadList.clear();
+		assertEquals(Arrays.asList(), cache.use(Arrays.asList(a), loadList));
+		assertEquals(Arrays.asList(), loadList);
+
+		// 上限を超えたら, 最も古いものをアンロードする.
+		assertEquals(Arrays.asList(b), cache.use(Arrays.asList(c), loadList));
+		assertEquals(Arrays.asList(c), loadList);
+		assertEquals(800, cache.getUsedSize());
+		assertTrue(cache.contains(a));
+		assertFalse(cache.contains(b));
+		assertEquals(Arrays.asList(a, c), cache.getLoadedList());
+	}
+
+	@Test
+	public void test_required() {
+		InstrumentCache cache = new InstrumentCache(1000);
+		InstClass a = inst(1, 600);
+		InstClass b = inst(2, 600);
+		InstClass c = inst(3, 600);
+		List<InstClass> loadList = new ArrayList<>();
+
+		// 同時に使用する楽器は, 上限を超えてもアンロードしない.
+		assertEquals(Arrays.asList(), cache.use(Arrays.asList(a, b), loadList));
+		assertEquals(1200, cache.getUsedSize());
+		assertEquals(Arrays.asList(a), cache.use(Arrays.asList(b, c), loadList));
+		assertEquals(1200, cache.getUsedSize());
+
+		assertEquals(Arrays.asList(b), cache.retainOnly(Arrays.asList(c)));
+		assertEquals(600, cache.getUsedSize());
+		cache.remove(c);
+		assertEquals(0, cache.getUsedSize());
+		assertEquals(Arrays.asList(), cache.getLoadedList());
+	}
+
+	@Test
+	public void test_staleFiles() {
+		File file1 = new File("1.dls");
+		File file2 = new File("2.dls");
+		InstrumentCache cache = new InstrumentCache(1000);
+		InstClass a = inst(1, 600, file1);
+		InstClass b = inst(2, 600, file1);
+		InstClass c = inst(3, 600, file2);
+		InstClass d = inst(4, 600, file2);
+		List<InstClass> loadList = new ArrayList<>();
+
+		// アンロードしただけでは読み直さない.
+		cache.use(Arrays.asList(a), loadList);
+		assertEquals(Arrays.asList(a), cache.use(Arrays.asList(b), loadList));
+		assertEquals(600, cache.getStaleSize(file1));
+		assertEquals(Arrays.asList(), cache.takeStaleFiles(false));
+
+		// 残っているサンプルを再度使う場合は, 読み直す対象から外す.
+		assertEquals(Arrays.asList(b), cache.use(Arrays.asList(a), loadList));
+		assertEquals(600, cache.getStaleSize(file1));
+		assertEquals(Arrays.asList(a), cache.use(Arrays.asList(c), loadList));
+		assertEquals(1200, cache.getStaleSize(file1));
+
+		// 上限を超えたファイルだけを読み直す.
+		assertEquals(Arrays.asList(c), cache.use(Arrays.asList(d), loadList));
+		assertEquals(Arrays.asList(file1), cache.takeStaleFiles(false));
+		assertEquals(0, cache.getStaleSize(file1));
+		assertEquals(600, cache.getStaleSize(file2));
+		assertEquals(Arrays.asList(file2), cache.takeStaleFiles(true));
+		assertEquals(0, cache.getStaleSize(file2));
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.midi;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLScoreTest;
+import fourthline.mmlTools.MMLTempoEvent;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.core.MMLTicks;
+import fourthline.mmlTools.core.UndefinedTickException;
+import fourthline.mmlTools.parser.MMLParseException;
+
+/**
+ * MMLMidiTrackのテスト.
+ */
+public class MMLMidiTrackTest {
+
+	/**
+	 * 1つずつ挿入する変換 (マージ導入前の処理).
+	 */
+	private static List<MMLNoteEvent> insertAll(List<MMLTempoEvent> tempoList, List<List<MMLNoteEvent>> parts) {
+		ArrayList<MMLNoteEvent> noteEventList = new ArrayList<>();
+		for (List<MMLNoteEvent> part : parts) {
+			for (MMLNoteEvent noteEvent : part) {
+				MMLNoteEvent addEvent = noteEvent.clone();
+				int targetTick = addEvent.getTickOffset();
+				int targetIndex = 0;
+				for (MMLNoteEvent n : noteEventList) {
+					if (n.getTickOffset() > targetTick) {
+						break;
+					}
+					targetIndex++;
+					if ( (n.getTickOffset() == targetTick) && (n.getNote() == addEvent.getNote())) {
+						break;
+					}
+				}
+				boolean skip = false;
+				if (targetIndex > 0) {
+					MMLNoteEvent prevEvent = noteEventList.get(targetIndex - 1);
+					if (addEvent.getNote() == prevEvent.getNote()) {
+						if (prevEvent.getTickOffset() == targetTick) {
+							if (!MMLTempoEvent.searchEqualsTick(tempoList, targetTick)) {
+								if (addEvent.getVelocity() == 0) {
+									prevEvent.setTick(MMLTicks.minimumTick());
+								}
+								skip = true;
+							} else {
+								if (prevEvent.getVelocity() == 0) {
+									addEvent.setTick(MMLTicks.minimumTick());
+								}
+								targetIndex--;
+								noteEventList.remove(targetIndex);
+							}
+						} else {
+							trim(prevEvent, addEvent);
+						}
+					}
+				}
+				if (skip) {
+					continue;
+				}
+				if (targetIndex < noteEventList.size()) {
+					trim(addEvent, noteEventList.get(targetIndex));
+				}
+				noteEventList.add(targetIndex, addEvent);
+			}
+		}
+		return noteEventList;
+	}
+
+	private static void trim(MMLNoteEvent note1, MMLNoteEvent note2) {
+		if (note1.getNote() == note2.getNote()) {
+			int tickOverlap = note1.getEndTick() - note2.getTickOffset();
+			if (tickOverlap > 0) {
+				note1.setTick(note1.getTick() - tickOverlap);
+			}
+		}
+	}
+
+	private static List<MMLNoteEvent> merge(List<MMLTempoEvent> tempoList, List<List<MMLNoteEvent>> parts) {
+		MMLMidiTrack midiTrack = new MMLMidiTrack(tempoList);
+		for (List<MMLNoteEvent> part : parts) {
+			midiTrack.add(part);
+		}
+		return midiTrack.getNoteEventList();
+	}
+
+	private static void assertMerge(List<MMLTempoEvent> tempoList, List<List<MMLNoteEvent>> parts) {
+		List<MMLNoteEvent> expect = insertAll(tempoList, parts);
+		List<MMLNoteEvent> actual = merge(tempoList, parts);
+		assertEquals(expect.toString(), actual.toString());
+	}
+
+	@Test
+	public void test_sameTick() throws UndefinedTickException {
+		int t4 = MMLTicks.getTick("4");
+		List<MMLNoteEvent> part1 = Arrays.asList(new MMLNoteEvent(50, t4, 0), new MMLNoteEvent(52, t4, t4));
+		List<MMLNoteEvent> part2 = Arrays.asList(new MMLNoteEvent(50, t4*2, 0, 0), new MMLNoteEvent(54, t4, t4));
+
+		// 同じ位置の同じ音は先に追加したノート. 後発音が V0 の場合は l64.
+		List<MMLNoteEvent> list = merge(new ArrayList<>(), Arrays.asList(part1, part2));
+		assertEquals(Arrays.asList(
+				new MMLNoteEvent(50, MMLTicks.minimumTick(), 0),
+				new MMLNoteEvent(52, t4, t4),
+				new MMLNoteEvent(54, t4, t4)).toString(), list.toString());
+
+		// テンポ指定がある位置では後発音で更新する.
+		List<MMLTempoEvent> tempoList = new ArrayList<>(Arrays.asList(new MMLTempoEvent(150, 0)));
+		list = merge(tempoList, Arrays.asList(part1, part2));
+		assertEquals(Arrays.asList(
+				new MMLNoteEvent(50, t4*2, 0, 0),
+				new MMLNoteEvent(52, t4, t4),
+				new MMLNoteEvent(54, t4, t4)).toString(), list.toString());
+	}
+
+	@Test
+	public void test_overlap() throws UndefinedTickException {
+		int t4 = MMLTicks.getTick("4");
+		List<MMLNoteEvent> part1 = Arrays.asList(new MMLNoteEvent(50, t4*2, 0), new MMLNoteEvent(50, t4, t4*3));
+		List<MMLNoteEvent> part2 = Arrays.asList(new MMLNoteEvent(50, t4*2, t4));
+
+		List<MMLNoteEvent> list = merge(new ArrayList<>(), Arrays.asList(part1, part2));
+		assertEquals(Arrays.asList(
+				new MMLNoteEvent(50, t4, 0),
+				new MMLNoteEvent(50, t4*2, t4),
+				new MMLNoteEvent(50, t4, t4*3)).toString(), list.toString());
+	}
+
+	@Test
+	public void test_random() {
+		Random random = new Random(12345);
+		int unit = MMLTicks.minimumTick();
+		for (int n = 0; n < 500; n++) {
+			List<MMLTempoEvent> tempoList = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				new MMLTempoEvent(120, unit * random.nextInt(40)).appendToListElement(tempoList);
+			}
+			List<List<MMLNoteEvent>> parts = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				ArrayList<MMLNoteEvent> part = new ArrayList<>();
+				int offset = 0;
+				for (int j = 0; j < 20; j++) {
+					offset += unit * random.nextInt(4);
+					int velocity = (random.nextInt(8) == 0) ? 0 : 8;
+					part.add(new MMLNoteEvent(40 + random.nextInt(4), unit * (1 + random.nextInt(6)), offset, velocity));
+				}
+				parts.add(part);
+			}
+			assertMerge(tempoList, parts);
+		}
+	}
+
+	/**
+	 * 各パートが開始位置の順に並んでいる場合 (複数パートをまとめてマージ).
+	 */
+	@Test
+	public void test_random_sorted() {
+		Random random = new Random(2016);
+		int unit = MMLTicks.minimumTick();
+		for (int n = 0; n < 2000; n++) {
+			List<MMLTempoEvent> tempoList = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				new MMLTempoEvent(120, unit * random.nextInt(60)).appendToListElement(tempoList);
+			}
+			List<List<MMLNoteEvent>> parts = new ArrayList<>();
+			int partCount = 1 + random.nextInt(4);
+			for (int i = 0; i < partCount; i++) {
+				ArrayList<MMLNoteEvent> part = new ArrayList<>();
+				int offset = unit * random.nextInt(3);
+				for (int j = 0; j < 30; j++) {
+					int velocity = (random.nextInt(6) == 0) ? 0 : 8;
+					int tick = (random.nextInt(4) == 0) ? (1 + random.nextInt(unit)) : unit * (1 + random.nextInt(8));
+					part.add(new MMLNoteEvent(40 + random.nextInt(3), tick, offset, velocity));
+					offset += (random.nextInt(3) == 0) ? (1 + random.nextInt(unit)) : unit * (1 + random.nextInt(3));
+				}
+				parts.add(part);
+			}
+			assertMerge(tempoList, parts);
+		}
+	}
+
+	/**
+	 * テスト用スコアの全トラックで, 1つずつ挿入した場合と同じ結果になること.
+	 */
+	@Test
+	public void test_scoreFiles() throws IOException, MMLParseException {
+		for (String name : new String[] { "format0.mmi", "format1.mmi", "format_r0.mmi", "format_r1.mmi" }) {
+			MMLScore score;
+			try (InputStream inputStream = MMLScoreTest.class.getResourceAsStream(name)) {
+				score = new MMLScore().parse(inputStream);
+			}
+			for (MMLTrack track : score.getTrackList()) {
+				List<List<MMLNoteEvent>> parts = new ArrayList<>();
+				for (MMLEventList eventList : track.getMMLEventList()) {
+					parts.add(eventList.getMMLNoteEventList());
+				}
+				assertMerge(track.getGlobalTempoList(), parts);
+			}
+		}
+	}
+
+	@Test
+	public void test_unsorted() throws UndefinedTickException {
+		int t4 = MMLTicks.getTick("4");
+		List<MMLNoteEvent> part1 = Arrays.asList(new MMLNoteEvent(50, t4, t4), new MMLNoteEvent(52, t4, 0));
+		List<MMLNoteEvent> part2 = Arrays.asList(new MMLNoteEvent(50, t4*2, 0));
+		assertMerge(new ArrayList<>(), Arrays.asList(part1, part2));
+	}
+}
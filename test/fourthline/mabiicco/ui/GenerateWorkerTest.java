@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import static org.junit.Assert.*;
+
+import java.awt.EventQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.ScoreGenerator;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * GenerateWorkerのテスト.
+ */
+public final class GenerateWorkerTest {
+
+	/** テンポを跨ぐ分割で generate に失敗するMML. */
+	private static final String ERROR_MML = "MML@ggt150gg,rr8r16.a24aa;";
+
+	private final ScoreGenerator generator = new ScoreGenerator(1);
+	private MMLScore score;
+	private GenerateWorker worker;
+
+	private final List<int[]> completedList = new ArrayList<>();
+	private final List<UndefinedTickException> failedList = new ArrayList<>();
+	private CountDownLatch latch;
+
+	@Before
+	public void initializeObj() throws Exception {
+		score = new MMLScore();
+		score.addTrack(new MMLTrack().setMML("MML@cde,,;"));
+		score.addTrack(new MMLTrack().setMML("MML@efg,,;"));
+		score.generateAll();
+		latch = new CountDownLatch(1);
+		EventQueue.invokeAndWait(() -> {
+			worker = new GenerateWorker(() -> score, generator, 10, new GenerateWorker.Listener() {
+				@Override
+				public void generateStateChanged(boolean pending) {
+					assertTrue(EventQueue.isDispatchThread());
+				}
+
+				@Override
+				public void generateCompleted(int[] trackIndexes) {
+					completedList.add(trackIndexes);
+					latch.countDown();
+				}
+
+				@Override
+				public void generateFailed(UndefinedTickException e) {
+					failedList.add(e);
+					latch.countDown();
+				}
+			});
+		});
+	}
+
+	private void addNote(int trackIndex, int note) {
+		score.getTrack(trackIndex).getMMLEventAtIndex(0).addMMLNoteEvent(new MMLNoteEvent(note, 96, 96*3+(note-40)*96, 8));
+	}
+
+	/**
+	 * 同じ編集をしたトラックを直接 generate した結果.
+	 */
+	private static String expectMML(String mml, int ... notes) throws UndefinedTickException {
+		MMLTrack track = new MMLTrack().setMML(mml);
+		for (int note : notes) {
+			track.getMMLEventAtIndex(0).addMMLNoteEvent(new MMLNoteEvent(note, 96, 96*3+(note-40)*96, 8));
+		}
+		return track.generate().getMabiMML();
+	}
+
+	private void await() throws Exception {
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		// 完了後に呼び出されたイベントも処理する.
+		EventQueue.invokeAndWait(() -> {});
+	}
+
+	@Test
+	public void test_coalesce() throws Exception {
+		EventQueue.invokeAndWait(() -> {
+			// 連続した編集は, まとめて1回だけ generate する.
+			addNote(1, 40);
+			worker.request();
+			addNote(1, 41);
+			worker.request();
+			addNote(1, 42);
+			worker.request();
+			assertTrue(worker.isPending());
+		});
+		await();
+
+		assertEquals(1, completedList.size());
+		assertArrayEquals(new int[] { 1 }, completedList.get(0));
+		assertEquals(0, failedList.size());
+		assertFalse(worker.isPending());
+		assertEquals(expectMML("MML@efg,,;", 40, 41, 42), score.getTrack(1).getMabiMML());
+		assertFalse(score.getTrack(1).isModified());
+	}
+
+	@Test
+	public void test_staleResult() throws Exception {
+		// generator のスレッドを止めておき, 最初の generate が終わる前に次の編集をする.
+		CountDownLatch blocker = new CountDownLatch(1);
+		generator.submit(Arrays.asList(new MMLTrack()), new int[] { 0 }, (result, done, total) -> {
+			try {
+				blocker.await();
+			} catch (InterruptedException e) {}
+		});
+		EventQueue.invokeAndWait(() -> {
+			addNote(0, 40);
+			worker.request();
+		});
+		Thread.sleep(100);
+		EventQueue.invokeAndWait(() -> {
+			addNote(1, 40);
+			worker.request();
+		});
+		blocker.countDown();
+		await();
+
+		// 古い結果は捨てて, 最後の編集の状態を generate する.
+		assertEquals(1, completedList.size());
+		assertArrayEquals(new int[] { 0, 1 }, completedList.get(0));
+		assertFalse(score.getTrack(0).isModified());
+		assertFalse(score.getTrack(1).isModified());
+		assertEquals(expectMML("MML@cde,,;", 40), score.getTrack(0).getMabiMML());
+		assertEquals(expectMML("MML@efg,,;", 40), score.getTrack(1).getMabiMML());
+	}
+
+	@Test
+	public void test_flush() throws Exception {
+		EventQueue.invokeAndWait(() -> {
+			addNote(0, 40);
+			worker.request();
+			// flush はその場で generate する.
+			assertTrue(worker.flush());
+			assertFalse(worker.isPending());
+			assertEquals(1, completedList.size());
+			assertFalse(score.getTrack(0).isModified());
+			// 反映していない編集がなければ何もしない.
+			assertTrue(worker.flush());
+			assertEquals(1, completedList.size());
+		});
+		// 予約していた generate は実行しない.
+		Thread.sleep(100);
+		EventQueue.invokeAndWait(() -> {});
+		assertEquals(1, completedList.size());
+	}
+
+	@Test
+	public void test_failed() throws Exception {
+		EventQueue.invokeAndWait(() -> {
+			score.getTrack(1).setMML(ERROR_MML);
+			worker.request();
+		});
+		await();
+
+		assertEquals(0, completedList.size());
+		assertEquals(1, failedList.size());
+		assertFalse(worker.isPending());
+	}
+
+	@Test
+	public void test_cancel() throws Exception {
+		EventQueue.invokeAndWait(() -> {
+			addNote(0, 40);
+			worker.request();
+			worker.cancel();
+			assertFalse(worker.isPending());
+		});
+		Thread.sleep(100);
+		EventQueue.invokeAndWait(() -> {});
+		assertEquals(0, completedList.size());
+		assertTrue(score.getTrack(0).isModified());
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PianoRollTileCacheTest {
+
+	private final PianoRollTileCache cache = new PianoRollTileCache();
+	private final BufferedImage image = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_RGB);
+	private final List<Rectangle> paintedList = new ArrayList<>();
+
+	private void paint(Rectangle clip) {
+		Graphics2D g = image.createGraphics();
+		cache.paint(g, clip, null, (tg, rect) -> {
+			paintedList.add(rect);
+			tg.setColor(Color.BLUE);
+			tg.fillRect(300, 0, 10, 10);
+		});
+		g.dispose();
+	}
+
+	@Test
+	public void test_paint() {
+		paint(new Rectangle(0, 0, 600, 300));
+		assertEquals(6, paintedList.size());
+		assertEquals(Color.BLUE.getRGB(), image.getRGB(305, 5));
+		assertEquals(Color.WHITE.getRGB(), image.getRGB(315, 5));
+
+		// 保持しているタイルは描画しない.
+		paint(new Rectangle(100, 100, 100, 100));
+		assertEquals(6, paintedList.size());
+		assertEquals(6, cache.getTileCount());
+	}
+
+	@Test
+	public void test_invalidate() {
+		paint(new Rectangle(0, 0, 1024, 256));
+		assertEquals(4, cache.getRenderCount());
+
+		// 変化した範囲のタイルだけを描画し直す.
+		cache.invalidate(300, 520);
+		assertEquals(2, cache.getTileCount());
+		paint(new Rectangle(0, 0, 1024, 256));
+		assertEquals(6, cache.getRenderCount());
+		assertEquals(new Rectangle(256, 0, 256, 256), paintedList.get(4));
+		assertEquals(new Rectangle(512, 0, 256, 256), paintedList.get(5));
+	}
+
+	@Test
+	public void test_layerKey() {
+		cache.setLayerKey("6.0");
+		paint(new Rectangle(0, 0, 256, 256));
+		cache.setLayerKey("6.0");
+		assertEquals(1, cache.getTileCount());
+		cache.setLayerKey("3.0");
+		assertEquals(0, cache.getTileCount());
+	}
+
+	@Test
+	public void test_viewportSize() {
+		// 4K相当の表示範囲は, 最小数より多くのタイルが必要.
+		Rectangle viewport = new Rectangle(100, 100, 3840, 2160);
+		cache.setViewportSize(viewport.width, viewport.height);
+		assertEquals(17 * 11, cache.getMaxTiles());
+
+		paint(viewport);
+		assertEquals(16 * 9, cache.getRenderCount());
+		assertEquals(16 * 9, cache.getTileCount());
+
+		// 再描画は, すべて保持しているタイルを使う.
+		paint(viewport);
+		assertEquals(16 * 9, cache.getRenderCount());
+
+		// 縮小したら古いものから捨てる.
+		cache.setViewportSize(600, 300);
+		assertEquals(PianoRollTileCache.MIN_TILES, cache.getMaxTiles());
+		assertEquals(PianoRollTileCache.MIN_TILES, cache.getTileCount());
+	}
+}
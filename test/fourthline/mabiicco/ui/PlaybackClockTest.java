@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.MMLTempoEvent;
+import fourthline.mmlTools.TempoMap;
+
+public class PlaybackClockTest {
+
+	private static final long MS = 1000L * 1000L;
+
+	/**
+	 * t120 (1tick = 500/96 ms) から, tick 384 で t240 に変わる.
+	 */
+	private final TempoMap tempoMap = new TempoMap(Arrays.asList(
+			new MMLTempoEvent(120, 0),
+			new MMLTempoEvent(240, 384)));
+
+	@Test
+	public void test_interpolate() {
+		PlaybackClock clock = new PlaybackClock();
+		clock.start(tempoMap, 0, 0);
+		assertEquals(96, clock.getTick(90, 500 * MS));
+		assertEquals(384, clock.getTick(384, 2000 * MS));
+		// テンポ変更後は, 2倍の速さで進む.
+		assertEquals(384+192, clock.getTick(384+192, 2500 * MS));
+	}
+
+	@Test
+	public void test_drift() {
+		PlaybackClock clock = new PlaybackClock();
+		clock.start(tempoMap, 96, 0);
+		assertEquals(192, clock.getTick(192+PlaybackClock.MAX_DRIFT_TICK, 500 * MS));
+
+		// ループなどで戻った場合は, シーケンサの位置を基準にする.
+		assertEquals(0, clock.getTick(0, 600 * MS));
+		assertEquals(96, clock.getTick(96, 1100 * MS));
+	}
+}
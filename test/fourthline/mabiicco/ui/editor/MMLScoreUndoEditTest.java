@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui.editor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fourthline.mabiicco.ui.IMMLManager;
+import fourthline.mmlTools.MMLEventList;
+import fourthline.mmlTools.MMLNoteEvent;
+import fourthline.mmlTools.MMLScore;
+import fourthline.mmlTools.MMLTrack;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+public class MMLScoreUndoEditTest {
+
+	private MMLScore score;
+	private MMLScoreUndoEdit undoEdit;
+
+	@Before
+	public void setup() throws UndefinedTickException {
+		score = new MMLScore();
+		score.addTrack(new MMLTrack().setMML("MML@t150cde,efg,gab;"));
+		score.addTrack(new MMLTrack().setMML("MML@t150aaa,,;"));
+		score.generateAll();
+
+		undoEdit = new MMLScoreUndoEdit(new IMMLManager() {
+			@Override
+			public MMLScore getMMLScore() {
+				return score;
+			}
+
+			@Override
+			public void setMMLScore(MMLScore score) {}
+
+			@Override
+			public int getActiveTrackIndex() {
+				return 0;
+			}
+
+			@Override
+			public MMLEventList getActiveMMLPart() {
+				return null;
+			}
+
+			@Override
+			public void updateActivePart(boolean generate) {}
+
+			@Override
+			public void updateActiveTrackProgram(int trackIndex, int program, int songProgram) {}
+
+			@Override
+			public int getActivePartProgram() {
+				return 0;
+			}
+
+			@Override
+			public boolean selectTrackOnExistNote(int note, int tickOffset) {
+				return false;
+			}
+
+			@Override
+			public void setMMLselectedTrack(MMLTrack track) {}
+
+			@Override
+			public void addMMLTrack(MMLTrack track) {}
+
+			@Override
+			public void moveTrack(int toIndex) {}
+		});
+		undoEdit.initState();
+	}
+
+	private void addNote(int trackIndex, int note) throws UndefinedTickException {
+		MMLEventList eventList = score.getTrack(trackIndex).getMMLEventAtIndex(0);
+		eventList.addMMLNoteEvent(new MMLNoteEvent(note, 96, (int)eventList.getTickLength()));
+		score.generateAll();
+		undoEdit.saveState();
+	}
+
+	@Test
+	public void test_undoRedo() throws UndefinedTickException {
+		String state0 = new String(score.getObjectState());
+		addNote(1, 50);
+		String state1 = new String(score.getObjectState());
+		addNote(1, 52);
+		String state2 = new String(score.getObjectState());
+		assertEquals(2, undoEdit.getUndoCount());
+
+		// 変更のないトラックは作り直さない.
+		MMLTrack track0 = score.getTrack(0);
+		undoEdit.undo();
+		assertEquals(state1, new String(score.getObjectState()));
+		undoEdit.undo();
+		assertEquals(state0, new String(score.getObjectState()));
+		assertSame(track0, score.getTrack(0));
+		assertFalse(undoEdit.canUndo());
+
+		undoEdit.redo();
+		undoEdit.redo();
+		assertEquals(state2, new String(score.getObjectState()));
+		assertSame(track0, score.getTrack(0));
+		assertFalse(undoEdit.canRedo());
+	}
+
+	@Test
+	public void test_saveSameState() throws UndefinedTickException {
+		undoEdit.saveState();
+		score.generateAll();
+		undoEdit.saveState();
+		assertEquals(0, undoEdit.getUndoCount());
+	}
+
+	@Test
+	public void test_memoryLimit() throws UndefinedTickException {
+		for (int i = 0; i < 30; i++) {
+			addNote(1, 50 + (i % 3));
+		}
+		assertEquals(30, undoEdit.getUndoCount());
+
+		// 共有した部分は, 見積りに含めない.
+		long usage = undoEdit.getMemoryUsage();
+		undoEdit.setMemoryLimit(usage / 2);
+		assertTrue(undoEdit.getMemoryUsage() <= usage / 2);
+		assertTrue(undoEdit.getUndoCount() < 30);
+		assertTrue(undoEdit.getUndoCount() > 0);
+		assertTrue(undoEdit.isModified());
+	}
+
+	@Test
+	public void test_tempoUndo() throws UndefinedTickException {
+		String state0 = new String(score.getObjectState());
+		score.getTempoEventList().get(0).setTempo(180);
+		score.generateAll();
+		undoEdit.saveState();
+
+		undoEdit.undo();
+		score.generateAll();
+		assertEquals(state0, new String(score.getObjectState()));
+		assertEquals(150, score.getTempoEventList().get(0).getTempo());
+	}
+
+	@Test
+	public void test_recover() throws UndefinedTickException {
+		addNote(0, 60);
+		addNote(1, 50);
+		String state = new String(score.getObjectState());
+		String backup = undoEdit.getBackupString();
+
+		undoEdit.initState();
+		assertTrue(undoEdit.recover(backup));
+		assertEquals(2, undoEdit.getUndoCount());
+		undoEdit.revertState();
+		assertEquals(state, new String(score.getObjectState()));
+	}
+
+	@Test
+	public void test_journal() throws UndefinedTickException, IOException {
+		Path path = Files.createTempFile("recovery", ".journal");
+		try {
+			RecoveryJournal journal = new RecoveryJournal(path);
+			undoEdit.setRecoveryJournal(journal);
+			addNote(0, 60);
+			undoEdit.setOriginalBase();
+			addNote(1, 50);
+			score.addTrack(new MMLTrack().setMML("MML@t150ccc,,;"));
+			score.generateAll();
+			undoEdit.saveState();
+			undoEdit.undo();
+			String state = new String(score.getObjectState());
+			journal.flush();
+			List<RecoveryJournal.Record> records = RecoveryJournal.read(path);
+
+			// compaction後も同じ履歴になる.
+			undoEdit.setRecoveryJournal(journal);
+			undoEdit.setRecoveryJournal(null);
+			journal.close(false);
+			List<RecoveryJournal.Record> compactRecords = RecoveryJournal.read(path);
+			assertTrue(compactRecords.size() < records.size());
+
+			for (List<RecoveryJournal.Record> r : Arrays.asList(records, compactRecords)) {
+				score = new MMLScore();
+				undoEdit.initState();
+				assertTrue(undoEdit.replay(r));
+				score = score.toGeneratedScore();
+				undoEdit.revertState();
+				assertEquals(state, new String(score.getObjectState()));
+				assertEquals(2, undoEdit.getUndoCount());
+				assertTrue(undoEdit.canRedo());
+				assertTrue(undoEdit.isModified());
+				undoEdit.undo();
+				assertFalse(undoEdit.isModified());
+			}
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+}
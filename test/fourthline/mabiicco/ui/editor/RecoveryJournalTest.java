@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mabiicco.ui.editor;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecoveryJournalTest {
+
+	private Path path;
+
+	@Before
+	public void setup() throws IOException {
+		path = Files.createTempFile("recovery", ".journal");
+	}
+
+	@After
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(path);
+		Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".prev"));
+	}
+
+	@Test
+	public void test_readWrite() throws IOException {
+		RecoveryJournal journal = new RecoveryJournal(path);
+		journal.append(() -> new byte[] { RecoveryJournal.SAVE, 1, 2, 3 });
+		journal.setFileName("test.mmi");
+		journal.append(() -> new byte[] { RecoveryJournal.UNDO });
+		journal.flush();
+
+		List<RecoveryJournal.Record> records = RecoveryJournal.read(path);
+		assertEquals(3, records.size());
+		assertEquals(RecoveryJournal.SAVE, records.get(0).getType());
+		assertEquals(1, records.get(0).getDataInputStream().readByte());
+		assertEquals(RecoveryJournal.UNDO, records.get(2).getType());
+		assertEquals("test.mmi", RecoveryJournal.getFileName(records));
+		assertEquals(Files.size(path), journal.getSize());
+		journal.close(false);
+		assertTrue(Files.exists(path));
+	}
+
+	/**
+	 * 書き込み途中のレコード以降は読まない.
+	 */
+	@Test
+	public void test_brokenRecord() throws IOException {
+		RecoveryJournal journal = new RecoveryJournal(path);
+		journal.append(() -> new byte[] { RecoveryJournal.SAVE, 1 });
+		journal.append(() -> new byte[] { RecoveryJournal.SAVE, 2 });
+		journal.close(false);
+
+		byte data[] = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(data, data.length-1));
+		assertEquals(1, RecoveryJournal.read(path).size());
+
+		data[data.length-1]++;
+		Files.write(path, data);
+		assertEquals(1, RecoveryJournal.read(path).size());
+	}
+
+	@Test
+	public void test_compact() throws IOException {
+		RecoveryJournal journal = new RecoveryJournal(path);
+		journal.setFileName("test.mmi");
+		for (int i = 0; i < 10; i++) {
+			journal.append(() -> new byte[] { RecoveryJournal.SAVE, 1 });
+		}
+		journal.compact(() -> Arrays.asList(new byte[] { RecoveryJournal.RESET, 2 }));
+		journal.append(() -> new byte[] { RecoveryJournal.UNDO });
+		journal.flush();
+
+		List<RecoveryJournal.Record> records = RecoveryJournal.read(path);
+		assertEquals(3, records.size());
+		assertEquals(RecoveryJournal.FILE_NAME, records.get(0).getType());
+		assertEquals(RecoveryJournal.RESET, records.get(1).getType());
+		assertEquals(RecoveryJournal.UNDO, records.get(2).getType());
+		assertEquals(Files.size(path), journal.getSize());
+		assertFalse(journal.needsCompaction());
+
+		journal.close(true);
+		assertFalse(Files.exists(path));
+		Files.write(path, new byte[0], StandardOpenOption.CREATE);
+	}
+
+	/**
+	 * 既存のジャーナルは, 新しいレコードを書き込むまで残し, 書き込むときに移す.
+	 */
+	@Test
+	public void test_keepPrevious() throws IOException {
+		RecoveryJournal journal = new RecoveryJournal(path);
+		journal.append(() -> new byte[] { RecoveryJournal.SAVE, 1 });
+		journal.close(false);
+		byte data[] = Files.readAllBytes(path);
+
+		// 書き込まずに閉じた場合は, 正常終了でも変更しない.
+		journal = new RecoveryJournal(path);
+		journal.flush();
+		assertArrayEquals(data, Files.readAllBytes(path));
+		journal.close(true);
+		assertArrayEquals(data, Files.readAllBytes(path));
+
+		journal = new RecoveryJournal(path);
+		journal.append(() -> new byte[] { RecoveryJournal.UNDO });
+		journal.flush();
+		assertEquals(journal.getPath().resolveSibling(path.getFileName() + ".prev"), journal.getPreviousPath());
+		assertArrayEquals(data, Files.readAllBytes(journal.getPreviousPath()));
+		List<RecoveryJournal.Record> records = RecoveryJournal.read(path);
+		assertEquals(1, records.size());
+		assertEquals(RecoveryJournal.UNDO, records.get(0).getType());
+		journal.close(true);
+	}
+}
@@ -223,6 +223,46 @@ public class MMLEventListTest {
 		assertEquals(58, noteEvent3.getNote());
 	}
 
+	/**
+	 * 二分探索による検索結果を, 先頭からの走査結果と比較します.
+	 */
+	@Test
+	public void testSearchOnTickOffset_index() throws UndefinedTickException {
+		MMLEventList eventList = new MMLEventList("l8rcd4r2.e16f16&f32r32g1r1a.b-4.>c2");
+		List<MMLNoteEvent> noteList = eventList.getMMLNoteEventList();
+		long tickLength = eventList.getTickLength();
+		for (long tick = 0; tick <= tickLength+1; tick++) {
+			MMLNoteEvent expect = null;
+			MMLNoteEvent expectPrev = null;
+			for (MMLNoteEvent noteEvent : noteList) {
+				if ( (noteEvent.getTickOffset() <= tick) && (tick < noteEvent.getEndTick()) ) {
+					expect = noteEvent;
+				}
+				if (noteEvent.getTickOffset() < tick) {
+					expectPrev = noteEvent;
+				}
+			}
+			assertSame(expect, eventList.searchOnTickOffset(tick));
+			if (expectPrev != null) {
+				assertSame(expectPrev, eventList.searchPrevNoteOnTickOffset(tick));
+			} else {
+				assertEquals(-1, eventList.searchPrevNoteOnTickOffset(tick).getNote());
+			}
+		}
+	}
+
+	@Test
+	public void testDeleteMMLEvent() throws UndefinedTickException {
+		int t4 = MMLTicks.getTick("4");
+		MMLEventList eventList = new MMLEventList("abcd");
+		MMLEventList expectList = new MMLEventList("abrd");
+
+		eventList.deleteMMLEvent(new MMLNoteEvent(48, t4, t4*2));
+		eventList.deleteMMLEvent(new MMLNoteEvent(50, t4, t4*2));
+
+		assertEquals(expectList.getMMLNoteEventList().toString(), eventList.getMMLNoteEventList().toString());
+	}
+
 	@Test
 	public void testToMMLString_0() throws UndefinedTickException {
 		MMLEventList eventList = new MMLEventList("ara");
@@ -683,4 +723,93 @@ public class MMLEventListTest {
 		MMLEventList eventList1 = new MMLEventList("o0c-");
 		assertEquals("<<<<c-4", eventList1.toMMLString());
 	}
+
+	@Test
+	public void testVersion() {
+		MMLEventList eventList = new MMLEventList("cde");
+		long version = eventList.getVersion();
+		assertTrue(eventList.isDirty());
+		eventList.clearDirty();
+		assertFalse(eventList.isDirty());
+
+		eventList.addMMLNoteEvent(new MMLNoteEvent(50, 48, 0, 8));
+		assertTrue(eventList.isDirty());
+		assertTrue(version < eventList.getVersion());
+
+		version = eventList.getVersion();
+		eventList.deleteMMLEvent(eventList.getMMLNoteEventList().get(0));
+		assertTrue(version < eventList.getVersion());
+
+		version = eventList.getVersion();
+		eventList.markDirty();
+		assertTrue(version < eventList.getVersion());
+	}
+
+	/**
+	 * tick範囲のノート検索.
+	 */
+	@Test
+	public void testNoteListInRange() {
+		// c4 d4 e4 f4 (96 tick)
+		MMLEventList eventList = new MMLEventList("cdef");
+		List<MMLNoteEvent> noteList = eventList.getMMLNoteEventList();
+		assertEquals(noteList.subList(1, 3), eventList.getMMLNoteEventList(96, 200));
+		assertEquals(noteList.subList(1, 2), eventList.getMMLNoteEventList(100, 100));
+		assertEquals(noteList.subList(0, 4), eventList.getMMLNoteEventList(0, 1000));
+		assertTrue(eventList.getMMLNoteEventList(384, 1000).isEmpty());
+		assertSame(noteList.get(2), eventList.searchOnTickOffset(200));
+		assertNull(eventList.searchOnTickOffset(384));
+
+		// 直接変更した場合は, markDirty()後に反映される.
+		noteList.get(0).setTick(300);
+		eventList.markDirty();
+		assertEquals(noteList.subList(0, 4), eventList.getMMLNoteEventList(290, 290));
+
+		// 開始位置の順に並んでいない場合.
+		noteList.get(0).setTick(96);
+		noteList.get(0).setTickOffset(500);
+		eventList.markDirty();
+		List<MMLNoteEvent> list = eventList.getMMLNoteEventList(500, 500);
+		assertTrue(list.contains(noteList.get(0)));
+		assertSame(noteList.get(0), eventList.searchOnTickOffset(550));
+	}
+
+	@Test
+	public void testContentHash() {
+		MMLEventList eventList = new MMLEventList("cdef");
+		long hash = eventList.getContentHash();
+		assertEquals(hash, new MMLEventList("cdef").getContentHash());
+		assertNotEquals(hash, new MMLEventList("cdff").getContentHash());
+		assertNotEquals(hash, new MMLEventList("cdfe").getContentHash());
+
+		// 追加, 削除, 音量コマンドでは差分で更新し, 作り直した値と一致する.
+		eventList.addMMLNoteEvent(new MMLNoteEvent(50, 48, 72));
+		assertEquals(rebuildHash(eventList), eventList.getContentHash());
+		eventList.addMMLNoteEvent(new MMLNoteEvent(55, 96, 96*5));
+		assertEquals(rebuildHash(eventList), eventList.getContentHash());
+		eventList.setVelocityCommand(eventList.getMMLNoteEventList().get(1), 12);
+		assertEquals(rebuildHash(eventList), eventList.getContentHash());
+		eventList.unsetVelocityCommand(eventList.getMMLNoteEventList().get(1));
+		eventList.deleteMMLEvent(eventList.getMMLNoteEventList().get(1));
+		eventList.deleteMMLEvent(eventList.getMMLNoteEventList().get(3));
+		assertEquals(rebuildHash(eventList), eventList.getContentHash());
+		assertEquals(new MMLEventList("c8.r4r16ef").getContentHash(), eventList.getContentHash());
+
+		// ノートを直接変更した場合は, markDirtyの後に作り直す.
+		eventList.getMMLNoteEventList().get(2).setNote(52);
+		eventList.markDirty();
+		assertEquals(new MMLEventList("c8.r4r16ee").getContentHash(), eventList.getContentHash());
+		assertEquals(eventList.getContentHash(), eventList.clone().getContentHash());
+		assertTrue(eventList.equalsNoteList(new MMLEventList("c8.r4r16ee")));
+		assertFalse(eventList.equalsNoteList(new MMLEventList("c8.r4r16ef")));
+		assertEquals(new MMLEventList("c8.r4r16ee").hashCode(), eventList.hashCode());
+	}
+
+	private static long rebuildHash(MMLEventList eventList) {
+		long hash = 0;
+		for (MMLNoteEvent noteEvent : eventList.getMMLNoteEventList()) {
+			hash += ContentHash.of(noteEvent);
+		}
+		return hash;
+	}
 }
@@ -327,4 +327,53 @@ public class MMLScoreTest extends FileSelect {
 		String expect = "MML@n0o9c,,;";
 		checkTranspose(mml, expect, +2);
 	}
+
+	@Test
+	public void test_generateModifiedTracks() throws UndefinedTickException {
+		MMLScore score = new MMLScore();
+		score.addTrack(new MMLTrack().setMML("MML@aaa,,;"));
+		score.addTrack(new MMLTrack().setMML("MML@bbb,,;"));
+		score.addTrack(new MMLTrack().setMML("MML@ccc,,;"));
+		assertArrayEquals(new int[] { 0, 1, 2 }, score.generateModifiedTracks());
+		assertArrayEquals(new int[] {}, score.generateModifiedTracks());
+
+		// 編集したトラックだけを generate する.
+		score.getTrack(1).getMMLEventAtIndex(0).addMMLNoteEvent(new MMLNoteEvent(50, 96, 96*3, 8));
+		assertArrayEquals(new int[] { 1 }, MMLScore.getModifiedTrackIndexes(score.getTrackSnapshot()));
+		assertArrayEquals(new int[] { 1 }, score.generateModifiedTracks());
+		assertEquals("MML@bbbd,,;", score.getTrack(1).getMabiMML());
+
+		// テンポの変更はすべてのトラックに影響する.
+		new MMLTempoEvent(90, 96).appendToListElement(score.getTempoEventList());
+		assertArrayEquals(new int[] { 0, 1, 2 }, score.generateModifiedTracks());
+		assertEquals("MML@at90aa,,;", score.getTrack(0).getMabiMML());
+	}
+
+	@Test
+	public void test_contentHash() throws UndefinedTickException {
+		MMLScore score = new MMLScore();
+		score.addTrack(new MMLTrack().setMML("MML@aaa,bbb,;"));
+		score.addTrack(new MMLTrack().setMML("MML@ccc,,;"));
+		long hash = score.getContentHash();
+
+		MMLScore score2 = new MMLScore();
+		score2.putObjectState(score.getObjectState());
+		score2.getTrack(0).setTrackName(score.getTrack(0).getTrackName());
+		score2.getTrack(1).setTrackName(score.getTrack(1).getTrackName());
+		assertEquals(score.getTrack(1).getContentHash(), score2.getTrack(1).getContentHash());
+		assertEquals(hash, score2.getContentHash());
+
+		score.getMarkerList().add(new Marker("A", 96));
+		assertNotEquals(hash, score.getContentHash());
+		score.getMarkerList().clear();
+		new MMLTempoEvent(90, 96).appendToListElement(score.getTempoEventList());
+		assertNotEquals(hash, score.getContentHash());
+		score.getTempoEventList().clear();
+		score.setTitle("title");
+		assertNotEquals(hash, score.getContentHash());
+		score.setTitle("");
+		assertEquals(hash, score.getContentHash());
+		score.moveTrack(0, 1);
+		assertNotEquals(hash, score.getContentHash());
+	}
 }
@@ -271,4 +271,145 @@ public class MMLTrackTest {
 		assertEquals(expect, track.getOriginalMML());
 		assertEquals(expect, track.getMabiMML());
 	}
+
+	/**
+	 * 変更のあったパートだけを作り直した結果が, すべて作り直した結果と一致すること.
+	 */
+	private void checkGenerateIncremental(MMLTrack track, MMLTrack expectTrack) throws UndefinedTickException {
+		track.generate();
+		expectTrack.generate();
+		assertEquals(expectTrack.getOriginalMML(), track.getOriginalMML());
+		assertEquals(expectTrack.getMabiMML(), track.getMabiMML());
+	}
+
+	@Test
+	public void test_generateIncremental() throws UndefinedTickException {
+		String mml = "MML@t150aaaa,bbb,cc,dddd;";
+		MMLTrack track = new MMLTrack().setMML(mml);
+		track.generate();
+
+		// 和音1パートのみの変更. メロディパートの終端補正も更新される.
+		MMLTrack expectTrack = new MMLTrack().setMML(mml);
+		for (MMLTrack t : new MMLTrack[] { track, expectTrack }) {
+			t.getMMLEventAtIndex(1).addMMLNoteEvent(new MMLNoteEvent(50, 96*4, 96*4, 8));
+		}
+		checkGenerateIncremental(track, expectTrack);
+
+		// テンポの変更.
+		expectTrack = new MMLTrack().setMML(mml);
+		for (MMLTrack t : new MMLTrack[] { track, expectTrack }) {
+			new MMLTempoEvent(90, 96).appendToListElement(t.getGlobalTempoList());
+		}
+		expectTrack.getMMLEventAtIndex(1).addMMLNoteEvent(new MMLNoteEvent(50, 96*4, 96*4, 8));
+		checkGenerateIncremental(track, expectTrack);
+		assertTrue(track.getOriginalMML().startsWith("MML@t150at90aaa,"));
+
+		// ノートを直接変更した場合.
+		track.getMMLEventAtIndex(2).getMMLNoteEventList().get(0).setNote(40);
+		track.getMMLEventAtIndex(2).markDirty();
+		track.generate();
+		assertEquals("<e>c", track.getMabiMMLArray()[2]);
+	}
+
+	@Test
+	public void test_getModifiedParts() throws UndefinedTickException {
+		MMLTrack track = new MMLTrack().setMML("MML@aaaa,bbb,cc,dddd;");
+		assertTrue(track.isModified());
+		track.generate();
+		assertFalse(track.isModified());
+		assertArrayEquals(new boolean[] { false, false, false, false }, track.getModifiedParts());
+
+		// 和音2パートの変更は, メロディパートの終端補正にも影響する.
+		track.getMMLEventAtIndex(2).addMMLNoteEvent(new MMLNoteEvent(50, 96, 96*2, 8));
+		assertArrayEquals(new boolean[] { true, false, true, false }, track.getModifiedParts());
+		track.generate();
+
+		// 歌パートだけの変更.
+		track.getMMLEventAtIndex(3).getMMLNoteEventList().get(0).setNote(40);
+		track.getMMLEventAtIndex(3).markDirty();
+		assertArrayEquals(new boolean[] { false, false, false, true }, track.getModifiedParts());
+		track.generate();
+
+		// テンポの変更は, テンポを出力するパートだけに影響する.
+		new MMLTempoEvent(90, 96).appendToListElement(track.getGlobalTempoList());
+		assertArrayEquals(new boolean[] { true, false, false, true }, track.getModifiedParts());
+		track.generate();
+		assertFalse(track.isModified());
+	}
+
+	@Test
+	public void test_copyForGenerate() throws UndefinedTickException {
+		String mml = "MML@t150aaaa,bbb,cc,dddd;";
+		MMLTrack track = new MMLTrack().setMML(mml);
+		track.generate();
+		track.getMMLEventAtIndex(1).addMMLNoteEvent(new MMLNoteEvent(50, 96*4, 96*4, 8));
+
+		// コピーの generate 結果を反映すると, 直接 generate した場合と同じになる.
+		MMLTrack copy = track.copyForGenerate();
+		copy.generate();
+		assertTrue(track.applyGenerated(copy));
+		assertFalse(track.isModified());
+		MMLTrack expectTrack = new MMLTrack().setMML(mml);
+		expectTrack.getMMLEventAtIndex(1).addMMLNoteEvent(new MMLNoteEvent(50, 96*4, 96*4, 8));
+		expectTrack.generate();
+		assertEquals(expectTrack.getOriginalMML(), track.getOriginalMML());
+		assertEquals(expectTrack.getMabiMML(), track.getMabiMML());
+
+		// コピー後にノートを変更した場合は反映しない.
+		track.getMMLEventAtIndex(2).addMMLNoteEvent(new MMLNoteEvent(50, 96, 96*4, 8));
+		copy = track.copyForGenerate();
+		track.getMMLEventAtIndex(2).getMMLNoteEventList().get(0).setNote(40);
+		track.getMMLEventAtIndex(2).markDirty();
+		copy.generate();
+		assertFalse(track.applyGenerated(copy));
+		assertTrue(track.isModified());
+
+		// コピー後にテンポを変更した場合も反映しない.
+		copy = track.copyForGenerate();
+		new MMLTempoEvent(90, 96).appendToListElement(track.getGlobalTempoList());
+		copy.generate();
+		assertFalse(track.applyGenerated(copy));
+
+		// 変更を元に戻したパートは, コピー側で内容を比較して作り直さない.
+		track.generate();
+		MMLNoteEvent noteEvent = track.getMMLEventAtIndex(0).getMMLNoteEventList().get(0);
+		noteEvent.setNote(noteEvent.getNote()+1);
+		track.getMMLEventAtIndex(0).markDirty();
+		noteEvent.setNote(noteEvent.getNote()-1);
+		track.getMMLEventAtIndex(0).markDirty();
+		copy = track.copyForGenerate();
+		assertArrayEquals(new boolean[] { false, false, false, false }, copy.getModifiedParts());
+		copy.generate();
+		assertTrue(track.applyGenerated(copy));
+		assertFalse(track.isModified());
+
+		// 別のトラックのコピーは反映しない.
+		copy = expectTrack.copyForGenerate();
+		copy.generate();
+		assertFalse(track.applyGenerated(copy));
+	}
+
+	@Test
+	public void test_contentHash() throws UndefinedTickException {
+		MMLTrack track = new MMLTrack().setMML("MML@aaa,bbb,ccc;");
+		long hash = track.getContentHash();
+		assertEquals(hash, new MMLTrack().setMML("MML@aaa,bbb,ccc;").getContentHash());
+		assertNotEquals(hash, new MMLTrack().setMML("MML@aaa,ccc,bbb;").getContentHash());
+		track.setProgram(5);
+		assertNotEquals(hash, track.getContentHash());
+		track.setProgram(0);
+		assertEquals(hash, track.getContentHash());
+
+		// ノートを変更して元に戻した場合は, 作り直さない.
+		track.generate();
+		MMLEventList eventList = track.getMMLEventAtIndex(1);
+		MMLNoteEvent noteEvent = eventList.getMMLNoteEventList().get(0);
+		noteEvent.setNote(noteEvent.getNote()+1);
+		eventList.markDirty();
+		assertTrue(track.isModified());
+		noteEvent.setNote(noteEvent.getNote()-1);
+		eventList.markDirty();
+		assertFalse(track.isModified());
+		assertArrayEquals(new boolean[] { false, false, false, false }, track.getModifiedParts());
+	}
 }
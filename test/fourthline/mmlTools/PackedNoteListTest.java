@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.core.TuningBase;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * PackedNoteList と, MMLEventList の配列保持のテスト.
+ */
+public class PackedNoteListTest {
+
+	@Test
+	public void test_builder() {
+		PackedNoteList packed = new PackedNoteList.Builder(0)
+				.add(60, 96, 0, 8, null, new int[] { 0, 2 })
+				.add(62, 6, 96, 12, TuningBase.L64, null)
+				.build();
+		assertEquals(2, packed.size());
+		assertEquals(102, packed.getEndTick(1));
+
+		MMLNoteEvent note1 = packed.get(0);
+		assertEquals(new MMLNoteEvent(60, 96, 0, 8), note1);
+		assertArrayEquals(new int[] { 0, 2 }, note1.getIndexOfMMLString());
+		MMLNoteEvent note2 = packed.get(1);
+		assertEquals(TuningBase.L64, note2.getTuningBase());
+		assertNull(note2.getIndexOfMMLString());
+
+		// 使い回しのオブジェクトに読み込んでも同じ内容になる.
+		MMLNoteEvent flyweight = PackedNoteList.newFlyweight();
+		for (int i = 0; i < packed.size(); i++) {
+			packed.load(i, flyweight);
+			assertEquals(packed.get(i), flyweight);
+			assertEquals(packed.get(i).getTuningBase(), flyweight.getTuningBase());
+			assertArrayEquals(packed.get(i).getIndexOfMMLString(), flyweight.getIndexOfMMLString());
+			assertTrue(packed.equalsAt(i, flyweight));
+			assertEquals(ContentHash.of(flyweight), packed.contentHash(i));
+		}
+
+		// 容量を超えて追加する.
+		PackedNoteList.Builder builder = new PackedNoteList.Builder(1);
+		List<MMLNoteEvent> expectList = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			MMLNoteEvent noteEvent = new MMLNoteEvent(40+i%20, 24, i*24, 8);
+			expectList.add(noteEvent);
+			builder.add(noteEvent);
+		}
+		assertEquals(expectList, builder.build().toList());
+	}
+
+	@Test
+	public void test_parsed() throws UndefinedTickException {
+		String mml = "v12l8cde4r4f16g.&g16";
+		MMLEventList eventList = new MMLEventList(mml);
+		MMLEventList expectList = new MMLEventList(mml);
+		List<MMLNoteEvent> noteList = expectList.getMMLNoteEventList();
+		assertTrue(eventList.isPacked());
+		assertFalse(expectList.isPacked());
+
+		// ノートのオブジェクトを作らずに処理できる.
+		assertEquals(expectList.toMMLString(), eventList.toMMLString());
+		assertEquals(expectList.getContentHash(), eventList.getContentHash());
+		assertEquals(expectList.getTickLength(), eventList.getTickLength());
+		assertTrue(eventList.equalsNoteList(expectList));
+		assertTrue(expectList.equalsNoteList(eventList));
+		assertFalse(eventList.isEmpty());
+		List<MMLNoteEvent> viewList = new ArrayList<>();
+		eventList.forEachNote(t -> viewList.add(t.clone()));
+		assertEquals(noteList, viewList);
+		assertTrue(eventList.isPacked());
+
+		// オブジェクトが必要になった時点で展開する.
+		assertEquals(noteList, eventList.getMMLNoteEventList());
+		assertFalse(eventList.isPacked());
+		assertEquals(expectList.getContentHash(), eventList.getContentHash());
+
+		assertTrue(new MMLEventList("").isEmpty());
+		assertFalse(new MMLEventList("").isPacked());
+	}
+
+	@Test
+	public void test_clone() throws UndefinedTickException {
+		MMLEventList eventList = new MMLEventList("cdefg");
+		String mml = eventList.toMMLString();
+		long hash = eventList.getContentHash();
+
+		// 配列を共有する.
+		MMLEventList cloneList = eventList.clone();
+		assertTrue(cloneList.isPacked());
+		assertTrue(cloneList.equalsNoteList(eventList));
+
+		// cloneを変更しても, 元のリストは変わらない.
+		cloneList.addMMLNoteEvent(new MMLNoteEvent(72, 96, 96*5));
+		cloneList.getMMLNoteEventList().get(0).setVelocity(4);
+		cloneList.markDirty();
+		assertEquals(mml, eventList.toMMLString());
+		assertEquals(hash, eventList.getContentHash());
+		assertTrue(eventList.isPacked());
+		assertFalse(cloneList.equalsNoteList(eventList));
+
+		// 展開済みのリストのcloneは, 配列にまとめて保持する.
+		MMLEventList cloneList2 = cloneList.clone();
+		assertTrue(cloneList2.isPacked());
+		assertTrue(cloneList2.equalsNoteList(cloneList));
+		assertEquals(cloneList.toMMLString(), cloneList2.toMMLString());
+		assertEquals(cloneList.getContentHash(), cloneList2.getContentHash());
+		assertNotSame(cloneList.getMMLNoteEventList().get(0), cloneList2.getMMLNoteEventList().get(0));
+
+		MMLEventList emptyClone = new MMLEventList("").clone();
+		emptyClone.addMMLNoteEvent(new MMLNoteEvent(60, 96, 0));
+		assertEquals(Arrays.asList(new MMLNoteEvent(60, 96, 0)), emptyClone.getMMLNoteEventList());
+	}
+
+	@Test
+	public void test_shift() {
+		PackedNoteList.Builder builder = new PackedNoteList.Builder(10);
+		for (int i = 0; i < 10; i++) {
+			builder.add(60, 48, i*96, 8, null, null);
+		}
+		PackedNoteList packed = builder.build();
+		// 差分がなければ, そのまま共有する.
+		assertSame(packed, packed.copy());
+		assertEquals(4, packed.indexOfTickOffset(96*3+1));
+
+		PackedNoteList shifted = packed.shift(4, 96);
+		assertNotSame(packed, shifted);
+		PackedNoteList shifted2 = shifted.shift(8, -48);
+		assertNotSame(shifted, shifted2);
+		shifted = shifted2;
+		assertFalse(shifted.sameNotes(packed));
+		assertEquals(96*3, shifted.getTickOffset(3));
+		assertEquals(96*5, shifted.getTickOffset(4));
+		assertEquals(96*9-48, shifted.getTickOffset(8));
+		assertEquals(96*10-48, shifted.getTickOffset(9));
+		assertEquals(8, shifted.indexOfTickOffset(96*8+1));
+
+		// 元のリストやコピーには差分が及ばない.
+		assertEquals(96*9, packed.getTickOffset(9));
+		PackedNoteList copy = shifted.copy();
+		shifted = shifted.shift(0, 96);
+		assertEquals(96*10-48, copy.getTickOffset(9));
+		assertEquals(96*11-48, shifted.getTickOffset(9));
+
+		PackedNoteList resolved = copy.resolved();
+		assertSame(resolved, resolved.resolved());
+		assertEquals(copy.toList(), resolved.toList());
+		assertEquals(96*10-48, resolved.getTickOffset(9));
+		assertEquals(96*10-48, copy.getTickOffset(9));
+
+		PackedNoteList removed = copy.remove(2, 5);
+		assertEquals(7, removed.size());
+		assertEquals(96*6, removed.getTickOffset(2));
+	}
+
+	/**
+	 * 範囲の参照, 検索は配列を展開せず, 展開したリストと同じ結果になること.
+	 */
+	@Test
+	public void test_readWithoutExpand() throws UndefinedTickException {
+		String mml = "l16cdefgab>c<r8c8d8e8f4.g4&g16r1a2b2>c1";
+		MMLEventList packedList = new MMLEventList(mml);
+		MMLEventList expandedList = new MMLEventList(mml);
+		expandedList.getMMLNoteEventList();
+		packedList.insertTick(96*2, 48);
+		expandedList.insertTick(96*2, 48);
+		packedList.removeTick(96*6, 24);
+		expandedList.removeTick(96*6, 24);
+		assertTrue(packedList.isPacked());
+
+		for (int startTick = 0; startTick < 96*20; startTick += 30) {
+			long endTick = startTick + 100;
+			List<MMLNoteEvent> rangeList = new ArrayList<>();
+			packedList.forEachNote(startTick, endTick, t -> rangeList.add(t.clone()));
+			List<MMLNoteEvent> expectRangeList = new ArrayList<>();
+			expandedList.forEachNote(startTick, endTick, t -> expectRangeList.add(t.clone()));
+			assertEquals(expectRangeList, rangeList);
+			assertEquals(expandedList.getMMLNoteEventList(startTick, endTick), rangeList);
+
+			assertEquals(expandedList.getNoteOnTickOffset(startTick), packedList.getNoteOnTickOffset(startTick));
+			assertEquals(expandedList.searchOnTickOffset(startTick), packedList.getNoteOnTickOffset(startTick));
+			assertEquals(expandedList.searchPrevNoteOnTickOffset(startTick), packedList.searchPrevNoteOnTickOffset(startTick));
+			assertArrayEquals(expandedList.indexOfMMLString(startTick), packedList.indexOfMMLString(startTick));
+		}
+		assertEquals(expandedList.getMMLNoteEventList(), packedList.getNoteListView());
+		assertEquals(expandedList.toString(), packedList.toString());
+		assertTrue(packedList.isPacked());
+
+		// 参照用のリストは変更できない.
+		try {
+			packedList.getNoteListView().remove(0);
+			fail();
+		} catch (UnsupportedOperationException e) {}
+		try {
+			expandedList.getNoteListView().remove(0);
+			fail();
+		} catch (UnsupportedOperationException e) {}
+
+		// cloneも参照だけでは展開しない.
+		MMLEventList cloneList = expandedList.clone();
+		assertEquals(expandedList.toMMLString(), cloneList.toMMLString());
+		cloneList.forEachNote(0, 96*4, t -> {});
+		assertTrue(cloneList.isPacked());
+
+		// 編集用のノートが必要になった時点で展開する.
+		assertEquals(expandedList.searchOnTickOffset(0), packedList.searchOnTickOffset(0));
+		assertFalse(packedList.isPacked());
+	}
+
+	private static void edit(MMLEventList eventList, int op, int startTick, int tick) {
+		switch (op) {
+		case 0:
+			eventList.insertTick(startTick, tick);
+			break;
+		case 1:
+			eventList.removeTick(startTick, tick);
+			break;
+		default:
+			eventList.addMMLNoteEvent(new MMLNoteEvent(60, tick, startTick));
+			break;
+		}
+	}
+
+	/**
+	 * 別スレッドから参照しながら編集しても, 編集の内容が失われないこと.
+	 */
+	@Test
+	public void test_readWhileEdit() throws InterruptedException, UndefinedTickException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("l16cdefgab>c<r8c8d8e8f4.g4&g16r1a2b2");
+		}
+		String mml = sb.toString();
+		for (int round = 0; round < 50; round++) {
+			MMLEventList eventList = new MMLEventList(mml);
+			MMLEventList expectList = new MMLEventList(mml);
+			AtomicBoolean done = new AtomicBoolean(false);
+			CountDownLatch started = new CountDownLatch(2);
+			List<Thread> readers = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				Thread reader = new Thread(() -> {
+					started.countDown();
+					while (!done.get()) {
+						try {
+							eventList.forEachNote(96, 96*4, t -> {});
+							eventList.getContentHash();
+							eventList.getNoteOnTickOffset(96*2);
+						} catch (RuntimeException e) {
+							// 編集途中の内容を参照した場合.
+						}
+					}
+				});
+				reader.start();
+				readers.add(reader);
+			}
+			started.await();
+
+			Random random = new Random(round);
+			for (int i = 0; i < 200; i++) {
+				// 大半は配列のまま編集し, 最後に展開して編集する.
+				int op = (i < 190) ? random.nextInt(2) : random.nextInt(3);
+				int startTick = 6 * random.nextInt(16*12);
+				int tick = 6 * (1 + random.nextInt(16));
+				edit(eventList, op, startTick, tick);
+				edit(expectList, op, startTick, tick);
+				if (i % 10 == 0) {
+					// 参照側と並行して反映させる.
+					eventList.forEachNote(t -> {});
+				}
+			}
+			done.set(true);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			assertEquals(expectList.toMMLString(), eventList.toMMLString());
+			assertEquals(expectList.getContentHash(), eventList.getContentHash());
+			assertEquals(expectList.getMMLNoteEventList(96, 96*4), eventList.getMMLNoteEventList(96, 96*4));
+			assertTrue(eventList.equalsNoteList(expectList));
+		}
+	}
+
+	/**
+	 * 配列の差分による空白の挿入, 削除が, ノートを直接書き換えた場合と一致すること.
+	 */
+	@Test
+	public void test_insertRemoveTick() throws UndefinedTickException {
+		Random random = new Random(25);
+		String mml = "l16cdefgab>c<r8c8d8e8f4.g4&g16r1a2b2>c1";
+		MMLEventList packedList = new MMLEventList(mml);
+		MMLEventList expandedList = new MMLEventList(mml);
+		expandedList.getMMLNoteEventList();
+		for (int i = 0; i < 40; i++) {
+			int startTick = random.nextInt(96*12);
+			int tick = 6 * (1 + random.nextInt(16));
+			if (random.nextBoolean()) {
+				packedList.insertTick(startTick, tick);
+				expandedList.insertTick(startTick, tick);
+			} else {
+				packedList.removeTick(startTick, tick);
+				expandedList.removeTick(startTick, tick);
+			}
+			assertTrue(packedList.isPacked() || packedList.isEmpty());
+			assertEquals(expandedList.getTickLength(), packedList.getTickLength());
+			if (i % 8 == 0) {
+				// 途中でclone, 参照しても結果は変わらない.
+				assertEquals(expandedList.toMMLString(), packedList.clone().toMMLString());
+				assertEquals(expandedList.getContentHash(), packedList.getContentHash());
+			}
+		}
+		assertEquals(expandedList.getMMLNoteEventList(), packedList.clone().getMMLNoteEventList());
+		assertEquals(expandedList.toMMLString(), packedList.toMMLString());
+		assertTrue(packedList.equalsNoteList(expandedList));
+
+		// すべてのノートを削除する.
+		MMLEventList eventList = new MMLEventList("cde");
+		eventList.removeTick(0, 96*3);
+		assertTrue(eventList.isEmpty());
+		assertEquals(0, eventList.getTickLength());
+		assertEquals("", eventList.toMMLString());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.ScoreGenerator.Job;
+import fourthline.mmlTools.ScoreGenerator.TrackResult;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * ScoreGeneratorのテスト.
+ */
+public class ScoreGeneratorTest {
+
+	/** テンポを跨ぐ分割で generate に失敗するMML. */
+	private static final String ERROR_MML = "MML@ggt150gg,rr8r16.a24aa;";
+
+	private TrackSnapshot createSnapshot(String ... mml) {
+		TrackSnapshot snapshot = TrackSnapshot.EMPTY;
+		for (String s : mml) {
+			snapshot = snapshot.add(new MMLTrack().setMML(s));
+		}
+		return snapshot;
+	}
+
+	@Test
+	public void test_generate() {
+		ScoreGenerator generator = new ScoreGenerator(2);
+		TrackSnapshot snapshot = createSnapshot("MML@cde,,;", ERROR_MML, "MML@efg,,;", ERROR_MML);
+		List<TrackResult> resultList = generator.generate(snapshot);
+
+		assertEquals(4, resultList.size());
+		for (int i = 0; i < 4; i++) {
+			TrackResult result = resultList.get(i);
+			assertEquals(i, result.getTrackIndex());
+			assertSame(snapshot.get(i), result.getTrack());
+			assertFalse(result.isCancelled());
+			assertTrue(result.getTime() > 0);
+		}
+		assertTrue(resultList.get(0).isSuccess());
+		assertTrue(resultList.get(1).getError() instanceof UndefinedTickException);
+		assertTrue(resultList.get(2).isSuccess());
+		assertTrue(resultList.get(3).getError() instanceof UndefinedTickException);
+		assertEquals("MML@efg,,;", snapshot.get(2).getMabiMML());
+	}
+
+	@Test(expected = UndefinedTickException.class)
+	public void test_generateAll_error() throws UndefinedTickException {
+		MMLScore score = new MMLScore();
+		score.addTrack(new MMLTrack().setMML("MML@cde,,;"));
+		score.addTrack(new MMLTrack().setMML(ERROR_MML));
+		score.generateAll();
+	}
+
+	@Test
+	public void test_progress() throws InterruptedException {
+		ScoreGenerator generator = new ScoreGenerator(3);
+		MMLScore score = new MMLScore();
+		for (int i = 0; i < 8; i++) {
+			score.addTrack(new MMLTrack().setMML("MML@cde,,;"));
+		}
+		List<Integer> doneList = new ArrayList<>();
+		Job job = score.generateAll(generator, (result, done, total) -> {
+			synchronized (doneList) {
+				doneList.add(done);
+			}
+			assertEquals(8, total);
+		});
+		List<TrackResult> resultList = job.await(10, TimeUnit.SECONDS);
+
+		assertTrue(job.isDone());
+		assertEquals(8, resultList.size());
+		assertTrue(resultList.stream().allMatch(TrackResult::isSuccess));
+		doneList.sort(null);
+		assertEquals(8, doneList.size());
+		for (int i = 0; i < 8; i++) {
+			assertEquals(i+1, doneList.get(i).intValue());
+		}
+	}
+
+	@Test
+	public void test_cancel() throws InterruptedException {
+		ScoreGenerator generator = new ScoreGenerator(1);
+		TrackSnapshot snapshot = createSnapshot("MML@cde,,;", "MML@cde,,;", "MML@cde,,;", "MML@cde,,;");
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch cancelled = new CountDownLatch(1);
+		Job job = generator.submit(snapshot, (result, done, total) -> {
+			if (result.getTrackIndex() == 0) {
+				// 1トラック目の完了通知中に中止する.
+				started.countDown();
+				try {
+					cancelled.await();
+				} catch (InterruptedException e) {}
+			}
+		});
+		started.await();
+		job.cancel();
+		cancelled.countDown();
+		List<TrackResult> resultList = job.await(10, TimeUnit.SECONDS);
+
+		assertTrue(job.isCancelled());
+		assertTrue(resultList.get(0).isSuccess());
+		for (int i = 1; i < 4; i++) {
+			assertTrue(resultList.get(i).isCancelled());
+			assertEquals(i, resultList.get(i).getTrackIndex());
+		}
+	}
+}
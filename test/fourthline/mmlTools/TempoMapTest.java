@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.core.MMLTicks;
+import fourthline.mmlTools.core.UndefinedTickException;
+
+/**
+ * TempoMapのテスト.
+ */
+public class TempoMapTest {
+
+	@Test
+	public void testEmpty() {
+		TempoMap tempoMap = new TempoMap(new ArrayList<>());
+		assertEquals(MMLTempoEvent.INITIAL_TEMPO, tempoMap.getTempoOnTick(0));
+		assertEquals(0, tempoMap.getTimeOnTickOffset(0));
+		assertEquals(500, tempoMap.getTimeOnTickOffset(96));
+		assertEquals(96, tempoMap.getTickOffsetOnTime(500));
+	}
+
+	@Test
+	public void testTimeAndTick() throws UndefinedTickException {
+		int t4 = MMLTicks.getTick("4");
+		List<MMLTempoEvent> tempoList = new ArrayList<>();
+		new MMLEventList("t60cccct150ccccct90cc", tempoList);
+		TempoMap tempoMap = new TempoMap(tempoList);
+
+		assertEquals(60, tempoMap.getTempoOnTick(t4*4-1));
+		assertEquals(150, tempoMap.getTempoOnTick(t4*4));
+		assertEquals(90, tempoMap.getTempoOnTick(t4*100));
+
+		// 4s + 5*0.4s + 2*(2/3)s
+		assertEquals(4000, tempoMap.getTimeOnTickOffset(t4*4));
+		assertEquals(6000, tempoMap.getTimeOnTickOffset(t4*9));
+		assertEquals(7333, tempoMap.getTimeOnTickOffset(t4*11));
+		assertEquals(7333333, tempoMap.getMicrosecOnTickOffset(t4*11));
+		assertEquals(t4*9, tempoMap.getTickOffsetOnTime(6000));
+		assertEquals(t4*11, tempoMap.getTickOffsetOnMicrosec(tempoMap.getMicrosecOnTickOffset(t4*11)+1));
+
+		for (int tick = 0; tick < t4*12; tick++) {
+			assertEquals(MMLTempoEvent.searchOnTick(tempoList, tick), tempoMap.getTempoOnTick(tick));
+			long time = tempoMap.getMicrosecOnTickOffset(tick);
+			assertTrue(time <= tempoMap.getMicrosecOnTickOffset(tick+1));
+			assertEquals(tick, tempoMap.getTickOffsetOnMicrosec(time+1));
+		}
+	}
+
+	@Test
+	public void testUpdate() {
+		List<MMLTempoEvent> tempoList = new ArrayList<>();
+		new MMLEventList("t60cccct150c", tempoList);
+		TempoMap tempoMap1 = TempoMap.update(null, tempoList);
+		assertSame(tempoMap1, TempoMap.update(tempoMap1, tempoList));
+
+		tempoList.get(1).setTempo(120);
+		TempoMap tempoMap2 = TempoMap.update(tempoMap1, tempoList);
+		assertNotSame(tempoMap1, tempoMap2);
+		assertEquals(120, tempoMap2.getTempoOnTick(1000));
+
+		tempoList.remove(0);
+		assertFalse(tempoMap2.matches(tempoList));
+	}
+
+	@Test
+	public void testTempoList() {
+		MMLTempoList tempoList = new MMLTempoList();
+		new MMLEventList("t60cccct150c", tempoList);
+		TempoMap tempoMap1 = tempoList.getTempoMap();
+		assertSame(tempoMap1, tempoList.getTempoMap());
+		assertSame(tempoMap1, TempoMap.update(null, tempoList));
+		assertEquals(4000, MMLTempoEvent.getTimeOnTickOffset(tempoList, 96*4));
+
+		// 直接の書き換えは markDirty で反映する.
+		tempoList.get(0).setTempo(120);
+		tempoList.markDirty();
+		TempoMap tempoMap2 = tempoList.getTempoMap();
+		assertNotSame(tempoMap1, tempoMap2);
+		assertEquals(2000, MMLTempoEvent.getTimeOnTickOffset(tempoList, 96*4));
+
+		// 追加, 削除は検出する.
+		new MMLTempoEvent(90, 96*8).appendToListElement(tempoList);
+		TempoMap tempoMap3 = tempoList.getTempoMap();
+		assertNotSame(tempoMap2, tempoMap3);
+		assertEquals(90, tempoMap3.getTempoOnTick(96*8));
+		tempoList.remove(2);
+		assertEquals(150, tempoList.getTempoMap().getTempoOnTick(96*8));
+		tempoList.clear();
+		assertEquals(MMLTempoEvent.INITIAL_TEMPO, tempoList.getTempoMap().getTempoOnTick(96*8));
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * TrackSnapshotのテスト.
+ */
+public class TrackSnapshotTest {
+
+	private MMLTrack[] createTracks(int count) {
+		MMLTrack tracks[] = new MMLTrack[count];
+		for (int i = 0; i < count; i++) {
+			tracks[i] = new MMLTrack().setMML("MML@c,,;");
+			tracks[i].setTrackName("track"+i);
+		}
+		return tracks;
+	}
+
+	@Test
+	public void test_edit() {
+		MMLScore score = new MMLScore();
+		MMLTrack t[] = createTracks(4);
+		TrackSnapshot empty = score.getTrackSnapshot();
+		assertEquals(0, empty.size());
+
+		for (MMLTrack track : t) {
+			score.addTrack(track);
+		}
+		TrackSnapshot snapshot1 = score.getTrackSnapshot();
+		assertEquals(Arrays.asList(t[0], t[1], t[2], t[3]), snapshot1.getTrackList());
+		assertEquals(empty.getVersion() + 4, snapshot1.getVersion());
+
+		score.moveTrack(0, 2);
+		assertEquals(Arrays.asList(t[1], t[2], t[0], t[3]), score.getTrackList());
+		score.moveTrack(3, 0);
+		assertEquals(Arrays.asList(t[3], t[1], t[2], t[0]), score.getTrackList());
+		score.removeTrack(1);
+		assertEquals(Arrays.asList(t[3], t[2], t[0]), score.getTrackList());
+		score.setTrack(0, t[1]);
+		assertEquals(Arrays.asList(t[1], t[2], t[0]), score.getTrackList());
+		assertEquals(snapshot1.getVersion() + 4, score.getTrackSnapshot().getVersion());
+
+		// 取得済みのスナップショットは変わらない.
+		assertEquals(Arrays.asList(t[0], t[1], t[2], t[3]), snapshot1.getTrackList());
+		assertEquals(0, empty.size());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void test_unmodifiable() {
+		MMLScore score = new MMLScore();
+		score.addTrack(new MMLTrack());
+		List<MMLTrack> list = score.getTrackList();
+		list.remove(0);
+	}
+
+	@Test
+	public void test_maxTrack() throws InterruptedException {
+		MMLScore score = new MMLScore();
+		MMLTrack t[] = createTracks(MMLScore.MAX_TRACK + 8);
+		AtomicInteger addCount = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		Thread threads[] = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			int n = i;
+			threads[i] = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {}
+				for (int j = n; j < t.length; j += threads.length) {
+					if (score.addTrack(t[j]) >= 0) {
+						addCount.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(MMLScore.MAX_TRACK, addCount.get());
+		assertEquals(MMLScore.MAX_TRACK, score.getTrackCount());
+		assertEquals(-1, score.addTrack(new MMLTrack()));
+	}
+}
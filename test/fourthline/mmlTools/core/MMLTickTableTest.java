@@ -48,4 +48,20 @@ public final class MMLTickTableTest extends FileSelect {
 		assertNotNull(tickTable);
 		assertEquals(320, tickTable.getInvTable().size());
 	}
+
+	@Test
+	public void test_getTick() {
+		MMLTickTable tickTable = MMLTickTable.createTickTable();
+		assertEquals(96, tickTable.getTick(4, false));
+		assertEquals(144, tickTable.getTick(4, true));
+		assertEquals(0, tickTable.getTick(65, false));
+		assertEquals(0, tickTable.getTick(0, false));
+		assertEquals(6, tickTable.getMinimumTick());
+
+		short invIndex[] = tickTable.getInvIndex(96+24);
+		assertEquals(2, invIndex.length);
+		assertEquals("4", tickTable.getLengthName(invIndex[0]));
+		assertEquals("16", tickTable.getLengthName(invIndex[1]));
+		assertNull(tickTable.getInvIndex(1));
+	}
 }
@@ -50,6 +50,11 @@ public final class MMLTicksTest {
 		MMLTicks.getTick("65");
 	}
 
+	@Test(expected = UndefinedTickException.class)
+	public void test_getTickEmpty() throws UndefinedTickException {
+		MMLTicks.getTick(".");
+	}
+
 	/**
 	 * 調律符生成.
 	 */
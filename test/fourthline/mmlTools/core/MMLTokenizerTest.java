@@ -22,4 +22,45 @@ public class MMLTokenizerTest {
 
 		assertArrayEquals(expect, result.toArray());
 	}
+
+	@Test
+	public void test_cursor() {
+		String mml = "xa16>b16.&Cl8t120v10<n50r";
+		MMLTokenizer.TokenKind expectKind[] = {
+				MMLTokenizer.TokenKind.OTHER, MMLTokenizer.TokenKind.NOTE,
+				MMLTokenizer.TokenKind.OCTAVE_UP, MMLTokenizer.TokenKind.NOTE,
+				MMLTokenizer.TokenKind.TIE, MMLTokenizer.TokenKind.NOTE,
+				MMLTokenizer.TokenKind.LENGTH, MMLTokenizer.TokenKind.TEMPO,
+				MMLTokenizer.TokenKind.VOLUME, MMLTokenizer.TokenKind.OCTAVE_DOWN,
+				MMLTokenizer.TokenKind.NX, MMLTokenizer.TokenKind.REST };
+		int expectStart[] = { 0, 1, 4, 5, 9, 10, 11, 13, 17, 20, 21, 24 };
+		MMLTokenizer tokenizer = new MMLTokenizer(new StringBuilder(mml));
+		ArrayList<MMLTokenizer.TokenKind> kindList = new ArrayList<>();
+		ArrayList<Integer> startList = new ArrayList<>();
+		int prevEnd = 0;
+		while (tokenizer.nextToken()) {
+			assertEquals(prevEnd, tokenizer.getStartIndex());
+			kindList.add(tokenizer.getTokenKind());
+			startList.add(tokenizer.getStartIndex());
+			prevEnd = tokenizer.getEndIndex();
+		}
+
+		assertEquals(mml.length(), prevEnd);
+		assertFalse(tokenizer.nextToken());
+		assertArrayEquals(expectKind, kindList.toArray());
+		assertArrayEquals(expectStart, startList.stream().mapToInt(t -> t).toArray());
+	}
+
+	@Test
+	public void test_parseInt() {
+		assertEquals(120, MMLTokenizer.parseInt("t120", 1, 4));
+		assertEquals(-5, MMLTokenizer.parseInt("o-5c", 1, 3));
+		assertEquals(Integer.MIN_VALUE, MMLTokenizer.parseInt("-2147483648", 0, 11));
+		for (String s : new String[] { "", "-", "1a", "2147483648", "-2147483649" }) {
+			try {
+				MMLTokenizer.parseInt(s, 0, s.length());
+				fail(s);
+			} catch (NumberFormatException e) {}
+		}
+	}
 }
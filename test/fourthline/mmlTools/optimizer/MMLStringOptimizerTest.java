@@ -6,6 +6,13 @@ package fourthline.mmlTools.optimizer;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -13,6 +20,7 @@ import org.junit.Test;
 
 import fourthline.mmlTools.MMLEventList;
 import fourthline.mmlTools.core.MMLTicks;
+import fourthline.mmlTools.core.MMLTokenizer;
 import fourthline.mmlTools.core.UndefinedTickException;
 
 /**
@@ -245,4 +253,206 @@ public class MMLStringOptimizerTest {
 		String expect =  "co0c-o4ccccco0c-c-c-c-cc-cc-c-cccc>ccc<c->ccc";
 		checkMMLStringOptimize(input, expect);
 	}
+
+	@Test
+	public void test_cache() {
+		MMLStringOptimizer.setDebug(false);
+		MMLStringOptimizer.clearCache();
+		MMLStringOptimizer.resetStatistics();
+		String mml = "c8c8c16c16c8c8c16";
+		String expect = new MMLStringOptimizer(mml).toString();
+		assertEquals(0, MMLStringOptimizer.getCacheHitCount());
+		assertEquals(1, MMLStringOptimizer.getCacheMissCount());
+
+		assertEquals(expect, new MMLStringOptimizer(mml).toString());
+		assertEquals(1, MMLStringOptimizer.getCacheHitCount());
+		assertEquals(0.5, MMLStringOptimizer.getCacheHitRate(), 0.0);
+		for (long count : MMLStringOptimizer.getPassCount().values()) {
+			assertEquals(1, count);
+		}
+	}
+
+	@Test
+	public void test_cacheLimit() {
+		MMLStringOptimizer.setDebug(false);
+		int limit = MMLStringOptimizer.getCacheLimit();
+		try {
+			MMLStringOptimizer.clearCache();
+			MMLStringOptimizer.setCacheLimit(70);
+			String mml1 = "c8c8c16c16c8c8c16";
+			String mml2 = "d8d8d16d16d8d8d16";
+			String mml3 = "e8e8e16e16e8e8e16";
+			String result1 = new MMLStringOptimizer(mml1).toString();
+			String result2 = new MMLStringOptimizer(mml2).toString();
+			assertEquals(mml1.length()+result1.length()+mml2.length()+result2.length(), MMLStringOptimizer.getCacheChars());
+
+			// 上限を超えたら, 最近使用していないものから捨てる.
+			new MMLStringOptimizer(mml1).toString();
+			new MMLStringOptimizer(mml3).toString();
+			assertTrue(MMLStringOptimizer.getCacheChars() <= 70);
+			MMLStringOptimizer.resetStatistics();
+			new MMLStringOptimizer(mml1).toString();
+			new MMLStringOptimizer(mml2).toString();
+			assertEquals(1, MMLStringOptimizer.getCacheHitCount());
+
+			// 上限より大きいものはキャッシュしない.
+			MMLStringOptimizer.clearCache();
+			MMLStringOptimizer.setCacheLimit(10);
+			new MMLStringOptimizer(mml1).toString();
+			assertEquals(0, MMLStringOptimizer.getCacheChars());
+		} finally {
+			MMLStringOptimizer.setCacheLimit(limit);
+		}
+	}
+
+	@Test
+	public void test_optimizeParts() {
+		MMLStringOptimizer.setDebug(false);
+		String mml[] = { "c8c8c16c16c8c8c16", null, "", "c4c4c16c4c4c4c16c16c8c8c4c4c16c16c4c4c4" };
+		String expect[] = { "c8c8l16ccc8c8c", null, "", "ccc16cccl16ccc8c8c4c4ccl4ccc" };
+		assertArrayEquals(expect, MMLStringOptimizer.optimize(mml));
+	}
+
+	/**
+	 * MMLを書き換えないパスの後では, トークン列を作り直さないこと.
+	 */
+	@Test
+	public void test_tokenizeCount() {
+		// 最後のNxでMMLを書き換える.
+		String mml = "o7cccc<<<<<c+>>>>>cccc";
+		MMLStringOptimizer.resetStatistics();
+		String expect = MMLStringOptimizer.optimize(mml);
+		assertEquals("o7ccccn25cccc", expect);
+		long count = MMLStringOptimizer.getTokenizeCount();
+		assertTrue(count <= MMLStringOptimizer.getPassNames().size());
+
+		Supplier<MMLStringOptimizer.Optimizer> identity = () -> new MMLStringOptimizer.Optimizer() {
+			private final StringBuilder sb = new StringBuilder();
+			@Override
+			public void nextToken(String token) {
+				sb.append(token);
+			}
+			@Override
+			public String getMinString() {
+				return sb.toString();
+			}
+		};
+		MMLStringOptimizer.registerPass("Id1", identity);
+		MMLStringOptimizer.registerPass("Id2", identity);
+		try {
+			MMLStringOptimizer.resetStatistics();
+			assertEquals(expect, MMLStringOptimizer.optimize(mml));
+			assertEquals(count + 1, MMLStringOptimizer.getTokenizeCount());
+		} finally {
+			MMLStringOptimizer.unregisterPass("Id1");
+			MMLStringOptimizer.unregisterPass("Id2");
+		}
+	}
+
+	/**
+	 * パートごとに別のスレッドで最適化すること.
+	 */
+	@Test
+	public void test_optimizePartsParallel() {
+		CountDownLatch latch = new CountDownLatch(2);
+		Set<Thread> threadSet = ConcurrentHashMap.newKeySet();
+		MMLStringOptimizer.registerPass("Wait", () -> new MMLStringOptimizer.Optimizer() {
+			private final StringBuilder sb = new StringBuilder();
+			@Override
+			public void nextToken(String token) {
+				sb.append(token);
+			}
+			@Override
+			public String getMinString() {
+				threadSet.add(Thread.currentThread());
+				latch.countDown();
+				try {
+					latch.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {}
+				return sb.toString();
+			}
+		});
+		try {
+			String mml[] = { "c8c8c16c16c8c8c16", null, "c4c4c16c4c4c4c16c16c8c8c4c4c16c16c4c4c4" };
+			String expect[] = { "c8c8l16ccc8c8c", null, "ccc16cccl16ccc8c8c4c4ccl4ccc" };
+			assertArrayEquals(expect, MMLStringOptimizer.optimize(mml));
+			assertEquals(0, latch.getCount());
+			assertEquals(2, threadSet.size());
+			assertTrue(threadSet.contains(Thread.currentThread()));
+		} finally {
+			MMLStringOptimizer.unregisterPass("Wait");
+		}
+	}
+
+	@Test
+	public void test_registerPass() {
+		MMLStringOptimizer.setDebug(false);
+		String mml = "o7cccc<<<<<c+>>>>>cccc";
+		assertEquals(Arrays.asList("OxLx", "BpCm", "Nx"), MMLStringOptimizer.getPassNames());
+		assertEquals("o7ccccn25cccc", new MMLStringOptimizer(mml).toString());
+		try {
+			MMLStringOptimizer.unregisterPass("Nx");
+			assertEquals(Arrays.asList("OxLx", "BpCm"), MMLStringOptimizer.getPassNames());
+			assertFalse(new MMLStringOptimizer(mml).toString().contains("n"));
+		} finally {
+			MMLStringOptimizer.registerPass("Nx", NxOptimizer::new);
+		}
+		assertEquals(Arrays.asList("OxLx", "BpCm", "Nx"), MMLStringOptimizer.getPassNames());
+		assertEquals("o7ccccn25cccc", new MMLStringOptimizer(mml).toString());
+	}
+
+	/**
+	 * Nxの最適化結果が, 候補の探索を変更する前の実装と一致すること (ビーム幅1).
+	 * 前半はこのテストの入力をOxLx, BpCmで最適化したもの, 後半はランダムに作成したもの.
+	 */
+	@Test
+	public void test_nxOutput() {
+		String table[][] = {
+				{ "c<g+b+g>>f<<a", "c<g+b+gn65a" },
+				{ "o7cccco2c+o6cccc", "o7ccccn25<cccc" },
+				{ "o7cccco2c+o7cccc", "o7ccccn25cccc" },
+				{ "o7cccco2c+c+o7cccc", "o7ccccn25n25cccc" },
+				{ "o7cccco2c+>c+o7cccc", "o7ccccn25n37cccc" },
+				{ "o0c+>>c+<<c+o4c64<<c+<<c+>>c+<<c+>>c+", "n1n25n1c64n25n1n25n1n25" },
+				{ "l16>>rd<l16c+rafg<<gc+>>l16l16fro7c+rc8", "l16r>>dl16<c+rafg<<gc+l16l16>>fr>>c+rc8" },
+				{ "b-o2c+>o2o2abl16f<b-e>>>>eac8do2ac+cb-o7b<<g<<f", "b-<<c+abl16f<b-eo5eac8do2ac+cb-o7b<<g<<f" },
+				{ ">fo7fb>>&co2v10c+o7<o2l16rg<v10>>v10<ro7fc8bo7gb", ">f>>fb&>>cv10o2c+l16rgv10v10ro7fc8bgb" },
+				{ "ggbo2>>dv10ce&ce>&co2l16<rb-rb-b-<<bc+v10v10ro2ab-", "ggbdv10ce&ce&>cl16ro1b-rb-b-<<bc+v10v10ro2ab-" },
+				{ "<<abc+ao7gdarc8bbo2ra<<<<c+v10o7c+d&cd<c+l16o2e<<<<>bfgr>>>", "<<abc+ao7gdarc8bbro2an1v10o7c+d&cd<c+l16o2eo-1bfgr" },
+				{ "o7b-c+gco2co2<<eo7b-&c>cc8>>o7gb-<l16>b-cecc>&cr", "o7b-c+gco2cn4o7b-&c>cc8<gb-l16b-cecc&>cr" },
+				{ "bo2o7>co2rdb->><<do7l16&cv10>>&c>>o2<bfadc+><<c>>f<bfdc8ggr", "bo8cro2db-dl16&o7cv10&>>co1bfadc+n0>f<bfdc8ggr" },
+				{ "earo7o2a<<ec>>>>c", "ear<<a<<eco4c" },
+				{ "v10o7l16c8&c&cgc8rao7<<do7o2&c<<fco7e<<&c<", "v10l16o7c8&c&cgc8ra<<d&o2c<<fco7e&<<c" },
+				{ "fc8co2crc<<bc>>e>rb>gcb-cc+<<l16d<<caac+go2g<dgl16", "fc8c<<crc<<bc>>er>b>gcb-cc+l16<<d<<caac+g>>g<dgl16" }
+		};
+		for (String s[] : table) {
+			assertEquals(s[0], s[1], nxOptimize(new NxOptimizer(), s[0]));
+			assertEquals(s[0], s[1], nxOptimize(new NxOptimizer(1), s[0]));
+		}
+	}
+
+	private static String nxOptimize(NxOptimizer optimizer, String mml) {
+		MMLTokenizer tokenizer = new MMLTokenizer(mml);
+		while (tokenizer.hasNext()) {
+			optimizer.nextToken(tokenizer.next());
+		}
+		return optimizer.getMinString();
+	}
+
+	/**
+	 * ビーム幅を広げた場合, 結果は変わることがあっても, 同じ音を表すこと.
+	 */
+	@Test
+	public void test_nxBeamWidth() {
+		String mmls[] = {
+				"c<g+>c<g>>f<<ao7cccc<<<<<c+>>>>cccc<<<b>>>c",
+				"o7cccco2c+o6cccc",
+				"l16>>rd<l16c+rafg<<gc+>>l16l16fro7c+rc8",
+				"bo2o7>co2rdb->><<do7l16&cv10>>&c>>o2<bfadc+><<c>>f<bfdc8ggr"
+		};
+		for (String mml : mmls) {
+			String result = nxOptimize(new NxOptimizer(4), mml);
+			assertEquals(mml, new MMLEventList(mml).getMMLNoteEventList().toString(), new MMLEventList(result).getMMLNoteEventList().toString());
+		}
+	}
 }
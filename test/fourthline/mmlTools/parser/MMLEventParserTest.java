@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 たんらる
+ */
+
+package fourthline.mmlTools.parser;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import fourthline.mmlTools.core.TuningBase;
+
+public class MMLEventParserTest {
+
+	private static final class EventRecorder implements MMLEventVisitor {
+		private final List<String> eventList = new ArrayList<>();
+
+		@Override
+		public void note(int note, int tick, int offset, int velocity, TuningBase tuningBase, int startIndex, int endIndex) {
+			eventList.add("n"+note+":"+tick+"@"+offset+"v"+velocity+(tuningBase != null ? "T" : "")+"["+startIndex+","+endIndex+")");
+		}
+
+		@Override
+		public void tempo(int tempo, int offset, int startIndex, int endIndex) {
+			eventList.add("t"+tempo+"@"+offset);
+		}
+
+		@Override
+		public void volume(int velocity, int offset, int startIndex, int endIndex) {
+			eventList.add("v"+velocity+"@"+offset);
+		}
+	}
+
+	@Test
+	public void test_parse() {
+		EventRecorder recorder = new EventRecorder();
+		MMLEventParser parser = new MMLEventParser("c8&c8v10t150rd16&d16&d16");
+		parser.parse(recorder);
+
+		// ノートはタイの連結が確定してから渡される.
+		String expect[] = {
+				"v10@96",
+				"t150@96",
+				"n48:96@0v8[0,5)",
+				"n50:72@192v10T[13,24)"
+		};
+		assertArrayEquals(expect, recorder.eventList.toArray());
+		assertTrue(parser.getWarnList().isEmpty());
+	}
+
+	@Test
+	public void test_warn() {
+		EventRecorder recorder = new EventRecorder();
+		MMLEventParser parser = new MMLEventParser("c0t10vxd");
+		parser.parse(recorder);
+
+		String expect[] = { "n50:96@0v8[7,8)" };
+		assertArrayEquals(expect, recorder.eventList.toArray());
+
+		List<MMLParseWarning> warnList = parser.getWarnList();
+		assertEquals(3, warnList.size());
+		assertEquals(MMLParseWarning.Type.UNDEFINED_TICK, warnList.get(0).getType());
+		assertEquals(0, warnList.get(0).getStartIndex());
+		assertEquals(2, warnList.get(0).getEndIndex());
+		assertEquals(MMLParseWarning.Type.OUT_OF_RANGE, warnList.get(1).getType());
+		assertEquals(MMLParseWarning.Type.INVALID_NUMBER, warnList.get(2).getType());
+		assertEquals(5, warnList.get(2).getStartIndex());
+	}
+}